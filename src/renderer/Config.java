@@ -39,6 +39,15 @@ public class Config {
 		PATH_RESOURCES_ANIMATIONS = PATH_RESOURCES+"anim/";
 		PATH_LOGGER = RAYTRACER_HOME + "logs/log_file.log";
 	}
+	/** How many threads are used to render a picture. Defaults to one per available processor. */
+	public static int RENDER_THREADS = Runtime.getRuntime().availableProcessors();
+	/** The most triangles a leaf of a Model's BVH may hold. */
+	public static int BVH_LEAF_SIZE = 4;
+	/**
+	 * How much worse (by SAH cost) a refit BVH over a Scene's instances may get
+	 * than it was when it was built before it is rebuilt instead.
+	 */
+	public static double BVH_REBUILD_RATIO = 1.5;
 	//Logging utilities TODO should this go in Config or Util?
 	/**The logger used by the Raytracer. All output goes here.*/
 	public static Logger LOG;
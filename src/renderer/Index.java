@@ -4,15 +4,25 @@ import static renderer.Config.*;
 import static renderer.Config.handler;
 import static renderer.Config.LOG;
 
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import renderer.benchmark.ReferenceScenes;
+import renderer.cluster.RenderCoordinator;
+import renderer.cluster.RenderWorker;
+import renderer.render.PngWriter;
+import renderer.scene.Scene;
+
 /**
  * Entry point for the Raytracer.
  * <p>
@@ -25,6 +35,17 @@ import java.util.logging.Logger;
  * </ol>
  * <p>
  * All config data is passed as an argument through main().
+ * </p>
+ * <p>
+ * Pictures can also be split between several processes:
+ * </p>
+ * <ul>
+ * <li><code>--coordinator RAYTRACER_HOME port [local workers]</code> waits for
+ * workers on a port, optionally starting some on this machine, and renders the
+ * reference Scene on them into <code>PATH_PICTURE_SAVE</code>.</li>
+ * <li><code>--worker host port</code> renders for the coordinator on a
+ * host.</li>
+ * </ul>
  * 
  * @author Don Isaac
  *
@@ -54,6 +75,24 @@ public class Index {
 		// TODO allow the user to chose the FileHandler they want
 		LOG.addHandler(new ConsoleHandler());
 
+		if (args.length > 0 && args[0].equals("--worker")) {
+			if (args.length < 3) {
+				LOG.severe("Usage: --worker host port");
+				return;
+			}
+			new RenderWorker(args[1], Integer.parseInt(args[2])).run();
+			return;
+		}
+		if (args.length > 0 && args[0].equals("--coordinator")) {
+			if (args.length < 3) {
+				LOG.severe("Usage: --coordinator RAYTRACER_HOME port [local workers]");
+				return;
+			}
+			setupFiletree(args[1]);
+			coordinate(Integer.parseInt(args[2]), args.length > 3 ? Integer.parseInt(args[3]) : 0);
+			return;
+		}
+
 		// TODO maybe add more arguments, or load from a config file?
 		switch (args.length) {
 		case 0:// default setup
@@ -78,6 +117,50 @@ public class Index {
 		// new Engine();
 	}
 
+	/**
+	 * Renders the reference Scene on render workers and saves it.
+	 * 
+	 * @param port
+	 *            the port to wait for workers on
+	 * @param localWorkers
+	 *            how many workers to start on this machine. If 0, waits for at
+	 *            least one to connect from elsewhere.
+	 * @throws IOException
+	 *             if the picture could not be rendered or saved
+	 */
+	private static void coordinate(int port, int localWorkers) throws IOException {
+		List<Process> processes = new ArrayList<Process>();
+		try (RenderCoordinator coordinator = new RenderCoordinator(port)) {
+			String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+			for (int i = 0; i < localWorkers; i++) {
+				processes.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+						Index.class.getName(), "--worker", "localhost", Integer.toString(coordinator.getPort()))
+								.inheritIO().start());
+			}
+			if (!coordinator.awaitWorkers(Math.max(1, localWorkers), 60000))
+				LOG.warning("Only " + coordinator.getWorkerCount() + " render workers connected, starting anyway");
+			Scene scene = ReferenceScenes.sphereFieldScene(10, 32, 1280, 720);
+			ReferenceScenes.addLightRing(scene, 4, 16.0, 10.0, 400.0);
+			BufferedImage image = coordinator.takePicture(scene, scene.cameras.get(0));
+			File file = new File(PATH_PICTURE_SAVE + scene.name + ".png");
+			try (PngWriter writer = new PngWriter()) {
+				writer.write(image, file);
+			}
+			LOG.info("Saved " + file.getAbsolutePath());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			for (Process p : processes) {
+				try {
+					if (!p.waitFor(10, TimeUnit.SECONDS))
+						p.destroy();
+				} catch (InterruptedException e) {
+					p.destroy();
+				}
+			}
+		}
+	}
+
 	/**
 	 * Pretty self-explanitory.
 	 * 
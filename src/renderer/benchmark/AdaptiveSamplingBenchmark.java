@@ -0,0 +1,85 @@
+package renderer.benchmark;
+
+import static renderer.Config.LOG;
+
+import java.awt.image.BufferedImage;
+
+import renderer.scene.Camera;
+import renderer.scene.ImageData;
+import renderer.scene.Scene;
+
+/**
+ * Compares adaptive anti-aliasing with a fixed number of samples per pixel.
+ * A sphere field is rendered once with many samples per pixel as a
+ * reference, then with 4 samples for every pixel and with the adaptive
+ * sampler's default settings. Both are measured by their sample count,
+ * their best time out of a few runs, and their RMS error against the
+ * reference in 8-bit units. The
+ * field is lit by a few point lights, which shade without noise, and by a
+ * grid of area lights that is sampled stochastically.
+ * <p>
+ * Usage: <code>AdaptiveSamplingBenchmark [width height]</code>
+ * </p>
+ */
+public class AdaptiveSamplingBenchmark {
+	private static final int RUNS = 3;
+	private static final int REFERENCE_SAMPLES = 64;
+	private static final int FIXED_SAMPLES = 4;
+
+	public static void main(String[] args) {
+		ReferenceScenes.setupLogger();
+		int width = args.length > 1 ? Integer.parseInt(args[0]) : 320;
+		int height = args.length > 1 ? Integer.parseInt(args[1]) : 180;
+		int spheres = 10;
+		double extent = spheres * 2.0;
+		for (int lighting = 0; lighting < 2; lighting++) {
+			Scene scene = ReferenceScenes.sphereFieldScene(spheres, 16, width, height);
+			String name;
+			if (lighting == 0) {
+				ReferenceScenes.addLightRing(scene, 4, extent * 0.8, extent * 0.5, extent * extent);
+				name = "4 point lights";
+			} else {
+				ReferenceScenes.addLightGrid(scene, 8, 0.2 * extent, extent * 0.5, 0.1 * extent, extent * extent);
+				name = "64 area lights";
+			}
+			Camera camera = scene.cameras.get(0);
+			BufferedImage reference = render(camera, scene, REFERENCE_SAMPLES, REFERENCE_SAMPLES, 0.0).image;
+			Result fixed = render(camera, scene, FIXED_SAMPLES, FIXED_SAMPLES, 0.0);
+			Result adaptive = render(camera, scene, ImageData.DEFAULT_MIN_SAMPLES, ImageData.DEFAULT_MAX_SAMPLES,
+					ImageData.DEFAULT_NOISE_THRESHOLD);
+			LOG.info(name + ":");
+			log("fixed " + FIXED_SAMPLES, fixed, reference, width * height);
+			log("adaptive " + ImageData.DEFAULT_MIN_SAMPLES + "-" + ImageData.DEFAULT_MAX_SAMPLES, adaptive, reference,
+					width * height);
+		}
+	}
+
+	private static Result render(Camera camera, Scene scene, int min, int max, double threshold) {
+		ImageData data = camera.getImageData();
+		data.antiAliasing = true;
+		data.minSamples = min;
+		data.maxSamples = max;
+		data.noiseThreshold = threshold;
+		camera.setImageData(data);
+		Result r = new Result();
+		r.nanos = Long.MAX_VALUE;
+		for (int run = 0; run < (min == REFERENCE_SAMPLES ? 1 : RUNS); run++) {
+			long start = System.nanoTime();
+			r.image = camera.takePicture(scene);
+			r.nanos = Math.min(r.nanos, System.nanoTime() - start);
+		}
+		r.samples = camera.getSampleCount();
+		return r;
+	}
+
+	private static void log(String name, Result r, BufferedImage reference, int pixels) {
+		LOG.info(String.format("    %-14s %5.2f samples/pixel %8.1f ms  RMS error %5.2f", name,
+				(double) r.samples / pixels, r.nanos / 1e6, ReferenceScenes.rmsError(r.image, reference)));
+	}
+
+	private static class Result {
+		BufferedImage image;
+		long nanos;
+		long samples;
+	}
+}
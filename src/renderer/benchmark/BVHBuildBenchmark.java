@@ -0,0 +1,42 @@
+package renderer.benchmark;
+
+import static renderer.Config.LOG;
+
+import java.util.concurrent.ForkJoinPool;
+
+import renderer.kernel.BVH;
+import renderer.kernel.BVHStats;
+import renderer.kernel.BinnedBVHBuilder;
+import renderer.scene.actors.Model;
+
+/**
+ * Compares the full-sweep SAH build done by the {@link BVH} constructor with
+ * the {@link BinnedBVHBuilder}, both on a single thread and on every available
+ * processor. Build times and tree statistics are logged for each.
+ * <p>
+ * Usage: <code>BVHBuildBenchmark [spheresPerSide rings]</code>
+ * </p>
+ */
+public class BVHBuildBenchmark {
+
+	public static void main(String[] args) {
+		ReferenceScenes.setupLogger();
+		int spheresPerSide = args.length > 1 ? Integer.parseInt(args[0]) : 16;
+		int rings = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+		Model model = ReferenceScenes.sphereField(spheresPerSide, rings);
+		LOG.info("Building BVHs over " + model.triangleCount() + " triangles");
+
+		long start = System.nanoTime();
+		BVH sweep = new BVH(model, BVH.DEFAULT_LEAF_SIZE);
+		LOG.info(String.format("Full sweep SAH, 1 thread: %.1f ms, %s", (System.nanoTime() - start) / 1e6,
+				BVHStats.of(sweep)));
+
+		ForkJoinPool single = new ForkJoinPool(1);
+		new BinnedBVHBuilder(BVH.DEFAULT_LEAF_SIZE, BinnedBVHBuilder.DEFAULT_BINS, single).build(model);
+		single.shutdown();
+
+		ForkJoinPool all = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		new BinnedBVHBuilder(BVH.DEFAULT_LEAF_SIZE, BinnedBVHBuilder.DEFAULT_BINS, all).build(model);
+		all.shutdown();
+	}
+}
@@ -0,0 +1,143 @@
+package renderer.benchmark;
+
+import static renderer.Config.LOG;
+
+import java.awt.image.BufferedImage;
+
+import renderer.render.AOVBuffer;
+import renderer.render.Denoiser;
+import renderer.render.FrameBuffer;
+import renderer.scene.Camera;
+import renderer.scene.ImageData;
+import renderer.scene.Scene;
+
+/**
+ * Finds the number of samples per pixel that reaches an acceptable picture
+ * soonest, with and without the {@link Denoiser}. A sphere field lit by a
+ * grid of area lights, which are sampled stochastically and so leave noise,
+ * is rendered once with many samples per pixel as a reference, then with a
+ * fixed number of samples per pixel from 1 up. The reference takes its
+ * samples further along the sample sequence, so it shares none with the
+ * pictures measured against it, which would make their errors look smaller.
+ * Each picture is measured by its time, and its RMS error against the
+ * reference in 8-bit units, both as rendered and after denoising, which adds
+ * the time the Denoiser took.
+ * <p>
+ * The fastest way to get within the target error is reported for both. The
+ * denoised pictures are also compared with the reference after blurring both
+ * a little, which tells noise that is gone apart from detail that is gone.
+ * </p>
+ * <p>
+ * Usage: <code>DenoiseBenchmark [width height [target error]]</code>
+ * </p>
+ */
+public class DenoiseBenchmark {
+	private static final int RUNS = 2;
+	private static final int REFERENCE_SAMPLES = 256;
+	/**
+	 * Where the reference's samples start, past every sample the measured
+	 * pictures take, so that its noise has nothing in common with theirs.
+	 */
+	private static final int REFERENCE_FIRST_SAMPLE = 1 << 16;
+	private static final int MAX_SAMPLES = 64;
+	/** The default RMS error, in 8-bit units, a picture is acceptable at. */
+	private static final double DEFAULT_TARGET_ERROR = 3.0;
+
+	public static void main(String[] args) {
+		ReferenceScenes.setupLogger();
+		int width = args.length > 1 ? Integer.parseInt(args[0]) : 320;
+		int height = args.length > 1 ? Integer.parseInt(args[1]) : 180;
+		double target = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_TARGET_ERROR;
+		int spheres = 4;
+		double extent = spheres * 2.0;
+		Scene scene = ReferenceScenes.sphereFieldScene(spheres, 32, width, height);
+		ReferenceScenes.addLightGrid(scene, 8, 0.2 * extent, extent * 0.5, 0.1 * extent, extent * extent);
+		Camera camera = scene.cameras.get(0);
+		Denoiser denoiser = new Denoiser();
+
+		BufferedImage reference = render(camera, scene, REFERENCE_FIRST_SAMPLE, REFERENCE_SAMPLES, 1).image;
+		LOG.info(String.format("Target RMS error %.2f, %dx%d, reference at %d samples/pixel", target, width, height,
+				REFERENCE_SAMPLES));
+		String best = null, bestDenoised = null;
+		long bestTime = Long.MAX_VALUE, bestDenoisedTime = Long.MAX_VALUE;
+		for (int samples = 1; samples <= MAX_SAMPLES; samples *= 2) {
+			Result r = render(camera, scene, 0, samples, RUNS);
+			long denoiseNanos = Long.MAX_VALUE;
+			FrameBuffer clean = null;
+			for (int run = 0; run < RUNS; run++) {
+				long start = System.nanoTime();
+				clean = denoiser.denoise(r.frame, r.aovs);
+				denoiseNanos = Math.min(denoiseNanos, System.nanoTime() - start);
+			}
+			BufferedImage denoised = clean.toImage(BufferedImage.TYPE_INT_RGB);
+			double error = ReferenceScenes.rmsError(r.image, reference), denoisedError = ReferenceScenes.rmsError(denoised, reference);
+			LOG.info(String.format(
+					"    %3d samples/pixel %8.1f ms  RMS error %5.2f | denoised +%6.1f ms  RMS error %5.2f (blurred %5.2f)",
+					samples, r.nanos / 1e6, error, denoiseNanos / 1e6, denoisedError,
+					ReferenceScenes.rmsError(blur(denoised), blur(reference))));
+			if (error <= target && r.nanos < bestTime) {
+				bestTime = r.nanos;
+				best = samples + " samples/pixel";
+			}
+			if (denoisedError <= target && r.nanos + denoiseNanos < bestDenoisedTime) {
+				bestDenoisedTime = r.nanos + denoiseNanos;
+				bestDenoised = samples + " samples/pixel";
+			}
+		}
+		LOG.info(best == null ? "Rendering alone never got within the target"
+				: String.format("Rendering alone: %s in %.1f ms", best, bestTime / 1e6));
+		LOG.info(bestDenoised == null ? "Denoising never got within the target"
+				: String.format("With denoising: %s in %.1f ms", bestDenoised, bestDenoisedTime / 1e6));
+	}
+
+	private static Result render(Camera camera, Scene scene, int firstSample, int samples, int runs) {
+		ImageData data = camera.getImageData();
+		data.firstSample = firstSample;
+		data.antiAliasing = true;
+		data.minSamples = samples;
+		data.maxSamples = samples;
+		data.noiseThreshold = 0.0;
+		data.aovs = AOVBuffer.DEPTH | AOVBuffer.NORMAL | AOVBuffer.ALBEDO | AOVBuffer.AVERAGED;
+		camera.setImageData(data);
+		Result r = new Result();
+		r.nanos = Long.MAX_VALUE;
+		for (int run = 0; run < runs; run++) {
+			long start = System.nanoTime();
+			r.image = camera.takePicture(scene);
+			r.nanos = Math.min(r.nanos, System.nanoTime() - start);
+		}
+		r.frame = camera.getFrameBuffer();
+		r.aovs = camera.getAOVBuffer();
+		return r;
+	}
+
+	/**
+	 * @return an image blurred with a 3 by 3 box
+	 */
+	private static BufferedImage blur(BufferedImage image) {
+		int w = image.getWidth(), h = image.getHeight();
+		BufferedImage blurred = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				int r = 0, g = 0, b = 0, n = 0;
+				for (int qy = Math.max(0, y - 1); qy <= Math.min(h - 1, y + 1); qy++) {
+					for (int qx = Math.max(0, x - 1); qx <= Math.min(w - 1, x + 1); qx++, n++) {
+						int p = image.getRGB(qx, qy);
+						r += (p >> 16) & 0xff;
+						g += (p >> 8) & 0xff;
+						b += p & 0xff;
+					}
+				}
+				blurred.setRGB(x, y, (r + n / 2) / n << 16 | (g + n / 2) / n << 8 | (b + n / 2) / n);
+			}
+		}
+		return blurred;
+	}
+
+	private static class Result {
+		BufferedImage image;
+		FrameBuffer frame;
+		AOVBuffer aovs;
+		long nanos;
+	}
+}
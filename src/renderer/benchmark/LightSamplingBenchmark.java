@@ -0,0 +1,101 @@
+package renderer.benchmark;
+
+import static renderer.Config.LOG;
+
+import renderer.infrastructure.math.Transform;
+import renderer.infrastructure.math.Vector3;
+import renderer.kernel.Ray;
+import renderer.kernel.RaycastHit;
+import renderer.render.Shader;
+import renderer.scene.Scene;
+
+/**
+ * Measures how the cost of shading grows with the number of Lights, with
+ * every Light sampled at every hit and with a light sample budget. The Scene
+ * is a sphere field under ceiling grids of AreaLights of increasing size, all
+ * with the same total power. Only primary hits are shaded, in scanline order
+ * on one thread. The error of the sampled picture is measured against the one
+ * that samples every Light.
+ * <p>
+ * Usage: <code>LightSamplingBenchmark [budget width height]</code>
+ * </p>
+ */
+public class LightSamplingBenchmark {
+	private static final int RUNS = 3;
+	private static final double FOCAL_LENGTH = 1.7;
+
+	public static void main(String[] args) {
+		ReferenceScenes.setupLogger();
+		int budget = args.length > 0 ? Integer.parseInt(args[0]) : Shader.DEFAULT_LIGHT_SAMPLES;
+		int width = args.length > 2 ? Integer.parseInt(args[1]) : 160;
+		int height = args.length > 2 ? Integer.parseInt(args[2]) : 90;
+		int spheres = 10;
+		double extent = spheres * 2.0;
+		int[] sides = { 4, 8, 16, 32 };
+		for (int side : sides) {
+			Scene scene = ReferenceScenes.sphereFieldScene(spheres, 16, width, height);
+			ReferenceScenes.addLightGrid(scene, side, 1.6 * extent / side, extent * 0.5, 0.5 * extent / side,
+					extent * extent);
+			scene.commit();
+			Transform view = ReferenceScenes.overviewTransform(extent);
+			Shader all = new Shader(scene, Integer.MAX_VALUE);
+			Shader sampled = new Shader(scene, budget);
+			long timeAll = Long.MAX_VALUE, timeSampled = Long.MAX_VALUE;
+			double[] reference = null, image = null;
+			for (int run = 0; run < RUNS; run++) {
+				long start = System.nanoTime();
+				reference = shadeAll(scene, all, view, width, height);
+				timeAll = Math.min(timeAll, System.nanoTime() - start);
+				start = System.nanoTime();
+				image = shadeAll(scene, sampled, view, width, height);
+				timeSampled = Math.min(timeSampled, System.nanoTime() - start);
+			}
+			LOG.info(String.format(
+					"%4d lights: every light %8.1f ms, %d samples %7.1f ms, speedup %5.2fx, relative RMS error %.3f",
+					side * side, timeAll / 1e6, budget, timeSampled / 1e6, (double) timeAll / timeSampled,
+					relativeError(reference, image)));
+		}
+	}
+
+	/**
+	 * Shades the primary hit of every pixel.
+	 *
+	 * @return the colors of the pixels, 3 values each
+	 */
+	private static double[] shadeAll(Scene scene, Shader shader, Transform view, int width, int height) {
+		Vector3 o = view.transform(Vector3.ZERO);
+		Vector3 right = view.transformDirection(Vector3.I);
+		Vector3 up = view.transformDirection(Vector3.J);
+		Vector3 forward = view.transformDirection(Vector3.K).scl(-1.0);
+		double aspect = (double) width / height;
+		double[] image = new double[3 * width * height];
+		double[] rgb = new double[3];
+		Ray ray = new Ray();
+		RaycastHit hit = new RaycastHit();
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				double sx = (2.0 * (x + 0.5) / width - 1.0) * aspect;
+				double sy = 1.0 - 2.0 * (y + 0.5) / height;
+				Vector3 d = new Vector3(right).scl(sx).add(new Vector3(up).scl(sy))
+						.add(new Vector3(forward).scl(FOCAL_LENGTH)).nor();
+				ray.set(o.x, o.y, o.z, d.x, d.y, d.z);
+				shader.shade(ray, hit, rgb);
+				System.arraycopy(rgb, 0, image, 3 * (y * width + x), 3);
+			}
+		}
+		return image;
+	}
+
+	/**
+	 * @return the RMS difference between two pictures over the RMS of the first
+	 */
+	private static double relativeError(double[] reference, double[] image) {
+		double err = 0.0, ref = 0.0;
+		for (int i = 0; i < reference.length; i++) {
+			double d = image[i] - reference[i];
+			err += d * d;
+			ref += reference[i] * reference[i];
+		}
+		return ref == 0.0 ? 0.0 : Math.sqrt(err / ref);
+	}
+}
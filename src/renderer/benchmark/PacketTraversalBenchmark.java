@@ -0,0 +1,134 @@
+package renderer.benchmark;
+
+import static renderer.Config.LOG;
+
+import java.util.Arrays;
+
+import renderer.infrastructure.math.Transform;
+import renderer.infrastructure.math.Vector3;
+import renderer.kernel.Ray;
+import renderer.kernel.RayPacket;
+import renderer.kernel.RaycastHit;
+import renderer.scene.Camera;
+import renderer.scene.Scene;
+
+/**
+ * Measures primary visibility throughput, in rays per second, of single-ray
+ * traversal against {@link RayPacket} traversal of 4x4 and 8x8 blocks on
+ * sphere fields of increasing size. Rays are generated like the overview
+ * Camera's and only traced; nothing is shaded. Runs on one thread.
+ * <p>
+ * Usage: <code>PacketTraversalBenchmark [width height]</code>
+ * </p>
+ */
+public class PacketTraversalBenchmark {
+	private static final int RUNS = 5;
+	private static final double FOCAL_LENGTH = 1.7;
+	private static final int[] PACKET_SIZES = { 4, 8 };
+
+	public static void main(String[] args) {
+		ReferenceScenes.setupLogger();
+		int width = args.length > 1 ? Integer.parseInt(args[0]) : 640;
+		int height = args.length > 1 ? Integer.parseInt(args[1]) : 360;
+		int[][] fields = { { 3, 8 }, { 10, 16 }, { 30, 8 } };
+		for (int[] field : fields) {
+			Scene scene = ReferenceScenes.sphereFieldScene(field[0], field[1], width, height);
+			scene.commit();
+			Transform view = ReferenceScenes.overviewTransform(field[0] * 2.0);
+			long single = Long.MAX_VALUE;
+			long[] packet = new long[PACKET_SIZES.length];
+			Arrays.fill(packet, Long.MAX_VALUE);
+			int hitsSingle = 0;
+			for (int run = 0; run < RUNS; run++) {
+				long start = System.nanoTime();
+				hitsSingle = traceSingle(scene, view, width, height);
+				single = Math.min(single, System.nanoTime() - start);
+				for (int i = 0; i < PACKET_SIZES.length; i++) {
+					start = System.nanoTime();
+					int hitsPacket = tracePackets(scene, view, width, height, PACKET_SIZES[i]);
+					packet[i] = Math.min(packet[i], System.nanoTime() - start);
+					if (hitsSingle != hitsPacket)
+						LOG.warning("Single rays hit " + hitsSingle + " times, packets " + hitsPacket + " times");
+				}
+			}
+			double rays = (double) width * height;
+			LOG.info(String.format("%d spheres, %d triangles: single %6.2f Mrays/s", field[0] * field[0],
+					ReferenceScenes.triangleCount(scene), rays / single * 1e3));
+			for (int i = 0; i < PACKET_SIZES.length; i++)
+				LOG.info(String.format("    %dx%d packets %6.2f Mrays/s, speedup %4.2fx", PACKET_SIZES[i],
+						PACKET_SIZES[i], rays / packet[i] * 1e3, (double) single / packet[i]));
+		}
+	}
+
+	private static int traceSingle(Scene scene, Transform view, int width, int height) {
+		Pinhole pinhole = new Pinhole(view, width, height);
+		Ray ray = new Ray();
+		RaycastHit hit = new RaycastHit();
+		int hits = 0;
+		int p = Camera.PACKET_SIZE;
+		for (int by = 0; by < height; by += p) {
+			for (int bx = 0; bx < width; bx += p) {
+				for (int y = by; y < Math.min(by + p, height); y++) {
+					for (int x = bx; x < Math.min(bx + p, width); x++) {
+						pinhole.generateRay(x + 0.5, y + 0.5, ray);
+						hit.reset();
+						if (scene.intersect(ray, hit))
+							hits++;
+					}
+				}
+			}
+		}
+		return hits;
+	}
+
+	private static int tracePackets(Scene scene, Transform view, int width, int height, int p) {
+		Pinhole pinhole = new Pinhole(view, width, height);
+		RayPacket packet = new RayPacket();
+		int hits = 0;
+		for (int by = 0; by < height; by += p) {
+			for (int bx = 0; bx < width; bx += p) {
+				int r = 0;
+				for (int y = by; y < Math.min(by + p, height); y++) {
+					for (int x = bx; x < Math.min(bx + p, width); x++)
+						pinhole.generateRay(x + 0.5, y + 0.5, packet.rays[r++]);
+				}
+				packet.size = r;
+				scene.intersect(packet);
+				for (int i = 0; i < r; i++) {
+					if (packet.hits[i].hasHit())
+						hits++;
+				}
+			}
+		}
+		return hits;
+	}
+
+	/**
+	 * Generates primary rays the same way the Camera does.
+	 */
+	private static class Pinhole {
+		final Vector3 origin, right, up, forward;
+		final int width, height;
+		final double aspect;
+
+		Pinhole(Transform view, int width, int height) {
+			origin = view.transform(Vector3.ZERO);
+			right = view.transformDirection(Vector3.I);
+			up = view.transformDirection(Vector3.J);
+			forward = view.transformDirection(Vector3.K).scl(-1.0);
+			this.width = width;
+			this.height = height;
+			this.aspect = (double) width / height;
+		}
+
+		void generateRay(double px, double py, Ray ray) {
+			double sx = (2.0 * px / width - 1.0) * aspect;
+			double sy = 1.0 - 2.0 * py / height;
+			double dx = right.x * sx + up.x * sy + forward.x * FOCAL_LENGTH;
+			double dy = right.y * sx + up.y * sy + forward.y * FOCAL_LENGTH;
+			double dz = right.z * sx + up.z * sy + forward.z * FOCAL_LENGTH;
+			double invLen = 1.0 / Math.sqrt(dx * dx + dy * dy + dz * dz);
+			ray.set(origin.x, origin.y, origin.z, dx * invLen, dy * invLen, dz * invLen);
+		}
+	}
+}
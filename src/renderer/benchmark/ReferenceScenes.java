@@ -0,0 +1,262 @@
+package renderer.benchmark;
+
+import java.awt.image.BufferedImage;
+import java.util.logging.Logger;
+
+import renderer.Config;
+import renderer.infrastructure.math.Transform;
+import renderer.infrastructure.math.Vector3;
+import renderer.scene.Camera;
+import renderer.scene.ImageData;
+import renderer.scene.Scene;
+import renderer.scene.actors.AreaLight;
+import renderer.scene.actors.Face;
+import renderer.scene.actors.Light;
+import renderer.scene.actors.Model;
+import renderer.scene.actors.ModelInstance;
+
+/**
+ * Procedurally generated scenes used by the benchmarks. Generating them keeps
+ * the benchmarks reproducible without shipping any assets.
+ */
+public class ReferenceScenes {
+
+	private ReferenceScenes() {
+	}
+
+	/**
+	 * Sets up {@link Config#LOG} for benchmarks that are run without going through
+	 * {@link renderer.Index}.
+	 */
+	public static void setupLogger() {
+		if (Config.LOG == null)
+			Config.LOG = Logger.getLogger(ReferenceScenes.class.getName());
+	}
+
+	/**
+	 * @return the RMS difference of the color channels of two images, from 0 to
+	 *         255
+	 */
+	public static double rmsError(BufferedImage a, BufferedImage b) {
+		double sum = 0.0;
+		for (int y = 0; y < a.getHeight(); y++) {
+			for (int x = 0; x < a.getWidth(); x++) {
+				int p = a.getRGB(x, y), q = b.getRGB(x, y);
+				for (int shift = 0; shift < 24; shift += 8) {
+					int d = ((p >> shift) & 0xff) - ((q >> shift) & 0xff);
+					sum += d * d;
+				}
+			}
+		}
+		return Math.sqrt(sum / (3.0 * a.getWidth() * a.getHeight()));
+	}
+
+	/**
+	 * Creates a UV sphere.
+	 * 
+	 * @param center
+	 *            the center of the sphere
+	 * @param radius
+	 *            the radius of the sphere
+	 * @param rings
+	 *            the number of horizontal slices. The sphere has
+	 *            <code>2 * rings</code> vertical slices.
+	 * @return a Model with roughly <code>4 * rings * rings</code> triangles
+	 */
+	public static Model sphere(Vector3 center, double radius, int rings) {
+		Model m = new Model();
+		m.fileName = "sphere";
+		addSphere(m, center, radius, rings);
+		return m;
+	}
+
+	/**
+	 * Creates a square grid of spheres resting on a ground plane.
+	 * 
+	 * @param spheresPerSide
+	 *            how many spheres to place along each side of the grid
+	 * @param rings
+	 *            the tessellation of each sphere
+	 * @return the generated Model
+	 */
+	public static Model sphereField(int spheresPerSide, int rings) {
+		Model m = new Model();
+		m.fileName = "sphere_field";
+		double extent = spheresPerSide * 2.0;
+		addQuad(m, new Vector3(-extent, 0.0, -extent), new Vector3(extent, 0.0, -extent),
+				new Vector3(extent, 0.0, extent), new Vector3(-extent, 0.0, extent));
+		for (int i = 0; i < spheresPerSide; i++) {
+			for (int j = 0; j < spheresPerSide; j++) {
+				Vector3 c = new Vector3(-extent + 2.0 + 4.0 * i, 1.0, -extent + 2.0 + 4.0 * j);
+				addSphere(m, c, 1.0, rings);
+			}
+		}
+		return m;
+	}
+
+	/**
+	 * Creates a Scene holding a sphere field, with a Camera looking down at it.
+	 * The spheres are instances of a single sphere Model, so only one copy of
+	 * its geometry is kept however many spheres there are.
+	 * 
+	 * @param spheresPerSide
+	 *            how many spheres to place along each side of the grid
+	 * @param rings
+	 *            the tessellation of each sphere
+	 * @param width
+	 *            the width of the pictures taken by the Camera
+	 * @param height
+	 *            the height of the pictures taken by the Camera
+	 * @return the Scene. Its first Camera is the one to render with.
+	 */
+	public static Scene sphereFieldScene(int spheresPerSide, int rings, int width, int height) {
+		Scene s = new Scene("sphere_field");
+		s.background = new Vector3(0.5, 0.7, 1.0);
+		double extent = spheresPerSide * 2.0;
+		Model ground = new Model();
+		ground.fileName = "ground";
+		addQuad(ground, new Vector3(-extent, 0.0, -extent), new Vector3(extent, 0.0, -extent),
+				new Vector3(extent, 0.0, extent), new Vector3(-extent, 0.0, extent));
+		s.instances.add(new ModelInstance("ground", ground));
+		Model sphere = sphere(new Vector3(), 1.0, rings);
+		for (int i = 0; i < spheresPerSide; i++) {
+			for (int j = 0; j < spheresPerSide; j++) {
+				s.instances.add(new ModelInstance("sphere_" + i + "_" + j, sphere, Transform
+						.getTranslationInstance(-extent + 2.0 + 4.0 * i, 1.0, -extent + 2.0 + 4.0 * j)));
+			}
+		}
+		s.cameras.add(overviewCamera(extent, width, height));
+		return s;
+	}
+
+	/**
+	 * Adds a ring of white Lights above the origin.
+	 * 
+	 * @param s
+	 *            the Scene to light
+	 * @param count
+	 *            the number of Lights
+	 * @param radius
+	 *            the radius of the ring
+	 * @param height
+	 *            how far above the ground the ring is
+	 * @param power
+	 *            the total intensity of all the Lights together
+	 */
+	public static void addLightRing(Scene s, int count, double radius, double height, double power) {
+		for (int i = 0; i < count; i++) {
+			double a = 2.0 * Math.PI * i / count;
+			s.lights.add(new Light("light_" + i, new Vector3(radius * Math.cos(a), height, radius * Math.sin(a)),
+					power / count));
+		}
+	}
+
+	/**
+	 * Adds a square grid of downward-facing AreaLights centered above the
+	 * origin, like the panels of an office ceiling.
+	 * 
+	 * @param s
+	 *            the Scene to light
+	 * @param side
+	 *            the number of Lights along each side of the grid
+	 * @param spacing
+	 *            the distance between neighbouring Lights
+	 * @param height
+	 *            how far above the ground the grid is
+	 * @param size
+	 *            the width of each square Light
+	 * @param power
+	 *            the total intensity of all the Lights together
+	 */
+	public static void addLightGrid(Scene s, int side, double spacing, double height, double size, double power) {
+		Vector3 u = new Vector3(size, 0.0, 0.0), v = new Vector3(0.0, 0.0, size);
+		double offset = 0.5 * (side - 1);
+		for (int i = 0; i < side; i++) {
+			for (int j = 0; j < side; j++) {
+				Vector3 p = new Vector3((i - offset) * spacing, height, (j - offset) * spacing);
+				s.lights.add(new AreaLight("panel_" + i + "_" + j, p, u, v, power / (side * side)));
+			}
+		}
+	}
+
+	/**
+	 * Counts the triangles a Scene would have if every instance were copied out
+	 * into its own Model.
+	 * 
+	 * @param s
+	 *            the Scene
+	 * @return the number of triangles in the Scene
+	 */
+	public static long triangleCount(Scene s) {
+		long count = 0;
+		for (ModelInstance inst : s.instances)
+			count += inst.model.triangleCount();
+		return count;
+	}
+
+	/**
+	 * Creates a Camera looking down at the origin from above and behind.
+	 * 
+	 * @param extent
+	 *            half the width of the area the Camera should see
+	 * @param width
+	 *            the width of the pictures taken by the Camera
+	 * @param height
+	 *            the height of the pictures taken by the Camera
+	 * @return the Camera
+	 */
+	public static Camera overviewCamera(double extent, int width, int height) {
+		ImageData data = new ImageData(width, height, 1.7, BufferedImage.TYPE_INT_RGB, false);
+		Camera c = new Camera(data, "overview");
+		c.applyTransformation(overviewTransform(extent));
+		return c;
+	}
+
+	/**
+	 * Creates the Transform of the Camera made by
+	 * {@link #overviewCamera(double, int, int)}.
+	 * 
+	 * @param extent
+	 *            half the width of the area the Camera should see
+	 * @return the Transform
+	 */
+	public static Transform overviewTransform(double extent) {
+		return Transform.getIdentityInstance().rotX(-Math.PI / 5.0, true).translate(0.0, extent * 1.2, extent * 1.6);
+	}
+
+	private static void addQuad(Model m, Vector3 a, Vector3 b, Vector3 c, Vector3 d) {
+		int base = m.vertices.size();
+		m.vertices.add(a);
+		m.vertices.add(b);
+		m.vertices.add(c);
+		m.vertices.add(d);
+		m.faces.add(new Face(base, base + 3, base + 2, base + 1));
+	}
+
+	private static void addSphere(Model m, Vector3 center, double radius, int rings) {
+		int sectors = 2 * rings;
+		int base = m.vertices.size();
+		for (int r = 0; r <= rings; r++) {
+			double phi = Math.PI * r / rings;
+			for (int s = 0; s < sectors; s++) {
+				double theta = 2.0 * Math.PI * s / sectors;
+				m.vertices.add(new Vector3(center.x + radius * Math.sin(phi) * Math.cos(theta),
+						center.y + radius * Math.cos(phi), center.z + radius * Math.sin(phi) * Math.sin(theta)));
+			}
+		}
+		for (int r = 0; r < rings; r++) {
+			for (int s = 0; s < sectors; s++) {
+				int a = base + r * sectors + s;
+				int b = base + r * sectors + (s + 1) % sectors;
+				int c = a + sectors;
+				int d = b + sectors;
+				if (r == 0)
+					m.faces.add(new Face(a, d, c));
+				else if (r == rings - 1)
+					m.faces.add(new Face(a, b, c));
+				else
+					m.faces.add(new Face(a, b, d, c));
+			}
+		}
+	}
+}
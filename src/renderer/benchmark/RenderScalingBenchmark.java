@@ -0,0 +1,52 @@
+package renderer.benchmark;
+
+import static renderer.Config.LOG;
+
+import renderer.render.RenderScheduler;
+import renderer.scene.Camera;
+import renderer.scene.Scene;
+
+/**
+ * Measures how well {@link Camera#takePicture(Scene, RenderScheduler)} scales
+ * with the number of render threads. The reference scene is rendered with 1,
+ * 2, 4, ... threads up to the number of available processors, and the speedup
+ * and parallel efficiency relative to one thread are logged.
+ * <p>
+ * Usage: <code>RenderScalingBenchmark [width height tileSize]</code>
+ * </p>
+ */
+public class RenderScalingBenchmark {
+	private static final int RUNS = 3;
+
+	public static void main(String[] args) {
+		ReferenceScenes.setupLogger();
+		int width = args.length > 1 ? Integer.parseInt(args[0]) : 480;
+		int height = args.length > 1 ? Integer.parseInt(args[1]) : 270;
+		int tileSize = args.length > 2 ? Integer.parseInt(args[2]) : RenderScheduler.DEFAULT_TILE_SIZE;
+
+		Scene scene = ReferenceScenes.sphereFieldScene(3, 8, width, height);
+		Camera camera = scene.cameras.get(0);
+		int maxThreads = Runtime.getRuntime().availableProcessors();
+		LOG.info("Rendering " + width + "x" + height + " with " + ReferenceScenes.triangleCount(scene)
+				+ " triangles, tile size " + tileSize + ", up to " + maxThreads + " threads");
+
+		double base = 0.0;
+		for (int threads = 1; threads <= maxThreads; threads = threads == maxThreads ? threads + 1
+				: Math.min(threads * 2, maxThreads)) {
+			RenderScheduler scheduler = new RenderScheduler(tileSize, threads);
+			camera.takePicture(scene, scheduler); // warm up
+			long best = Long.MAX_VALUE;
+			for (int i = 0; i < RUNS; i++) {
+				long start = System.nanoTime();
+				camera.takePicture(scene, scheduler);
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			scheduler.shutdown();
+			double ms = best / 1e6;
+			if (threads == 1)
+				base = ms;
+			LOG.info(String.format("%3d threads: %9.1f ms  speedup %5.2fx  efficiency %5.1f%%", threads, ms,
+					base / ms, 100.0 * base / ms / threads));
+		}
+	}
+}
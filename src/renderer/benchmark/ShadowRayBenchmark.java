@@ -0,0 +1,150 @@
+package renderer.benchmark;
+
+import static renderer.Config.LOG;
+
+import java.util.Arrays;
+
+import renderer.infrastructure.math.Transform;
+import renderer.infrastructure.math.Vector3;
+import renderer.kernel.OccluderCache;
+import renderer.kernel.Ray;
+import renderer.kernel.RaycastHit;
+import renderer.scene.Scene;
+import renderer.scene.actors.Light;
+
+/**
+ * Measures the cost of shadow rays toward a ring of Lights over a sphere
+ * field, answered three ways: with the closest-hit query, with the any-hit
+ * query, and with the any-hit query plus an {@link OccluderCache}. The points
+ * being shaded are the primary hits of the overview Camera, visited in
+ * scanline order like a render thread would. Like the Shader, no ray is traced
+ * toward a Light behind the surface. Runs on one thread.
+ * <p>
+ * Usage: <code>ShadowRayBenchmark [lights width height]</code>
+ * </p>
+ */
+public class ShadowRayBenchmark {
+	private static final int RUNS = 5;
+	private static final double FOCAL_LENGTH = 1.7;
+	private static final double SHADOW_BIAS = 1e-4;
+
+	public static void main(String[] args) {
+		ReferenceScenes.setupLogger();
+		int lightCount = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		int width = args.length > 2 ? Integer.parseInt(args[1]) : 320;
+		int height = args.length > 2 ? Integer.parseInt(args[2]) : 180;
+		int spheres = 10;
+		double extent = spheres * 2.0;
+		Scene scene = ReferenceScenes.sphereFieldScene(spheres, 16, width, height);
+		ReferenceScenes.addLightRing(scene, lightCount, extent * 0.8, extent * 0.5, extent * extent);
+		scene.commit();
+
+		double[] points = primaryHits(scene, ReferenceScenes.overviewTransform(extent), width, height);
+		Light[] lights = scene.lights.toArray(new Light[lightCount]);
+		long rays = traceShadows(scene, lights, points, -1, null);
+		LOG.info("Tracing " + rays + " shadow rays from " + points.length / 6 + " points toward " + lightCount
+				+ " lights");
+
+		String[] names = { "closest hit", "any hit", "any hit + cache" };
+		long[] best = { Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE };
+		long[] blocked = new long[3];
+		OccluderCache cache = new OccluderCache(lightCount);
+		for (int run = 0; run < RUNS; run++) {
+			for (int mode = 0; mode < 3; mode++) {
+				cache.clear();
+				cache.hits = cache.instanceHits = cache.queries = 0;
+				long start = System.nanoTime();
+				blocked[mode] = traceShadows(scene, lights, points, mode, cache);
+				best[mode] = Math.min(best[mode], System.nanoTime() - start);
+			}
+		}
+		for (int mode = 0; mode < 3; mode++) {
+			if (blocked[mode] != blocked[0])
+				LOG.warning(names[mode] + " found " + blocked[mode] + " blocked rays, closest hit found " + blocked[0]);
+			LOG.info(String.format("%-16s %8.1f ms  %6.2f Mrays/s  speedup %4.2fx", names[mode], best[mode] / 1e6,
+					rays / (best[mode] / 1e3), (double) best[0] / best[mode]));
+		}
+		LOG.info(String.format(
+				"%.1f%% of the rays were blocked: %.1f%% of all rays by the cached triangle, %.1f%% by its instance",
+				100.0 * blocked[2] / rays, 100.0 * cache.hits / cache.queries,
+				100.0 * cache.instanceHits / cache.queries));
+	}
+
+	/**
+	 * Traces every shadow ray.
+	 *
+	 * @param mode
+	 *            0 for closest hit, 1 for any hit, 2 for any hit with the cache,
+	 *            -1 to only count the rays
+	 * @return how many were blocked, or how many there are for mode -1
+	 */
+	private static long traceShadows(Scene scene, Light[] lights, double[] points, int mode, OccluderCache cache) {
+		Ray shadow = new Ray();
+		RaycastHit hit = new RaycastHit();
+		long blocked = 0;
+		for (int p = 0; p < points.length; p += 6) {
+			for (int i = 0; i < lights.length; i++) {
+				Vector3 l = lights[i].position;
+				double lx = l.x - points[p], ly = l.y - points[p + 1], lz = l.z - points[p + 2];
+				if (lx * points[p + 3] + ly * points[p + 4] + lz * points[p + 5] <= 0.0)
+					continue;
+				double d = Math.sqrt(lx * lx + ly * ly + lz * lz);
+				shadow.set(points[p], points[p + 1], points[p + 2], lx / d, ly / d, lz / d);
+				shadow.tMax = d;
+				boolean b;
+				if (mode < 0) {
+					b = true;
+				} else if (mode == 0) {
+					hit.reset();
+					b = scene.intersect(shadow, hit);
+				} else if (mode == 1) {
+					b = scene.occluded(shadow, hit);
+				} else {
+					b = scene.occluded(shadow, hit, cache, i);
+				}
+				if (b)
+					blocked++;
+			}
+		}
+		return blocked;
+	}
+
+	/**
+	 * Finds the primary hits of a pinhole camera, moved off the surface like the
+	 * Shader does.
+	 *
+	 * @return the position and normal of every hit, 6 values each
+	 */
+	private static double[] primaryHits(Scene scene, Transform view, int width, int height) {
+		Vector3 o = view.transform(Vector3.ZERO);
+		Vector3 right = view.transformDirection(Vector3.I);
+		Vector3 up = view.transformDirection(Vector3.J);
+		Vector3 forward = view.transformDirection(Vector3.K).scl(-1.0);
+		double aspect = (double) width / height;
+		double[] points = new double[6 * width * height];
+		int n = 0;
+		Ray ray = new Ray();
+		RaycastHit hit = new RaycastHit();
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				double sx = (2.0 * (x + 0.5) / width - 1.0) * aspect;
+				double sy = 1.0 - 2.0 * (y + 0.5) / height;
+				Vector3 d = new Vector3(right).scl(sx).add(new Vector3(up).scl(sy))
+						.add(new Vector3(forward).scl(FOCAL_LENGTH)).nor();
+				ray.set(o.x, o.y, o.z, d.x, d.y, d.z);
+				hit.reset();
+				if (!scene.intersect(ray, hit))
+					continue;
+				double bias = SHADOW_BIAS * Math.max(1.0, hit.distance);
+				Vector3 p = ray.pointAt(hit.distance);
+				points[n++] = p.x + hit.normal.x * bias;
+				points[n++] = p.y + hit.normal.y * bias;
+				points[n++] = p.z + hit.normal.z * bias;
+				points[n++] = hit.normal.x;
+				points[n++] = hit.normal.y;
+				points[n++] = hit.normal.z;
+			}
+		}
+		return Arrays.copyOf(points, n);
+	}
+}
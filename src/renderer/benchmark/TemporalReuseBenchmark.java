@@ -0,0 +1,88 @@
+package renderer.benchmark;
+
+import static renderer.Config.LOG;
+
+import java.awt.image.BufferedImage;
+
+import renderer.scene.Camera;
+import renderer.scene.ImageData;
+import renderer.scene.Scene;
+import renderer.scene.actors.ModelInstance;
+
+/**
+ * Measures how much re-using the shading of the previous frame speeds up an
+ * animation. Two shots of a sphere field lit by a few point lights are
+ * rendered frame by frame, once shading every pixel and once with
+ * <code>ImageData.temporalReuse</code>: one where a single sphere bounces in
+ * front of a still Camera, and one where the Camera pans slowly over a still
+ * field. Each is measured by its total time, the share of pixels re-used, and
+ * the average RMS error of its frames against the fully shaded ones in 8-bit
+ * units. The first frame has nothing to re-use, so it is left out.
+ * <p>
+ * Usage: <code>TemporalReuseBenchmark [width height]</code>
+ * </p>
+ */
+public class TemporalReuseBenchmark {
+	private static final int FRAMES = 12;
+
+	public static void main(String[] args) {
+		ReferenceScenes.setupLogger();
+		int width = args.length > 1 ? Integer.parseInt(args[0]) : 320;
+		int height = args.length > 1 ? Integer.parseInt(args[1]) : 180;
+		for (int shot = 0; shot < 2; shot++) {
+			String name = shot == 0 ? "bouncing sphere" : "panning camera";
+			Result full = render(shot, false, width, height, null);
+			Result reused = render(shot, true, width, height, full.frames);
+			LOG.info(name + ":");
+			LOG.info(String.format("    %-10s %8.1f ms", "full", full.nanos / 1e6));
+			LOG.info(String.format("    %-10s %8.1f ms  %5.1f%% re-used  RMS error %5.2f  %.2fx", "re-used",
+					reused.nanos / 1e6, 100.0 * reused.reused / ((FRAMES - 1) * (double) width * height),
+					reused.error / (FRAMES - 1), (double) full.nanos / reused.nanos));
+		}
+	}
+
+	/**
+	 * Renders the frames of a shot.
+	 *
+	 * @param reference
+	 *            the fully shaded frames to measure the error against, or null
+	 */
+	private static Result render(int shot, boolean reuse, int width, int height, BufferedImage[] reference) {
+		int spheres = 10;
+		double extent = spheres * 2.0;
+		Scene scene = ReferenceScenes.sphereFieldScene(spheres, 16, width, height);
+		ReferenceScenes.addLightRing(scene, 4, extent * 0.8, extent * 0.5, extent * extent);
+		Camera camera = scene.cameras.get(0);
+		ImageData data = camera.getImageData();
+		data.antiAliasing = true;
+		data.temporalReuse = reuse;
+		camera.setImageData(data);
+		ModelInstance bouncer = scene.instances.get(scene.instances.size() / 2);
+		Result r = new Result();
+		r.frames = new BufferedImage[FRAMES];
+		for (int f = 0; f < FRAMES; f++) {
+			if (f > 0) {
+				if (shot == 0)
+					bouncer.translate(0.0, f % 4 < 2 ? 0.5 : -0.5, 0.0);
+				else
+					camera.translate(0.05, 0.0, 0.0);
+			}
+			long start = System.nanoTime();
+			r.frames[f] = camera.takePicture(scene);
+			if (f == 0)
+				continue;
+			r.nanos += System.nanoTime() - start;
+			r.reused += camera.getReusedPixelCount();
+			if (reference != null)
+				r.error += ReferenceScenes.rmsError(r.frames[f], reference[f]);
+		}
+		return r;
+	}
+
+	private static class Result {
+		BufferedImage[] frames;
+		long nanos;
+		long reused;
+		double error;
+	}
+}
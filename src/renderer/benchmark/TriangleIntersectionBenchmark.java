@@ -0,0 +1,91 @@
+package renderer.benchmark;
+
+import static renderer.Config.LOG;
+
+import java.util.Random;
+
+import renderer.infrastructure.math.Vector3;
+import renderer.kernel.Intersector;
+import renderer.kernel.Ray;
+import renderer.kernel.RaycastHit;
+import renderer.kernel.TriangleTable;
+import renderer.scene.actors.Face;
+import renderer.scene.actors.Model;
+
+/**
+ * Measures the cost of a single ray/triangle test through the
+ * <code>Vector3</code>-based {@link Intersector} against the precomputed
+ * {@link TriangleTable}. Every ray is tested against every triangle of a
+ * sphere, so both paths do exactly the same number of tests, and the average
+ * time per test is logged.
+ * <p>
+ * Usage: <code>TriangleIntersectionBenchmark [rays rings]</code>
+ * </p>
+ */
+public class TriangleIntersectionBenchmark {
+	private static final int RUNS = 5;
+
+	public static void main(String[] args) {
+		ReferenceScenes.setupLogger();
+		int rayCount = args.length > 1 ? Integer.parseInt(args[0]) : 2000;
+		int rings = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+		Model model = ReferenceScenes.sphere(new Vector3(), 1.0, rings);
+		TriangleTable table = new TriangleTable(model);
+
+		// Vertices of every triangle, as the Vector3 path sees them
+		int n = table.size();
+		Vector3[] v0 = new Vector3[n], v1 = new Vector3[n], v2 = new Vector3[n];
+		for (int t = 0, f = 0; f < model.faces.size(); f++) {
+			Face face = model.faces.get(f);
+			for (int i = 1; i < face.vertices.length - 1; i++, t++) {
+				v0[t] = model.vertices.get(face.vertices[0]);
+				v1[t] = model.vertices.get(face.vertices[i]);
+				v2[t] = model.vertices.get(face.vertices[i + 1]);
+			}
+		}
+
+		// Rays from a shell around the sphere aimed at random points near it
+		Random random = new Random(42);
+		Ray[] rays = new Ray[rayCount];
+		for (int i = 0; i < rayCount; i++) {
+			Vector3 o = randomDirection(random).scl(3.0);
+			Vector3 target = randomDirection(random).scl(random.nextDouble() * 1.2);
+			rays[i] = new Ray(o, target.sub(o).nor());
+		}
+		long tests = (long) rayCount * n;
+		LOG.info("Testing " + rayCount + " rays against " + n + " triangles (" + tests + " tests per run)");
+
+		RaycastHit hit = new RaycastHit();
+		for (int run = 0; run < RUNS; run++) {
+			long start = System.nanoTime();
+			int hitsVector = 0;
+			for (Ray ray : rays) {
+				for (int t = 0; t < n; t++) {
+					hit.reset();
+					if (Intersector.intersectTriangle(ray, v0[t], v1[t], v2[t], hit))
+						hitsVector++;
+				}
+			}
+			long vectorTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			int hitsTable = 0;
+			for (Ray ray : rays) {
+				ray.prepare();
+				for (int t = 0; t < n; t++) {
+					if (table.intersect(t, ray, Float.POSITIVE_INFINITY) != Float.POSITIVE_INFINITY)
+						hitsTable++;
+				}
+			}
+			long tableTime = System.nanoTime() - start;
+
+			LOG.info(String.format("Run %d: Vector3 %.2f ns/test (%d hits), TriangleTable %.2f ns/test (%d hits), %.2fx",
+					run + 1, (double) vectorTime / tests, hitsVector, (double) tableTime / tests, hitsTable,
+					(double) vectorTime / tableTime));
+		}
+	}
+
+	private static Vector3 randomDirection(Random random) {
+		return new Vector3(random.nextGaussian(), random.nextGaussian(), random.nextGaussian()).nor();
+	}
+}
@@ -0,0 +1,9 @@
+/**
+ * Contains stand-alone benchmarks for the Raytracer, along with the procedurally generated reference scenes they
+ * render. Every benchmark is a class with a main() method and logs its results through Config.LOG.
+ */
+/**
+ * @author Don Isaac
+ *
+ */
+package renderer.benchmark;
@@ -0,0 +1,505 @@
+package renderer.cluster;
+
+import static renderer.Config.LOG;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+
+import renderer.render.Tile;
+import renderer.scene.Camera;
+import renderer.scene.ImageData;
+import renderer.scene.Scene;
+
+/**
+ * Splits pictures between {@link RenderWorker}s running in other processes,
+ * possibly on other machines. Workers connect to the coordinator over TCP
+ * whenever they like, and stay connected between pictures.
+ * <p>
+ * Taking a picture sends the Scene and Camera to every worker once, then
+ * hands out regions of {@link #setRegionSize(int) regionSize} pixels square,
+ * one at a time per worker. The pixels come back compressed and come out
+ * exactly as {@link Camera#takePicture(Scene)} would give them. Time budgets
+ * and temporal reuse are ignored.
+ * </p>
+ * <p>
+ * A region is handed to another worker if its worker drops, takes longer
+ * than the region timeout to answer, or fails to render it. A region that
+ * fails {@link #MAX_ATTEMPTS} times fails the picture. Once every region has
+ * been handed out, idle workers also render copies of the regions still
+ * running, oldest first, so one slow worker can't hold up the picture.
+ * Whichever copy finishes first is kept.
+ * </p>
+ *
+ * <pre>
+ * try (RenderCoordinator coordinator = new RenderCoordinator(7020)) {
+ * 	coordinator.awaitWorkers(4, 60000);
+ * 	BufferedImage image = coordinator.takePicture(scene, camera);
+ * }
+ * </pre>
+ */
+public class RenderCoordinator implements Closeable {
+	/** The region size used when none is set. */
+	public static final int DEFAULT_REGION_SIZE = 128;
+	/** How long a worker may take to render a region when no timeout is set. */
+	public static final long DEFAULT_REGION_TIMEOUT_MILLIS = 10 * 60 * 1000;
+	/** How many times a region may fail before the picture fails. */
+	public static final int MAX_ATTEMPTS = 3;
+	private static final int HANDSHAKE_TIMEOUT_MILLIS = 10000;
+
+	private final ServerSocket server;
+	private final ExecutorService executor;
+	private final List<Link> workers;
+	private volatile Job job;
+	private volatile boolean closed;
+	private volatile int regionSize;
+	private volatile long regionTimeoutMillis;
+	private int nextJob;
+
+	/**
+	 * Starts listening for workers.
+	 *
+	 * @param port
+	 *            the port to listen on, or 0 for any free port
+	 * @throws IOException
+	 *             if the port can't be opened
+	 */
+	public RenderCoordinator(int port) throws IOException {
+		this.server = new ServerSocket(port);
+		this.workers = new CopyOnWriteArrayList<Link>();
+		this.regionSize = DEFAULT_REGION_SIZE;
+		this.regionTimeoutMillis = DEFAULT_REGION_TIMEOUT_MILLIS;
+		this.executor = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "render-coordinator");
+			t.setDaemon(true);
+			return t;
+		});
+		executor.execute(this::acceptWorkers);
+		LOG.info("Waiting for render workers on port " + server.getLocalPort());
+	}
+
+	/**
+	 * @return the port workers connect to
+	 */
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	/**
+	 * @return the number of workers connected right now
+	 */
+	public int getWorkerCount() {
+		return workers.size();
+	}
+
+	/**
+	 * Sets the width and height of the regions pictures are split into. Larger
+	 * regions cost less to hand out, smaller ones spread better over many
+	 * workers.
+	 *
+	 * @param regionSize
+	 *            the width and height of each region, in pixels
+	 * @throws IllegalArgumentException
+	 *             if <code>regionSize</code> is less than 1
+	 */
+	public void setRegionSize(int regionSize) {
+		if (regionSize < 1)
+			throw new IllegalArgumentException("Region size must be positive, got " + regionSize);
+		this.regionSize = regionSize;
+	}
+
+	/**
+	 * Sets how long a worker may take to render a region before it is dropped
+	 * and the region handed to another one.
+	 *
+	 * @param millis
+	 *            the timeout, in milliseconds
+	 * @throws IllegalArgumentException
+	 *             if <code>millis</code> is less than 1
+	 */
+	public void setRegionTimeoutMillis(long millis) {
+		if (millis < 1 || millis > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Region timeout must be between 1 and " + Integer.MAX_VALUE
+					+ " ms, got " + millis);
+		this.regionTimeoutMillis = millis;
+	}
+
+	/**
+	 * Waits until enough workers have connected.
+	 *
+	 * @param count
+	 *            the number of workers to wait for
+	 * @param timeoutMillis
+	 *            how long to wait at most
+	 * @return <b>true</b> if that many workers are connected
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	public boolean awaitWorkers(int count, long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized (workers) {
+			while (workers.size() < count) {
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0)
+					return false;
+				workers.wait(left);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Takes a picture of a Scene on the connected workers, blocking until it
+	 * is finished. Workers that connect while the picture is being taken join
+	 * in. If every worker drops, the picture waits for a new one.
+	 *
+	 * @param s
+	 *            the Scene to take a picture of
+	 * @param camera
+	 *            the Camera to take the picture with. It doesn't have to be in
+	 *            the Scene.
+	 * @return the picture
+	 * @throws IOException
+	 *             if a region failed too often, the coordinator was closed, or
+	 *             the thread was interrupted
+	 */
+	public synchronized BufferedImage takePicture(Scene s, Camera camera) throws IOException {
+		if (closed)
+			throw new IOException("The coordinator is closed");
+		long start = System.nanoTime();
+		ImageData d = camera.getImageData();
+		List<Tile> regions = new ArrayList<Tile>();
+		int size = regionSize;
+		for (int y = 0; y < d.height; y += size) {
+			for (int x = 0; x < d.width; x += size)
+				regions.add(new Tile(regions.size(), x, y, Math.min(size, d.width - x), Math.min(size, d.height - y)));
+		}
+		Job j = new Job(nextJob++, WireFormat.encodeJob(s, camera), regions,
+				new BufferedImage(d.width, d.height, d.imageType));
+		job = j;
+		if (workers.isEmpty())
+			LOG.warning("No render workers are connected yet, waiting for one");
+		for (Link w : workers)
+			executor.execute(() -> serve(w, j));
+		try {
+			j.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			InterruptedIOException failure = new InterruptedIOException("Interrupted while waiting for the workers");
+			j.fail(failure);
+			throw failure;
+		} finally {
+			job = null;
+		}
+		LOG.info(String.format("Rendered %d regions on %d workers in %.1f ms (%d retried, %d duplicated)",
+				regions.size(), workers.size(), (System.nanoTime() - start) / 1e6, j.retried, j.duplicated));
+		return j.image;
+	}
+
+	/**
+	 * Stops listening for workers and disconnects the connected ones. A picture
+	 * being taken fails.
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		Job j = job;
+		if (j != null)
+			j.fail(new IOException("The coordinator was closed"));
+		server.close();
+		for (Link w : workers) {
+			// Links that are busy with a picture can't be sent anything in between
+			if (j == null)
+				w.sayGoodbye();
+			w.close();
+		}
+		workers.clear();
+		executor.shutdownNow();
+	}
+
+	private void acceptWorkers() {
+		while (!closed) {
+			Socket socket;
+			try {
+				socket = server.accept();
+			} catch (IOException e) {
+				if (!closed)
+					LOG.log(Level.WARNING, "Stopped accepting render workers", e);
+				return;
+			}
+			executor.execute(() -> connect(socket));
+		}
+	}
+
+	/**
+	 * Checks that a new connection comes from a worker, and adds it.
+	 */
+	private void connect(Socket socket) {
+		Link w;
+		try {
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			if (in.readInt() != WireFormat.MAGIC)
+				throw new IOException("Not a render worker");
+			int version = in.readInt();
+			if (version != WireFormat.VERSION)
+				throw new IOException("Worker speaks version " + version + ", expected " + WireFormat.VERSION);
+			w = new Link(socket, in, out, in.readInt());
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Rejected connection from " + socket.getRemoteSocketAddress(), e);
+			try {
+				socket.close();
+			} catch (IOException ignored) {
+			}
+			return;
+		}
+		synchronized (workers) {
+			if (closed) {
+				w.close();
+				return;
+			}
+			workers.add(w);
+			workers.notifyAll();
+		}
+		LOG.info("Render worker " + w + " connected");
+		Job j = job;
+		if (j != null)
+			serve(w, j);
+	}
+
+	/**
+	 * Hands regions of a picture to a worker until none are left.
+	 */
+	private void serve(Link w, Job j) {
+		synchronized (w) {
+			if (w.job == j || w.closed)
+				return;
+			w.job = j;
+			int region = -1;
+			try {
+				w.socket.setSoTimeout((int) regionTimeoutMillis);
+				w.out.writeByte(WireFormat.JOB);
+				w.out.writeInt(j.id);
+				w.out.writeInt(j.data.length);
+				w.out.write(j.data);
+				while ((region = j.next()) >= 0) {
+					Tile t = j.regions.get(region);
+					w.out.writeByte(WireFormat.REGION);
+					w.out.writeInt(j.id);
+					w.out.writeInt(t.index);
+					w.out.writeInt(t.x);
+					w.out.writeInt(t.y);
+					w.out.writeInt(t.width);
+					w.out.writeInt(t.height);
+					w.out.flush();
+					byte type = w.in.readByte();
+					if (w.in.readInt() != j.id || w.in.readInt() != region)
+						throw new IOException("Answered the wrong region");
+					if (type == WireFormat.PIXELS) {
+						byte[] data = new byte[w.in.readInt()];
+						w.in.readFully(data);
+						j.finished(region, WireFormat.decompress(data, t.pixelCount()));
+					} else if (type == WireFormat.FAILED) {
+						String reason = w.in.readUTF();
+						LOG.warning("Render worker " + w + " failed " + t + ": " + reason);
+						j.failed(region, reason);
+					} else {
+						throw new IOException("Unknown message type " + type);
+					}
+					region = -1;
+				}
+			} catch (IOException e) {
+				if (!closed)
+					LOG.log(Level.WARNING, "Lost render worker " + w, e);
+				workers.remove(w);
+				w.close();
+				if (region >= 0)
+					j.abandoned(region);
+				if (workers.isEmpty() && !closed && job == j)
+					LOG.warning("No render workers left, waiting for one to connect");
+			}
+		}
+	}
+
+	/**
+	 * A connection to a worker.
+	 */
+	private static class Link {
+		final Socket socket;
+		final DataInputStream in;
+		final DataOutputStream out;
+		final int threads;
+		/** The last picture this worker was handed. */
+		Job job;
+		volatile boolean closed;
+
+		Link(Socket socket, DataInputStream in, DataOutputStream out, int threads) {
+			this.socket = socket;
+			this.in = in;
+			this.out = out;
+			this.threads = threads;
+		}
+
+		synchronized void sayGoodbye() {
+			try {
+				out.writeByte(WireFormat.BYE);
+				out.flush();
+			} catch (IOException ignored) {
+				// It is leaving anyway
+			}
+		}
+
+		void close() {
+			closed = true;
+			try {
+				socket.close();
+			} catch (IOException ignored) {
+			}
+		}
+
+		@Override
+		public String toString() {
+			return socket.getRemoteSocketAddress() + " (" + threads + " threads)";
+		}
+	}
+
+	/**
+	 * The state of a picture being taken: which regions are waiting to be
+	 * handed out, running on how many workers, or done.
+	 */
+	private static class Job {
+		final int id;
+		final byte[] data;
+		final List<Tile> regions;
+		final BufferedImage image;
+		private final ArrayDeque<Integer> pending;
+		private final boolean[] done;
+		private final int[] running;
+		private final int[] attempts;
+		private final long[] started;
+		private int remaining;
+		IOException failure;
+		int retried, duplicated;
+
+		Job(int id, byte[] data, List<Tile> regions, BufferedImage image) {
+			this.id = id;
+			this.data = data;
+			this.regions = regions;
+			this.image = image;
+			this.pending = new ArrayDeque<Integer>();
+			for (int i = 0; i < regions.size(); i++)
+				pending.add(i);
+			this.done = new boolean[regions.size()];
+			this.running = new int[regions.size()];
+			this.attempts = new int[regions.size()];
+			this.started = new long[regions.size()];
+			this.remaining = regions.size();
+		}
+
+		/**
+		 * Picks the next region for an idle worker: a pending one, or else a copy
+		 * of the one that has been running alone the longest. Waits if every
+		 * unfinished region already runs on two workers.
+		 *
+		 * @return the index of the region, or -1 if the picture is finished or
+		 *         failed
+		 */
+		synchronized int next() {
+			while (remaining > 0 && failure == null) {
+				Integer r = pending.poll();
+				if (r != null) {
+					if (done[r])
+						continue;
+					start(r);
+					return r;
+				}
+				int straggler = -1;
+				for (int i = 0; i < done.length; i++) {
+					if (!done[i] && running[i] == 1 && (straggler < 0 || started[i] < started[straggler]))
+						straggler = i;
+				}
+				if (straggler >= 0) {
+					duplicated++;
+					start(straggler);
+					return straggler;
+				}
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return -1;
+				}
+			}
+			return -1;
+		}
+
+		private void start(int r) {
+			running[r]++;
+			if (running[r] == 1)
+				started[r] = System.nanoTime();
+		}
+
+		synchronized void finished(int r, int[] pixels) {
+			running[r]--;
+			if (!done[r]) {
+				Tile t = regions.get(r);
+				image.setRGB(t.x, t.y, t.width, t.height, pixels, 0, t.width);
+				done[r] = true;
+				remaining--;
+			}
+			notifyAll();
+		}
+
+		synchronized void failed(int r, String reason) {
+			running[r]--;
+			attempts[r]++;
+			if (!done[r] && attempts[r] >= MAX_ATTEMPTS)
+				fail(new IOException(regions.get(r) + " failed " + attempts[r] + " times, last with: " + reason));
+			else
+				requeue(r);
+			notifyAll();
+		}
+
+		synchronized void abandoned(int r) {
+			running[r]--;
+			requeue(r);
+			notifyAll();
+		}
+
+		private void requeue(int r) {
+			if (!done[r] && running[r] == 0) {
+				pending.addFirst(r);
+				retried++;
+			}
+		}
+
+		synchronized void fail(IOException e) {
+			if (failure == null)
+				failure = e;
+			notifyAll();
+		}
+
+		synchronized void await() throws IOException, InterruptedException {
+			while (remaining > 0 && failure == null)
+				wait();
+			if (failure != null)
+				throw failure;
+		}
+	}
+}
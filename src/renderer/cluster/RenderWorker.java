@@ -0,0 +1,125 @@
+package renderer.cluster;
+
+import static renderer.Config.LOG;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.logging.Level;
+
+import renderer.Config;
+import renderer.render.Tile;
+import renderer.scene.Camera;
+import renderer.scene.Scene;
+
+/**
+ * Renders parts of pictures for a {@link RenderCoordinator}. A worker connects
+ * to the coordinator, receives the Scene of each picture once, and then
+ * renders the regions it is handed one at a time on
+ * {@link Config#RENDER_THREADS} threads, sending back their pixels.
+ * <p>
+ * A region that throws is reported to the coordinator, which hands it to
+ * another worker. The worker keeps going until the coordinator says goodbye
+ * or the connection drops.
+ * </p>
+ *
+ * <pre>
+ * new RenderWorker("render-01", 7020).run();
+ * </pre>
+ */
+public class RenderWorker {
+	private final String host;
+	private final int port;
+
+	/**
+	 * Creates a new RenderWorker. Nothing happens until {@link #run()} is
+	 * called.
+	 *
+	 * @param host
+	 *            the host the coordinator runs on
+	 * @param port
+	 *            the port the coordinator listens on
+	 */
+	public RenderWorker(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	/**
+	 * Connects to the coordinator and renders whatever it hands out, until it
+	 * says goodbye.
+	 *
+	 * @throws IOException
+	 *             if the coordinator can't be reached or the connection drops
+	 */
+	public void run() throws IOException {
+		try (Socket socket = new Socket(host, port)) {
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			out.writeInt(WireFormat.MAGIC);
+			out.writeInt(WireFormat.VERSION);
+			out.writeInt(Config.RENDER_THREADS);
+			out.flush();
+			LOG.info("Connected to the coordinator at " + host + ":" + port);
+
+			int job = -1;
+			Scene scene = null;
+			while (true) {
+				byte type;
+				try {
+					type = in.readByte();
+				} catch (EOFException e) {
+					throw new IOException("The coordinator closed the connection", e);
+				}
+				if (type == WireFormat.BYE) {
+					LOG.info("The coordinator said goodbye");
+					return;
+				} else if (type == WireFormat.JOB) {
+					job = in.readInt();
+					byte[] data = new byte[in.readInt()];
+					in.readFully(data);
+					scene = WireFormat.decodeJob(data);
+					LOG.fine("Received job " + job + ": Scene " + scene.name);
+				} else if (type == WireFormat.REGION) {
+					int regionJob = in.readInt();
+					Tile region = new Tile(in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt());
+					renderRegion(out, regionJob == job ? scene : null, regionJob, region);
+				} else {
+					throw new IOException("Unknown message type " + type);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Renders a region and sends back its pixels, or the reason it failed.
+	 */
+	private void renderRegion(DataOutputStream out, Scene scene, int job, Tile region) throws IOException {
+		byte[] pixels;
+		try {
+			if (scene == null)
+				throw new IllegalStateException("Job " + job + " was never received");
+			Camera camera = scene.cameras.get(0);
+			pixels = WireFormat.compress(camera.renderRegion(scene, region));
+		} catch (RuntimeException e) {
+			LOG.log(Level.WARNING, "Could not render " + region, e);
+			out.writeByte(WireFormat.FAILED);
+			out.writeInt(job);
+			out.writeInt(region.index);
+			out.writeUTF(String.valueOf(e));
+			out.flush();
+			return;
+		}
+		out.writeByte(WireFormat.PIXELS);
+		out.writeInt(job);
+		out.writeInt(region.index);
+		out.writeInt(pixels.length);
+		out.write(pixels);
+		out.flush();
+	}
+}
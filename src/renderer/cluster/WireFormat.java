@@ -0,0 +1,343 @@
+package renderer.cluster;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import renderer.infrastructure.math.Transform;
+import renderer.infrastructure.math.Vector3;
+import renderer.scene.Camera;
+import renderer.scene.ImageData;
+import renderer.scene.Scene;
+import renderer.scene.actors.AreaLight;
+import renderer.scene.actors.Face;
+import renderer.scene.actors.Light;
+import renderer.scene.actors.Material;
+import renderer.scene.actors.Model;
+import renderer.scene.actors.ModelInstance;
+import renderer.scene.actors.TextureCoordinate;
+
+/**
+ * The messages a coordinator and its workers exchange, and the encoding of the
+ * Scenes and pixels inside them. Every message starts with a type byte.
+ * <p>
+ * Scenes are sent with everything that affects their pictures: Models with
+ * their Materials, instances, Lights and the Camera. Each Model is sent once
+ * however many instances it has. Texture map file names and smoothing groups
+ * are left out, since shading doesn't use them. Pixels are sent as 3 bytes
+ * each, deflated; alpha is always opaque, so it isn't sent.
+ * </p>
+ */
+final class WireFormat {
+	/** Sent by a worker when it connects, followed by {@link #VERSION} and its thread count. */
+	static final int MAGIC = 0x52415954;
+	/** Changes whenever a message changes. Version 2 added ImageData.firstSample to jobs. */
+	static final int VERSION = 2;
+
+	/** Coordinator to worker: a job id, then the length and bytes of an encoded Scene and Camera. */
+	static final byte JOB = 1;
+	/** Coordinator to worker: a job id, region index, x, y, width and height. */
+	static final byte REGION = 2;
+	/** Coordinator to worker: disconnect. */
+	static final byte BYE = 3;
+	/** Worker to coordinator: a job id, region index, then the length and bytes of its deflated pixels. */
+	static final byte PIXELS = 4;
+	/** Worker to coordinator: a job id, region index and the reason the region failed. */
+	static final byte FAILED = 5;
+
+	private static final byte POINT_LIGHT = 0;
+	private static final byte AREA_LIGHT = 1;
+
+	private WireFormat() {
+	}
+
+	/**
+	 * Encodes a Scene and the Camera to render it with.
+	 */
+	static byte[] encodeJob(Scene s, Camera camera) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeUTF(s.name);
+		writeVector(out, s.background);
+
+		Map<Model, Integer> models = new IdentityHashMap<Model, Integer>();
+		List<Model> order = new ArrayList<Model>();
+		for (ModelInstance mi : s.instances) {
+			if (!models.containsKey(mi.model)) {
+				models.put(mi.model, order.size());
+				order.add(mi.model);
+			}
+		}
+		out.writeInt(order.size());
+		for (Model m : order)
+			writeModel(out, m);
+		out.writeInt(s.instances.size());
+		for (ModelInstance mi : s.instances) {
+			out.writeUTF(mi.getName());
+			out.writeInt(models.get(mi.model));
+			writeTransform(out, mi.getTransform());
+		}
+
+		out.writeInt(s.lights.size());
+		for (Light l : s.lights) {
+			out.writeByte(l instanceof AreaLight ? AREA_LIGHT : POINT_LIGHT);
+			out.writeUTF(l.getName());
+			writeVector(out, l.position);
+			writeVector(out, l.color);
+			out.writeDouble(l.intensity);
+			if (l instanceof AreaLight) {
+				writeVector(out, ((AreaLight) l).u);
+				writeVector(out, ((AreaLight) l).v);
+			}
+		}
+
+		ImageData d = camera.getImageData();
+		out.writeUTF(camera.getName());
+		out.writeInt(d.width);
+		out.writeInt(d.height);
+		out.writeInt(d.imageType);
+		out.writeDouble(d.focalLength);
+		out.writeBoolean(d.antiAliasing);
+		out.writeInt(d.minSamples);
+		out.writeInt(d.maxSamples);
+		out.writeDouble(d.noiseThreshold);
+		out.writeInt(d.tileSize);
+		out.writeBoolean(d.packetTracing);
+		out.writeInt(d.lightSamples);
+		out.writeInt(d.firstSample);
+		writeTransform(out, camera.getTransform());
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decodes a job made by {@link #encodeJob(Scene, Camera)}.
+	 *
+	 * @return the Scene. Its only Camera is the one to render with.
+	 */
+	static Scene decodeJob(byte[] job) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(job));
+		Scene s = new Scene(in.readUTF());
+		s.background = readVector(in);
+
+		Model[] models = new Model[in.readInt()];
+		for (int i = 0; i < models.length; i++)
+			models[i] = readModel(in);
+		int instances = in.readInt();
+		for (int i = 0; i < instances; i++) {
+			String name = in.readUTF();
+			s.instances.add(new ModelInstance(name, models[in.readInt()], readTransform(in)));
+		}
+
+		int lights = in.readInt();
+		for (int i = 0; i < lights; i++) {
+			byte type = in.readByte();
+			String name = in.readUTF();
+			Vector3 position = readVector(in), color = readVector(in);
+			double intensity = in.readDouble();
+			if (type == AREA_LIGHT)
+				s.lights.add(new AreaLight(name, position, readVector(in), readVector(in), color, intensity));
+			else
+				s.lights.add(new Light(name, position, color, intensity));
+		}
+
+		String name = in.readUTF();
+		ImageData d = new ImageData();
+		d.width = in.readInt();
+		d.height = in.readInt();
+		d.imageType = in.readInt();
+		d.focalLength = in.readDouble();
+		d.antiAliasing = in.readBoolean();
+		d.minSamples = in.readInt();
+		d.maxSamples = in.readInt();
+		d.noiseThreshold = in.readDouble();
+		d.tileSize = in.readInt();
+		d.packetTracing = in.readBoolean();
+		d.lightSamples = in.readInt();
+		d.firstSample = in.readInt();
+		Camera camera = new Camera(d, name);
+		camera.applyTransformation(readTransform(in));
+		s.cameras.add(camera);
+		return s;
+	}
+
+	private static void writeModel(DataOutputStream out, Model m) throws IOException {
+		out.writeUTF(m.fileName == null ? "" : m.fileName);
+		out.writeInt(m.vertices.size());
+		for (Vector3 v : m.vertices)
+			writeVector(out, v);
+		out.writeInt(m.normals.size());
+		for (Vector3 n : m.normals)
+			writeVector(out, n);
+		out.writeInt(m.texCoords.size());
+		for (TextureCoordinate t : m.texCoords) {
+			out.writeDouble(t.u);
+			out.writeDouble(t.v);
+		}
+		out.writeInt(m.faces.size());
+		for (Face f : m.faces) {
+			writeIndices(out, f.vertices);
+			writeIndices(out, f.texCoords);
+			writeIndices(out, f.normals);
+			writeString(out, f.materialName);
+		}
+		out.writeInt(m.materialLib.size());
+		for (Material mtl : m.materialLib.values()) {
+			out.writeUTF(mtl.name);
+			writeVector(out, mtl.ka);
+			writeVector(out, mtl.kd);
+			writeVector(out, mtl.ks);
+			writeVector(out, mtl.tf);
+			out.writeInt(mtl.illumModel);
+			out.writeBoolean(mtl.dHalo);
+			out.writeDouble(mtl.dFactor);
+			out.writeDouble(mtl.nsExponent);
+			out.writeDouble(mtl.sharpnessValue);
+			out.writeDouble(mtl.niOpticalDensity);
+		}
+	}
+
+	private static Model readModel(DataInputStream in) throws IOException {
+		Model m = new Model();
+		m.fileName = in.readUTF();
+		int n = in.readInt();
+		for (int i = 0; i < n; i++)
+			m.vertices.add(readVector(in));
+		n = in.readInt();
+		for (int i = 0; i < n; i++)
+			m.normals.add(readVector(in));
+		n = in.readInt();
+		for (int i = 0; i < n; i++)
+			m.texCoords.add(new TextureCoordinate(in.readDouble(), in.readDouble()));
+		n = in.readInt();
+		for (int i = 0; i < n; i++) {
+			Face f = new Face(readIndices(in), readIndices(in), readIndices(in));
+			f.materialName = readString(in);
+			m.faces.add(f);
+		}
+		n = in.readInt();
+		for (int i = 0; i < n; i++) {
+			Material mtl = new Material(in.readUTF());
+			mtl.ka = readVector(in);
+			mtl.kd = readVector(in);
+			mtl.ks = readVector(in);
+			mtl.tf = readVector(in);
+			mtl.illumModel = in.readInt();
+			mtl.dHalo = in.readBoolean();
+			mtl.dFactor = in.readDouble();
+			mtl.nsExponent = in.readDouble();
+			mtl.sharpnessValue = in.readDouble();
+			mtl.niOpticalDensity = in.readDouble();
+			m.materialLib.put(mtl.name, mtl);
+		}
+		return m;
+	}
+
+	private static void writeVector(DataOutputStream out, Vector3 v) throws IOException {
+		out.writeDouble(v.x);
+		out.writeDouble(v.y);
+		out.writeDouble(v.z);
+	}
+
+	private static Vector3 readVector(DataInputStream in) throws IOException {
+		return new Vector3(in.readDouble(), in.readDouble(), in.readDouble());
+	}
+
+	private static void writeTransform(DataOutputStream out, Transform t) throws IOException {
+		for (double d : t.toArray())
+			out.writeDouble(d);
+	}
+
+	private static Transform readTransform(DataInputStream in) throws IOException {
+		double[] m = new double[16];
+		for (int i = 0; i < 16; i++)
+			m[i] = in.readDouble();
+		return new Transform(m);
+	}
+
+	private static void writeIndices(DataOutputStream out, int[] indices) throws IOException {
+		out.writeInt(indices.length);
+		for (int i : indices)
+			out.writeInt(i);
+	}
+
+	private static int[] readIndices(DataInputStream in) throws IOException {
+		int[] indices = new int[in.readInt()];
+		for (int i = 0; i < indices.length; i++)
+			indices[i] = in.readInt();
+		return indices;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null)
+			out.writeUTF(s);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	/**
+	 * Packs pixels into 3 bytes each and deflates them.
+	 */
+	static byte[] compress(int[] pixels) {
+		byte[] raw = new byte[3 * pixels.length];
+		for (int i = 0, b = 0; i < pixels.length; i++) {
+			raw[b++] = (byte) (pixels[i] >> 16);
+			raw[b++] = (byte) (pixels[i] >> 8);
+			raw[b++] = (byte) pixels[i];
+		}
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		deflater.setInput(raw);
+		deflater.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4 + 64);
+		byte[] chunk = new byte[8192];
+		while (!deflater.finished())
+			out.write(chunk, 0, deflater.deflate(chunk));
+		deflater.end();
+		return out.toByteArray();
+	}
+
+	/**
+	 * Undoes {@link #compress(int[])}. The pixels come back opaque, as every
+	 * picture the Camera takes is.
+	 *
+	 * @throws IOException
+	 *             if the data is corrupt or doesn't hold <code>count</code>
+	 *             pixels
+	 */
+	static int[] decompress(byte[] data, int count) throws IOException {
+		byte[] raw = new byte[3 * count];
+		Inflater inflater = new Inflater();
+		inflater.setInput(data);
+		try {
+			int n = 0;
+			while (n < raw.length && !inflater.finished()) {
+				int read = inflater.inflate(raw, n, raw.length - n);
+				if (read == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				n += read;
+			}
+			if (n != raw.length || !inflater.finished())
+				throw new IOException("Expected " + count + " pixels, got " + n / 3);
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt pixel data", e);
+		} finally {
+			inflater.end();
+		}
+		int[] pixels = new int[count];
+		for (int i = 0, b = 0; i < count; i++, b += 3)
+			pixels[i] = 0xff000000 | (raw[b] & 0xff) << 16 | (raw[b + 1] & 0xff) << 8 | raw[b + 2] & 0xff;
+		return pixels;
+	}
+}
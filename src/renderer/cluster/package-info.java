@@ -0,0 +1,9 @@
+/**
+ * Contains classes that split a picture between several processes: a coordinator that hands out parts of the
+ * picture over TCP, and the workers that render them.
+ */
+/**
+ * @author Don Isaac
+ *
+ */
+package renderer.cluster;
@@ -347,6 +347,22 @@ public class Transform {
 		return new Vector3(vec[0], vec[1], vec[2]);
 	}
 
+	/**
+	 * Transforms a direction using this matrix. Unlike
+	 * {@link #transform(Vector3)}, the translation part of the matrix is ignored.
+	 * Note that this method does not modify the original <code>Vector3</code>.
+	 * 
+	 * @param v
+	 *            the direction to transform
+	 * @return a <code>Vector3</code> with the rotation and scale of this matrix
+	 *         applied
+	 */
+	public Vector3 transformDirection(Vector3 v) {
+		return new Vector3(matrix[0] * v.x + matrix[4] * v.y + matrix[8] * v.z,
+				matrix[1] * v.x + matrix[5] * v.y + matrix[9] * v.z,
+				matrix[2] * v.x + matrix[6] * v.y + matrix[10] * v.z);
+	}
+
 	/**
 	 * Multiplies this <code>Transform</code> with matrix with another matrix.
 	 * Essentially runs the code:
@@ -382,7 +398,72 @@ public class Transform {
 	 * @return a copy of this matrix
 	 */
 	public Transform cpy() {
-		return new Transform(matrix);
+		return new Transform(matrix.clone());
+	}
+
+	/**
+	 * Computes the inverse of this <code>Transform</code> matrix, such that
+	 * <code>T * T<sup>-1</sup> = I</code>. This matrix is not modified.
+	 * 
+	 * @return a new <code>Transform</code> that undoes this one
+	 * @throws ArithmeticException
+	 *             if this matrix has no inverse (for example, if it scales an
+	 *             axis by 0)
+	 */
+	public Transform inverse() {
+		double[] m = matrix;
+		double[] inv = new double[16];
+		// Cofactor expansion, see https://stackoverflow.com/a/1148405
+		inv[0] = m[5] * m[10] * m[15] - m[5] * m[11] * m[14] - m[9] * m[6] * m[15] + m[9] * m[7] * m[14]
+				+ m[13] * m[6] * m[11] - m[13] * m[7] * m[10];
+		inv[4] = -m[4] * m[10] * m[15] + m[4] * m[11] * m[14] + m[8] * m[6] * m[15] - m[8] * m[7] * m[14]
+				- m[12] * m[6] * m[11] + m[12] * m[7] * m[10];
+		inv[8] = m[4] * m[9] * m[15] - m[4] * m[11] * m[13] - m[8] * m[5] * m[15] + m[8] * m[7] * m[13]
+				+ m[12] * m[5] * m[11] - m[12] * m[7] * m[9];
+		inv[12] = -m[4] * m[9] * m[14] + m[4] * m[10] * m[13] + m[8] * m[5] * m[14] - m[8] * m[6] * m[13]
+				- m[12] * m[5] * m[10] + m[12] * m[6] * m[9];
+		inv[1] = -m[1] * m[10] * m[15] + m[1] * m[11] * m[14] + m[9] * m[2] * m[15] - m[9] * m[3] * m[14]
+				- m[13] * m[2] * m[11] + m[13] * m[3] * m[10];
+		inv[5] = m[0] * m[10] * m[15] - m[0] * m[11] * m[14] - m[8] * m[2] * m[15] + m[8] * m[3] * m[14]
+				+ m[12] * m[2] * m[11] - m[12] * m[3] * m[10];
+		inv[9] = -m[0] * m[9] * m[15] + m[0] * m[11] * m[13] + m[8] * m[1] * m[15] - m[8] * m[3] * m[13]
+				- m[12] * m[1] * m[11] + m[12] * m[3] * m[9];
+		inv[13] = m[0] * m[9] * m[14] - m[0] * m[10] * m[13] - m[8] * m[1] * m[14] + m[8] * m[2] * m[13]
+				+ m[12] * m[1] * m[10] - m[12] * m[2] * m[9];
+		inv[2] = m[1] * m[6] * m[15] - m[1] * m[7] * m[14] - m[5] * m[2] * m[15] + m[5] * m[3] * m[14]
+				+ m[13] * m[2] * m[7] - m[13] * m[3] * m[6];
+		inv[6] = -m[0] * m[6] * m[15] + m[0] * m[7] * m[14] + m[4] * m[2] * m[15] - m[4] * m[3] * m[14]
+				- m[12] * m[2] * m[7] + m[12] * m[3] * m[6];
+		inv[10] = m[0] * m[5] * m[15] - m[0] * m[7] * m[13] - m[4] * m[1] * m[15] + m[4] * m[3] * m[13]
+				+ m[12] * m[1] * m[7] - m[12] * m[3] * m[5];
+		inv[14] = -m[0] * m[5] * m[14] + m[0] * m[6] * m[13] + m[4] * m[1] * m[14] - m[4] * m[2] * m[13]
+				- m[12] * m[1] * m[6] + m[12] * m[2] * m[5];
+		inv[3] = -m[1] * m[6] * m[11] + m[1] * m[7] * m[10] + m[5] * m[2] * m[11] - m[5] * m[3] * m[10]
+				- m[9] * m[2] * m[7] + m[9] * m[3] * m[6];
+		inv[7] = m[0] * m[6] * m[11] - m[0] * m[7] * m[10] - m[4] * m[2] * m[11] + m[4] * m[3] * m[10]
+				+ m[8] * m[2] * m[7] - m[8] * m[3] * m[6];
+		inv[11] = -m[0] * m[5] * m[11] + m[0] * m[7] * m[9] + m[4] * m[1] * m[11] - m[4] * m[3] * m[9]
+				- m[8] * m[1] * m[7] + m[8] * m[3] * m[5];
+		inv[15] = m[0] * m[5] * m[10] - m[0] * m[6] * m[9] - m[4] * m[1] * m[10] + m[4] * m[2] * m[9]
+				+ m[8] * m[1] * m[6] - m[8] * m[2] * m[5];
+
+		double det = m[0] * inv[0] + m[1] * inv[4] + m[2] * inv[8] + m[3] * inv[12];
+		if (det == 0.0)
+			throw new ArithmeticException("This Transform can't be inverted");
+		det = 1.0 / det;
+		for (int i = 0; i < 16; i++)
+			inv[i] *= det;
+		return new Transform(inv);
+	}
+
+	/**
+	 * Returns the values of this matrix in column-major order. Changing the array
+	 * does not change the matrix.
+	 * 
+	 * @return a copy of the matrix's values
+	 */
+	public double[] toArray() {
+		return matrix.clone();
 	}
 
 	@Override
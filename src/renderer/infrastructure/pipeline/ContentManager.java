@@ -3,10 +3,14 @@ package renderer.infrastructure.pipeline;
 import static renderer.Config.LOG;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 
+import renderer.infrastructure.pipeline.texture.Texture;
+import renderer.infrastructure.pipeline.texture.TextureCache;
+import renderer.infrastructure.pipeline.texture.TiledTextureFile;
 import renderer.scene.Camera;
 import renderer.scene.Scene;
 import renderer.scene.actors.Light;
@@ -25,6 +29,8 @@ public class ContentManager {
 	public ConcurrentHashMap<String, Light> lights;
 	public ConcurrentHashMap<String, Animation> animations;
 	public ConcurrentHashMap<String, Camera> cameras;
+	/** Decodes and keeps the images in <code>textures</code>. */
+	public TextureCache textureCache;
 
 	/*
 	 * possible code for multithreading parsing
@@ -59,7 +65,29 @@ public class ContentManager {
 		lights = new ConcurrentHashMap<String, Light>();
 		animations = new ConcurrentHashMap<String, Animation>();
 		cameras = new ConcurrentHashMap<String, Camera>();
+		textureCache = new TextureCache();
+	}
 
+	/**
+	 * Gets a texture found by {@link #parseResourcesFromDirectory(File)},
+	 * decoding it the first time, or mapping it if it was converted to a
+	 * {@link TiledTextureFile}.
+	 * 
+	 * @param name
+	 *            the file name of the texture, as used by Materials
+	 * @return the texture, or <code>null</code> if there is no texture by that
+	 *         name or it can't be decoded
+	 */
+	public Texture getTexture(String name) {
+		File file = textures.get(name);
+		if (file == null)
+			return null;
+		try {
+			return textureCache.open(file);
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Unable to read texture " + file.getAbsolutePath(), e);
+			return null;
+		}
 	}
 
 	/**
@@ -89,7 +117,8 @@ public class ContentManager {
 			} else {
 				String ext = f.getName().substring(f.getName().lastIndexOf(".") + 1).toLowerCase();
 
-				if (ext.equals("png") || ext.equals("jpg") || ext.equals("jpeg") || ext.equals("tga")) {
+				if (ext.equals("png") || ext.equals("jpg") || ext.equals("jpeg") || ext.equals("tga")
+						|| ext.equals("rtex")) {
 					parseTexture(f);
 				} else if (ext.equals("obj")) {
 					parseModel(f);
@@ -106,7 +135,16 @@ public class ContentManager {
 	}
 
 	private void parseTexture(File tex) {
-		// TODO parse texture
+		// Textures are decoded by the cache when they are first used. A tiled
+		// texture stands in for the image it was converted from, under its name.
+		String name = tex.getName();
+		if (TiledTextureFile.isTiled(tex)) {
+			textures.put(name.substring(0, name.length() - TiledTextureFile.EXTENSION.length()), tex);
+		} else {
+			File found = textures.get(name);
+			if (found == null || !TiledTextureFile.isTiled(found))
+				textures.put(name, tex);
+		}
 	}
 
 	private void parseModel(File model) {
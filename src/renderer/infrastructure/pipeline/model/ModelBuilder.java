@@ -5,6 +5,7 @@ import static renderer.Config.LOG;
 import java.util.logging.Level;
 
 import renderer.infrastructure.math.Vector3;
+import renderer.scene.actors.Face;
 import renderer.scene.actors.Model;
 import renderer.scene.actors.TextureCoordinate;
 
@@ -30,6 +31,7 @@ public class ModelBuilder implements BuilderInterface {
 	Model m;
 	private boolean isParsing;
 	private boolean canClose;
+	private String currentMaterial;
 
 	public ModelBuilder() {
 		isParsing = false;
@@ -43,6 +45,7 @@ public class ModelBuilder implements BuilderInterface {
 					new IllegalStateException());
 		m = new Model();
 		isParsing = true;
+		currentMaterial = null;
 
 		m.fileName = filename;
 	}
@@ -74,7 +77,48 @@ public class ModelBuilder implements BuilderInterface {
 
 	@Override
 	public void addFace(int[] vertexIndices) {
-
+		int n = vertexIndices.length / 3;
+		if (n < 3) {
+			LOG.log(Level.WARNING, "Ignoring face with only " + n + " vertices in " + m.fileName);
+			return;
+		}
+		int[] v = new int[n];
+		int[] t = new int[n];
+		int[] vn = new int[n];
+		for (int i = 0; i < n; i++) {
+			v[i] = resolveIndex(vertexIndices[3 * i], m.vertices.size());
+			t[i] = resolveIndex(vertexIndices[3 * i + 1], m.texCoords.size());
+			vn[i] = resolveIndex(vertexIndices[3 * i + 2], m.normals.size());
+			if (v[i] == Face.NO_INDEX) {
+				LOG.log(Level.SEVERE, "Index for geometric vertex=" + vertexIndices[3 * i]
+						+ " is out of the current range of geometric vertex values 1 to " + m.vertices.size()
+						+ ", ignoring face");
+				return;
+			}
+		}
+		Face f = new Face(v, t, vn);
+		f.materialName = currentMaterial;
+		m.faces.add(f);
+	}
+
+	/**
+	 * Converts a 1-indexed (or negative, relative) OBJ index into a 0-indexed list
+	 * index.
+	 * 
+	 * @param index
+	 *            the index as it was written in the OBJ file
+	 * @param size
+	 *            the size of the list being indexed so far
+	 * @return the 0-based index, or <code>Face.NO_INDEX</code> if the index is
+	 *         empty or out of range
+	 */
+	private static int resolveIndex(int index, int size) {
+		if (index == EMPTY_VERTEX_VALUE)
+			return Face.NO_INDEX;
+		// Negative indices are relative to the most recently read element
+		if (index < 0)
+			index += size + 1;
+		return index >= 1 && index <= size ? index - 1 : Face.NO_INDEX;
 	}
 
 	@Override
@@ -104,7 +148,7 @@ public class ModelBuilder implements BuilderInterface {
 
 	@Override
 	public void setCurrentUseMaterial(String name) {
-
+		currentMaterial = name;
 	}
 
 	@Override
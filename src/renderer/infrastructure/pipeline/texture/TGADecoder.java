@@ -0,0 +1,129 @@
+package renderer.infrastructure.pipeline.texture;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads Truevision TGA images, which <code>ImageIO</code> can't: true color
+ * and grayscale images, raw or run-length encoded, with 8, 16, 24 or 32 bits
+ * per pixel. Color mapped images aren't supported.
+ */
+class TGADecoder {
+	private static final int TRUE_COLOR = 2, GRAYSCALE = 3, RLE = 8;
+
+	/** The size of the image read last. */
+	int width, height;
+
+	/**
+	 * Reads an image.
+	 *
+	 * @return the pixels as ARGB, row by row from the top
+	 * @throws IOException
+	 *             if the stream can't be read or isn't a supported TGA image
+	 */
+	int[] decode(InputStream stream) throws IOException {
+		DataInputStream in = new DataInputStream(stream);
+		byte[] header = new byte[18];
+		in.readFully(header);
+		int idLength = header[0] & 0xff;
+		int colorMapType = header[1] & 0xff;
+		int type = header[2] & 0xff;
+		int colorMapLength = u16(header, 5);
+		int colorMapBits = header[7] & 0xff;
+		width = u16(header, 12);
+		height = u16(header, 14);
+		int bits = header[16] & 0xff;
+		int descriptor = header[17] & 0xff;
+		int baseType = type & ~RLE;
+		if (baseType != TRUE_COLOR && baseType != GRAYSCALE)
+			throw new IOException("Unsupported TGA image type " + type);
+		if (baseType == GRAYSCALE ? bits != 8 && bits != 16 : bits != 16 && bits != 24 && bits != 32)
+			throw new IOException("Unsupported TGA pixel size " + bits);
+		if (width < 1 || height < 1)
+			throw new IOException("Empty TGA image");
+		skip(in, idLength + (colorMapType != 0 ? colorMapLength * ((colorMapBits + 7) / 8) : 0));
+
+		int bytes = bits / 8;
+		int[] pixels = new int[width * height];
+		byte[] pixel = new byte[bytes];
+		int count = 0;
+		boolean repeat = false;
+		boolean alpha = baseType == TRUE_COLOR ? bits == 32 || (bits == 16 && (descriptor & 0x0f) != 0)
+				: bits == 16;
+		for (int i = 0; i < pixels.length; i++) {
+			if ((type & RLE) != 0) {
+				if (count == 0) {
+					int packet = in.readUnsignedByte();
+					repeat = (packet & 0x80) != 0;
+					count = (packet & 0x7f) + 1;
+					in.readFully(pixel);
+				} else if (!repeat) {
+					in.readFully(pixel);
+				}
+				count--;
+			} else {
+				in.readFully(pixel);
+			}
+			pixels[i] = toARGB(pixel, baseType, bits, alpha);
+		}
+
+		// Rows are stored from the bottom unless bit 5 of the descriptor is set,
+		// and from the left unless bit 4 is
+		if ((descriptor & 0x20) == 0)
+			flipRows(pixels);
+		if ((descriptor & 0x10) != 0)
+			flipColumns(pixels);
+		return pixels;
+	}
+
+	private static int toARGB(byte[] p, int baseType, int bits, boolean alpha) {
+		if (baseType == GRAYSCALE) {
+			int g = p[0] & 0xff;
+			int a = alpha ? p[1] & 0xff : 0xff;
+			return a << 24 | g << 16 | g << 8 | g;
+		}
+		if (bits == 16) {
+			int v = (p[0] & 0xff) | (p[1] & 0xff) << 8;
+			int r = (v >> 10 & 0x1f) * 255 / 31, g = (v >> 5 & 0x1f) * 255 / 31, b = (v & 0x1f) * 255 / 31;
+			int a = !alpha || (v & 0x8000) != 0 ? 0xff : 0;
+			return a << 24 | r << 16 | g << 8 | b;
+		}
+		int a = alpha ? p[3] & 0xff : 0xff;
+		return a << 24 | (p[2] & 0xff) << 16 | (p[1] & 0xff) << 8 | (p[0] & 0xff);
+	}
+
+	private void flipRows(int[] pixels) {
+		int[] row = new int[width];
+		for (int top = 0, bottom = height - 1; top < bottom; top++, bottom--) {
+			System.arraycopy(pixels, top * width, row, 0, width);
+			System.arraycopy(pixels, bottom * width, pixels, top * width, width);
+			System.arraycopy(row, 0, pixels, bottom * width, width);
+		}
+	}
+
+	private void flipColumns(int[] pixels) {
+		for (int y = 0; y < height; y++) {
+			for (int left = y * width, right = left + width - 1; left < right; left++, right--) {
+				int p = pixels[left];
+				pixels[left] = pixels[right];
+				pixels[right] = p;
+			}
+		}
+	}
+
+	private static int u16(byte[] b, int at) {
+		return (b[at] & 0xff) | (b[at + 1] & 0xff) << 8;
+	}
+
+	private static void skip(DataInputStream in, int bytes) throws IOException {
+		while (bytes > 0) {
+			int skipped = in.skipBytes(bytes);
+			if (skipped <= 0) {
+				in.readByte();
+				skipped = 1;
+			}
+			bytes -= skipped;
+		}
+	}
+}
@@ -0,0 +1,432 @@
+package renderer.infrastructure.pipeline.texture;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.imageio.ImageIO;
+
+/**
+ * An image file opened through a {@link TextureCache}, with its mip chain:
+ * the image itself at level 0 and copies of half the width and height at
+ * each level after that, down to a single texel. Every level is cut into
+ * square tiles of {@link #TILE_SIZE} texels, and those are what the cache
+ * keeps and evicts.
+ * <p>
+ * Texels are looked up without locking: each level has a table with a slot
+ * per tile, and a lookup that finds its tile there just reads it. Only when
+ * the tile was evicted does the lookup lock the Texture, decode the file
+ * again and put back every tile that is missing.
+ * </p>
+ * <p>
+ * A {@link TiledTextureFile} is read differently: its tiles are already cut
+ * and mipmapped on disk, so the file is mapped into memory instead of
+ * decoded, and texels are read straight from the mapping. The operating
+ * system pages in the tiles that are read and decides how long they stay, so
+ * they don't count toward the cache's budget.
+ * </p>
+ * <p>
+ * The texture coordinates of a Model have v pointing up, so
+ * <code>v = 1</code> is the top row of the image, and both coordinates
+ * repeat outside [0, 1].
+ * </p>
+ *
+ * <pre>
+ * Texture bricks = cache.open(new File("bricks.png"));
+ * float[] rgba = new float[4];
+ * bricks.sample(u, v, 1.0 / 256, rgba);
+ * </pre>
+ */
+public class Texture {
+	/** The width and height of a tile, in texels. */
+	public static final int TILE_SIZE = 64;
+	private static final int TILE_SHIFT = 6;
+
+	private final TextureCache cache;
+	private final File file;
+	/** The levels of the mip chain, or <code>null</code> until it is loaded. */
+	private volatile Level[] levels;
+
+	Texture(TextureCache cache, File file) {
+		this.cache = cache;
+		this.file = file;
+	}
+
+	/**
+	 * @return the image file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the width of the image, in texels
+	 */
+	public int getWidth() {
+		return levels[0].width;
+	}
+
+	/**
+	 * @return the height of the image, in texels
+	 */
+	public int getHeight() {
+		return levels[0].height;
+	}
+
+	/**
+	 * @return the number of levels in the mip chain, including the image
+	 */
+	public int getLevels() {
+		return levels.length;
+	}
+
+	/**
+	 * @return the width of a level of the mip chain, in texels
+	 */
+	public int getWidth(int level) {
+		return levels[level].width;
+	}
+
+	/**
+	 * @return the height of a level of the mip chain, in texels
+	 */
+	public int getHeight(int level) {
+		return levels[level].height;
+	}
+
+	/**
+	 * Gets one texel. Coordinates outside the level wrap around.
+	 *
+	 * @param level
+	 *            the level of the mip chain, 0 for the image itself
+	 * @return the texel as ARGB
+	 * @throws UncheckedIOException
+	 *             if the tile was evicted and the file can't be decoded again
+	 */
+	public int getTexel(int level, int x, int y) {
+		Level l = levels[level];
+		return texel(l, Math.floorMod(x, l.width), Math.floorMod(y, l.height));
+	}
+
+	/**
+	 * Filters the texture around a point, bilinearly within the two levels of
+	 * the mip chain that are closest to the footprint and linearly between
+	 * them.
+	 *
+	 * @param u
+	 *            the horizontal texture coordinate, 0 at the left edge
+	 * @param v
+	 *            the vertical texture coordinate, 0 at the bottom edge
+	 * @param footprint
+	 *            the width of the area to average, as a fraction of the
+	 *            texture's width or height. 0 reads the image itself.
+	 * @param rgba
+	 *            receives red, green, blue and alpha, each from 0 to 1
+	 * @throws UncheckedIOException
+	 *             if a tile was evicted and the file can't be decoded again
+	 */
+	public void sample(double u, double v, double footprint, float[] rgba) {
+		Level[] levels = this.levels;
+		double lod = footprint > 0.0
+				? Math.log(footprint * Math.max(levels[0].width, levels[0].height)) / Math.log(2.0)
+				: 0.0;
+		lod = Math.max(0.0, Math.min(levels.length - 1, lod));
+		int level = (int) lod;
+		float t = (float) (lod - level);
+		rgba[0] = rgba[1] = rgba[2] = rgba[3] = 0.0f;
+		bilinear(levels[level], u, v, 1.0f - t, rgba);
+		if (t > 0.0f)
+			bilinear(levels[level + 1], u, v, t, rgba);
+	}
+
+	/**
+	 * Adds the bilinearly filtered color at a point of a level to
+	 * <code>rgba</code>, scaled by <code>weight</code>.
+	 */
+	private void bilinear(Level l, double u, double v, float weight, float[] rgba) {
+		double x = u * l.width - 0.5, y = (1.0 - v) * l.height - 0.5;
+		double fx = Math.floor(x), fy = Math.floor(y);
+		float tx = (float) (x - fx), ty = (float) (y - fy);
+		int x0 = Math.floorMod((int) fx, l.width), y0 = Math.floorMod((int) fy, l.height);
+		int x1 = x0 + 1 == l.width ? 0 : x0 + 1, y1 = y0 + 1 == l.height ? 0 : y0 + 1;
+		add(rgba, texel(l, x0, y0), weight * (1.0f - tx) * (1.0f - ty));
+		add(rgba, texel(l, x1, y0), weight * tx * (1.0f - ty));
+		add(rgba, texel(l, x0, y1), weight * (1.0f - tx) * ty);
+		add(rgba, texel(l, x1, y1), weight * tx * ty);
+	}
+
+	private static void add(float[] rgba, int argb, float weight) {
+		if (weight == 0.0f)
+			return;
+		weight *= 1.0f / 255.0f;
+		rgba[0] += weight * (argb >> 16 & 0xff);
+		rgba[1] += weight * (argb >> 8 & 0xff);
+		rgba[2] += weight * (argb & 0xff);
+		rgba[3] += weight * (argb >>> 24);
+	}
+
+	/**
+	 * Reads a texel inside a level.
+	 */
+	private int texel(Level l, int x, int y) {
+		int index = (y >> TILE_SHIFT) * l.tilesX + (x >> TILE_SHIFT);
+		if (l.regions != null)
+			return l.mappedTexel(index, x & (TILE_SIZE - 1), y & (TILE_SIZE - 1));
+		Tile tile = l.tiles.get(index);
+		if (tile == null)
+			tile = miss(l, index);
+		long now = cache.now();
+		// Only write when the stamp changes, so that threads reading the same
+		// tile don't keep taking its cache line from each other
+		if (tile.lastUse != now)
+			tile.lastUse = now;
+		return tile.texels[(y & (TILE_SIZE - 1)) * tile.width + (x & (TILE_SIZE - 1))];
+	}
+
+	/**
+	 * Decodes the file and builds the mip chain, or maps the file if it is a
+	 * {@link TiledTextureFile}, if that hasn't been done yet.
+	 *
+	 * @throws IOException
+	 *             if the file can't be read or isn't an image
+	 */
+	void load() throws IOException {
+		if (levels != null)
+			return;
+		synchronized (this) {
+			if (levels != null)
+				return;
+			if (TiledTextureFile.isTiled(file)) {
+				levels = TiledTextureFile.map(file);
+				return;
+			}
+			int[] size = new int[2];
+			int[][] chain = decode(size);
+			Level[] loaded = new Level[chain.length];
+			int width = size[0], height = size[1];
+			for (int i = 0; i < chain.length; i++) {
+				loaded[i] = new Level(width, height);
+				width = Math.max(1, width / 2);
+				height = Math.max(1, height / 2);
+			}
+			cache.insert(cutMissing(loaded, chain, cache.tick()));
+			levels = loaded;
+		}
+	}
+
+	/**
+	 * Brings back an evicted tile. The whole file has to be decoded anyway, so
+	 * every other missing tile of this Texture is put back too, but stamped as
+	 * used before anything else: they fill memory that is free without pushing
+	 * out tiles that are in use.
+	 */
+	private synchronized Tile miss(Level l, int index) {
+		Tile tile = l.tiles.get(index);
+		if (tile != null)
+			return tile;
+		cache.countMiss();
+		int[][] chain;
+		try {
+			chain = decode(new int[2]);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Unable to decode " + file + " again", e);
+		}
+		ArrayList<Tile> cut = cutMissing(levels, chain, 0L);
+		tile = l.tiles.get(index);
+		tile.lastUse = cache.tick();
+		cache.insert(cut);
+		// The tile may be evicted again at once if the budget is tiny, but this
+		// lookup can still read it
+		return tile;
+	}
+
+	/**
+	 * Cuts the tiles that aren't in the tables out of a decoded mip chain and
+	 * puts them there.
+	 *
+	 * @param stamp
+	 *            the clock the new tiles count as last used at
+	 * @return the new tiles
+	 */
+	private static ArrayList<Tile> cutMissing(Level[] levels, int[][] chain, long stamp) {
+		ArrayList<Tile> cut = new ArrayList<Tile>();
+		for (int i = 0; i < levels.length; i++) {
+			Level l = levels[i];
+			for (int index = 0; index < l.tiles.length(); index++) {
+				if (l.tiles.get(index) != null)
+					continue;
+				Tile tile = l.cut(chain[i], index);
+				tile.lastUse = stamp;
+				l.tiles.set(index, tile);
+				cut.add(tile);
+			}
+		}
+		return cut;
+	}
+
+	/**
+	 * Decodes the file and builds the mip chain.
+	 *
+	 * @param size
+	 *            receives the width and height of the image
+	 * @return the texels of each level as ARGB, row by row from the top
+	 */
+	private int[][] decode(int[] size) throws IOException {
+		cache.countDecode();
+		int[][] chain = decodeChain(file, size);
+		if (levels != null && (size[0] != levels[0].width || size[1] != levels[0].height))
+			throw new IOException(file + " changed size since it was opened");
+		return chain;
+	}
+
+	/**
+	 * Decodes a PNG, JPEG or TGA image and builds its mip chain.
+	 *
+	 * @param size
+	 *            receives the width and height of the image
+	 * @return the texels of each level as ARGB, row by row from the top
+	 * @throws IOException
+	 *             if the file can't be read or isn't an image
+	 */
+	static int[][] decodeChain(File file, int[] size) throws IOException {
+		int width, height;
+		int[] pixels;
+		String name = file.getName().toLowerCase();
+		if (name.endsWith(".tga")) {
+			TGADecoder tga = new TGADecoder();
+			try (InputStream in = new FileInputStream(file)) {
+				pixels = tga.decode(in);
+			}
+			width = tga.width;
+			height = tga.height;
+		} else {
+			BufferedImage image = ImageIO.read(file);
+			if (image == null)
+				throw new IOException("Unknown image format: " + file);
+			width = image.getWidth();
+			height = image.getHeight();
+			pixels = image.getRGB(0, 0, width, height, null, 0, width);
+		}
+		size[0] = width;
+		size[1] = height;
+
+		ArrayList<int[]> chain = new ArrayList<int[]>();
+		chain.add(pixels);
+		while (width > 1 || height > 1) {
+			int w = Math.max(1, width / 2), h = Math.max(1, height / 2);
+			pixels = downsample(pixels, width, height, w, h);
+			chain.add(pixels);
+			width = w;
+			height = h;
+		}
+		return chain.toArray(new int[chain.size()][]);
+	}
+
+	/**
+	 * Halves an image with a 2 by 2 box filter. The last row or column of an
+	 * image of odd size is counted twice.
+	 */
+	private static int[] downsample(int[] src, int width, int height, int w, int h) {
+		int[] dst = new int[w * h];
+		for (int y = 0; y < h; y++) {
+			int r0 = Math.min(2 * y, height - 1) * width, r1 = Math.min(2 * y + 1, height - 1) * width;
+			for (int x = 0; x < w; x++) {
+				int c0 = Math.min(2 * x, width - 1), c1 = Math.min(2 * x + 1, width - 1);
+				int a = src[r0 + c0], b = src[r0 + c1], c = src[r1 + c0], d = src[r1 + c1];
+				int p = 0;
+				for (int shift = 0; shift < 32; shift += 8) {
+					int sum = (a >>> shift & 0xff) + (b >>> shift & 0xff) + (c >>> shift & 0xff) + (d >>> shift & 0xff);
+					p |= (sum + 2) / 4 << shift;
+				}
+				dst[y * w + x] = p;
+			}
+		}
+		return dst;
+	}
+
+	/**
+	 * One level of the mip chain, with either its table of tiles or the part
+	 * of a mapped {@link TiledTextureFile} that holds its tiles.
+	 */
+	static class Level {
+		final int width, height, tilesX;
+		/** The tiles in memory, or <code>null</code> if the level is mapped. */
+		final AtomicReferenceArray<Tile> tiles;
+		/** The mapped file, or <code>null</code> if the tiles are in memory. */
+		final ByteBuffer[] regions;
+		/** Where the level's tiles start in the mapped file. */
+		final long offset;
+
+		Level(int width, int height) {
+			this.width = width;
+			this.height = height;
+			this.tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+			this.tiles = new AtomicReferenceArray<Tile>(tilesX * ((height + TILE_SIZE - 1) / TILE_SIZE));
+			this.regions = null;
+			this.offset = 0;
+		}
+
+		Level(int width, int height, ByteBuffer[] regions, long offset) {
+			this.width = width;
+			this.height = height;
+			this.tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+			this.tiles = null;
+			this.regions = regions;
+			this.offset = offset;
+		}
+
+		/**
+		 * Reads a texel of a mapped level, paging it in if it isn't yet.
+		 */
+		int mappedTexel(int index, int x, int y) {
+			long at = offset + (long) index * TiledTextureFile.TILE_BYTES + 4 * (y * TILE_SIZE + x);
+			return regions[(int) (at >>> TiledTextureFile.REGION_SHIFT)].getInt((int) (at & TiledTextureFile.REGION_MASK));
+		}
+
+		/**
+		 * Copies a tile out of the texels of this level.
+		 */
+		Tile cut(int[] texels, int index) {
+			int x0 = (index % tilesX) * TILE_SIZE, y0 = (index / tilesX) * TILE_SIZE;
+			int w = Math.min(TILE_SIZE, width - x0), h = Math.min(TILE_SIZE, height - y0);
+			int[] tile = new int[w * h];
+			for (int y = 0; y < h; y++)
+				System.arraycopy(texels, (y0 + y) * width + x0, tile, y * w, w);
+			return new Tile(this, index, tile, w);
+		}
+	}
+
+	/**
+	 * The texels of one tile, row by row.
+	 */
+	static class Tile {
+		final Level level;
+		final int index;
+		final int[] texels;
+		final int width;
+		/** The cache's clock when the tile was last read. */
+		volatile long lastUse;
+		/** A copy of lastUse that holds still while the cache sorts its tiles. */
+		long sortKey;
+
+		Tile(Level level, int index, int[] texels, int width) {
+			this.level = level;
+			this.index = index;
+			this.texels = texels;
+			this.width = width;
+		}
+
+		/**
+		 * @return roughly how much memory the tile takes
+		 */
+		long bytes() {
+			return 4L * texels.length + 64;
+		}
+	}
+}
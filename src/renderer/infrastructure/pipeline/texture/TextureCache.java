@@ -0,0 +1,213 @@
+package renderer.infrastructure.pipeline.texture;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decodes PNG, JPEG and TGA images once, builds their mip chains and keeps
+ * them in memory as tiles, up to a budget. When the tiles take more than the
+ * budget, the least recently used ones are evicted until they fit again, so
+ * Scenes with more texture data than the heap can hold still render; an
+ * evicted tile is brought back by decoding its file again the next time it
+ * is needed.
+ * <p>
+ * Render threads look texels up without taking any lock shared with other
+ * threads, see {@link Texture}. Each tile is stamped with the cache's clock
+ * when it is read, and the clock only moves when tiles are added, so reading
+ * a tile that is already stamped writes nothing. Adding tiles and evicting
+ * them is done under one lock, which lookups never take. The budget counts
+ * the resident tiles; decoding an image takes room for its whole mip chain
+ * for a moment on top of that.
+ * </p>
+ * <p>
+ * Images converted to a {@link TiledTextureFile} are mapped instead of
+ * decoded. Their tiles stay outside the heap, in the operating system's page
+ * cache, and don't count toward the budget.
+ * </p>
+ *
+ * <pre>
+ * TextureCache cache = new TextureCache(64L &lt;&lt; 20);
+ * Texture bricks = cache.open(new File("bricks.png"));
+ * </pre>
+ *
+ * @see renderer.infrastructure.pipeline.ContentManager#getTexture(String)
+ */
+public class TextureCache {
+	/** The default budget, in bytes. */
+	public static final long DEFAULT_BUDGET = 256L << 20;
+	/** How much of the budget eviction frees at once, so it doesn't run on every insert. */
+	private static final double EVICTION_SLACK = 0.125;
+
+	private final long budget;
+	/** The Textures that were opened, by canonical path. */
+	private final ConcurrentHashMap<String, Texture> textures;
+	/** Moves on whenever tiles are added; tiles are stamped with it when read. */
+	private final AtomicLong clock;
+	private final AtomicLong misses, decodes, evictions;
+
+	// Guarded by resident
+	private final ArrayList<Texture.Tile> resident;
+	private long residentBytes;
+
+	/**
+	 * Creates a TextureCache with the {@link #DEFAULT_BUDGET}.
+	 */
+	public TextureCache() {
+		this(DEFAULT_BUDGET);
+	}
+
+	/**
+	 * Creates an empty TextureCache.
+	 *
+	 * @param budget
+	 *            how many bytes of tiles to keep in memory at most
+	 * @throws IllegalArgumentException
+	 *             if the budget is not positive
+	 */
+	public TextureCache(long budget) {
+		if (budget <= 0)
+			throw new IllegalArgumentException("The budget must be positive, got " + budget);
+		this.budget = budget;
+		textures = new ConcurrentHashMap<String, Texture>();
+		clock = new AtomicLong();
+		misses = new AtomicLong();
+		decodes = new AtomicLong();
+		evictions = new AtomicLong();
+		resident = new ArrayList<Texture.Tile>();
+	}
+
+	/**
+	 * Opens an image, decoding it and building its mip chain the first time,
+	 * or mapping it if it is a {@link TiledTextureFile}.
+	 * Opening the same file again returns the same Texture.
+	 *
+	 * @throws IOException
+	 *             if the file can't be read or isn't a PNG, JPEG or TGA image
+	 *             or a tiled texture file
+	 */
+	public Texture open(File file) throws IOException {
+		String key = file.getCanonicalPath();
+		Texture texture = textures.get(key);
+		if (texture == null) {
+			Texture opened = new Texture(this, file);
+			texture = textures.putIfAbsent(key, opened);
+			if (texture == null)
+				texture = opened;
+		}
+		// Decoding happens outside the map, so that opening other files isn't held up
+		texture.load();
+		return texture;
+	}
+
+	/**
+	 * @return the Textures that were opened
+	 */
+	public Collection<Texture> getTextures() {
+		return textures.values();
+	}
+
+	/**
+	 * Evicts every tile. The Textures stay open and decode their files again
+	 * when they are next read.
+	 */
+	public void clear() {
+		synchronized (resident) {
+			for (Texture.Tile tile : resident)
+				tile.level.tiles.compareAndSet(tile.index, tile, null);
+			evictions.addAndGet(resident.size());
+			resident.clear();
+			residentBytes = 0;
+		}
+	}
+
+	/**
+	 * @return how many bytes of tiles are kept at most
+	 */
+	public long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * @return how many bytes the tiles in memory take
+	 */
+	public long getResidentBytes() {
+		synchronized (resident) {
+			return residentBytes;
+		}
+	}
+
+	/**
+	 * @return how many lookups found their tile evicted
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return how many times an image was decoded
+	 */
+	public long getDecodes() {
+		return decodes.get();
+	}
+
+	/**
+	 * @return how many tiles were evicted
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	long now() {
+		return clock.get();
+	}
+
+	long tick() {
+		return clock.incrementAndGet();
+	}
+
+	void countMiss() {
+		misses.incrementAndGet();
+	}
+
+	void countDecode() {
+		decodes.incrementAndGet();
+	}
+
+	/**
+	 * Adds tiles that were just put into their tables, and evicts the least
+	 * recently used tiles if that goes over the budget.
+	 */
+	void insert(ArrayList<Texture.Tile> tiles) {
+		synchronized (resident) {
+			for (Texture.Tile tile : tiles)
+				residentBytes += tile.bytes();
+			resident.addAll(tiles);
+			if (residentBytes > budget)
+				evict();
+		}
+	}
+
+	/**
+	 * Evicts the least recently used tiles until they take a little less than
+	 * the budget. Must hold the lock on resident.
+	 */
+	private void evict() {
+		// Stamps keep changing while lookups go on, so sort by a copy
+		for (Texture.Tile tile : resident)
+			tile.sortKey = tile.lastUse;
+		resident.sort((a, b) -> Long.compare(a.sortKey, b.sortKey));
+		long target = budget - (long) (budget * EVICTION_SLACK);
+		int evicted = 0;
+		while (evicted < resident.size() && residentBytes > target) {
+			Texture.Tile tile = resident.get(evicted++);
+			tile.level.tiles.compareAndSet(tile.index, tile, null);
+			residentBytes -= tile.bytes();
+		}
+		resident.subList(0, evicted).clear();
+		evictions.addAndGet(evicted);
+	}
+}
@@ -0,0 +1,116 @@
+package renderer.infrastructure.pipeline.texture;
+
+import static renderer.Config.LOG;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import renderer.Config;
+import renderer.infrastructure.pipeline.ContentManager;
+
+/**
+ * Converts every PNG, JPEG and TGA image in a directory into a
+ * {@link TiledTextureFile}, offline, so that rendering maps them instead of
+ * decoding them. Each file is written next to its image, or at the same
+ * place under an output directory, with {@link TiledTextureFile#EXTENSION}
+ * added to its name, and is only written again when the image is newer than
+ * it. A {@link ContentManager} prefers the converted file when both are found.
+ * <p>
+ * Converting decodes a whole image and its mip chain on the heap, one image
+ * at a time, so the largest image must fit there once.
+ * </p>
+ * <p>
+ * Usage: <code>TextureConverter directory [output directory]</code>
+ * </p>
+ */
+public class TextureConverter {
+
+	/**
+	 * Converts the textures in a directory and its subdirectories.
+	 *
+	 * @param directory
+	 *            the directory to search
+	 * @param output
+	 *            the directory to write to, keeping the subdirectories of
+	 *            the images, or <code>null</code> to write each file next to
+	 *            its image
+	 * @return the number of textures that failed to convert, or 1 if the
+	 *         directory couldn't be read
+	 */
+	public static int convertAll(File directory, File output) {
+		ArrayList<File> sources = new ArrayList<File>();
+		if (!findImages(directory, sources)) {
+			LOG.warning("Unable to read directory " + directory.getAbsolutePath());
+			return 1;
+		}
+
+		int failed = 0, skipped = 0;
+		long start = System.nanoTime(), bytes = 0;
+		for (File source : sources) {
+			// Images with the same name in different directories must not share a file
+			File folder = source.getParentFile();
+			if (output != null)
+				folder = output.toPath().resolve(directory.toPath().relativize(folder.toPath())).toFile();
+			File target = new File(folder, source.getName() + TiledTextureFile.EXTENSION);
+			if (target.isFile() && target.lastModified() >= source.lastModified()) {
+				skipped++;
+				continue;
+			}
+			try {
+				if (!folder.isDirectory() && !folder.mkdirs())
+					throw new IOException("Unable to create " + folder.getAbsolutePath());
+				TiledTextureFile.write(source, target);
+				bytes += target.length();
+				LOG.fine("Converted " + source.getAbsolutePath());
+			} catch (IOException e) {
+				LOG.log(Level.WARNING, "Unable to convert texture " + source.getAbsolutePath(), e);
+				failed++;
+			}
+		}
+		LOG.info(String.format("Converted %d of %d textures (%d up to date, %d failed), %.1f MB in %.1f s",
+				sources.size() - skipped - failed, sources.size(), skipped, failed, bytes / 1e6,
+				(System.nanoTime() - start) / 1e9));
+		return failed;
+	}
+
+	/**
+	 * Adds the PNG, JPEG and TGA images in a directory and its subdirectories
+	 * to a list.
+	 *
+	 * @return <b>false</b> if the directory couldn't be listed
+	 */
+	private static boolean findImages(File directory, ArrayList<File> images) {
+		File[] files = directory.listFiles();
+		if (files == null)
+			return false;
+		for (File f : files) {
+			if (f.isDirectory()) {
+				findImages(f, images);
+				continue;
+			}
+			String name = f.getName().toLowerCase();
+			if (name.endsWith(".png") || name.endsWith(".jpg") || name.endsWith(".jpeg") || name.endsWith(".tga"))
+				images.add(f);
+		}
+		return true;
+	}
+
+	public static void main(String[] args) {
+		// Run on its own, nothing else sets up the logger
+		if (Config.LOG == null)
+			Config.LOG = Logger.getLogger(TextureConverter.class.getName());
+		if (args.length < 1) {
+			LOG.severe("Usage: TextureConverter directory [output directory]");
+			System.exit(2);
+		}
+		File output = args.length > 1 ? new File(args[1]) : null;
+		if (output != null && !output.isDirectory() && !output.mkdirs()) {
+			LOG.severe("Unable to create " + output.getAbsolutePath());
+			System.exit(2);
+		}
+		System.exit(convertAll(new File(args[0]), output) == 0 ? 0 : 1);
+	}
+}
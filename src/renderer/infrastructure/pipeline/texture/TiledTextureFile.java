@@ -0,0 +1,189 @@
+package renderer.infrastructure.pipeline.texture;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads and writes textures that are already cut into tiles and mipmapped,
+ * so that they can be memory mapped and read without decoding. Texture sets
+ * far larger than the heap can then be rendered: only the pages of the tiles
+ * that are actually read are loaded, and the operating system's page cache
+ * decides which of them stay in memory.
+ * <p>
+ * The file starts with a header, padded to {@link #HEADER_BYTES}: the magic
+ * number <code>RTEX</code>, the format version, the width and height of the
+ * image, the number of mip levels and the tile size, as ints, followed by
+ * the offset of each level in the file, as longs. The levels follow, each
+ * as {@link Texture#TILE_SIZE} square tiles, row by row, and each tile as
+ * ARGB ints, row by row. Tiles on the right and bottom edges are padded to
+ * full size, so every tile starts on a page boundary and covers whole pages.
+ * Everything is little-endian.
+ * </p>
+ * <p>
+ * {@link TextureCache#open(File)} maps files ending in {@link #EXTENSION}
+ * instead of decoding them. They are written by {@link TextureConverter}.
+ * </p>
+ */
+public class TiledTextureFile {
+	/** The extension of tiled texture files, added to the source file's name. */
+	public static final String EXTENSION = ".rtex";
+	/** The first four bytes of the file: RTEX. */
+	public static final int MAGIC = 0x52544558;
+	public static final int VERSION = 1;
+	/** The size of the header, so that the tiles start on a page. */
+	public static final int HEADER_BYTES = 4096;
+	/** The size of a tile in the file. */
+	static final int TILE_BYTES = 4 * Texture.TILE_SIZE * Texture.TILE_SIZE;
+	/**
+	 * The file is mapped in regions of 2<sup>30</sup> bytes, since a mapping
+	 * can't be larger than 2 GB. No texel straddles two regions.
+	 */
+	static final int REGION_SHIFT = 30;
+	static final long REGION_MASK = (1L << REGION_SHIFT) - 1;
+
+	private TiledTextureFile() {
+	}
+
+	/**
+	 * @return <b>true</b> if the file is named like a tiled texture file
+	 */
+	public static boolean isTiled(File file) {
+		return file.getName().toLowerCase().endsWith(EXTENSION);
+	}
+
+	/**
+	 * Decodes an image, builds its mip chain and writes it as a tiled texture
+	 * file. The file is written under a temporary name, forced to disk and
+	 * then moved into place, so a reader never finds half of it, even after a
+	 * crash. The temporary file is deleted if writing fails.
+	 *
+	 * @param source
+	 *            a PNG, JPEG or TGA image
+	 * @param target
+	 *            the file to write
+	 * @throws IOException
+	 *             if the image can't be read or the file can't be written
+	 */
+	public static void write(File source, File target) throws IOException {
+		int[] size = new int[2];
+		int[][] chain = Texture.decodeChain(source, size);
+		File temporary = new File(target.getPath() + ".tmp");
+		boolean moved = false;
+		try {
+			write(temporary, size, chain);
+			Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			moved = true;
+		} finally {
+			if (!moved)
+				temporary.delete();
+		}
+	}
+
+	private static void write(File file, int[] size, int[][] chain) throws IOException {
+		try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putInt(VERSION).putInt(size[0]).putInt(size[1]).putInt(chain.length)
+					.putInt(Texture.TILE_SIZE);
+			long offset = HEADER_BYTES;
+			int width = size[0], height = size[1];
+			for (int level = 0; level < chain.length; level++) {
+				header.putLong(offset);
+				offset += (long) tiles(width) * tiles(height) * TILE_BYTES;
+				width = Math.max(1, width / 2);
+				height = Math.max(1, height / 2);
+			}
+			header.clear();
+			writeFully(out, header);
+
+			ByteBuffer tile = ByteBuffer.allocate(TILE_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			width = size[0];
+			height = size[1];
+			for (int[] texels : chain) {
+				for (int ty = 0; ty < tiles(height); ty++) {
+					for (int tx = 0; tx < tiles(width); tx++) {
+						tile.clear();
+						for (int y = 0; y < Texture.TILE_SIZE; y++) {
+							int row = Math.min(ty * Texture.TILE_SIZE + y, height - 1) * width;
+							for (int x = 0; x < Texture.TILE_SIZE; x++)
+								tile.putInt(texels[row + Math.min(tx * Texture.TILE_SIZE + x, width - 1)]);
+						}
+						tile.flip();
+						writeFully(out, tile);
+					}
+				}
+				width = Math.max(1, width / 2);
+				height = Math.max(1, height / 2);
+			}
+			// The move must not reach the disk before the tiles do
+			out.force(true);
+		}
+	}
+
+	/**
+	 * Maps a tiled texture file into memory. Nothing but the header is read.
+	 *
+	 * @return the levels of the mip chain
+	 * @throws IOException
+	 *             if the file can't be read or isn't a tiled texture file
+	 */
+	static Texture.Level[] map(File file) throws IOException {
+		try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long length = in.size();
+			if (length < HEADER_BYTES)
+				throw new IOException(file + " is too short to be a tiled texture");
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			while (header.hasRemaining() && in.read(header, header.position()) >= 0)
+				;
+			header.flip();
+			if (header.getInt() != MAGIC)
+				throw new IOException(file + " is not a tiled texture");
+			int version = header.getInt();
+			if (version != VERSION)
+				throw new IOException(file + " has unsupported version " + version);
+			int width = header.getInt(), height = header.getInt(), count = header.getInt();
+			int tileSize = header.getInt();
+			if (tileSize != Texture.TILE_SIZE)
+				throw new IOException(file + " has " + tileSize + " texel tiles, not " + Texture.TILE_SIZE);
+			if (width < 1 || height < 1 || count < 1 || count > (HEADER_BYTES - 24) / 8)
+				throw new IOException(file + " has a broken header");
+
+			// Map every region now; that only reserves address space
+			ByteBuffer[] regions = new ByteBuffer[(int) ((length + REGION_MASK) >>> REGION_SHIFT)];
+			for (int r = 0; r < regions.length; r++) {
+				long start = (long) r << REGION_SHIFT;
+				MappedByteBuffer region = in.map(FileChannel.MapMode.READ_ONLY, start,
+						Math.min(REGION_MASK + 1, length - start));
+				regions[r] = region.order(ByteOrder.LITTLE_ENDIAN);
+			}
+
+			Texture.Level[] levels = new Texture.Level[count];
+			for (int level = 0; level < count; level++) {
+				long offset = header.getLong();
+				if (offset < HEADER_BYTES || offset % HEADER_BYTES != 0
+						|| offset + (long) tiles(width) * tiles(height) * TILE_BYTES > length)
+					throw new IOException(file + " is truncated or has a broken header");
+				levels[level] = new Texture.Level(width, height, regions, offset);
+				width = Math.max(1, width / 2);
+				height = Math.max(1, height / 2);
+			}
+			return levels;
+		}
+	}
+
+	private static int tiles(int texels) {
+		return (texels + Texture.TILE_SIZE - 1) / Texture.TILE_SIZE;
+	}
+
+	private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining())
+			out.write(buffer);
+	}
+}
@@ -0,0 +1,10 @@
+/**
+ * Contains the texture cache: decoding images, building their mip chains and keeping them in memory as tiles
+ * under a budget, for lookups from many render threads at once. Images can also be converted offline into a tiled,
+ * mipmapped file format that is memory mapped instead of decoded.
+ */
+/**
+ * @author Don Isaac
+ *
+ */
+package renderer.infrastructure.pipeline.texture;
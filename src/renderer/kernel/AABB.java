@@ -0,0 +1,164 @@
+package renderer.kernel;
+
+/**
+ * An axis-aligned bounding box. An empty box has its minimum set to positive
+ * infinity and its maximum set to negative infinity, so growing it by any
+ * point or box yields that point or box.
+ * 
+ * @see BVH
+ */
+public class AABB {
+	public double minX, minY, minZ;
+	public double maxX, maxY, maxZ;
+
+	/**
+	 * Default constructor. Creates an empty box.
+	 */
+	public AABB() {
+		reset();
+	}
+
+	/**
+	 * Copy constructor.
+	 * 
+	 * @param b
+	 *            the box to copy
+	 */
+	public AABB(AABB b) {
+		set(b);
+	}
+
+	/**
+	 * Empties this box.
+	 * 
+	 * @return a reference to this box for method chaining
+	 */
+	public AABB reset() {
+		minX = minY = minZ = Double.POSITIVE_INFINITY;
+		maxX = maxY = maxZ = Double.NEGATIVE_INFINITY;
+		return this;
+	}
+
+	/**
+	 * Copies another box into this one.
+	 * 
+	 * @return a reference to this box for method chaining
+	 */
+	public AABB set(AABB b) {
+		minX = b.minX;
+		minY = b.minY;
+		minZ = b.minZ;
+		maxX = b.maxX;
+		maxY = b.maxY;
+		maxZ = b.maxZ;
+		return this;
+	}
+
+	/**
+	 * Grows this box so that it contains a point.
+	 * 
+	 * @return a reference to this box for method chaining
+	 */
+	public AABB grow(double x, double y, double z) {
+		minX = Math.min(minX, x);
+		minY = Math.min(minY, y);
+		minZ = Math.min(minZ, z);
+		maxX = Math.max(maxX, x);
+		maxY = Math.max(maxY, y);
+		maxZ = Math.max(maxZ, z);
+		return this;
+	}
+
+	/**
+	 * Grows this box so that it contains another box.
+	 * 
+	 * @return a reference to this box for method chaining
+	 */
+	public AABB grow(AABB b) {
+		minX = Math.min(minX, b.minX);
+		minY = Math.min(minY, b.minY);
+		minZ = Math.min(minZ, b.minZ);
+		maxX = Math.max(maxX, b.maxX);
+		maxY = Math.max(maxY, b.maxY);
+		maxZ = Math.max(maxZ, b.maxZ);
+		return this;
+	}
+
+	/**
+	 * @return <b>true</b> if this box contains nothing
+	 */
+	public boolean isEmpty() {
+		return minX > maxX || minY > maxY || minZ > maxZ;
+	}
+
+	/**
+	 * @return the surface area of this box, or 0 if it is empty
+	 */
+	public double surfaceArea() {
+		if (isEmpty())
+			return 0.0;
+		double dx = maxX - minX, dy = maxY - minY, dz = maxZ - minZ;
+		return 2.0 * (dx * dy + dy * dz + dz * dx);
+	}
+
+	/**
+	 * @param axis
+	 *            0 for X, 1 for Y, 2 for Z
+	 * @return the lower bound of this box along an axis
+	 */
+	public double min(int axis) {
+		return axis == 0 ? minX : axis == 1 ? minY : minZ;
+	}
+
+	/**
+	 * @param axis
+	 *            0 for X, 1 for Y, 2 for Z
+	 * @return the upper bound of this box along an axis
+	 */
+	public double max(int axis) {
+		return axis == 0 ? maxX : axis == 1 ? maxY : maxZ;
+	}
+
+	/**
+	 * Intersects a ray with this box using the slab test.
+	 * 
+	 * @param ox
+	 *            ray origin X
+	 * @param oy
+	 *            ray origin Y
+	 * @param oz
+	 *            ray origin Z
+	 * @param invDx
+	 *            1 / ray direction X
+	 * @param invDy
+	 *            1 / ray direction Y
+	 * @param invDz
+	 *            1 / ray direction Z
+	 * @param tMin
+	 *            the start of the ray interval
+	 * @param tMax
+	 *            the end of the ray interval
+	 * @return the distance at which the ray enters the box, or positive infinity
+	 *         if it misses
+	 */
+	public double intersect(double ox, double oy, double oz, double invDx, double invDy, double invDz, double tMin,
+			double tMax) {
+		double t0 = (minX - ox) * invDx, t1 = (maxX - ox) * invDx;
+		double near = Math.max(tMin, Math.min(t0, t1));
+		double far = Math.min(tMax, Math.max(t0, t1));
+		t0 = (minY - oy) * invDy;
+		t1 = (maxY - oy) * invDy;
+		near = Math.max(near, Math.min(t0, t1));
+		far = Math.min(far, Math.max(t0, t1));
+		t0 = (minZ - oz) * invDz;
+		t1 = (maxZ - oz) * invDz;
+		near = Math.max(near, Math.min(t0, t1));
+		far = Math.min(far, Math.max(t0, t1));
+		return near <= far ? near : Double.POSITIVE_INFINITY;
+	}
+
+	@Override
+	public String toString() {
+		return "[" + minX + ", " + minY + ", " + minZ + "] - [" + maxX + ", " + maxY + ", " + maxZ + "]";
+	}
+}
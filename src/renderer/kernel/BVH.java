@@ -0,0 +1,291 @@
+package renderer.kernel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import renderer.infrastructure.math.Vector3;
+import renderer.scene.actors.Model;
+
+/**
+ * A bounding volume hierarchy over the triangles of a <code>Model</code>.
+ * Instead of testing a ray against every triangle, the ray is only tested
+ * against the triangles in the leaves whose bounding boxes it passes through,
+ * which makes the cost of a query roughly logarithmic in the number of
+ * triangles.
+ * <p>
+ * The tree is built top-down using the
+ * <a href="http://www.pbr-book.org/3ed-2018/Primitives_and_Intersection_Acceleration/Bounding_Volume_Hierarchies.html">surface
+ * area heuristic</a>. At every node, the triangles are sorted by centroid along
+ * each axis and every possible split is evaluated; the cheapest one is kept
+ * unless making a leaf is cheaper still.
+ * </p>
+ * 
+ * @see BVHNode
+ * @see AABB
+ */
+public class BVH {
+	/** The leaf size used when none is given. */
+	public static final int DEFAULT_LEAF_SIZE = 4;
+	/** Cost of visiting a node, relative to the cost of testing a triangle. */
+	static final double TRAVERSAL_COST = 0.125;
+	/** Cost of testing a triangle. */
+	static final double INTERSECTION_COST = 1.0;
+	/** Initial size of the traversal stacks. They grow if a tree is deeper. */
+	private static final int STACK_SIZE = 64;
+
+	public final Model model;
+	public final BVHNode root;
+	/**
+	 * The triangles of the Model in leaf order. Leaves reference contiguous ranges
+	 * of this array.
+	 */
+	public final int[] order;
+	/** The most triangles a leaf may hold. */
+	public final int maxLeafSize;
+	final MeshTriangles triangles;
+
+	/**
+	 * Builds a BVH over the triangles of a Model.
+	 * 
+	 * @param model
+	 *            the Model to build the BVH for
+	 * @param maxLeafSize
+	 *            the most triangles a leaf may hold. Leaves may hold fewer if the
+	 *            heuristic decides splitting is cheaper.
+	 */
+	public BVH(Model model, int maxLeafSize) {
+		if (maxLeafSize < 1)
+			throw new IllegalArgumentException("Leaf size must be positive, got " + maxLeafSize);
+		this.model = model;
+		this.maxLeafSize = maxLeafSize;
+		this.triangles = new MeshTriangles(model);
+		this.order = new int[triangles.count];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		this.root = triangles.count == 0 ? new BVHNode(new AABB(), 0, 0)
+				: build(0, order.length, new long[order.length], new double[order.length]);
+	}
+
+	/**
+	 * Creates a BVH from a tree built elsewhere.
+	 */
+	BVH(MeshTriangles triangles, int[] order, BVHNode root, int maxLeafSize) {
+		this.model = triangles.model;
+		this.triangles = triangles;
+		this.order = order;
+		this.root = root;
+		this.maxLeafSize = maxLeafSize;
+	}
+
+	/**
+	 * Recursively builds the subtree for the triangles in
+	 * <code>order[start, end)</code>.
+	 * 
+	 * @param keys
+	 *            scratch space for sorting
+	 * @param rightArea
+	 *            scratch space for the sweep
+	 */
+	private BVHNode build(int start, int end, long[] keys, double[] rightArea) {
+		AABB bounds = new AABB();
+		AABB centroidBounds = new AABB();
+		double[] c = triangles.centroids;
+		for (int i = start; i < end; i++) {
+			int t = order[i];
+			triangles.growBounds(bounds, t);
+			centroidBounds.grow(c[3 * t], c[3 * t + 1], c[3 * t + 2]);
+		}
+		int n = end - start;
+		if (n == 1)
+			return new BVHNode(bounds, start, n);
+
+		double area = bounds.surfaceArea();
+		double invArea = area > 0.0 ? 1.0 / area : 1.0;
+		int bestAxis = -1, bestSplit = -1, sortedAxis = -1;
+		double bestCost = Double.POSITIVE_INFINITY;
+		AABB sweep = new AABB();
+		for (int axis = 0; axis < 3; axis++) {
+			if (centroidBounds.max(axis) <= centroidBounds.min(axis))
+				continue;
+			sortByCentroid(start, end, axis, keys);
+			sortedAxis = axis;
+			// Sweep from the right to find the area of every suffix...
+			sweep.reset();
+			for (int i = end - 1; i > start; i--) {
+				triangles.growBounds(sweep, order[i]);
+				rightArea[i] = sweep.surfaceArea();
+			}
+			// ...then from the left, evaluating every split along the way
+			sweep.reset();
+			for (int i = start + 1; i < end; i++) {
+				triangles.growBounds(sweep, order[i - 1]);
+				double cost = TRAVERSAL_COST
+						+ INTERSECTION_COST * (sweep.surfaceArea() * (i - start) + rightArea[i] * (end - i)) * invArea;
+				if (cost < bestCost) {
+					bestCost = cost;
+					bestAxis = axis;
+					bestSplit = i;
+				}
+			}
+		}
+
+		if (bestAxis < 0) {
+			// Every centroid is in the same spot, so no split can separate them
+			if (n <= maxLeafSize)
+				return new BVHNode(bounds, start, n);
+			bestSplit = (start + end) >>> 1;
+		} else if (n <= maxLeafSize && INTERSECTION_COST * n <= bestCost) {
+			return new BVHNode(bounds, start, n);
+		} else if (bestAxis != sortedAxis) {
+			sortByCentroid(start, end, bestAxis, keys);
+		}
+		BVHNode left = build(start, bestSplit, keys, rightArea);
+		BVHNode right = build(bestSplit, end, keys, rightArea);
+		return new BVHNode(bounds, left, right);
+	}
+
+	/**
+	 * Sorts <code>order[start, end)</code> by triangle centroid along an axis.
+	 * Each key packs the centroid into the high 32 bits, in a form that sorts like
+	 * the float it came from, and the triangle into the low 32 bits so that a
+	 * primitive <code>long[]</code> can be sorted instead of boxed integers.
+	 */
+	private void sortByCentroid(int start, int end, int axis, long[] keys) {
+		double[] c = triangles.centroids;
+		for (int i = start; i < end; i++) {
+			int t = order[i];
+			keys[i] = ((long) sortableBits((float) c[3 * t + axis]) << 32) | (t & 0xFFFFFFFFL);
+		}
+		Arrays.sort(keys, start, end);
+		for (int i = start; i < end; i++)
+			order[i] = (int) keys[i];
+	}
+
+	/**
+	 * @return an int that compares the same way as the float it was made from
+	 */
+	static int sortableBits(float f) {
+		int bits = Float.floatToIntBits(f);
+		return bits ^ ((bits >> 31) & 0x7FFFFFFF);
+	}
+
+	/**
+	 * Finds the closest triangle hit by a ray.
+	 * 
+	 * @param ray
+	 *            the ray to trace
+	 * @param hit
+	 *            updated if a triangle closer than <code>hit.distance</code> is
+	 *            found
+	 * @return <b>true</b> if the hit was updated, <b>false</b> otherwise
+	 */
+	public boolean intersect(Ray ray, RaycastHit hit) {
+		double ox = ray.origin.x, oy = ray.origin.y, oz = ray.origin.z;
+		double ix = 1.0 / ray.direction.x, iy = 1.0 / ray.direction.y, iz = 1.0 / ray.direction.z;
+		double tMax = Math.min(ray.tMax, hit.distance);
+		if (root.bounds.intersect(ox, oy, oz, ix, iy, iz, ray.tMin, tMax) == Double.POSITIVE_INFINITY)
+			return false;
+
+		BVHNode[] stack = new BVHNode[STACK_SIZE];
+		double[] stackT = new double[STACK_SIZE];
+		int sp = 0;
+		boolean found = false;
+		BVHNode node = root;
+		while (true) {
+			if (node.isLeaf()) {
+				for (int i = node.start; i < node.start + node.count; i++)
+					found |= intersectTriangle(ray, order[i], hit);
+			} else {
+				tMax = Math.min(ray.tMax, hit.distance);
+				double tl = node.left.bounds.intersect(ox, oy, oz, ix, iy, iz, ray.tMin, tMax);
+				double tr = node.right.bounds.intersect(ox, oy, oz, ix, iy, iz, ray.tMin, tMax);
+				if (tl != Double.POSITIVE_INFINITY && tr != Double.POSITIVE_INFINITY) {
+					// Visit the nearer child first, so the farther one can often be skipped
+					BVHNode near = tl <= tr ? node.left : node.right;
+					BVHNode far = tl <= tr ? node.right : node.left;
+					if (sp == stack.length) {
+						stack = Arrays.copyOf(stack, sp * 2);
+						stackT = Arrays.copyOf(stackT, sp * 2);
+					}
+					stack[sp] = far;
+					stackT[sp++] = Math.max(tl, tr);
+					node = near;
+					continue;
+				} else if (tl != Double.POSITIVE_INFINITY) {
+					node = node.left;
+					continue;
+				} else if (tr != Double.POSITIVE_INFINITY) {
+					node = node.right;
+					continue;
+				}
+			}
+			// Pop the next node, skipping any that are behind the closest hit
+			do {
+				if (sp == 0)
+					return found;
+				node = stack[--sp];
+			} while (stackT[sp] > hit.distance);
+		}
+	}
+
+	/**
+	 * Determines if any triangle blocks a ray. Stops at the first triangle found,
+	 * which makes this much cheaper than {@link #intersect(Ray, RaycastHit)} for
+	 * shadow rays.
+	 * 
+	 * @param ray
+	 *            the ray to trace. Only hits between <code>tMin</code> and
+	 *            <code>tMax</code> count.
+	 * @return <b>true</b> if something blocks the ray, <b>false</b> otherwise
+	 */
+	public boolean occluded(Ray ray) {
+		double ox = ray.origin.x, oy = ray.origin.y, oz = ray.origin.z;
+		double ix = 1.0 / ray.direction.x, iy = 1.0 / ray.direction.y, iz = 1.0 / ray.direction.z;
+		BVHNode[] stack = new BVHNode[STACK_SIZE];
+		RaycastHit scratch = new RaycastHit();
+		int sp = 0;
+		stack[sp++] = root;
+		while (sp > 0) {
+			BVHNode node = stack[--sp];
+			if (node.bounds.intersect(ox, oy, oz, ix, iy, iz, ray.tMin, ray.tMax) == Double.POSITIVE_INFINITY)
+				continue;
+			if (node.isLeaf()) {
+				for (int i = node.start; i < node.start + node.count; i++) {
+					if (intersectTriangle(ray, order[i], scratch))
+						return true;
+				}
+			} else {
+				if (sp + 2 > stack.length)
+					stack = Arrays.copyOf(stack, stack.length * 2);
+				stack[sp++] = node.right;
+				stack[sp++] = node.left;
+			}
+		}
+		return false;
+	}
+
+	private boolean intersectTriangle(Ray ray, int t, RaycastHit hit) {
+		ArrayList<Vector3> v = model.vertices;
+		int[] tri = triangles.vertices;
+		if (!Intersector.intersectTriangle(ray, v.get(tri[3 * t]), v.get(tri[3 * t + 1]), v.get(tri[3 * t + 2]), hit))
+			return false;
+		hit.model = model;
+		hit.face = triangles.face[t];
+		hit.triangle = triangles.sub[t];
+		return true;
+	}
+
+	/**
+	 * @return the bounds of every triangle in the Model
+	 */
+	public AABB getBounds() {
+		return root.bounds;
+	}
+
+	/**
+	 * @return the number of triangles in this BVH
+	 */
+	public int triangleCount() {
+		return triangles.count;
+	}
+}
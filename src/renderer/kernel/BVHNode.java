@@ -0,0 +1,41 @@
+package renderer.kernel;
+
+/**
+ * A node in a <code>BVH</code>. Interior nodes have two children, leaves
+ * reference a range of triangles in {@link BVH#order}.
+ * 
+ * @see BVH
+ */
+public class BVHNode {
+	public final AABB bounds;
+	public BVHNode left, right;
+	/** The first triangle of a leaf, as an index into {@link BVH#order}. */
+	public int start;
+	/** The number of triangles in a leaf. 0 for interior nodes. */
+	public int count;
+
+	/**
+	 * Creates a leaf node.
+	 */
+	public BVHNode(AABB bounds, int start, int count) {
+		this.bounds = bounds;
+		this.start = start;
+		this.count = count;
+	}
+
+	/**
+	 * Creates an interior node.
+	 */
+	public BVHNode(AABB bounds, BVHNode left, BVHNode right) {
+		this.bounds = bounds;
+		this.left = left;
+		this.right = right;
+	}
+
+	/**
+	 * @return <b>true</b> if this node is a leaf, <b>false</b> otherwise
+	 */
+	public boolean isLeaf() {
+		return left == null;
+	}
+}
@@ -0,0 +1,56 @@
+package renderer.kernel;
+
+/**
+ * A struct-like class describing the shape and quality of a <code>BVH</code>.
+ * The SAH cost is the expected cost of tracing a random ray that hits the
+ * root, in units of triangle tests; lower is better, and it is the number to
+ * compare when judging two builders against each other.
+ * 
+ * @see BVH
+ */
+public class BVHStats {
+	public int nodes, leaves, maxDepth, triangles;
+	public double sahCost;
+
+	/**
+	 * Computes the statistics of a BVH.
+	 * 
+	 * @param bvh
+	 *            the BVH to inspect
+	 * @return the statistics of the tree
+	 */
+	public static BVHStats of(BVH bvh) {
+		BVHStats s = new BVHStats();
+		s.triangles = bvh.triangleCount();
+		double rootArea = bvh.root.bounds.surfaceArea();
+		s.visit(bvh.root, 1, rootArea > 0.0 ? 1.0 / rootArea : 0.0);
+		return s;
+	}
+
+	private void visit(BVHNode node, int depth, double invRootArea) {
+		nodes++;
+		maxDepth = Math.max(maxDepth, depth);
+		double p = node.bounds.surfaceArea() * invRootArea;
+		if (node.isLeaf()) {
+			leaves++;
+			sahCost += BVH.INTERSECTION_COST * node.count * p;
+		} else {
+			sahCost += BVH.TRAVERSAL_COST * p;
+			visit(node.left, depth + 1, invRootArea);
+			visit(node.right, depth + 1, invRootArea);
+		}
+	}
+
+	/**
+	 * @return the average number of triangles in a leaf
+	 */
+	public double averageLeafSize() {
+		return leaves == 0 ? 0.0 : (double) triangles / leaves;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d triangles, %d nodes, %d leaves (avg %.2f tris), depth %d, SAH cost %.3f", triangles,
+				nodes, leaves, averageLeafSize(), maxDepth, sahCost);
+	}
+}
@@ -0,0 +1,478 @@
+package renderer.kernel;
+
+import static renderer.Config.LOG;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.logging.Level;
+
+import renderer.scene.actors.Model;
+
+/**
+ * Builds a <code>BVH</code> in parallel using a binned surface area heuristic.
+ * <p>
+ * Instead of sorting the triangles at every node like the {@link BVH}
+ * constructor does, each axis of the node's centroid bounds is split into a
+ * fixed number of bins, and only the splits between bins are evaluated. This
+ * makes every node linear in the number of triangles it holds at the cost of
+ * a slightly worse tree.
+ * </p>
+ * <p>
+ * The upper levels of the tree are built as <code>ForkJoinTask</code>s: the
+ * two children of a node are built at the same time, and the binning pass of
+ * very large nodes is itself split into chunks. Subtrees with fewer than
+ * {@link #SEQUENTIAL_THRESHOLD} triangles are built on the thread that
+ * reaches them, since forking them costs more than it saves.
+ * </p>
+ * Build time and tree statistics are logged through <code>Config.LOG</code>.
+ * 
+ * @see BVH
+ * @see BVHStats
+ */
+public class BinnedBVHBuilder {
+	/** The number of bins used when none is given. */
+	public static final int DEFAULT_BINS = 16;
+	/** Subtrees smaller than this are built sequentially. */
+	public static final int SEQUENTIAL_THRESHOLD = 4096;
+	/** Nodes at least this large have their binning pass split across threads. */
+	private static final int PARALLEL_BIN_THRESHOLD = 1 << 16;
+
+	private final ForkJoinPool pool;
+	private final int maxLeafSize;
+	private final int bins;
+
+	/**
+	 * Creates a builder that runs on the common <code>ForkJoinPool</code>.
+	 * 
+	 * @param maxLeafSize
+	 *            the most triangles a leaf may hold
+	 */
+	public BinnedBVHBuilder(int maxLeafSize) {
+		this(maxLeafSize, DEFAULT_BINS, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Creates a new builder.
+	 * 
+	 * @param maxLeafSize
+	 *            the most triangles a leaf may hold
+	 * @param bins
+	 *            the number of bins per axis
+	 * @param pool
+	 *            the pool to build on. A pool with a single thread gives a
+	 *            sequential build.
+	 */
+	public BinnedBVHBuilder(int maxLeafSize, int bins, ForkJoinPool pool) {
+		if (maxLeafSize < 1)
+			throw new IllegalArgumentException("Leaf size must be positive, got " + maxLeafSize);
+		if (bins < 2)
+			throw new IllegalArgumentException("At least 2 bins are needed, got " + bins);
+		this.maxLeafSize = maxLeafSize;
+		this.bins = bins;
+		this.pool = pool;
+	}
+
+	/**
+	 * Builds a BVH over the triangles of a Model.
+	 * 
+	 * @param model
+	 *            the Model to build the BVH for
+	 * @return the finished BVH
+	 */
+	public BVH build(Model model) {
+		long start = System.nanoTime();
+		MeshTriangles triangles = new MeshTriangles(model);
+		int[] order = new int[triangles.count];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		Build b = new Build(triangles, order);
+		BVHNode root = triangles.count == 0 ? new BVHNode(new AABB(), 0, 0)
+				: pool.invoke(new BuildTask(b, 0, order.length));
+		BVH bvh = new BVH(triangles, order, root, maxLeafSize);
+		if (LOG.isLoggable(Level.INFO)) {
+			LOG.info(String.format("Built BVH for %s in %.1f ms on %d threads: %s", model.fileName,
+					(System.nanoTime() - start) / 1e6, pool.getParallelism(), BVHStats.of(bvh)));
+		}
+		return bvh;
+	}
+
+	/**
+	 * The state shared by every task of a single build.
+	 */
+	private class Build {
+		final MeshTriangles triangles;
+		final int[] order;
+		/**
+		 * The bounds of the triangle in each slot of <code>order</code>, moved
+		 * along with it while partitioning so that every pass over a node reads
+		 * memory sequentially.
+		 */
+		final double[] slots;
+
+		Build(MeshTriangles triangles, int[] order) {
+			this.triangles = triangles;
+			this.order = order;
+			this.slots = triangles.bounds.clone();
+		}
+
+		/**
+		 * @return twice the centroid of the triangle in a slot along an axis
+		 */
+		double centroid2(int slot, int axis) {
+			return slots[6 * slot + axis] + slots[6 * slot + axis + 3];
+		}
+
+		void growBySlot(AABB box, int slot) {
+			int b = 6 * slot;
+			box.grow(slots[b], slots[b + 1], slots[b + 2]);
+			box.grow(slots[b + 3], slots[b + 4], slots[b + 5]);
+		}
+
+		Bins newBins() {
+			return new Bins(bins);
+		}
+
+		int bins() {
+			return bins;
+		}
+
+		/**
+		 * Builds the subtree for <code>order[start, end)</code> on this thread.
+		 */
+		BVHNode buildSequential(int start, int end, Bins scratch) {
+			Split s = split(start, end, false, scratch);
+			if (s.mid < 0)
+				return new BVHNode(s.bounds, start, end - start);
+			return new BVHNode(s.bounds, buildSequential(start, s.mid, scratch), buildSequential(s.mid, end, scratch));
+		}
+
+		/**
+		 * Decides whether <code>order[start, end)</code> becomes a leaf and, if not,
+		 * partitions it in place around the best binned split.
+		 * 
+		 * @param scratch
+		 *            reused for binning on the sequential path
+		 */
+		Split split(int start, int end, boolean parallel, Bins scratch) {
+			int n = end - start;
+			parallel &= n >= PARALLEL_BIN_THRESHOLD;
+			AABB bounds = new AABB();
+			AABB cb = new AABB();
+			if (parallel) {
+				Bins all = new BoundsTask(this, start, end).invoke();
+				bounds.set(all.bounds);
+				cb.set(all.centroidBounds);
+			} else {
+				for (int i = start; i < end; i++) {
+					growBySlot(bounds, i);
+					cb.grow(centroid2(i, 0), centroid2(i, 1), centroid2(i, 2));
+				}
+			}
+			Split s = new Split(bounds);
+			if (n == 1)
+				return s;
+
+			boolean flat = true;
+			for (int axis = 0; axis < 3; axis++)
+				flat &= cb.max(axis) <= cb.min(axis);
+			if (flat) {
+				// Every centroid is in the same spot, so no split can separate them
+				if (n > maxLeafSize)
+					s.mid = (start + end) >>> 1;
+				return s;
+			}
+
+			// Small nodes don't need every bin, and clearing and sweeping them dominates
+			int nb = Math.min(bins, n);
+			Bins binned = parallel ? new BinTask(this, start, end, cb).invoke()
+					: bin(start, end, cb, nb, scratch.clear(nb));
+
+			double area = bounds.surfaceArea();
+			double invArea = area > 0.0 ? 1.0 / area : 1.0;
+			double bestCost = Double.POSITIVE_INFINITY;
+			int bestAxis = -1, bestBin = -1;
+			double[] rightArea = binned.rightArea;
+			int[] rightCount = binned.rightCount;
+			AABB sweep = binned.sweep;
+			for (int axis = 0; axis < 3; axis++) {
+				if (cb.max(axis) <= cb.min(axis))
+					continue;
+				sweep.reset();
+				int count = 0;
+				for (int i = nb - 1; i > 0; i--) {
+					binned.growByBin(sweep, axis, i);
+					count += binned.counts[axis][i];
+					rightArea[i] = sweep.surfaceArea();
+					rightCount[i] = count;
+				}
+				sweep.reset();
+				count = 0;
+				for (int i = 1; i < nb; i++) {
+					binned.growByBin(sweep, axis, i - 1);
+					count += binned.counts[axis][i - 1];
+					if (count == 0 || rightCount[i] == 0)
+						continue;
+					double cost = BVH.TRAVERSAL_COST + BVH.INTERSECTION_COST
+							* (sweep.surfaceArea() * count + rightArea[i] * rightCount[i]) * invArea;
+					if (cost < bestCost) {
+						bestCost = cost;
+						bestAxis = axis;
+						bestBin = i;
+					}
+				}
+			}
+
+			if (bestAxis < 0 || (n <= maxLeafSize && BVH.INTERSECTION_COST * n <= bestCost))
+				return s;
+			s.mid = partition(start, end, bestAxis, bestBin, nb, cb);
+			return s;
+		}
+
+		/**
+		 * Moves every triangle whose centroid falls in a bin below
+		 * <code>splitBin</code> to the front of the range.
+		 * 
+		 * @return the index of the first triangle on the right side
+		 */
+		int partition(int start, int end, int axis, int splitBin, int nb, AABB cb) {
+			double min = cb.min(axis);
+			double scale = nb / (cb.max(axis) - min);
+			int i = start, j = end - 1;
+			while (i <= j) {
+				if (binOf(centroid2(i, axis), min, scale, nb) < splitBin) {
+					i++;
+				} else {
+					swap(i, j--);
+				}
+			}
+			return i;
+		}
+
+		private void swap(int i, int j) {
+			int tmp = order[i];
+			order[i] = order[j];
+			order[j] = tmp;
+			for (int k = 0; k < 6; k++) {
+				double b = slots[6 * i + k];
+				slots[6 * i + k] = slots[6 * j + k];
+				slots[6 * j + k] = b;
+			}
+		}
+
+		int binOf(double centroid, double min, double scale, int nb) {
+			int b = (int) ((centroid - min) * scale);
+			return b < 0 ? 0 : b >= nb ? nb - 1 : b;
+		}
+
+		/**
+		 * Computes the bounds and centroid bounds of a range of triangles.
+		 */
+		Bins bounds(int start, int end) {
+			Bins b = new Bins(0);
+			for (int i = start; i < end; i++) {
+				growBySlot(b.bounds, i);
+				b.centroidBounds.grow(centroid2(i, 0), centroid2(i, 1), centroid2(i, 2));
+			}
+			return b;
+		}
+
+		/**
+		 * Sorts a range of triangles into bins along every axis.
+		 * 
+		 * @param nb
+		 *            how many of the bins to use
+		 * @param b
+		 *            the (cleared) bins to add the triangles to
+		 */
+		Bins bin(int start, int end, AABB cb, int nb, Bins b) {
+			for (int axis = 0; axis < 3; axis++) {
+				double min = cb.min(axis), extent = cb.max(axis) - min;
+				if (extent <= 0.0)
+					continue;
+				double scale = nb / extent;
+				int[] counts = b.counts[axis];
+				double[] boxes = b.binBounds[axis];
+				for (int i = start; i < end; i++) {
+					int bin = binOf(centroid2(i, axis), min, scale, nb);
+					counts[bin]++;
+					int o = 6 * bin, p = 6 * i;
+					for (int k = 0; k < 3; k++) {
+						boxes[o + k] = Math.min(boxes[o + k], slots[p + k]);
+						boxes[o + k + 3] = Math.max(boxes[o + k + 3], slots[p + k + 3]);
+					}
+				}
+			}
+			return b;
+		}
+	}
+
+	/**
+	 * The outcome of {@link Build#split(int, int, boolean, Bins)}.
+	 */
+	private static class Split {
+		final AABB bounds;
+		/** Where the range was partitioned, or -1 if the node should be a leaf. */
+		int mid = -1;
+
+		Split(AABB bounds) {
+			this.bounds = bounds;
+		}
+	}
+
+	/**
+	 * Bounds and per-axis bins of a range of triangles. Centroid bounds are kept
+	 * at twice their size, which saves a multiply per triangle and doesn't change
+	 * which bin a triangle falls in. Bin bounds are packed as
+	 * minX, minY, minZ, maxX, maxY, maxZ so that binning allocates nothing.
+	 * Partial results from different chunks are combined with
+	 * {@link #merge(Bins)}.
+	 */
+	private static class Bins {
+		final AABB bounds = new AABB();
+		final AABB centroidBounds = new AABB();
+		final int[][] counts;
+		final double[][] binBounds;
+		// Scratch space for evaluating splits
+		final double[] rightArea;
+		final int[] rightCount;
+		final AABB sweep = new AABB();
+
+		Bins(int bins) {
+			counts = new int[3][bins];
+			binBounds = new double[3][6 * bins];
+			rightArea = new double[bins];
+			rightCount = new int[bins];
+			clear(bins);
+		}
+
+		/**
+		 * Empties the first <code>nb</code> bins.
+		 * 
+		 * @return a reference to these bins for method chaining
+		 */
+		Bins clear(int nb) {
+			for (int axis = 0; axis < 3; axis++) {
+				Arrays.fill(counts[axis], 0, nb, 0);
+				double[] boxes = binBounds[axis];
+				for (int i = 0; i < 6 * nb; i += 6) {
+					boxes[i] = boxes[i + 1] = boxes[i + 2] = Double.POSITIVE_INFINITY;
+					boxes[i + 3] = boxes[i + 4] = boxes[i + 5] = Double.NEGATIVE_INFINITY;
+				}
+			}
+			return this;
+		}
+
+		void growByBin(AABB box, int axis, int bin) {
+			double[] b = binBounds[axis];
+			int o = 6 * bin;
+			if (b[o] > b[o + 3])
+				return; // empty bin
+			box.grow(b[o], b[o + 1], b[o + 2]);
+			box.grow(b[o + 3], b[o + 4], b[o + 5]);
+		}
+
+		Bins merge(Bins o) {
+			bounds.grow(o.bounds);
+			centroidBounds.grow(o.centroidBounds);
+			for (int axis = 0; axis < 3; axis++) {
+				for (int i = 0; i < counts[axis].length; i++)
+					counts[axis][i] += o.counts[axis][i];
+				double[] a = binBounds[axis], b = o.binBounds[axis];
+				for (int i = 0; i < a.length; i += 6) {
+					for (int k = 0; k < 3; k++) {
+						a[i + k] = Math.min(a[i + k], b[i + k]);
+						a[i + k + 3] = Math.max(a[i + k + 3], b[i + k + 3]);
+					}
+				}
+			}
+			return this;
+		}
+	}
+
+	/**
+	 * Builds a subtree, building both children at the same time until the
+	 * subtree is small enough to finish sequentially.
+	 */
+	private static class BuildTask extends RecursiveTask<BVHNode> {
+		private static final long serialVersionUID = 1L;
+		private final Build b;
+		private final int start, end;
+
+		BuildTask(Build b, int start, int end) {
+			this.b = b;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected BVHNode compute() {
+			if (end - start <= SEQUENTIAL_THRESHOLD)
+				return b.buildSequential(start, end, b.newBins());
+			Split s = b.split(start, end, true, b.newBins());
+			if (s.mid < 0)
+				return new BVHNode(s.bounds, start, end - start);
+			BuildTask left = new BuildTask(b, start, s.mid);
+			left.fork();
+			BVHNode right = new BuildTask(b, s.mid, end).compute();
+			return new BVHNode(s.bounds, left.join(), right);
+		}
+	}
+
+	/**
+	 * Computes the bounds of a large range of triangles in parallel chunks.
+	 */
+	private static class BoundsTask extends RecursiveTask<Bins> {
+		private static final long serialVersionUID = 1L;
+		private final Build b;
+		private final int start, end;
+
+		BoundsTask(Build b, int start, int end) {
+			this.b = b;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected Bins compute() {
+			if (end - start <= SEQUENTIAL_THRESHOLD * 4)
+				return b.bounds(start, end);
+			int mid = (start + end) >>> 1;
+			BoundsTask left = new BoundsTask(b, start, mid);
+			left.fork();
+			Bins right = new BoundsTask(b, mid, end).compute();
+			Bins l = left.join();
+			l.bounds.grow(right.bounds);
+			l.centroidBounds.grow(right.centroidBounds);
+			return l;
+		}
+	}
+
+	/**
+	 * Bins a large range of triangles in parallel chunks.
+	 */
+	private static class BinTask extends RecursiveTask<Bins> {
+		private static final long serialVersionUID = 1L;
+		private final Build b;
+		private final int start, end;
+		private final AABB cb;
+
+		BinTask(Build b, int start, int end, AABB cb) {
+			this.b = b;
+			this.start = start;
+			this.end = end;
+			this.cb = cb;
+		}
+
+		@Override
+		protected Bins compute() {
+			if (end - start <= SEQUENTIAL_THRESHOLD * 4)
+				return b.bin(start, end, cb, b.bins(), b.newBins());
+			int mid = (start + end) >>> 1;
+			BinTask left = new BinTask(b, start, mid, cb);
+			left.fork();
+			Bins right = new BinTask(b, mid, end, cb).compute();
+			return left.join().merge(right);
+		}
+	}
+}
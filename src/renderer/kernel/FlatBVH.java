@@ -0,0 +1,383 @@
+package renderer.kernel;
+
+import renderer.scene.actors.Model;
+
+/**
+ * A <code>BVH</code> flattened into primitive arrays. This is the layout the
+ * kernel traces rays against; the pointer-based {@link BVH} is only used while
+ * building.
+ * <p>
+ * Nodes are stored depth-first, so the first child of an interior node is
+ * always the node right after it and only the index of the second child has
+ * to be stored. Each piece of node data lives in its own array:
+ * </p>
+ * <ul>
+ * <li><code>bounds</code>: minX, minY, minZ, maxX, maxY, maxZ of every node as
+ * floats, rounded outwards so they still contain everything in the node</li>
+ * <li><code>offsets</code>: the second child of an interior node, or the first
+ * triangle of a leaf</li>
+ * <li><code>counts</code>: the number of triangles in a leaf, 0 for interior
+ * nodes</li>
+ * </ul>
+ * <p>
+ * Triangles are stored in a {@link TriangleTable} in leaf order, so a leaf's
+ * triangles sit next to each other in memory. Traversal uses the caller's
+ * {@link TraversalStack} and allocates nothing per ray.
+ * </p>
+ * 
+ * @see BVH
+ * @see TraversalStack
+ */
+public class FlatBVH {
+	public final Model model;
+	final float[] bounds;
+	final int[] offsets;
+	final int[] counts;
+	/** The triangles in leaf order. */
+	public final TriangleTable triangles;
+	/** The depth of the tree, which bounds the size of the traversal stack. */
+	final int depth;
+	private int nodeCount;
+
+	/**
+	 * Flattens a BVH.
+	 * 
+	 * @param bvh
+	 *            the BVH to flatten
+	 */
+	public FlatBVH(BVH bvh) {
+		this.model = bvh.model;
+		BVHStats stats = BVHStats.of(bvh);
+		int nodes = stats.nodes;
+		this.depth = stats.maxDepth;
+		bounds = new float[6 * nodes];
+		offsets = new int[nodes];
+		counts = new int[nodes];
+
+		triangles = new TriangleTable(bvh);
+		flatten(bvh.root);
+	}
+
+	/**
+	 * Writes a subtree in depth-first order.
+	 * 
+	 * @return the index of the subtree's root
+	 */
+	private int flatten(BVHNode node) {
+		int index = nodeCount++;
+		AABB b = node.bounds;
+		bounds[6 * index] = roundDown(b.minX);
+		bounds[6 * index + 1] = roundDown(b.minY);
+		bounds[6 * index + 2] = roundDown(b.minZ);
+		bounds[6 * index + 3] = roundUp(b.maxX);
+		bounds[6 * index + 4] = roundUp(b.maxY);
+		bounds[6 * index + 5] = roundUp(b.maxZ);
+		if (node.isLeaf()) {
+			offsets[index] = node.start;
+			counts[index] = node.count;
+		} else {
+			flatten(node.left);
+			offsets[index] = flatten(node.right);
+		}
+		return index;
+	}
+
+	static float roundDown(double d) {
+		float f = (float) d;
+		return f > d ? Math.nextDown(f) : f;
+	}
+
+	static float roundUp(double d) {
+		float f = (float) d;
+		return f < d ? Math.nextUp(f) : f;
+	}
+
+	/**
+	 * Finds the closest triangle hit by a ray.
+	 * 
+	 * @param ray
+	 *            the ray to trace
+	 * @param hit
+	 *            updated if a triangle closer than <code>hit.distance</code> is
+	 *            found. Its stack is used for the traversal.
+	 * @return <b>true</b> if the hit was updated, <b>false</b> otherwise
+	 */
+	public boolean intersect(Ray ray, RaycastHit hit) {
+		if (triangles.size() == 0)
+			return false;
+		ray.prepare();
+		int tri = closest(ray, (float) Math.min(ray.tMax, hit.distance), hit.stack);
+		if (tri < 0)
+			return false;
+		triangles.recordHit(tri, ray, triangles.intersect(tri, ray, Float.POSITIVE_INFINITY), hit);
+		return true;
+	}
+
+	/**
+	 * Finds the closest triangle hit by a single ray.
+	 * 
+	 * @param ray
+	 *            the ray to trace. Must be prepared.
+	 * @param best
+	 *            only triangles closer than this count
+	 * @param stack
+	 *            scratch space for the traversal
+	 * @return the index of the triangle in {@link #triangles}, or -1 if none was
+	 *         hit
+	 */
+	int closest(Ray ray, float best, TraversalStack stack) {
+		float ox = ray.ox, oy = ray.oy, oz = ray.oz;
+		float ix = ray.invDx, iy = ray.invDy, iz = ray.invDz;
+		float tMin = (float) ray.tMin;
+		if (slab(bounds, 0, ox, oy, oz, ix, iy, iz, tMin, best) == Float.POSITIVE_INFINITY)
+			return -1;
+
+		stack.ensureCapacity(depth);
+		int[] stackNodes = stack.nodes;
+		float[] stackT = stack.distances;
+		TriangleTable tris = triangles;
+		int sp = 0;
+		int node = 0;
+		int bestTri = -1;
+		while (true) {
+			int count = counts[node];
+			if (count > 0) {
+				for (int t = offsets[node], end = t + count; t < end; t++) {
+					float d = tris.intersect(t, ray, best);
+					if (d < best) {
+						best = d;
+						bestTri = t;
+					}
+				}
+			} else {
+				int left = node + 1, right = offsets[node];
+				float tl = slab(bounds, left, ox, oy, oz, ix, iy, iz, tMin, best);
+				float tr = slab(bounds, right, ox, oy, oz, ix, iy, iz, tMin, best);
+				if (tl != Float.POSITIVE_INFINITY) {
+					if (tr != Float.POSITIVE_INFINITY) {
+						// Visit the nearer child first, so the farther one can often be skipped
+						if (tr < tl) {
+							stackNodes[sp] = left;
+							stackT[sp++] = tl;
+							node = right;
+						} else {
+							stackNodes[sp] = right;
+							stackT[sp++] = tr;
+							node = left;
+						}
+					} else {
+						node = left;
+					}
+					continue;
+				} else if (tr != Float.POSITIVE_INFINITY) {
+					node = right;
+					continue;
+				}
+			}
+			// Pop the next node, skipping any that are behind the closest hit
+			do {
+				if (sp == 0)
+					return bestTri;
+				node = stackNodes[--sp];
+			} while (stackT[sp] > best);
+		}
+	}
+
+	/**
+	 * Finds the closest triangle hit by each ray of a packet, recording the
+	 * results in the packet rather than in its hits.
+	 * 
+	 * @param p
+	 *            the packet, already in this tree's space and prepared. If it
+	 *            holds fewer than {@link RayPacket#MIN_SIZE} rays, or they
+	 *            diverge, they are traced one by one.
+	 */
+	void intersect(RayPacket p) {
+		if (triangles.size() == 0)
+			return;
+		int n = p.size;
+		if (n < RayPacket.MIN_SIZE || !p.coherent) {
+			// Too few rays, or too spread out, to be worth tracing together
+			for (int r = 0; r < n; r++) {
+				Ray ray = p.rays[r];
+				int tri = closest(ray, p.best[r], p.stack);
+				if (tri >= 0) {
+					p.best[r] = triangles.intersect(tri, ray, Float.POSITIVE_INFINITY);
+					p.triangles[r] = tri;
+				}
+			}
+			return;
+		}
+		int first = p.firstHit(bounds, 0, 0);
+		if (first == n)
+			return;
+
+		p.ensureCapacity(depth);
+		int[] stackNodes = p.stackNodes;
+		int[] stackFirst = p.stackFirst;
+		float[] best = p.best;
+		TriangleTable tris = triangles;
+		int sp = 0;
+		int node = 0;
+		while (true) {
+			int count = counts[node];
+			if (count > 0) {
+				boolean closer = false;
+				for (int r = first; r < n; r++) {
+					if (r != first && !p.hits(bounds, node, r))
+						continue;
+					Ray ray = p.rays[r];
+					float d = best[r];
+					for (int t = offsets[node], end = t + count; t < end; t++) {
+						float dt = tris.intersect(t, ray, d);
+						if (dt < d) {
+							d = dt;
+							p.triangles[r] = t;
+						}
+					}
+					if (d < best[r]) {
+						best[r] = d;
+						closer = true;
+					}
+				}
+				if (closer)
+					p.updateMaxBest();
+			} else {
+				int left = node + 1, right = offsets[node];
+				int fl = p.firstHit(bounds, left, first);
+				float tl = p.entry;
+				int fr = p.firstHit(bounds, right, first);
+				float tr = p.entry;
+				if (fl < n) {
+					if (fr < n) {
+						// Visit the child the leading ray enters first
+						boolean rightFirst = fr < fl || (fr == fl && tr < tl);
+						stackNodes[sp] = rightFirst ? left : right;
+						stackFirst[sp++] = rightFirst ? fl : fr;
+						node = rightFirst ? right : left;
+						first = rightFirst ? fr : fl;
+					} else {
+						node = left;
+						first = fl;
+					}
+					continue;
+				} else if (fr < n) {
+					node = right;
+					first = fr;
+					continue;
+				}
+			}
+			// Pop the next node, re-testing it since the rays may have found closer hits
+			do {
+				if (sp == 0)
+					return;
+				node = stackNodes[--sp];
+				first = p.firstHit(bounds, node, stackFirst[sp]);
+			} while (first == n);
+		}
+	}
+
+	/**
+	 * Determines if any triangle blocks a ray. Stops at the first triangle found.
+	 * 
+	 * @param ray
+	 *            the ray to trace. Only hits between <code>tMin</code> and
+	 *            <code>tMax</code> count.
+	 * @param stack
+	 *            scratch space for the traversal
+	 * @return <b>true</b> if something blocks the ray, <b>false</b> otherwise
+	 */
+	public boolean occluded(Ray ray, TraversalStack stack) {
+		if (triangles.size() == 0)
+			return false;
+		ray.prepare();
+		return anyHit(ray, stack) >= 0;
+	}
+
+	/**
+	 * Finds any triangle that blocks a ray, stopping at the first one found.
+	 * 
+	 * @param ray
+	 *            the ray to trace. Must be prepared.
+	 * @param stack
+	 *            scratch space for the traversal
+	 * @return the index of the triangle in {@link #triangles}, or -1 if nothing
+	 *         blocks the ray
+	 */
+	int anyHit(Ray ray, TraversalStack stack) {
+		float ox = ray.ox, oy = ray.oy, oz = ray.oz;
+		float ix = ray.invDx, iy = ray.invDy, iz = ray.invDz;
+		float tMin = (float) ray.tMin, tMax = (float) ray.tMax;
+		stack.ensureCapacity(depth + 1);
+		int[] stackNodes = stack.nodes;
+		TriangleTable tris = triangles;
+		int sp = 0;
+		stackNodes[sp++] = 0;
+		while (sp > 0) {
+			int node = stackNodes[--sp];
+			if (slab(bounds, node, ox, oy, oz, ix, iy, iz, tMin, tMax) == Float.POSITIVE_INFINITY)
+				continue;
+			int count = counts[node];
+			if (count == 0) {
+				stackNodes[sp++] = offsets[node];
+				stackNodes[sp++] = node + 1;
+				continue;
+			}
+			for (int t = offsets[node], end = t + count; t < end; t++) {
+				if (tris.intersect(t, ray, tMax) != Float.POSITIVE_INFINITY)
+					return t;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Slab test against a node's bounds. Shared with {@link InstanceBVH}, which
+	 * stores its nodes the same way.
+	 * 
+	 * @return the distance at which the ray enters the node, or positive infinity
+	 *         if it misses
+	 */
+	static float slab(float[] b, int node, float ox, float oy, float oz, float ix, float iy, float iz, float tMin,
+			float tMax) {
+		int o = 6 * node;
+		float t0 = (b[o] - ox) * ix, t1 = (b[o + 3] - ox) * ix;
+		float near = Math.max(tMin, Math.min(t0, t1));
+		float far = Math.min(tMax, Math.max(t0, t1));
+		t0 = (b[o + 1] - oy) * iy;
+		t1 = (b[o + 4] - oy) * iy;
+		near = Math.max(near, Math.min(t0, t1));
+		far = Math.min(far, Math.max(t0, t1));
+		t0 = (b[o + 2] - oz) * iz;
+		t1 = (b[o + 5] - oz) * iz;
+		near = Math.max(near, Math.min(t0, t1));
+		far = Math.min(far, Math.max(t0, t1));
+		return near <= far ? near : Float.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * @return the bounds of the whole tree
+	 */
+	public AABB getBounds() {
+		AABB b = new AABB();
+		if (triangles.size() > 0) {
+			b.grow(bounds[0], bounds[1], bounds[2]);
+			b.grow(bounds[3], bounds[4], bounds[5]);
+		}
+		return b;
+	}
+
+	/**
+	 * @return the number of nodes in the tree
+	 */
+	public int nodeCount() {
+		return nodeCount;
+	}
+
+	/**
+	 * @return the number of triangles in the tree
+	 */
+	public int triangleCount() {
+		return triangles.size();
+	}
+}
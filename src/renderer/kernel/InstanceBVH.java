@@ -0,0 +1,696 @@
+package renderer.kernel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import renderer.infrastructure.math.Vector3;
+import renderer.scene.actors.ModelInstance;
+
+/**
+ * The top level of a two-level acceleration structure: a BVH over
+ * {@link ModelInstance}s, whose leaves point at the {@link FlatBVH} each
+ * instance's Model owns. Rays are moved into an instance's space before they
+ * are traced against its Model, so one bottom-level BVH serves every copy of
+ * a Model.
+ * <p>
+ * There are usually far fewer instances than triangles, so this tree is cheap
+ * enough to rebuild from scratch. Nodes are laid out the same way as in
+ * <code>FlatBVH</code>. The instances' Transforms are copied when the tree is
+ * built, so moving an instance afterwards has no effect until the next build
+ * or {@link #refit()}.
+ * </p>
+ * <p>
+ * For animations, where instances move a little every frame, refitting is
+ * cheaper still: it keeps the tree's topology and only grows or shrinks the
+ * boxes above the instances that moved. The tree gets worse as instances
+ * drift away from where they were when it was built, so <code>refit()</code>
+ * reports how much worse it has become and leaves the decision to rebuild to
+ * the caller.
+ * </p>
+ *
+ * @see FlatBVH
+ * @see renderer.scene.Scene#commit()
+ */
+public class InstanceBVH {
+	/** The number of bins used to search for splits. */
+	public static final int BINS = 16;
+
+	/** The instances in leaf order. Instances of empty Models are left out. */
+	final ModelInstance[] instances;
+	/** The bottom-level BVH of each instance. */
+	final FlatBVH[] blas;
+	/** The world-to-instance matrix of each instance, 16 values each in column-major order. */
+	final double[] inverses;
+	final float[] bounds;
+	final int[] offsets;
+	final int[] counts;
+	/** The parent of every node, -1 for the root. */
+	private final int[] parents;
+	/** The world space bounds of each instance, 6 values each. */
+	private final double[] boxes;
+	/** The leaf each instance is in. */
+	private final int[] leaves;
+	/** The version of each instance's Transform the tree was last fit to. */
+	private final int[] versions;
+	/** The instances the tree was built from, including the ones left out. */
+	private final ModelInstance[] source;
+	/** Instances left out because their Model was empty. */
+	private final ModelInstance[] skipped;
+	private final double builtCost;
+	private double cost;
+	int depth;
+	private int nodeCount;
+
+	// Build state
+	private double[] buildBoxes;
+	private int[] order;
+
+	/**
+	 * Builds a BVH over a list of instances. Builds the BVH of any Model that
+	 * doesn't have one yet.
+	 *
+	 * @param list
+	 *            the instances to include
+	 */
+	public InstanceBVH(List<ModelInstance> list) {
+		source = list.toArray(new ModelInstance[list.size()]);
+		ArrayList<ModelInstance> used = new ArrayList<ModelInstance>(list.size());
+		ArrayList<ModelInstance> empty = new ArrayList<ModelInstance>();
+		ArrayList<AABB> worldBounds = new ArrayList<AABB>(list.size());
+		for (ModelInstance inst : source) {
+			AABB b = inst.getWorldBounds();
+			if (!b.isEmpty()) {
+				used.add(inst);
+				worldBounds.add(b);
+			} else {
+				empty.add(inst);
+			}
+		}
+		skipped = empty.toArray(new ModelInstance[empty.size()]);
+
+		int n = used.size();
+		buildBoxes = new double[6 * n];
+		order = new int[n];
+		for (int i = 0; i < n; i++) {
+			setBox(buildBoxes, i, worldBounds.get(i));
+			order[i] = i;
+		}
+
+		int maxNodes = Math.max(1, 2 * n - 1);
+		bounds = new float[6 * maxNodes];
+		offsets = new int[maxNodes];
+		counts = new int[maxNodes];
+		parents = new int[maxNodes];
+		leaves = new int[n];
+		if (n > 0)
+			build(0, n, -1, 1);
+
+		instances = new ModelInstance[n];
+		blas = new FlatBVH[n];
+		inverses = new double[16 * n];
+		versions = new int[n];
+		boxes = new double[6 * n];
+		for (int i = 0; i < n; i++) {
+			ModelInstance inst = used.get(order[i]);
+			instances[i] = inst;
+			blas[i] = inst.model.getBVH();
+			versions[i] = inst.getVersion();
+			System.arraycopy(inst.getInverseTransform().toArray(), 0, inverses, 16 * i, 16);
+			System.arraycopy(buildBoxes, 6 * order[i], boxes, 6 * i, 6);
+		}
+		buildBoxes = null;
+		order = null;
+		builtCost = cost = sahCost();
+	}
+
+	private static void setBox(double[] boxes, int i, AABB b) {
+		boxes[6 * i] = b.minX;
+		boxes[6 * i + 1] = b.minY;
+		boxes[6 * i + 2] = b.minZ;
+		boxes[6 * i + 3] = b.maxX;
+		boxes[6 * i + 4] = b.maxY;
+		boxes[6 * i + 5] = b.maxZ;
+	}
+
+	/**
+	 * Builds the subtree over <code>order[start..end)</code> with a binned SAH
+	 * split along the axis the centroids are spread the most over.
+	 *
+	 * @return the index of the subtree's root
+	 */
+	private int build(int start, int end, int parent, int level) {
+		int index = nodeCount++;
+		parents[index] = parent;
+		depth = Math.max(depth, level);
+		double[] boxes = buildBoxes;
+
+		double[] box = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+				Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+		double[] cb = box.clone();
+		for (int i = start; i < end; i++) {
+			int o = 6 * order[i];
+			for (int a = 0; a < 3; a++) {
+				box[a] = Math.min(box[a], boxes[o + a]);
+				box[a + 3] = Math.max(box[a + 3], boxes[o + a + 3]);
+				double c = boxes[o + a] + boxes[o + a + 3];
+				cb[a] = Math.min(cb[a], c);
+				cb[a + 3] = Math.max(cb[a + 3], c);
+			}
+		}
+		for (int a = 0; a < 3; a++) {
+			bounds[6 * index + a] = FlatBVH.roundDown(box[a]);
+			bounds[6 * index + a + 3] = FlatBVH.roundUp(box[a + 3]);
+		}
+
+		int axis = 0;
+		for (int a = 1; a < 3; a++) {
+			if (cb[a + 3] - cb[a] > cb[axis + 3] - cb[axis])
+				axis = a;
+		}
+		double lo = cb[axis], extent = cb[axis + 3] - lo;
+		if (end - start == 1 || !(extent > 0.0)) {
+			// One instance, or several that can't be told apart by their centers
+			offsets[index] = start;
+			counts[index] = end - start;
+			for (int i = start; i < end; i++)
+				leaves[i] = index;
+			return index;
+		}
+
+		// Bin the instances by centroid, then sweep the bins for the cheapest split
+		double scale = BINS / extent;
+		int[] binCounts = new int[BINS];
+		double[] binBounds = new double[6 * BINS];
+		for (int b = 0; b < BINS; b++)
+			emptyBox(binBounds, 6 * b);
+		for (int i = start; i < end; i++) {
+			int o = 6 * order[i];
+			int b = binOf(o, axis, lo, scale);
+			binCounts[b]++;
+			growBox(binBounds, 6 * b, boxes, o);
+		}
+
+		double[] sweep = new double[6];
+		double[] leftCost = new double[BINS];
+		emptyBox(sweep, 0);
+		int count = 0;
+		for (int b = 0; b < BINS - 1; b++) {
+			count += binCounts[b];
+			if (binCounts[b] > 0)
+				growBox(sweep, 0, binBounds, 6 * b);
+			leftCost[b] = count * area(sweep);
+		}
+		emptyBox(sweep, 0);
+		count = 0;
+		int bestBin = 1;
+		double bestCost = Double.POSITIVE_INFINITY;
+		for (int b = BINS - 1; b > 0; b--) {
+			count += binCounts[b];
+			if (binCounts[b] > 0)
+				growBox(sweep, 0, binBounds, 6 * b);
+			double cost = leftCost[b - 1] + count * area(sweep);
+			if (cost < bestCost) {
+				bestCost = cost;
+				bestBin = b;
+			}
+		}
+
+		// The extreme centroids land in the first and last bins, so neither side is empty
+		int mid = start;
+		for (int i = start; i < end; i++) {
+			if (binOf(6 * order[i], axis, lo, scale) < bestBin) {
+				int tmp = order[i];
+				order[i] = order[mid];
+				order[mid++] = tmp;
+			}
+		}
+		build(start, mid, index, level + 1);
+		offsets[index] = build(mid, end, index, level + 1);
+		counts[index] = 0;
+		return index;
+	}
+
+	private int binOf(int o, int axis, double lo, double scale) {
+		int b = (int) ((buildBoxes[o + axis] + buildBoxes[o + axis + 3] - lo) * scale);
+		return Math.min(Math.max(b, 0), BINS - 1);
+	}
+
+	private static void emptyBox(double[] b, int o) {
+		b[o] = b[o + 1] = b[o + 2] = Double.POSITIVE_INFINITY;
+		b[o + 3] = b[o + 4] = b[o + 5] = Double.NEGATIVE_INFINITY;
+	}
+
+	private static void growBox(double[] b, int o, double[] src, int so) {
+		for (int a = 0; a < 3; a++) {
+			b[o + a] = Math.min(b[o + a], src[so + a]);
+			b[o + a + 3] = Math.max(b[o + a + 3], src[so + a + 3]);
+		}
+	}
+
+	private static double area(double[] b) {
+		double dx = b[3] - b[0], dy = b[4] - b[1], dz = b[5] - b[2];
+		return 2.0 * (dx * dy + dy * dz + dz * dx);
+	}
+
+	/**
+	 * Determines if this tree was built from the same instances, in the same
+	 * order, as a list. If not, it has to be rebuilt; refitting only handles
+	 * instances that moved.
+	 *
+	 * @param list
+	 *            the instances to compare with
+	 * @return <b>true</b> if the instances are the same, <b>false</b> otherwise
+	 */
+	public boolean hasSameInstances(List<ModelInstance> list) {
+		if (list.size() != source.length)
+			return false;
+		for (int i = 0; i < source.length; i++) {
+			if (list.get(i) != source[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Updates the tree for the instances that moved, or whose Model's BVH was
+	 * rebuilt, since it was built or last refit. Only the leaves holding those
+	 * instances and the nodes above them are changed; the rest of the tree,
+	 * and its topology, stay the same.
+	 *
+	 * @return the SAH cost of the tree divided by its cost when it was built.
+	 *         Values well above 1 mean the tree has degraded and should be
+	 *         rebuilt. Positive infinity if an instance of an empty Model now has
+	 *         triangles, since only a rebuild can add it.
+	 */
+	public double refit() {
+		for (ModelInstance inst : skipped) {
+			if (inst.model.getBVH().triangleCount() > 0)
+				return Double.POSITIVE_INFINITY;
+		}
+		boolean changed = false;
+		for (int i = 0; i < instances.length; i++) {
+			ModelInstance inst = instances[i];
+			FlatBVH b = inst.model.getBVH();
+			int version = inst.getVersion();
+			if (version == versions[i] && b == blas[i])
+				continue;
+			versions[i] = version;
+			blas[i] = b;
+			System.arraycopy(inst.getInverseTransform().toArray(), 0, inverses, 16 * i, 16);
+			setBox(boxes, i, inst.getWorldBounds());
+			refitLeaf(leaves[i]);
+			changed = true;
+		}
+		if (changed)
+			cost = sahCost();
+		return builtCost > 0.0 ? cost / builtCost : 1.0;
+	}
+
+	/**
+	 * Recomputes a leaf's bounds from its instances, then walks up the tree
+	 * until a node's bounds stop changing.
+	 */
+	private void refitLeaf(int node) {
+		float[] b = bounds;
+		double[] box = new double[6];
+		emptyBox(box, 0);
+		for (int i = offsets[node], end = i + counts[node]; i < end; i++)
+			growBox(box, 0, boxes, 6 * i);
+		for (int a = 0; a < 3; a++) {
+			b[6 * node + a] = FlatBVH.roundDown(box[a]);
+			b[6 * node + a + 3] = FlatBVH.roundUp(box[a + 3]);
+		}
+		for (node = parents[node]; node >= 0; node = parents[node]) {
+			int o = 6 * node, l = 6 * (node + 1), r = 6 * offsets[node];
+			boolean same = true;
+			for (int a = 0; a < 3; a++) {
+				float lo = Math.min(b[l + a], b[r + a]);
+				float hi = Math.max(b[l + a + 3], b[r + a + 3]);
+				same &= lo == b[o + a] && hi == b[o + a + 3];
+				b[o + a] = lo;
+				b[o + a + 3] = hi;
+			}
+			if (same)
+				break;
+		}
+	}
+
+	/**
+	 * Computes the surface area heuristic cost of the tree: the expected cost of
+	 * tracing a ray that hits the root, with instances counted as one
+	 * intersection each.
+	 */
+	private double sahCost() {
+		if (instances.length == 0)
+			return 0.0;
+		double root = nodeArea(0);
+		if (!(root > 0.0))
+			return 0.0;
+		double sum = 0.0;
+		for (int node = 0; node < nodeCount; node++) {
+			int count = counts[node];
+			double c = count > 0 ? BVH.INTERSECTION_COST * count : BVH.TRAVERSAL_COST;
+			sum += c * nodeArea(node);
+		}
+		return sum / root;
+	}
+
+	private double nodeArea(int node) {
+		int o = 6 * node;
+		double dx = bounds[o + 3] - bounds[o], dy = bounds[o + 4] - bounds[o + 1], dz = bounds[o + 5] - bounds[o + 2];
+		// Nodes left empty by a refit have inverted bounds
+		return dx < 0.0 ? 0.0 : 2.0 * (dx * dy + dy * dz + dz * dx);
+	}
+
+	/**
+	 * Finds the closest triangle hit by a ray, in any instance.
+	 *
+	 * @param ray
+	 *            the ray to trace, in world space
+	 * @param hit
+	 *            updated if a triangle closer than <code>hit.distance</code> is
+	 *            found. Its normal is in world space.
+	 * @return <b>true</b> if the hit was updated, <b>false</b> otherwise
+	 */
+	public boolean intersect(Ray ray, RaycastHit hit) {
+		if (instances.length == 0)
+			return false;
+		ray.prepare();
+		float ox = ray.ox, oy = ray.oy, oz = ray.oz;
+		float ix = ray.invDx, iy = ray.invDy, iz = ray.invDz;
+		float tMin = (float) ray.tMin;
+		float best = (float) Math.min(ray.tMax, hit.distance);
+		if (FlatBVH.slab(bounds, 0, ox, oy, oz, ix, iy, iz, tMin, best) == Float.POSITIVE_INFINITY)
+			return false;
+
+		TraversalStack stack = hit.instanceStack;
+		stack.ensureCapacity(depth);
+		int[] stackNodes = stack.nodes;
+		float[] stackT = stack.distances;
+		Ray local = hit.localRay;
+		int sp = 0;
+		int node = 0;
+		int bestInstance = -1;
+		while (true) {
+			int count = counts[node];
+			if (count > 0) {
+				for (int i = offsets[node], end = i + count; i < end; i++) {
+					toLocal(i, ray, local);
+					if (blas[i].intersect(local, hit)) {
+						best = (float) hit.distance;
+						bestInstance = i;
+					}
+				}
+			} else {
+				int left = node + 1, right = offsets[node];
+				float tl = FlatBVH.slab(bounds, left, ox, oy, oz, ix, iy, iz, tMin, best);
+				float tr = FlatBVH.slab(bounds, right, ox, oy, oz, ix, iy, iz, tMin, best);
+				if (tl != Float.POSITIVE_INFINITY) {
+					if (tr != Float.POSITIVE_INFINITY) {
+						if (tr < tl) {
+							stackNodes[sp] = left;
+							stackT[sp++] = tl;
+							node = right;
+						} else {
+							stackNodes[sp] = right;
+							stackT[sp++] = tr;
+							node = left;
+						}
+					} else {
+						node = left;
+					}
+					continue;
+				} else if (tr != Float.POSITIVE_INFINITY) {
+					node = right;
+					continue;
+				}
+			}
+			do {
+				if (sp == 0) {
+					if (bestInstance < 0)
+						return false;
+					hit.instance = instances[bestInstance];
+					normalToWorld(bestInstance, hit.normal);
+					return true;
+				}
+				node = stackNodes[--sp];
+			} while (stackT[sp] > best);
+		}
+	}
+
+	/**
+	 * Finds the closest triangle hit by each ray of a packet. Packets whose rays
+	 * don't all point the same way along each axis are traced one ray at a time.
+	 *
+	 * @param p
+	 *            the packet to trace, in world space. Its hits are reset, then
+	 *            receive the closest hit of each ray, with normals in world space.
+	 */
+	public void intersect(RayPacket p) {
+		p.begin();
+		int n = p.size;
+		if (instances.length == 0 || n == 0)
+			return;
+		if (!p.coherent) {
+			for (int r = 0; r < n; r++)
+				intersect(p.rays[r], p.hits[r]);
+			return;
+		}
+
+		int first = p.firstHit(bounds, 0, 0);
+		p.ensureCapacity(depth);
+		int[] stackNodes = p.stackNodes;
+		int[] stackFirst = p.stackFirst;
+		int sp = 0;
+		int node = 0;
+		while (first < n) {
+			int count = counts[node];
+			if (count > 0) {
+				for (int i = offsets[node], end = i + count; i < end; i++) {
+					RayPacket local = p.toLocal(inverses, 16 * i, bounds, node, first);
+					blas[i].intersect(local);
+					p.merge(local, i);
+				}
+				p.updateMaxBest();
+			} else {
+				int left = node + 1, right = offsets[node];
+				int fl = p.firstHit(bounds, left, first);
+				float tl = p.entry;
+				int fr = p.firstHit(bounds, right, first);
+				float tr = p.entry;
+				if (fl < n) {
+					if (fr < n) {
+						boolean rightFirst = fr < fl || (fr == fl && tr < tl);
+						stackNodes[sp] = rightFirst ? left : right;
+						stackFirst[sp++] = rightFirst ? fl : fr;
+						node = rightFirst ? right : left;
+						first = rightFirst ? fr : fl;
+					} else {
+						node = left;
+						first = fl;
+					}
+					continue;
+				} else if (fr < n) {
+					node = right;
+					first = fr;
+					continue;
+				}
+			}
+			first = n;
+			while (first == n && sp > 0) {
+				node = stackNodes[--sp];
+				first = p.firstHit(bounds, node, stackFirst[sp]);
+			}
+		}
+
+		// Fill in the hits of the rays that found something
+		for (int r = 0; r < n; r++) {
+			int i = p.owners[r];
+			if (i < 0)
+				continue;
+			RaycastHit hit = p.hits[r];
+			toLocal(i, p.rays[r], hit.localRay);
+			blas[i].triangles.recordHit(p.triangles[r], hit.localRay, p.best[r], hit);
+			hit.instance = instances[i];
+			normalToWorld(i, hit.normal);
+		}
+	}
+
+	/**
+	 * Determines if any triangle, in any instance, blocks a ray.
+	 *
+	 * @param ray
+	 *            the ray to trace, in world space. Only hits between
+	 *            <code>tMin</code> and <code>tMax</code> count.
+	 * @param scratch
+	 *            provides the scratch space for the traversal. Its hit data is
+	 *            left alone.
+	 * @return <b>true</b> if something blocks the ray, <b>false</b> otherwise
+	 */
+	public boolean occluded(Ray ray, RaycastHit scratch) {
+		if (instances.length == 0)
+			return false;
+		ray.prepare();
+		return anyHit(ray, scratch, null, 0, -1);
+	}
+
+	/**
+	 * Determines if any triangle, in any instance, blocks a ray. The triangle
+	 * that blocked the last ray of the same slot is tested first, then the rest
+	 * of its instance, then the whole tree. The occluder found by this query is
+	 * remembered for the next.
+	 *
+	 * @param ray
+	 *            the ray to trace, in world space. Only hits between
+	 *            <code>tMin</code> and <code>tMax</code> count.
+	 * @param scratch
+	 *            provides the scratch space for the traversal. Its hit data is
+	 *            left alone.
+	 * @param cache
+	 *            remembers the last occluder of each slot
+	 * @param slot
+	 *            which occluder to use, usually the index of the light the ray
+	 *            points at
+	 * @return <b>true</b> if something blocks the ray, <b>false</b> otherwise
+	 */
+	public boolean occluded(Ray ray, RaycastHit scratch, OccluderCache cache, int slot) {
+		if (instances.length == 0)
+			return false;
+		ray.prepare();
+		cache.use(this);
+		cache.queries++;
+		int i = cache.instance(slot);
+		if (i >= 0) {
+			int t = cache.triangle(slot);
+			Ray local = scratch.localRay;
+			toLocal(i, ray, local);
+			local.prepare();
+			TriangleTable tris = blas[i].triangles;
+			// The Model's BVH may have been rebuilt by a refit since the triangle was cached
+			if (t < tris.size() && tris.intersect(t, local, (float) local.tMax) != Float.POSITIVE_INFINITY) {
+				cache.hits++;
+				return true;
+			}
+			// Finely tessellated occluders often block neighbouring rays with a
+			// different triangle, so search the rest of the same instance next
+			t = blas[i].anyHit(local, scratch.stack);
+			if (t >= 0) {
+				cache.remember(slot, i, t);
+				cache.instanceHits++;
+				return true;
+			}
+		}
+		return anyHit(ray, scratch, cache, slot, i);
+	}
+
+	/**
+	 * The any-hit traversal. Records the occluder in the cache, if there is one,
+	 * or forgets the cached one if nothing blocks the ray, since the next ray of
+	 * the slot is then likely to be unblocked too. The ray must be prepared.
+	 *
+	 * @param tested
+	 *            an instance the ray is already known to miss, or -1
+	 */
+	private boolean anyHit(Ray ray, RaycastHit scratch, OccluderCache cache, int slot, int tested) {
+		float ox = ray.ox, oy = ray.oy, oz = ray.oz;
+		float ix = ray.invDx, iy = ray.invDy, iz = ray.invDz;
+		float tMin = (float) ray.tMin, tMax = (float) ray.tMax;
+		TraversalStack stack = scratch.instanceStack;
+		stack.ensureCapacity(depth + 1);
+		int[] stackNodes = stack.nodes;
+		Ray local = scratch.localRay;
+		int sp = 0;
+		stackNodes[sp++] = 0;
+		while (sp > 0) {
+			int node = stackNodes[--sp];
+			if (FlatBVH.slab(bounds, node, ox, oy, oz, ix, iy, iz, tMin, tMax) == Float.POSITIVE_INFINITY)
+				continue;
+			int count = counts[node];
+			if (count == 0) {
+				stackNodes[sp++] = offsets[node];
+				stackNodes[sp++] = node + 1;
+				continue;
+			}
+			for (int i = offsets[node], end = i + count; i < end; i++) {
+				if (i == tested || blas[i].triangleCount() == 0)
+					continue;
+				toLocal(i, ray, local);
+				local.prepare();
+				int t = blas[i].anyHit(local, scratch.stack);
+				if (t >= 0) {
+					if (cache != null)
+						cache.remember(slot, i, t);
+					return true;
+				}
+			}
+		}
+		if (cache != null)
+			cache.remember(slot, -1, -1);
+		return false;
+	}
+
+	/**
+	 * Moves a ray into an instance's space. The direction is not normalized, so
+	 * distances along the local ray are the same as along the world ray.
+	 */
+	private void toLocal(int instance, Ray ray, Ray local) {
+		toLocal(inverses, 16 * instance, ray, local);
+	}
+
+	/**
+	 * Moves a ray by the matrix starting at <code>m[o]</code>.
+	 */
+	static void toLocal(double[] m, int o, Ray ray, Ray local) {
+		Vector3 p = ray.origin, d = ray.direction;
+		local.origin.x = m[o] * p.x + m[o + 4] * p.y + m[o + 8] * p.z + m[o + 12];
+		local.origin.y = m[o + 1] * p.x + m[o + 5] * p.y + m[o + 9] * p.z + m[o + 13];
+		local.origin.z = m[o + 2] * p.x + m[o + 6] * p.y + m[o + 10] * p.z + m[o + 14];
+		local.direction.x = m[o] * d.x + m[o + 4] * d.y + m[o + 8] * d.z;
+		local.direction.y = m[o + 1] * d.x + m[o + 5] * d.y + m[o + 9] * d.z;
+		local.direction.z = m[o + 2] * d.x + m[o + 6] * d.y + m[o + 10] * d.z;
+		local.tMin = ray.tMin;
+		local.tMax = ray.tMax;
+	}
+
+	/**
+	 * Moves a normal from an instance's space to world space by multiplying it
+	 * with the transpose of the inverse, then normalizes it.
+	 */
+	private void normalToWorld(int instance, Vector3 n) {
+		double[] m = inverses;
+		int o = 16 * instance;
+		double x = m[o] * n.x + m[o + 1] * n.y + m[o + 2] * n.z;
+		double y = m[o + 4] * n.x + m[o + 5] * n.y + m[o + 6] * n.z;
+		double z = m[o + 8] * n.x + m[o + 9] * n.y + m[o + 10] * n.z;
+		double len = Math.sqrt(x * x + y * y + z * z);
+		n.x = x / len;
+		n.y = y / len;
+		n.z = z / len;
+	}
+
+	/**
+	 * @return the bounds of every instance, in world space
+	 */
+	public AABB getBounds() {
+		AABB b = new AABB();
+		if (instances.length > 0) {
+			b.grow(bounds[0], bounds[1], bounds[2]);
+			b.grow(bounds[3], bounds[4], bounds[5]);
+		}
+		return b;
+	}
+
+	/**
+	 * @return the number of instances in the tree
+	 */
+	public int instanceCount() {
+		return instances.length;
+	}
+
+	/**
+	 * @return the number of nodes in the tree
+	 */
+	public int nodeCount() {
+		return nodeCount;
+	}
+}
@@ -0,0 +1,97 @@
+package renderer.kernel;
+
+import java.util.ArrayList;
+
+import renderer.infrastructure.math.Vector3;
+import renderer.scene.actors.Model;
+
+/**
+ * Ray/geometry intersection routines that work directly on the
+ * <code>Vector3</code>s stored in a <code>Model</code>.
+ * 
+ * @see Ray
+ * @see RaycastHit
+ */
+public class Intersector {
+
+	private Intersector() {
+	}
+
+	/**
+	 * Intersects a ray with a triangle using the
+	 * <a href="https://en.wikipedia.org/wiki/M%C3%B6ller%E2%80%93Trumbore_intersection_algorithm">M&ouml;ller-Trumbore</a>
+	 * algorithm. Only hits closer than both <code>ray.tMax</code> and
+	 * <code>hit.distance</code> are accepted. On success <code>distance</code>,
+	 * <code>u</code>, <code>v</code> and <code>normal</code> of the hit are
+	 * updated; the caller fills in which face was hit.
+	 * 
+	 * @return <b>true</b> if the hit was updated, <b>false</b> otherwise
+	 */
+	public static boolean intersectTriangle(Ray ray, Vector3 v0, Vector3 v1, Vector3 v2, RaycastHit hit) {
+		Vector3 e1 = v1.cpy().sub(v0);
+		Vector3 e2 = v2.cpy().sub(v0);
+		Vector3 p = ray.direction.cross(e2);
+		double det = e1.dot(p);
+		if (det > -1e-12 && det < 1e-12)
+			return false; // parallel to the triangle
+		double invDet = 1.0 / det;
+		Vector3 s = ray.origin.cpy().sub(v0);
+		double u = s.dot(p) * invDet;
+		if (u < 0.0 || u > 1.0)
+			return false;
+		Vector3 q = s.cross(e1);
+		double v = ray.direction.dot(q) * invDet;
+		if (v < 0.0 || u + v > 1.0)
+			return false;
+		double t = e2.dot(q) * invDet;
+		if (t < ray.tMin || t > ray.tMax || t >= hit.distance)
+			return false;
+
+		hit.distance = t;
+		hit.u = u;
+		hit.v = v;
+		Vector3 n = e1.cross(e2);
+		if (n.dot(ray.direction) > 0.0)
+			n.scl(-1.0);
+		double len = n.len();
+		hit.normal.x = n.x / len;
+		hit.normal.y = n.y / len;
+		hit.normal.z = n.z / len;
+		return true;
+	}
+
+	/**
+	 * Intersects a single face of a Model, treating it as a triangle fan.
+	 * 
+	 * @return <b>true</b> if the hit was updated, <b>false</b> otherwise
+	 */
+	public static boolean intersectFace(Ray ray, Model model, int faceIndex, RaycastHit hit) {
+		ArrayList<Vector3> vertices = model.vertices;
+		int[] idx = model.faces.get(faceIndex).vertices;
+		Vector3 v0 = vertices.get(idx[0]);
+		boolean found = false;
+		for (int i = 1; i < idx.length - 1; i++) {
+			if (intersectTriangle(ray, v0, vertices.get(idx[i]), vertices.get(idx[i + 1]), hit)) {
+				hit.model = model;
+				hit.face = faceIndex;
+				hit.triangle = i - 1;
+				found = true;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Intersects every face of a Model with a ray. This is a brute-force test, so
+	 * its cost grows linearly with the number of faces.
+	 * 
+	 * @return <b>true</b> if the hit was updated, <b>false</b> otherwise
+	 */
+	public static boolean intersectModel(Ray ray, Model model, RaycastHit hit) {
+		boolean found = false;
+		int faceCount = model.faces.size();
+		for (int f = 0; f < faceCount; f++)
+			found |= intersectFace(ray, model, f, hit);
+		return found;
+	}
+}
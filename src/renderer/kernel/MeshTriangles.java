@@ -0,0 +1,69 @@
+package renderer.kernel;
+
+import java.util.ArrayList;
+
+import renderer.infrastructure.math.Vector3;
+import renderer.scene.actors.Face;
+import renderer.scene.actors.Model;
+
+/**
+ * The triangles of a Model, flattened into arrays along with the bounds and
+ * centroid of every triangle. This is the input to the BVH builders.
+ * 
+ * @see BVH
+ */
+class MeshTriangles {
+	final Model model;
+	final int count;
+	/** Indices into <code>model.vertices</code>, three per triangle. */
+	final int[] vertices;
+	/** The face each triangle came from. */
+	final int[] face;
+	/** Which triangle of the face's fan each triangle is. */
+	final int[] sub;
+	/** minX, minY, minZ, maxX, maxY, maxZ of every triangle. */
+	final double[] bounds;
+	/** The centroid of every triangle's bounds. */
+	final double[] centroids;
+
+	MeshTriangles(Model model) {
+		this.model = model;
+		this.count = model.triangleCount();
+		vertices = new int[3 * count];
+		face = new int[count];
+		sub = new int[count];
+		bounds = new double[6 * count];
+		centroids = new double[3 * count];
+
+		ArrayList<Vector3> v = model.vertices;
+		int t = 0;
+		for (int f = 0; f < model.faces.size(); f++) {
+			Face fc = model.faces.get(f);
+			for (int i = 1; i < fc.vertices.length - 1; i++, t++) {
+				vertices[3 * t] = fc.vertices[0];
+				vertices[3 * t + 1] = fc.vertices[i];
+				vertices[3 * t + 2] = fc.vertices[i + 1];
+				face[t] = f;
+				sub[t] = i - 1;
+				Vector3 a = v.get(fc.vertices[0]), b = v.get(fc.vertices[i]), c = v.get(fc.vertices[i + 1]);
+				bounds[6 * t] = Math.min(a.x, Math.min(b.x, c.x));
+				bounds[6 * t + 1] = Math.min(a.y, Math.min(b.y, c.y));
+				bounds[6 * t + 2] = Math.min(a.z, Math.min(b.z, c.z));
+				bounds[6 * t + 3] = Math.max(a.x, Math.max(b.x, c.x));
+				bounds[6 * t + 4] = Math.max(a.y, Math.max(b.y, c.y));
+				bounds[6 * t + 5] = Math.max(a.z, Math.max(b.z, c.z));
+				for (int k = 0; k < 3; k++)
+					centroids[3 * t + k] = 0.5 * (bounds[6 * t + k] + bounds[6 * t + k + 3]);
+			}
+		}
+	}
+
+	/**
+	 * Grows a box by the bounds of a triangle.
+	 */
+	void growBounds(AABB box, int triangle) {
+		int b = 6 * triangle;
+		box.grow(bounds[b], bounds[b + 1], bounds[b + 2]);
+		box.grow(bounds[b + 3], bounds[b + 4], bounds[b + 5]);
+	}
+}
@@ -0,0 +1,78 @@
+package renderer.kernel;
+
+import java.util.Arrays;
+
+/**
+ * Remembers the last triangle that blocked each of a few kinds of shadow ray,
+ * so that it can be tested before searching the whole Scene. Neighbouring
+ * pixels usually lie in the shadow of the same triangle, or at least of the
+ * same instance, so the first tests often settle the query.
+ * <p>
+ * Each render thread keeps its own cache, with one slot per light, and passes
+ * it to {@link InstanceBVH#occluded(Ray, RaycastHit, OccluderCache, int)}. A
+ * cache is tied to the <code>InstanceBVH</code> it was filled from and clears
+ * itself when used with another one.
+ * </p>
+ */
+public class OccluderCache {
+	/** The instance and triangle that last blocked a ray of each slot. */
+	private int[] instances, triangles;
+	private InstanceBVH owner;
+	/** How many queries were answered by the cached triangle. */
+	public long hits;
+	/** How many queries were answered by another triangle of the cached instance. */
+	public long instanceHits;
+	/** How many queries were made. */
+	public long queries;
+
+	/**
+	 * Creates an empty cache.
+	 * 
+	 * @param slots
+	 *            the number of occluders to remember, usually one per light
+	 */
+	public OccluderCache(int slots) {
+		instances = new int[slots];
+		triangles = new int[slots];
+		clear();
+	}
+
+	/**
+	 * Forgets every occluder.
+	 */
+	public void clear() {
+		Arrays.fill(instances, -1);
+		Arrays.fill(triangles, -1);
+	}
+
+	/**
+	 * @return the number of slots
+	 */
+	public int size() {
+		return instances.length;
+	}
+
+	/**
+	 * Switches the cache to another tree, clearing it if it was filled from a
+	 * different one.
+	 */
+	void use(InstanceBVH bvh) {
+		if (owner != bvh) {
+			owner = bvh;
+			clear();
+		}
+	}
+
+	int instance(int slot) {
+		return instances[slot];
+	}
+
+	int triangle(int slot) {
+		return triangles[slot];
+	}
+
+	void remember(int slot, int instance, int triangle) {
+		instances[slot] = instance;
+		triangles[slot] = triangle;
+	}
+}
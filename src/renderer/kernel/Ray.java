@@ -0,0 +1,138 @@
+package renderer.kernel;
+
+import renderer.infrastructure.math.Vector3;
+
+/**
+ * A struct-like class representing a ray, the half-line <code>origin + t * direction</code>
+ * where <code>tMin &lt;= t &lt;= tMax</code>.
+ * <p>
+ * Rays are meant to be re-used. Render threads keep one around and overwrite
+ * its fields for every pixel instead of creating a new one.
+ * </p>
+ * 
+ * @see RaycastHit
+ */
+public class Ray {
+	/**
+	 * The default value for <code>tMin</code>. Keeps secondary rays from
+	 * intersecting the surface they were spawned from.
+	 */
+	public static final double DEFAULT_T_MIN = 1e-6;
+
+	public Vector3 origin;
+	/** The direction of the ray. Should be normalized. */
+	public Vector3 direction;
+	public double tMin, tMax;
+
+	// Single precision copies of the ray used by the intersection kernels.
+	// Filled in by prepare().
+	float ox, oy, oz, dx, dy, dz;
+	float invDx, invDy, invDz;
+	/** The axis the direction is largest along, and the two others. */
+	int kx, ky, kz;
+	/** Shear constants that map the ray onto the +Z axis. */
+	float shearX, shearY, shearZ;
+	/** The origin, permuted by kx, ky and kz. */
+	float okx, oky, okz;
+
+	/**
+	 * Default constructor. Creates a ray at the origin pointing down the negative
+	 * Z-axis.
+	 */
+	public Ray() {
+		this(new Vector3(), new Vector3(0.0, 0.0, -1.0));
+	}
+
+	/**
+	 * Creates a new Ray. The Vector3s are copied.
+	 * 
+	 * @param origin
+	 *            where the ray starts
+	 * @param direction
+	 *            the direction of the ray
+	 */
+	public Ray(Vector3 origin, Vector3 direction) {
+		this.origin = origin.cpy();
+		this.direction = direction.cpy();
+		this.tMin = DEFAULT_T_MIN;
+		this.tMax = Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Overwrites this ray without allocating.
+	 * 
+	 * @return a reference to this Ray for method chaining
+	 */
+	public Ray set(double ox, double oy, double oz, double dx, double dy, double dz) {
+		origin.x = ox;
+		origin.y = oy;
+		origin.z = oz;
+		direction.x = dx;
+		direction.y = dy;
+		direction.z = dz;
+		tMin = DEFAULT_T_MIN;
+		tMax = Double.POSITIVE_INFINITY;
+		return this;
+	}
+
+	/**
+	 * Computes the single precision values the intersection kernels work with.
+	 * Kernels call this once at the start of every query, so it has to be called
+	 * by hand only when using {@link TriangleTable#intersect(int, Ray, float)}
+	 * directly.
+	 * <p>
+	 * Besides the inverse direction used for slab tests, this sets up the
+	 * watertight triangle test of
+	 * <a href="http://jcgt.org/published/0002/01/05/">Woop et al.</a>: the
+	 * coordinates are permuted so that Z is the dominant axis of the direction,
+	 * and a shear is computed that maps the ray onto the +Z axis.
+	 * </p>
+	 */
+	public void prepare() {
+		ox = (float) origin.x;
+		oy = (float) origin.y;
+		oz = (float) origin.z;
+		dx = (float) direction.x;
+		dy = (float) direction.y;
+		dz = (float) direction.z;
+		invDx = 1.0f / dx;
+		invDy = 1.0f / dy;
+		invDz = 1.0f / dz;
+
+		float ax = Math.abs(dx), ay = Math.abs(dy), az = Math.abs(dz);
+		kz = ax > ay ? (ax > az ? 0 : 2) : (ay > az ? 1 : 2);
+		kx = kz == 2 ? 0 : kz + 1;
+		ky = kx == 2 ? 0 : kx + 1;
+		float dkz = component(kz);
+		if (dkz < 0.0f) {
+			// Swap to preserve the winding of the triangles
+			int tmp = kx;
+			kx = ky;
+			ky = tmp;
+		}
+		shearX = component(kx) / dkz;
+		shearY = component(ky) / dkz;
+		shearZ = 1.0f / dkz;
+		okx = kx == 0 ? ox : kx == 1 ? oy : oz;
+		oky = ky == 0 ? ox : ky == 1 ? oy : oz;
+		okz = kz == 0 ? ox : kz == 1 ? oy : oz;
+	}
+
+	private float component(int axis) {
+		return axis == 0 ? dx : axis == 1 ? dy : dz;
+	}
+
+	/**
+	 * @param t
+	 *            the distance along the ray
+	 * @return a new Vector3 at <code>origin + t * direction</code>
+	 */
+	public Vector3 pointAt(double t) {
+		return new Vector3(origin.x + t * direction.x, origin.y + t * direction.y, origin.z + t * direction.z);
+	}
+
+	@Override
+	public String toString() {
+		return "Ray[" + origin + " -> " + direction + ", t=" + tMin + ".." + tMax + "]";
+	}
+}
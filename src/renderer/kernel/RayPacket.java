@@ -0,0 +1,295 @@
+package renderer.kernel;
+
+/**
+ * A group of up to {@link #MAX_SIZE} rays traced through a BVH together, such
+ * as the primary rays of an 8x8 block of pixels. Neighbouring primary rays
+ * visit almost the same nodes, so a packet tests each node once for the whole
+ * group instead of once per ray.
+ * <p>
+ * Traversal follows the ranged scheme of
+ * <a href="https://doi.org/10.1109/RT.2007.4342588">Wald et al.</a>: every
+ * node is visited with the index of the first ray that hits it, which is
+ * usually the same ray that hit its parent, so most nodes cost one slab test.
+ * When that ray misses, the packet's bounding frustum is tested with interval
+ * arithmetic, which culls the node for every ray at once. Only if both fail
+ * are the remaining rays tested one by one. The frustum test needs all the
+ * directions to point the same way along each axis; packets that don't are
+ * traced one ray at a time instead. Rays are also traced one at a time inside
+ * an instance only a few of them reach.
+ * </p>
+ * <p>
+ * Like rays and hits, packets are meant to be re-used: fill in
+ * <code>rays</code> and <code>size</code>, then pass the packet to
+ * {@link renderer.scene.Scene#intersect(RayPacket)}.
+ * </p>
+ *
+ * @see InstanceBVH#intersect(RayPacket)
+ */
+public class RayPacket {
+	/** The most rays a packet can hold, enough for an 8x8 block. */
+	public static final int MAX_SIZE = 64;
+	/**
+	 * Packets that reach an instance with fewer rays than this trace them one by
+	 * one, which is cheaper than a packet that's mostly empty.
+	 */
+	public static final int MIN_SIZE = 4;
+
+	/** The rays to trace. Only the first <code>size</code> are used. */
+	public final Ray[] rays;
+	/** Receives the closest hit of each ray. */
+	public final RaycastHit[] hits;
+	/** The number of rays in the packet. */
+	public int size;
+
+	// Single precision copies of the rays, filled in by prepare()
+	final float[] ox, oy, oz;
+	final float[] ix, iy, iz;
+	final float[] tMin;
+	/** Distance to the closest hit of each ray so far. */
+	final float[] best;
+	/** The closest triangle of each ray, as an index into its bottom-level BVH. */
+	final int[] triangles;
+	/** The instance each closest triangle belongs to. */
+	final int[] owners;
+	/** For a local packet, the ray of the world packet each ray was moved from. */
+	final int[] index;
+
+	/** Can the frustum test be used? */
+	boolean coherent;
+	/** Bounds of the origins and inverse directions along each axis. */
+	private final float[] originMin, originMax, invMin, invMax;
+	private float minTMin, maxBest;
+	/** Where the last ray that passed a node test entered it. */
+	float entry;
+
+	int[] stackNodes, stackFirst;
+	/** Scratch space for rays traced one by one. */
+	final TraversalStack stack;
+	/** The packet moved into an instance's space. Created when first needed. */
+	private RayPacket local;
+
+	/**
+	 * Default constructor. Creates an empty packet of {@link #MAX_SIZE} rays.
+	 */
+	public RayPacket() {
+		this(true);
+	}
+
+	private RayPacket(boolean withHits) {
+		rays = new Ray[MAX_SIZE];
+		hits = new RaycastHit[withHits ? MAX_SIZE : 0];
+		for (int i = 0; i < MAX_SIZE; i++)
+			rays[i] = new Ray();
+		for (int i = 0; i < hits.length; i++)
+			hits[i] = new RaycastHit();
+		best = new float[MAX_SIZE];
+		triangles = new int[MAX_SIZE];
+		owners = new int[MAX_SIZE];
+		index = new int[MAX_SIZE];
+		ox = new float[MAX_SIZE];
+		oy = new float[MAX_SIZE];
+		oz = new float[MAX_SIZE];
+		ix = new float[MAX_SIZE];
+		iy = new float[MAX_SIZE];
+		iz = new float[MAX_SIZE];
+		tMin = new float[MAX_SIZE];
+		originMin = new float[3];
+		originMax = new float[3];
+		invMin = new float[3];
+		invMax = new float[3];
+		stackNodes = new int[64];
+		stackFirst = new int[64];
+		stack = new TraversalStack();
+	}
+
+	/**
+	 * Resets the hits and results, and prepares the rays for tracing.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if <code>size</code> is out of range
+	 */
+	void begin() {
+		if (size < 0 || size > MAX_SIZE)
+			throw new IllegalArgumentException("A RayPacket holds at most " + MAX_SIZE + " rays, not " + size);
+		for (int r = 0; r < size; r++) {
+			hits[r].reset();
+			best[r] = (float) rays[r].tMax;
+			triangles[r] = -1;
+			owners[r] = -1;
+		}
+		prepare();
+	}
+
+	/**
+	 * Computes the single precision copies of the rays and the bounds of the
+	 * packet's frustum.
+	 */
+	private void prepare() {
+		coherent = size > 0;
+		minTMin = Float.POSITIVE_INFINITY;
+		for (int a = 0; a < 3; a++) {
+			originMin[a] = invMin[a] = Float.POSITIVE_INFINITY;
+			originMax[a] = invMax[a] = Float.NEGATIVE_INFINITY;
+		}
+		for (int r = 0; r < size; r++) {
+			Ray ray = rays[r];
+			ray.prepare();
+			ox[r] = ray.ox;
+			oy[r] = ray.oy;
+			oz[r] = ray.oz;
+			ix[r] = ray.invDx;
+			iy[r] = ray.invDy;
+			iz[r] = ray.invDz;
+			tMin[r] = (float) ray.tMin;
+			minTMin = Math.min(minTMin, tMin[r]);
+			include(0, ray.ox, ray.invDx);
+			include(1, ray.oy, ray.invDy);
+			include(2, ray.oz, ray.invDz);
+		}
+		for (int a = 0; a < 3; a++) {
+			// Directions must agree in sign, and be finite, along every axis
+			coherent &= (invMin[a] > 0.0f || invMax[a] < 0.0f) && !Float.isInfinite(invMin[a])
+					&& !Float.isInfinite(invMax[a]);
+		}
+		updateMaxBest();
+	}
+
+	private void include(int axis, float o, float inv) {
+		originMin[axis] = Math.min(originMin[axis], o);
+		originMax[axis] = Math.max(originMax[axis], o);
+		invMin[axis] = Math.min(invMin[axis], inv);
+		invMax[axis] = Math.max(invMax[axis], inv);
+	}
+
+	/**
+	 * Must be called after any ray's closest hit gets closer.
+	 */
+	void updateMaxBest() {
+		float m = Float.NEGATIVE_INFINITY;
+		for (int r = 0; r < size; r++)
+			m = Math.max(m, best[r]);
+		maxBest = m;
+	}
+
+	/**
+	 * Moves the rays that hit a node of an instance BVH into an instance's space.
+	 * Rays that miss the node are left out, so a packet that only grazes a small
+	 * instance doesn't pay for moving all of its rays.
+	 *
+	 * @param m
+	 *            holds the world-to-instance matrix
+	 * @param o
+	 *            where the matrix starts in <code>m</code>
+	 * @param bounds
+	 *            the node bounds of the instance BVH
+	 * @param node
+	 *            the leaf holding the instance
+	 * @param first
+	 *            the first ray known to hit the node
+	 * @return a packet holding the moved rays. Pass it back to
+	 *         {@link #merge(RayPacket, int)} once it has been traced.
+	 */
+	RayPacket toLocal(double[] m, int o, float[] bounds, int node, int first) {
+		if (local == null)
+			local = new RayPacket(false);
+		int k = 0;
+		for (int r = first; r < size; r++) {
+			if (r != first && !hits(bounds, node, r))
+				continue;
+			InstanceBVH.toLocal(m, o, rays[r], local.rays[k]);
+			local.index[k] = r;
+			local.best[k] = best[r];
+			local.triangles[k] = -1;
+			k++;
+		}
+		local.size = k;
+		local.prepare();
+		return local;
+	}
+
+	/**
+	 * Copies the closer hits a local packet found back into this packet.
+	 *
+	 * @param local
+	 *            the packet returned by <code>toLocal</code>
+	 * @param owner
+	 *            the instance the local packet was traced against
+	 */
+	void merge(RayPacket local, int owner) {
+		for (int k = 0; k < local.size; k++) {
+			if (local.triangles[k] < 0)
+				continue;
+			int r = local.index[k];
+			best[r] = local.best[k];
+			triangles[r] = local.triangles[k];
+			owners[r] = owner;
+		}
+	}
+
+	/**
+	 * Makes sure the traversal stack can hold at least <code>depth</code> entries.
+	 */
+	void ensureCapacity(int depth) {
+		if (stackNodes.length < depth) {
+			stackNodes = new int[depth];
+			stackFirst = new int[depth];
+		}
+	}
+
+	/**
+	 * Finds the first ray, starting at <code>first</code>, that hits a node
+	 * closer than its closest hit so far. Sets {@link #entry} to where that ray
+	 * enters the node.
+	 *
+	 * @return the index of the ray, or <code>size</code> if none of them hit the
+	 *         node
+	 */
+	int firstHit(float[] bounds, int node, int first) {
+		int n = size;
+		if (first < n && hits(bounds, node, first))
+			return first;
+		if (coherent && frustumMisses(bounds, node))
+			return n;
+		for (int r = first + 1; r < n; r++) {
+			if (hits(bounds, node, r))
+				return r;
+		}
+		return n;
+	}
+
+	/**
+	 * Slab test of a single ray of the packet.
+	 */
+	boolean hits(float[] bounds, int node, int r) {
+		float e = FlatBVH.slab(bounds, node, ox[r], oy[r], oz[r], ix[r], iy[r], iz[r], tMin[r], best[r]);
+		if (e == Float.POSITIVE_INFINITY)
+			return false;
+		entry = e;
+		return true;
+	}
+
+	/**
+	 * Tests a node against the whole packet at once using interval arithmetic.
+	 * Conservative: it can only say a node is missed if every ray misses it.
+	 */
+	private boolean frustumMisses(float[] b, int node) {
+		int o = 6 * node;
+		float tNear = minTMin, tFar = maxBest;
+		for (int a = 0; a < 3; a++) {
+			float near, far;
+			if (invMin[a] > 0.0f) {
+				near = b[o + a];
+				far = b[o + a + 3];
+			} else {
+				near = b[o + a + 3];
+				far = b[o + a];
+			}
+			float iLo = invMin[a], iHi = invMax[a];
+			float n0 = near - originMax[a], n1 = near - originMin[a];
+			float f0 = far - originMax[a], f1 = far - originMin[a];
+			tNear = Math.max(tNear, Math.min(Math.min(n0 * iLo, n0 * iHi), Math.min(n1 * iLo, n1 * iHi)));
+			tFar = Math.min(tFar, Math.max(Math.max(f0 * iLo, f0 * iHi), Math.max(f1 * iLo, f1 * iHi)));
+		}
+		return tNear > tFar;
+	}
+}
@@ -0,0 +1,66 @@
+package renderer.kernel;
+
+import renderer.infrastructure.math.Vector3;
+import renderer.scene.actors.Model;
+import renderer.scene.actors.ModelInstance;
+
+/**
+ * A struct-like class that stores the closest intersection found along a
+ * <code>Ray</code>. Like rays, hits are re-used between queries; call
+ * {@link #reset()} before starting a new one.
+ * 
+ * @see Ray
+ * @see Intersector
+ */
+public class RaycastHit {
+	/** Distance along the ray, or infinity if nothing has been hit. */
+	public double distance;
+	/** Barycentric coordinates of the hit inside the triangle that was hit. */
+	public double u, v;
+	/** Index of the face that was hit in {@link Model#faces}. */
+	public int face;
+	/** Which triangle of the (fan triangulated) face was hit. */
+	public int triangle;
+	/** The Model that was hit. */
+	public Model model;
+	/** The placed copy of the Model that was hit, if the Scene was searched. */
+	public ModelInstance instance;
+	/** The geometric normal at the hit, normalized. Faces the ray origin. */
+	public Vector3 normal;
+	/** Scratch space used while searching for the hit. */
+	public final TraversalStack stack;
+	/** Scratch space for the top level of an {@link InstanceBVH}. */
+	final TraversalStack instanceStack;
+	/** The ray being traced, moved into the space of the instance being searched. */
+	final Ray localRay;
+
+	/**
+	 * Default constructor. Creates an empty hit.
+	 */
+	public RaycastHit() {
+		normal = new Vector3();
+		stack = new TraversalStack();
+		instanceStack = new TraversalStack();
+		localRay = new Ray();
+		reset();
+	}
+
+	/**
+	 * Clears this hit so that it can be used for another query.
+	 */
+	public void reset() {
+		distance = Double.POSITIVE_INFINITY;
+		u = v = 0.0;
+		face = -1;
+		triangle = -1;
+		model = null;
+		instance = null;
+	}
+
+	/**
+	 * @return <b>true</b> if something was hit, <b>false</b> otherwise
+	 */
+	public boolean hasHit() {
+		return face >= 0;
+	}
+}
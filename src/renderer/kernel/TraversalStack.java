@@ -0,0 +1,36 @@
+package renderer.kernel;
+
+/**
+ * Scratch space for walking a <code>FlatBVH</code>: the nodes still to visit
+ * and the distance at which the ray enters each of them. Every render thread
+ * keeps its own stack (each <code>RaycastHit</code> carries one) so that
+ * traversal never allocates.
+ * 
+ * @see FlatBVH
+ */
+public class TraversalStack {
+	public int[] nodes;
+	public float[] distances;
+
+	/**
+	 * Default constructor. Creates a stack deep enough for most trees; it grows
+	 * if a deeper one is traversed.
+	 */
+	public TraversalStack() {
+		nodes = new int[64];
+		distances = new float[64];
+	}
+
+	/**
+	 * Makes sure the stack can hold at least <code>depth</code> entries.
+	 * 
+	 * @param depth
+	 *            the number of entries needed
+	 */
+	public void ensureCapacity(int depth) {
+		if (nodes.length < depth) {
+			nodes = new int[depth];
+			distances = new float[depth];
+		}
+	}
+}
@@ -0,0 +1,202 @@
+package renderer.kernel;
+
+import java.util.ArrayList;
+
+import renderer.infrastructure.math.Vector3;
+import renderer.scene.actors.Model;
+
+/**
+ * The triangles of a Model, precomputed into one contiguous
+ * <code>float[]</code> so that the intersection kernels never touch a
+ * <code>Vector3</code>.
+ * <p>
+ * Each triangle takes {@link #STRIDE} floats:
+ * </p>
+ * 
+ * <pre>
+ * v0.x v0.y v0.z  v1.x v1.y v1.z  v2.x v2.y v2.z  n.x n.y n.z
+ * </pre>
+ * 
+ * <p>
+ * where <code>n</code> is the normalized geometric normal. All three vertices
+ * are kept (rather than one vertex and two edges) because the watertight test
+ * needs each vertex relative to the ray origin; rebuilding <code>v1</code> as
+ * <code>v0 + e1</code> in single precision would round differently for the two
+ * triangles sharing an edge, and rays could slip through the crack between
+ * them. Edges are cheap to recompute for the one triangle that wins.
+ * </p>
+ * 
+ * @see FlatBVH
+ */
+public class TriangleTable {
+	/** The number of floats stored for each triangle. */
+	public static final int STRIDE = 12;
+	/** Offset of the normal inside a record. */
+	static final int NORMAL = 9;
+
+	public final Model model;
+	public final float[] data;
+	/** The face and fan triangle of the Model each triangle came from. */
+	public final int[] faces, subs;
+
+	/**
+	 * Builds a table of every triangle in a Model, in face order.
+	 * 
+	 * @param model
+	 *            the Model to build the table from
+	 */
+	public TriangleTable(Model model) {
+		this(new MeshTriangles(model), null);
+	}
+
+	/**
+	 * Builds a table of the triangles of a Model in the order the leaves of a BVH
+	 * reference them.
+	 * 
+	 * @param bvh
+	 *            the BVH whose triangles to store
+	 */
+	public TriangleTable(BVH bvh) {
+		this(bvh.triangles, bvh.order);
+	}
+
+	private TriangleTable(MeshTriangles tris, int[] order) {
+		this.model = tris.model;
+		int n = tris.count;
+		data = new float[STRIDE * n];
+		faces = new int[n];
+		subs = new int[n];
+		ArrayList<Vector3> v = model.vertices;
+		for (int i = 0; i < n; i++) {
+			int t = order == null ? i : order[i];
+			int o = STRIDE * i;
+			for (int k = 0; k < 3; k++) {
+				Vector3 p = v.get(tris.vertices[3 * t + k]);
+				data[o + 3 * k] = (float) p.x;
+				data[o + 3 * k + 1] = (float) p.y;
+				data[o + 3 * k + 2] = (float) p.z;
+			}
+			double e1x = data[o + 3] - data[o], e1y = data[o + 4] - data[o + 1], e1z = data[o + 5] - data[o + 2];
+			double e2x = data[o + 6] - data[o], e2y = data[o + 7] - data[o + 1], e2z = data[o + 8] - data[o + 2];
+			double nx = e1y * e2z - e1z * e2y, ny = e1z * e2x - e1x * e2z, nz = e1x * e2y - e1y * e2x;
+			double len = Math.sqrt(nx * nx + ny * ny + nz * nz);
+			if (len > 0.0) {
+				data[o + NORMAL] = (float) (nx / len);
+				data[o + NORMAL + 1] = (float) (ny / len);
+				data[o + NORMAL + 2] = (float) (nz / len);
+			}
+			faces[i] = tris.face[t];
+			subs[i] = tris.sub[t];
+		}
+	}
+
+	/**
+	 * @return the number of triangles in this table
+	 */
+	public int size() {
+		return faces.length;
+	}
+
+	/**
+	 * Intersects a ray with a triangle using the
+	 * <a href="http://jcgt.org/published/0002/01/05/">watertight
+	 * ray/triangle test</a> of Woop, Benthin and Wald. Rays that pass exactly
+	 * through a shared edge or vertex hit at least one of the triangles sharing
+	 * it, so there are no cracks between neighbouring triangles.
+	 * <p>
+	 * This method allocates nothing; {@link Ray#prepare()} must have been called
+	 * since the ray last changed.
+	 * </p>
+	 * 
+	 * @param tri
+	 *            the index of the triangle
+	 * @param ray
+	 *            the prepared ray
+	 * @param tMax
+	 *            hits farther than this are ignored
+	 * @return the distance to the hit, or positive infinity if there isn't one
+	 *         between <code>ray.tMin</code> and <code>tMax</code>
+	 */
+	public float intersect(int tri, Ray ray, float tMax) {
+		float[] d = data;
+		int o = STRIDE * tri;
+		int kx = ray.kx, ky = ray.ky, kz = ray.kz;
+		float sx = ray.shearX, sy = ray.shearY, sz = ray.shearZ;
+
+		// Vertices relative to the ray origin, in the permuted coordinate frame
+		float az = d[o + kz] - ray.okz, bz = d[o + 3 + kz] - ray.okz, cz = d[o + 6 + kz] - ray.okz;
+		float ax = d[o + kx] - ray.okx - sx * az;
+		float ay = d[o + ky] - ray.oky - sy * az;
+		float bx = d[o + 3 + kx] - ray.okx - sx * bz;
+		float by = d[o + 3 + ky] - ray.oky - sy * bz;
+		float cx = d[o + 6 + kx] - ray.okx - sx * cz;
+		float cy = d[o + 6 + ky] - ray.oky - sy * cz;
+
+		// Scaled barycentric coordinates
+		float u = cx * by - cy * bx;
+		float v = ax * cy - ay * cx;
+		float w = bx * ay - by * ax;
+		if (u == 0.0f || v == 0.0f || w == 0.0f) {
+			// On an edge: redo the test in double precision so both triangles agree
+			double cxd = cx, cyd = cy, bxd = bx, byd = by, axd = ax, ayd = ay;
+			u = (float) (cxd * byd - cyd * bxd);
+			v = (float) (axd * cyd - ayd * cxd);
+			w = (float) (bxd * ayd - byd * axd);
+		}
+		if ((u < 0.0f || v < 0.0f || w < 0.0f) && (u > 0.0f || v > 0.0f || w > 0.0f))
+			return Float.POSITIVE_INFINITY;
+		float det = u + v + w;
+		if (det == 0.0f)
+			return Float.POSITIVE_INFINITY;
+
+		// Scaled hit distance, compared against the interval before dividing
+		float t = u * sz * az + v * sz * bz + w * sz * cz;
+		float tMin = (float) ray.tMin;
+		if (det > 0.0f ? (t < tMin * det || t > tMax * det) : (t > tMin * det || t < tMax * det))
+			return Float.POSITIVE_INFINITY;
+		return t / det;
+	}
+
+	/**
+	 * Fills in a hit for a triangle found by
+	 * {@link #intersect(int, Ray, float)}. The barycentric coordinates are only
+	 * computed here, for the one triangle that ends up closest.
+	 * 
+	 * @param tri
+	 *            the triangle that was hit
+	 * @param ray
+	 *            the ray that hit it
+	 * @param distance
+	 *            the distance to the hit
+	 * @param hit
+	 *            receives the hit
+	 */
+	public void recordHit(int tri, Ray ray, double distance, RaycastHit hit) {
+		float[] d = data;
+		int o = STRIDE * tri;
+		hit.distance = distance;
+		hit.model = model;
+		hit.face = faces[tri];
+		hit.triangle = subs[tri];
+
+		double px = ray.origin.x + distance * ray.direction.x - d[o];
+		double py = ray.origin.y + distance * ray.direction.y - d[o + 1];
+		double pz = ray.origin.z + distance * ray.direction.z - d[o + 2];
+		double e1x = d[o + 3] - d[o], e1y = d[o + 4] - d[o + 1], e1z = d[o + 5] - d[o + 2];
+		double e2x = d[o + 6] - d[o], e2y = d[o + 7] - d[o + 1], e2z = d[o + 8] - d[o + 2];
+		double d11 = e1x * e1x + e1y * e1y + e1z * e1z;
+		double d12 = e1x * e2x + e1y * e2y + e1z * e2z;
+		double d22 = e2x * e2x + e2y * e2y + e2z * e2z;
+		double p1 = px * e1x + py * e1y + pz * e1z;
+		double p2 = px * e2x + py * e2y + pz * e2z;
+		double denom = d11 * d22 - d12 * d12;
+		hit.u = denom != 0.0 ? (d22 * p1 - d12 * p2) / denom : 0.0;
+		hit.v = denom != 0.0 ? (d11 * p2 - d12 * p1) / denom : 0.0;
+
+		double nx = d[o + NORMAL], ny = d[o + NORMAL + 1], nz = d[o + NORMAL + 2];
+		double s = nx * ray.direction.x + ny * ray.direction.y + nz * ray.direction.z > 0.0 ? -1.0 : 1.0;
+		hit.normal.x = s * nx;
+		hit.normal.y = s * ny;
+		hit.normal.z = s * nz;
+	}
+}
@@ -1,8 +1,9 @@
 /**
- * 
+ * Contains the Raytracer's intersection kernels: rays, hit records and the
+ * routines used to find where rays hit the geometry in a Scene.
  */
 /**
  * @author Don Isaac
  *
  */
-package renderer.kernel;
\ No newline at end of file
+package renderer.kernel;
@@ -0,0 +1,492 @@
+package renderer.render;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import renderer.kernel.RaycastHit;
+import renderer.scene.Scene;
+import renderer.scene.actors.Face;
+import renderer.scene.actors.ModelInstance;
+
+/**
+ * Arbitrary output variables: what the primary rays of each pixel hit, next
+ * to the picture itself, for compositing and denoising. The Camera records
+ * them from the rays it traces for the picture anyway, so they cost no extra
+ * render.
+ * <p>
+ * Any combination of {@link #DEPTH}, {@link #NORMAL}, {@link #ALBEDO},
+ * {@link #MATERIAL_ID} and {@link #INSTANCE_ID} can be recorded, and memory is
+ * only taken for those. Each pixel records the sample at its center, so the
+ * AOVs are not anti-aliased; the ids of an edge pixel belong to one surface
+ * rather than a blend of two. Pixels whose center ray hits nothing have
+ * infinite depth, a zero normal and albedo, and an id of -1.
+ * </p>
+ * <p>
+ * With {@link #AVERAGED}, as the {@link Denoiser} wants, normals and albedo
+ * are averaged over every sample of a pixel instead, like its color, so they
+ * are anti-aliased the same way. Misses then count as a zero normal and as
+ * white: the background's color is all its own, so dividing a pixel's color
+ * by its albedo leaves just the lighting even where a surface only partly
+ * covers the pixel. Depth is averaged over the samples that hit something,
+ * and is infinite if none did. Ids can't be averaged, so they still come
+ * from the center sample.
+ * </p>
+ * <p>
+ * Material ids number the names of the Scene's Materials in alphabetical
+ * order, see {@link #getMaterialNames()}, and instance ids are indices into
+ * <code>Scene.instances</code>. Any number of threads may record at once, as
+ * long as no two of them touch the same pixel.
+ * </p>
+ *
+ * <pre>
+ * ImageData data = camera.getImageData();
+ * data.aovs = AOVBuffer.DEPTH | AOVBuffer.NORMAL;
+ * camera.setImageData(data);
+ * camera.takePicture(scene);
+ * float depth = camera.getAOVBuffer().getDepth(x, y);
+ * </pre>
+ *
+ * @see renderer.scene.ImageData#aovs
+ */
+public class AOVBuffer {
+	/** The distance from the Camera to the surface, along the ray. */
+	public static final int DEPTH = 1;
+	/** The normal the surface is shaded with, in world space, facing the Camera. */
+	public static final int NORMAL = 2;
+	/** The diffuse color of the surface. */
+	public static final int ALBEDO = 4;
+	/** Which Material the surface has. */
+	public static final int MATERIAL_ID = 8;
+	/** Which ModelInstance the surface belongs to. */
+	public static final int INSTANCE_ID = 16;
+	/** Every AOV. */
+	public static final int ALL = DEPTH | NORMAL | ALBEDO | MATERIAL_ID | INSTANCE_ID;
+	/** Not an AOV: averages depth, normals and albedo over every sample instead of taking the center one. */
+	public static final int AVERAGED = 32;
+
+	public final int width, height;
+	private final int aovs;
+	private final boolean averaged;
+	/** Sums until {@link #finish()}, averages after. */
+	private final float[] depth, normal, albedo;
+	/** The number of samples recorded for each pixel, and how many of them hit something. */
+	private final int[] samples, hits;
+	private final int[] materialId, instanceId;
+	private boolean finished;
+	private final Map<String, Integer> materialIds;
+	private final List<String> materialNames;
+	private final Map<ModelInstance, Integer> instanceIds;
+
+	/**
+	 * Creates an empty buffer. Ids are handed out for the Materials and
+	 * ModelInstances in the Scene now, so the Scene must not change until the
+	 * picture is finished.
+	 *
+	 * @param width
+	 *            the width of the picture
+	 * @param height
+	 *            the height of the picture
+	 * @param aovs
+	 *            which AOVs to record, such as <code>DEPTH | NORMAL</code>,
+	 *            and {@link #AVERAGED} to average them
+	 * @param scene
+	 *            the Scene the picture is taken of
+	 * @throws IllegalArgumentException
+	 *             if either dimension is less than 1, or <code>aovs</code> is
+	 *             empty or has unknown flags
+	 */
+	public AOVBuffer(int width, int height, int aovs, Scene scene) {
+		if (width < 1 || height < 1)
+			throw new IllegalArgumentException("Cannot record AOVs of a " + width + "x" + height + " picture");
+		if ((aovs & ALL) == 0 || (aovs & ~(ALL | AVERAGED)) != 0)
+			throw new IllegalArgumentException("Unknown AOVs " + Integer.toBinaryString(aovs));
+		this.width = width;
+		this.height = height;
+		this.aovs = aovs;
+		averaged = (aovs & AVERAGED) != 0;
+		int pixels = width * height;
+		samples = new int[pixels];
+		hits = has(DEPTH) ? new int[pixels] : null;
+		depth = has(DEPTH) ? new float[pixels] : null;
+		normal = has(NORMAL) ? new float[3 * pixels] : null;
+		albedo = has(ALBEDO) ? new float[3 * pixels] : null;
+		materialId = has(MATERIAL_ID) ? new int[pixels] : null;
+		instanceId = has(INSTANCE_ID) ? new int[pixels] : null;
+
+		TreeSet<String> names = new TreeSet<String>();
+		instanceIds = new IdentityHashMap<ModelInstance, Integer>();
+		for (int i = 0; i < scene.instances.size(); i++) {
+			ModelInstance mi = scene.instances.get(i);
+			if (!instanceIds.containsKey(mi))
+				instanceIds.put(mi, i);
+			if (materialId != null) {
+				for (Face f : mi.model.faces) {
+					if (f.materialName != null)
+						names.add(f.materialName);
+				}
+			}
+		}
+		materialNames = Collections.unmodifiableList(new ArrayList<String>(names));
+		materialIds = new HashMap<String, Integer>();
+		for (int i = 0; i < materialNames.size(); i++)
+			materialIds.put(materialNames.get(i), i);
+	}
+
+	/**
+	 * Gets how many bytes per pixel a buffer recording some AOVs takes.
+	 *
+	 * @param aovs
+	 *            which AOVs are recorded
+	 */
+	public static long bytesPerPixel(int aovs) {
+		long bytes = 4;
+		if ((aovs & DEPTH) != 0)
+			bytes += 8;
+		if ((aovs & NORMAL) != 0)
+			bytes += 12;
+		if ((aovs & ALBEDO) != 0)
+			bytes += 12;
+		if ((aovs & MATERIAL_ID) != 0)
+			bytes += 4;
+		if ((aovs & INSTANCE_ID) != 0)
+			bytes += 4;
+		return bytes;
+	}
+
+	/**
+	 * Gets the name an AOV goes by in file names.
+	 *
+	 * @param aov
+	 *            one of the AOV flags
+	 * @return <code>depth</code>, <code>normal</code>, <code>albedo</code>,
+	 *         <code>material</code> or <code>instance</code>
+	 * @throws IllegalArgumentException
+	 *             if <code>aov</code> is not a single AOV
+	 */
+	public static String nameOf(int aov) {
+		switch (aov) {
+		case DEPTH:
+			return "depth";
+		case NORMAL:
+			return "normal";
+		case ALBEDO:
+			return "albedo";
+		case MATERIAL_ID:
+			return "material";
+		case INSTANCE_ID:
+			return "instance";
+		default:
+			throw new IllegalArgumentException("Not a single AOV: " + aov);
+		}
+	}
+
+	/**
+	 * @return the AOVs this buffer records
+	 */
+	public int getAOVs() {
+		return aovs;
+	}
+
+	/**
+	 * @return <b>true</b> if this buffer records an AOV
+	 */
+	public boolean has(int aov) {
+		return (aovs & aov) != 0;
+	}
+
+	/**
+	 * Records what a sample of a pixel hit. The first sample of each pixel
+	 * should be the one at its center; the others are only recorded if the
+	 * buffer is {@link #AVERAGED}.
+	 *
+	 * @param hit
+	 *            the closest hit of the sample's ray, in world space. May be
+	 *            empty.
+	 * @throws IllegalStateException
+	 *             if the buffer is finished
+	 */
+	public void record(int x, int y, RaycastHit hit) {
+		if (finished)
+			throw new IllegalStateException("The AOVs are finished");
+		int i = y * width + x;
+		boolean first = samples[i] == 0;
+		if (!first && !averaged)
+			return;
+		samples[i]++;
+		if (!hit.hasHit()) {
+			if (albedo != null && averaged) {
+				albedo[3 * i] += 1.0f;
+				albedo[3 * i + 1] += 1.0f;
+				albedo[3 * i + 2] += 1.0f;
+			}
+			if (first && materialId != null)
+				materialId[i] = -1;
+			if (first && instanceId != null)
+				instanceId[i] = -1;
+			return;
+		}
+		if (depth != null) {
+			depth[i] += (float) hit.distance;
+			hits[i]++;
+		}
+		if (normal != null) {
+			normal[3 * i] += (float) hit.normal.x;
+			normal[3 * i + 1] += (float) hit.normal.y;
+			normal[3 * i + 2] += (float) hit.normal.z;
+		}
+		if (albedo != null)
+			Shader.addAlbedo(hit, albedo, 3 * i);
+		if (first && materialId != null) {
+			String name = hit.model.faces.get(hit.face).materialName;
+			Integer id = name != null ? materialIds.get(name) : null;
+			materialId[i] = id != null ? id : -1;
+		}
+		if (first && instanceId != null) {
+			Integer id = instanceIds.get(hit.instance);
+			instanceId[i] = id != null ? id : -1;
+		}
+	}
+
+	/**
+	 * Records the same sample for every pixel of a block, as a picture
+	 * rendered at a lower resolution does.
+	 */
+	public void record(int x, int y, int w, int h, RaycastHit hit) {
+		for (int by = y; by < y + h; by++) {
+			for (int bx = x; bx < x + w; bx++)
+				record(bx, by, hit);
+		}
+	}
+
+	/**
+	 * Turns the sums of the samples into averages, once every sample has been
+	 * recorded. The Camera does this at the end of each picture. Does nothing
+	 * if the buffer is already finished.
+	 */
+	public synchronized void finish() {
+		if (finished)
+			return;
+		finished = true;
+		for (int i = 0; i < samples.length; i++) {
+			float n = samples[i] == 0 ? 0.0f : 1.0f / samples[i];
+			if (depth != null)
+				depth[i] = hits[i] == 0 ? Float.POSITIVE_INFINITY : depth[i] / hits[i];
+			for (int c = 0; c < 3; c++) {
+				if (normal != null)
+					normal[3 * i + c] *= n;
+				if (albedo != null)
+					albedo[3 * i + c] *= n;
+			}
+			if (samples[i] == 0) {
+				if (materialId != null)
+					materialId[i] = -1;
+				if (instanceId != null)
+					instanceId[i] = -1;
+			}
+		}
+	}
+
+	/**
+	 * @return <b>true</b> once {@link #finish()} has been called
+	 */
+	public synchronized boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * @return the distance to the surface seen through a pixel, or infinity if
+	 *         there is none
+	 * @throws IllegalStateException
+	 *             if depth isn't recorded
+	 */
+	public float getDepth(int x, int y) {
+		return require(depth, DEPTH)[y * width + x];
+	}
+
+	/**
+	 * Gets the normal of the surface seen through a pixel.
+	 *
+	 * @param xyz
+	 *            receives the normal, or zero if there is no surface
+	 * @throws IllegalStateException
+	 *             if normals aren't recorded
+	 */
+	public void getNormal(int x, int y, float[] xyz) {
+		System.arraycopy(require(normal, NORMAL), 3 * (y * width + x), xyz, 0, 3);
+	}
+
+	/**
+	 * Gets the diffuse color of the surface seen through a pixel.
+	 *
+	 * @param rgb
+	 *            receives the color, or black if there is no surface, and
+	 *            white if the buffer is {@link #AVERAGED}
+	 * @throws IllegalStateException
+	 *             if albedo isn't recorded
+	 */
+	public void getAlbedo(int x, int y, float[] rgb) {
+		System.arraycopy(require(albedo, ALBEDO), 3 * (y * width + x), rgb, 0, 3);
+	}
+
+	/**
+	 * @return the id of the Material seen through a pixel, or -1 if there is no
+	 *         surface or it has no Material
+	 * @throws IllegalStateException
+	 *             if material ids aren't recorded
+	 * @see #getMaterialNames()
+	 */
+	public int getMaterialId(int x, int y) {
+		checkFinished();
+		if (materialId == null)
+			throw new IllegalStateException("Material ids are not recorded");
+		return materialId[y * width + x];
+	}
+
+	/**
+	 * @return the index in <code>Scene.instances</code> of the ModelInstance
+	 *         seen through a pixel, or -1 if there is none
+	 * @throws IllegalStateException
+	 *             if instance ids aren't recorded
+	 */
+	public int getInstanceId(int x, int y) {
+		checkFinished();
+		if (instanceId == null)
+			throw new IllegalStateException("Instance ids are not recorded");
+		return instanceId[y * width + x];
+	}
+
+	/**
+	 * @return the names of the Scene's Materials, in the order of their ids.
+	 *         Empty unless material ids are recorded.
+	 */
+	public List<String> getMaterialNames() {
+		return materialNames;
+	}
+
+	/**
+	 * @return the raw values of the depth, normal or albedo AOV, 1 or 3 per
+	 *         pixel row by row, or null if it isn't recorded
+	 * @throws IllegalStateException
+	 *             if the buffer isn't finished
+	 */
+	float[] values(int aov) {
+		checkFinished();
+		return aov == DEPTH ? depth : aov == NORMAL ? normal : aov == ALBEDO ? albedo : null;
+	}
+
+	private float[] require(float[] values, int aov) {
+		checkFinished();
+		if (values == null)
+			throw new IllegalStateException("The " + nameOf(aov) + " AOV is not recorded");
+		return values;
+	}
+
+	private void checkFinished() {
+		if (!isFinished())
+			throw new IllegalStateException("The AOVs are still being recorded");
+	}
+
+	/**
+	 * Draws an AOV into an image that can be looked at. Depth is drawn in grey,
+	 * brightest up close and black where there is nothing; normals map each
+	 * axis from [-1, 1] to a channel; albedo is drawn as it is; and each id gets
+	 * its own color, with black for -1.
+	 *
+	 * @param aov
+	 *            the AOV to draw
+	 * @param imageType
+	 *            the type of image, one of the <code>BufferedImage.TYPE_</code>
+	 *            constants
+	 * @return the image
+	 * @throws IllegalStateException
+	 *             if the AOV isn't recorded
+	 * @throws IllegalArgumentException
+	 *             if <code>aov</code> is not a single AOV
+	 */
+	public BufferedImage toImage(int aov, int imageType) {
+		String name = nameOf(aov);
+		checkFinished();
+		if (!has(aov))
+			throw new IllegalStateException("The " + name + " AOV is not recorded");
+		float far = 0.0f;
+		if (aov == DEPTH) {
+			for (float d : depth) {
+				if (d != Float.POSITIVE_INFINITY && d > far)
+					far = d;
+			}
+		}
+		BufferedImage image = new BufferedImage(width, height, imageType);
+		int[] row = new int[width];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0, i = y * width; x < width; x++, i++) {
+				switch (aov) {
+				case DEPTH:
+					float g = depth[i] == Float.POSITIVE_INFINITY ? 0.0f : 1.0f - depth[i] / (far * 1.25f);
+					row[x] = FrameBuffer.toByte(g) * 0x010101;
+					break;
+				case NORMAL:
+					row[x] = pack(0.5f + 0.5f * normal[3 * i], 0.5f + 0.5f * normal[3 * i + 1],
+							0.5f + 0.5f * normal[3 * i + 2]);
+					break;
+				case ALBEDO:
+					row[x] = pack(albedo[3 * i], albedo[3 * i + 1], albedo[3 * i + 2]);
+					break;
+				case MATERIAL_ID:
+					row[x] = color(materialId[i]);
+					break;
+				default:
+					row[x] = color(instanceId[i]);
+					break;
+				}
+			}
+			FrameBuffer.setRow(image, y, row);
+		}
+		return image;
+	}
+
+	/**
+	 * Writes every recorded AOV next to a picture, as
+	 * <code>shot.depth.png</code>, <code>shot.normal.png</code> and so on for a
+	 * picture in <code>shot.png</code>.
+	 *
+	 * @param writer
+	 *            writes the images
+	 * @param picture
+	 *            the file the picture itself is written to
+	 * @throws InterruptedIOException
+	 *             if interrupted while waiting for the writer
+	 */
+	public void writeNextTo(PngWriter writer, File picture) throws InterruptedIOException {
+		String base = picture.getName();
+		if (base.endsWith(".png"))
+			base = base.substring(0, base.length() - 4);
+		for (int aov = DEPTH; aov <= INSTANCE_ID; aov <<= 1) {
+			if (has(aov))
+				writer.write(toImage(aov, BufferedImage.TYPE_INT_RGB),
+						new File(picture.getParentFile(), base + "." + nameOf(aov) + ".png"));
+		}
+	}
+
+	private static int pack(float r, float g, float b) {
+		return FrameBuffer.toByte(r) << 16 | FrameBuffer.toByte(g) << 8 | FrameBuffer.toByte(b);
+	}
+
+	/**
+	 * @return a bright color that tells an id apart from its neighbours, or
+	 *         black for -1
+	 */
+	private static int color(int id) {
+		if (id < 0)
+			return 0;
+		int h = (id + 1) * 0x9E3779B9;
+		return (h ^ h >>> 15) & 0x7f7f7f | 0x808080;
+	}
+}
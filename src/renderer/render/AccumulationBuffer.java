@@ -0,0 +1,240 @@
+package renderer.render;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+
+/**
+ * Sums the samples taken of every pixel of an image, so that more can be added
+ * to a picture over several passes. Each pixel keeps its own sample count, so
+ * a pass that was interrupted half way leaves a picture that is still
+ * correct, only noisier in the part it didn't reach. The spread of each
+ * pixel's samples is tracked too, so a sampler can tell which pixels have
+ * converged.
+ * <p>
+ * Any number of threads may add samples at once, as long as no two of them
+ * touch the same pixel, which is the case for threads working on different
+ * tiles.
+ * </p>
+ *
+ * @see renderer.scene.Camera#takeProgressivePicture(renderer.scene.Scene, ProgressiveRender)
+ */
+public class AccumulationBuffer {
+	/** The top-left pixel of the part of the image the buffer covers. */
+	public final int x, y;
+	public final int width, height;
+	/** The sum of the samples of each pixel, 3 values per pixel. */
+	private final double[] color;
+	/** The sum of the squared luminance of the samples of each pixel. */
+	private final double[] squares;
+	/** The number of samples taken of each pixel. */
+	private final int[] samples;
+
+	/**
+	 * Creates an empty buffer.
+	 *
+	 * @param width
+	 *            the width of the image
+	 * @param height
+	 *            the height of the image
+	 * @throws IllegalArgumentException
+	 *             if either dimension is less than 1
+	 */
+	public AccumulationBuffer(int width, int height) {
+		this(0, 0, width, height);
+	}
+
+	/**
+	 * Creates an empty buffer covering part of an image. Pixels are still
+	 * addressed by their coordinates in the whole image.
+	 *
+	 * @param x
+	 *            the left edge of the part
+	 * @param y
+	 *            the top edge of the part
+	 * @param width
+	 *            the width of the part
+	 * @param height
+	 *            the height of the part
+	 * @throws IllegalArgumentException
+	 *             if either dimension is less than 1
+	 */
+	public AccumulationBuffer(int x, int y, int width, int height) {
+		if (width < 1 || height < 1)
+			throw new IllegalArgumentException("Cannot accumulate a " + width + "x" + height + " image");
+		this.x = x;
+		this.y = y;
+		this.width = width;
+		this.height = height;
+		this.color = new double[3 * width * height];
+		this.squares = new double[width * height];
+		this.samples = new int[width * height];
+	}
+
+	/**
+	 * Adds a sample to a pixel.
+	 */
+	public void add(int x, int y, double r, double g, double b) {
+		int i = index(x, y);
+		color[3 * i] += r;
+		color[3 * i + 1] += g;
+		color[3 * i + 2] += b;
+		double l = luminance(r, g, b);
+		squares[i] += l * l;
+		samples[i]++;
+	}
+
+	/**
+	 * @return the number of samples taken of a pixel
+	 */
+	public int getSamples(int x, int y) {
+		return samples[index(x, y)];
+	}
+
+	/**
+	 * @return the number of samples taken of every pixel together
+	 */
+	public long getTotalSamples() {
+		long total = 0;
+		for (int n : samples)
+			total += n;
+		return total;
+	}
+
+	/**
+	 * @return the average luminance of a pixel's samples, or 0 if it has none
+	 */
+	public double getLuminance(int x, int y) {
+		int i = index(x, y);
+		if (samples[i] == 0)
+			return 0.0;
+		return luminance(color[3 * i], color[3 * i + 1], color[3 * i + 2]) / samples[i];
+	}
+
+	/**
+	 * Gets the average color of a pixel's samples.
+	 *
+	 * @param rgb
+	 *            receives the color, which is black if the pixel has no samples
+	 */
+	public void getColor(int x, int y, double[] rgb) {
+		int i = index(x, y);
+		double w = samples[i] == 0 ? 0.0 : 1.0 / samples[i];
+		rgb[0] = color[3 * i] * w;
+		rgb[1] = color[3 * i + 1] * w;
+		rgb[2] = color[3 * i + 2] * w;
+	}
+
+	/**
+	 * Estimates how far a pixel's average luminance may be from the value it
+	 * would converge to, from the spread of its samples.
+	 * 
+	 * @return the standard error of the pixel's luminance, or infinity if it has
+	 *         fewer than 2 samples
+	 */
+	public double getStandardError(int x, int y) {
+		int i = index(x, y);
+		int n = samples[i];
+		if (n < 2)
+			return Double.POSITIVE_INFINITY;
+		double mean = getLuminance(x, y);
+		double variance = Math.max(0.0, (squares[i] - n * mean * mean) / (n - 1));
+		return Math.sqrt(variance / n);
+	}
+
+	/**
+	 * @return the number of bytes {@link #save(Tile, ByteBuffer)} writes for a
+	 *         tile
+	 */
+	static int savedSize(Tile tile) {
+		return 36 * tile.pixelCount();
+	}
+
+	/**
+	 * Writes the exact state of a tile's pixels to a byte buffer.
+	 */
+	void save(Tile tile, ByteBuffer out) {
+		for (int y = tile.y; y < tile.y + tile.height; y++) {
+			for (int x = tile.x; x < tile.x + tile.width; x++) {
+				int i = index(x, y);
+				out.putDouble(color[3 * i]).putDouble(color[3 * i + 1]).putDouble(color[3 * i + 2]);
+				out.putDouble(squares[i]).putInt(samples[i]);
+			}
+		}
+	}
+
+	/**
+	 * Replaces a tile's pixels with a state written by
+	 * {@link #save(Tile, ByteBuffer)}.
+	 */
+	void load(Tile tile, ByteBuffer in) {
+		for (int y = tile.y; y < tile.y + tile.height; y++) {
+			for (int x = tile.x; x < tile.x + tile.width; x++) {
+				int i = index(x, y);
+				color[3 * i] = in.getDouble();
+				color[3 * i + 1] = in.getDouble();
+				color[3 * i + 2] = in.getDouble();
+				squares[i] = in.getDouble();
+				samples[i] = in.getInt();
+			}
+		}
+	}
+
+	private int index(int x, int y) {
+		return (y - this.y) * width + (x - this.x);
+	}
+
+	/**
+	 * The Rec. 709 luminance of a color.
+	 */
+	private static double luminance(double r, double g, double b) {
+		return 0.2126 * r + 0.7152 * g + 0.0722 * b;
+	}
+
+	/**
+	 * Writes the average of some pixels' samples into a FrameBuffer, with the
+	 * top left pixel of this buffer at its top left. Each pixel is weighted by
+	 * its number of samples. Called by render threads, one tile each.
+	 *
+	 * @param frame
+	 *            receives the pixels. Must be at least as large as this buffer.
+	 * @param tile
+	 *            the pixels to write, in the coordinates of the whole image
+	 */
+	public void resolve(FrameBuffer frame, Tile tile) {
+		for (int y = tile.y; y < tile.y + tile.height; y++) {
+			for (int x = tile.x; x < tile.x + tile.width; x++) {
+				int i = index(x, y);
+				float w = samples[i];
+				double inverse = samples[i] == 0 ? 0.0 : 1.0 / samples[i];
+				frame.set(x - this.x, y - this.y, (float) (color[3 * i] * inverse),
+						(float) (color[3 * i + 1] * inverse), (float) (color[3 * i + 2] * inverse), w);
+			}
+		}
+	}
+
+	/**
+	 * Writes the average of every pixel's samples into an image, with the top
+	 * left pixel of the buffer at the top left of the image. Pixels without
+	 * samples are black.
+	 *
+	 * @param image
+	 *            receives the picture. Must be at least as large as the buffer.
+	 */
+	public void resolve(BufferedImage image) {
+		FrameBuffer frame = new FrameBuffer(width, height);
+		resolve(frame, new Tile(0, x, y, width, height));
+		frame.writeTo(image);
+	}
+
+	/**
+	 * Packs a color into an int with 8 bits per channel, clamping each component
+	 * to [0, 1].
+	 */
+	public static int toRGB(double r, double g, double b) {
+		return (toByte(r) << 16) | (toByte(g) << 8) | toByte(b);
+	}
+
+	private static int toByte(double c) {
+		return (int) (Math.min(1.0, Math.max(0.0, c)) * 255.0 + 0.5);
+	}
+}
@@ -0,0 +1,396 @@
+package renderer.render;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Removes the noise of a picture taken with few samples per pixel, using its
+ * AOVs to tell edges from noise. The filter is the edge-avoiding &agrave;-trous
+ * wavelet transform of Dammertz et al.: a 5 by 5 B-spline kernel applied a
+ * few times with its taps spread twice as far apart each time, so that the
+ * last pass reaches far without ever looking at more than 25 pixels.
+ * <p>
+ * Each tap is weighed by how alike the two pixels are: their normals, their
+ * depths and their luminance. Surfaces therefore don't blur into each other
+ * or into the background, and lighting edges such as shadows survive while
+ * the noise is averaged away. As in the spatial part of SVGF (Schied et al.),
+ * luminance is compared against how noisy the pixel is: the variance is first
+ * estimated from the pixel's neighbours on the same surface, and every pass
+ * works out how much of it is left, so a difference counts for more as the
+ * picture gets cleaner. If the albedo was recorded, the color is divided by
+ * it before filtering and multiplied back afterwards, so the detail of
+ * Materials isn't blurred with the lighting. The AOVs should be
+ * {@link AOVBuffer#AVERAGED}, so that they cover each pixel the way its color
+ * does.
+ * </p>
+ * <p>
+ * Pixels on silhouettes, which are partly one surface and partly another,
+ * have no neighbours that look like them, so they keep most of their noise.
+ * </p>
+ * <p>
+ * The picture and its AOVs are left alone; the result is a new
+ * {@link FrameBuffer}. The rows of each pass are split between the threads of
+ * a <code>ForkJoinPool</code>.
+ * </p>
+ *
+ * <pre>
+ * ImageData data = camera.getImageData();
+ * data.aovs = AOVBuffer.DEPTH | AOVBuffer.NORMAL | AOVBuffer.ALBEDO | AOVBuffer.AVERAGED;
+ * camera.setImageData(data);
+ * camera.takePicture(scene);
+ * FrameBuffer clean = new Denoiser().denoise(camera.getFrameBuffer(), camera.getAOVBuffer());
+ * </pre>
+ *
+ * @see renderer.benchmark.DenoiseBenchmark
+ */
+public class Denoiser {
+	/** The default number of passes. */
+	public static final int DEFAULT_ITERATIONS = 3;
+	/** The default spread of the luminance weight, in standard deviations. */
+	public static final double DEFAULT_COLOR_SIGMA = 4.0;
+	/** The default spread of the normal weight. */
+	public static final double DEFAULT_NORMAL_SIGMA = 0.3;
+	/** The default spread of the depth weight, relative to the depth. */
+	public static final double DEFAULT_DEPTH_SIGMA = 0.02;
+
+	/** The weights of the B3-spline, from the center outward on both sides. */
+	private static final float[] KERNEL = { 1.0f / 16, 1.0f / 4, 3.0f / 8, 1.0f / 4, 1.0f / 16 };
+	/** How many rows a thread filters at a time. */
+	private static final int ROWS_PER_TASK = 16;
+	/** Keeps the color weight finite where there is no noise. */
+	private static final float EPSILON = 1e-4f;
+	/** Albedo channels at most this dark aren't divided by. */
+	private static final float MIN_ALBEDO = 1e-3f;
+
+	private final ForkJoinPool pool;
+	private int iterations;
+	private double colorSigma, normalSigma, depthSigma;
+
+	/**
+	 * Creates a Denoiser with the default settings that runs on the common
+	 * <code>ForkJoinPool</code>.
+	 */
+	public Denoiser() {
+		this(ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Creates a Denoiser with the default settings.
+	 *
+	 * @param pool
+	 *            the pool to filter on
+	 */
+	public Denoiser(ForkJoinPool pool) {
+		this.pool = pool;
+		this.iterations = DEFAULT_ITERATIONS;
+		this.colorSigma = DEFAULT_COLOR_SIGMA;
+		this.normalSigma = DEFAULT_NORMAL_SIGMA;
+		this.depthSigma = DEFAULT_DEPTH_SIGMA;
+	}
+
+	/**
+	 * Sets how many passes to filter with. Each one doubles how far the filter
+	 * reaches, so 3 passes reach 14 pixels in each direction and 5 reach 62.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if <code>iterations</code> is less than 1 or more than 16
+	 */
+	public void setIterations(int iterations) {
+		if (iterations < 1 || iterations > 16)
+			throw new IllegalArgumentException("Cannot filter with " + iterations + " passes");
+		this.iterations = iterations;
+	}
+
+	/**
+	 * Sets how different the luminance of two pixels may be and still be
+	 * averaged, in standard deviations of the noise that is left. Larger
+	 * values remove more noise, and more detail with it.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if <code>sigma</code> is not positive
+	 */
+	public void setColorSigma(double sigma) {
+		this.colorSigma = checkSigma(sigma);
+	}
+
+	/**
+	 * Sets how different the normals of two pixels may be, as the length of
+	 * the difference of the unit vectors, and still be averaged.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if <code>sigma</code> is not positive
+	 */
+	public void setNormalSigma(double sigma) {
+		this.normalSigma = checkSigma(sigma);
+	}
+
+	/**
+	 * Sets how different the depths of two pixels may be, as a fraction of
+	 * the depth, and still be averaged.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if <code>sigma</code> is not positive
+	 */
+	public void setDepthSigma(double sigma) {
+		this.depthSigma = checkSigma(sigma);
+	}
+
+	private static double checkSigma(double sigma) {
+		if (!(sigma > 0.0) || Double.isInfinite(sigma))
+			throw new IllegalArgumentException("Sigma must be positive, got " + sigma);
+		return sigma;
+	}
+
+	/**
+	 * @return the number of passes
+	 */
+	public int getIterations() {
+		return iterations;
+	}
+
+	/**
+	 * Removes the noise of a picture.
+	 *
+	 * @param frame
+	 *            the noisy picture
+	 * @param aovs
+	 *            the AOVs of the picture. Must have the normal and depth AOVs;
+	 *            albedo is used if it's there.
+	 * @return the picture without noise, with the same weights and kept in the
+	 *         same kind of memory as the noisy one
+	 * @throws IllegalArgumentException
+	 *             if the AOVs are of a different size or lack normals or
+	 *             depth
+	 */
+	public FrameBuffer denoise(FrameBuffer frame, AOVBuffer aovs) {
+		if (aovs.width != frame.width || aovs.height != frame.height)
+			throw new IllegalArgumentException("Cannot guide a " + frame.width + "x" + frame.height
+					+ " picture with " + aovs.width + "x" + aovs.height + " AOVs");
+		if (!aovs.has(AOVBuffer.NORMAL) || !aovs.has(AOVBuffer.DEPTH))
+			throw new IllegalArgumentException("Denoising needs the normal and depth AOVs");
+		final int width = frame.width, height = frame.height, pixels = width * height;
+		final float[] albedo = aovs.values(AOVBuffer.ALBEDO);
+		final float[] depth = aovs.values(AOVBuffer.DEPTH), normal = aovs.values(AOVBuffer.NORMAL);
+		final Guides g = new Guides(width, height, (float) (1.0 / (normalSigma * normalSigma)),
+				(float) (1.0 / depthSigma), (float) (1.0 / colorSigma));
+
+		// Red, green, blue and variance of each pixel, and the guides next to each other
+		final float[][] color = { new float[4 * pixels], new float[4 * pixels] };
+		final float[] guide = new float[4 * pixels];
+		forRows(height, (start, end) -> {
+			float[] rgb = new float[3];
+			for (int y = start; y < end; y++) {
+				for (int x = 0, i = y * width; x < width; x++, i++) {
+					frame.getColor(x, y, rgb);
+					for (int c = 0; c < 3; c++) {
+						color[0][4 * i + c] = albedo != null ? demodulate(rgb[c], albedo[3 * i + c]) : rgb[c];
+						guide[4 * i + c] = normal[3 * i + c];
+					}
+					guide[4 * i + 3] = depth[i];
+				}
+			}
+		});
+		forRows(height, (start, end) -> {
+			for (int y = start; y < end; y++) {
+				for (int x = 0, i = y * width; x < width; x++, i++)
+					estimateVariance(x, y, i, color[0], guide, g);
+			}
+		});
+
+		for (int pass = 0; pass < iterations; pass++) {
+			final int step = 1 << pass;
+			final float[] in = color[pass & 1], out = color[(pass + 1) & 1];
+			forRows(height, (start, end) -> {
+				for (int y = start; y < end; y++) {
+					for (int x = 0, i = y * width; x < width; x++, i++)
+						filter(x, y, i, step, in, out, guide, g);
+				}
+			});
+		}
+
+		final float[] result = color[iterations & 1];
+		final FrameBuffer clean = new FrameBuffer(width, height, frame.isOffHeap());
+		forRows(height, (start, end) -> {
+			for (int y = start; y < end; y++) {
+				for (int x = 0, i = y * width; x < width; x++, i++) {
+					float r = result[4 * i], gr = result[4 * i + 1], b = result[4 * i + 2];
+					if (albedo != null) {
+						r = remodulate(r, albedo[3 * i]);
+						gr = remodulate(gr, albedo[3 * i + 1]);
+						b = remodulate(b, albedo[3 * i + 2]);
+					}
+					float weight = frame.getWeight(x, y);
+					clean.set(x, y, r, gr, b, weight > 0.0f ? weight : 1.0f);
+				}
+			}
+		});
+		return clean;
+	}
+
+	/**
+	 * Estimates the noise of a pixel from the spread of the luminance of its
+	 * neighbours on the same surface, and stores its variance next to the
+	 * pixel's color.
+	 */
+	private static void estimateVariance(int x, int y, int i, float[] color, float[] guide, Guides g) {
+		float z = guide[4 * i + 3];
+		if (z == Float.POSITIVE_INFINITY) {
+			// The background has no noise
+			color[4 * i + 3] = 0.0f;
+			return;
+		}
+		float nx = guide[4 * i], ny = guide[4 * i + 1], nz = guide[4 * i + 2], dz = g.depthScale / z;
+		float sum = 0.0f, mean = 0.0f, squares = 0.0f;
+		for (int ky = 0; ky < 5; ky++) {
+			int qy = y + ky - 2;
+			if (qy < 0 || qy >= g.height)
+				continue;
+			for (int kx = 0; kx < 5; kx++) {
+				int qx = x + kx - 2;
+				if (qx < 0 || qx >= g.width)
+					continue;
+				int j = 4 * (qy * g.width + qx);
+				float ex = guide[j] - nx, ey = guide[j + 1] - ny, ez = guide[j + 2] - nz;
+				float e = (ex * ex + ey * ey + ez * ez) * g.normalScale + Math.abs(guide[j + 3] - z) * dz;
+				float w = KERNEL[kx] * KERNEL[ky] * falloff(e);
+				float l = 0.2126f * color[j] + 0.7152f * color[j + 1] + 0.0722f * color[j + 2];
+				mean += w * l;
+				squares += w * l * l;
+				sum += w;
+			}
+		}
+		mean /= sum;
+		color[4 * i + 3] = Math.max(0.0f, squares / sum - mean * mean);
+	}
+
+	/**
+	 * Filters one pixel with the taps <code>step</code> pixels apart, and
+	 * works out the variance that is left.
+	 */
+	private static void filter(int x, int y, int i, int step, float[] in, float[] out, float[] guide, Guides g) {
+		int width = g.width, height = g.height, at = 4 * i;
+		float z = guide[at + 3];
+		if (z == Float.POSITIVE_INFINITY) {
+			System.arraycopy(in, at, out, at, 4);
+			return;
+		}
+		// Luminance may differ by a few standard deviations of the noise, blurred
+		// a little so that a lucky pixel doesn't stand out
+		float blurred = 0.0f, blurSum = 0.0f;
+		for (int qy = Math.max(0, y - 1); qy <= Math.min(height - 1, y + 1); qy++) {
+			for (int qx = Math.max(0, x - 1); qx <= Math.min(width - 1, x + 1); qx++) {
+				float w = (qx == x ? 2.0f : 1.0f) * (qy == y ? 2.0f : 1.0f);
+				blurred += w * in[4 * (qy * width + qx) + 3];
+				blurSum += w;
+			}
+		}
+		float dl = g.colorScale / ((float) Math.sqrt(blurred / blurSum) + EPSILON);
+		float dz = g.depthScale / z;
+		float nx = guide[at], ny = guide[at + 1], nz = guide[at + 2];
+		float l = 0.2126f * in[at] + 0.7152f * in[at + 1] + 0.0722f * in[at + 2];
+		float sr = 0.0f, sg = 0.0f, sb = 0.0f, sv = 0.0f, sum = 0.0f;
+		for (int ky = 0; ky < 5; ky++) {
+			int qy = y + (ky - 2) * step;
+			if (qy < 0 || qy >= height)
+				continue;
+			for (int kx = 0; kx < 5; kx++) {
+				int qx = x + (kx - 2) * step;
+				if (qx < 0 || qx >= width)
+					continue;
+				int j = 4 * (qy * width + qx);
+				float r = in[j], gr = in[j + 1], b = in[j + 2];
+				float ex = guide[j] - nx, ey = guide[j + 1] - ny, ez = guide[j + 2] - nz;
+				// The background is infinitely deep, so it gets no weight
+				float e = (ex * ex + ey * ey + ez * ez) * g.normalScale + Math.abs(guide[j + 3] - z) * dz
+						+ Math.abs(0.2126f * r + 0.7152f * gr + 0.0722f * b - l) * dl;
+				float w = KERNEL[kx] * KERNEL[ky] * falloff(e);
+				sr += w * r;
+				sg += w * gr;
+				sb += w * b;
+				sv += w * w * in[j + 3];
+				sum += w;
+			}
+		}
+		// The center tap always counts, so sum is never 0
+		out[at] = sr / sum;
+		out[at + 1] = sg / sum;
+		out[at + 2] = sb / sum;
+		out[at + 3] = sv / (sum * sum);
+	}
+
+	/**
+	 * Approximates <i>e</i><sup>-x</sup> for x &ge; 0 to within a few percent,
+	 * by writing x straight into the exponent of a float, which is several
+	 * times faster than <code>Math.exp</code>.
+	 */
+	private static float falloff(float x) {
+		if (!(x < 80.0f))
+			return 0.0f;
+		return Float.intBitsToFloat(1065353216 - (int) (12102203.0f * x));
+	}
+
+	private static float demodulate(float c, float albedo) {
+		return albedo > MIN_ALBEDO ? c / albedo : c;
+	}
+
+	private static float remodulate(float c, float albedo) {
+		return albedo > MIN_ALBEDO ? c * albedo : c;
+	}
+
+	/**
+	 * The size of a picture, and how much differences in normal, depth and
+	 * luminance count.
+	 */
+	private static class Guides {
+		final int width, height;
+		final float normalScale, depthScale, colorScale;
+
+		Guides(int width, int height, float normalScale, float depthScale, float colorScale) {
+			this.width = width;
+			this.height = height;
+			this.normalScale = normalScale;
+			this.depthScale = depthScale;
+			this.colorScale = colorScale;
+		}
+	}
+
+	/**
+	 * Runs over the rows of a picture on the pool, a range at a time.
+	 */
+	private void forRows(int height, RowRange rows) {
+		pool.invoke(new RowTask(rows, 0, height));
+	}
+
+	/**
+	 * Does something to the rows in <code>[start, end)</code>.
+	 */
+	private interface RowRange {
+		void run(int start, int end);
+	}
+
+	/**
+	 * Splits a range of rows in half until it is small enough.
+	 */
+	private static class RowTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final RowRange rows;
+		private final int start, end;
+
+		RowTask(RowRange rows, int start, int end) {
+			this.rows = rows;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start <= ROWS_PER_TASK) {
+				rows.run(start, end);
+				return;
+			}
+			int mid = (start + end) >>> 1;
+			invokeAll(new RowTask(rows, start, mid), new RowTask(rows, mid, end));
+		}
+	}
+}
@@ -0,0 +1,319 @@
+package renderer.render;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * The finished pixels of a picture in high dynamic range: a weighted sum of
+ * red, green and blue per pixel plus the total weight, as floats, in blocks
+ * of whole rows. Colors aren't clamped or rounded until the picture is
+ * turned into an image, so they can still be exposed or filtered without
+ * losing anything. A block holds at most 2<sup>28</sup> floats, 1 GB, so
+ * pictures of any height fit.
+ * <p>
+ * The blocks can live outside the Java heap, so that large pictures don't
+ * have to be copied around by the garbage collector. Any number of threads
+ * may write to a FrameBuffer at once without locking, as long as no two of
+ * them touch the same pixel, which is the case for threads working on
+ * different tiles.
+ * </p>
+ * <p>
+ * {@link #writeTo(BufferedImage)} converts the whole picture in one go,
+ * straight into the image's DataBuffer for the usual integer and byte image
+ * types, instead of through <code>setRGB</code> pixel by pixel.
+ * </p>
+ *
+ * @see AccumulationBuffer#resolve(FrameBuffer, Tile)
+ */
+public class FrameBuffer {
+	/** How many floats a block holds at most. */
+	private static final int BLOCK_FLOATS = 1 << 28;
+
+	public final int width, height;
+	/** Red, green, blue and weight of each pixel, row by row, a band of rows per block. */
+	private final FloatBuffer[] blocks;
+	private final int rowsPerBlock;
+	private final boolean offHeap;
+
+	/**
+	 * Creates an empty FrameBuffer on the heap.
+	 *
+	 * @param width
+	 *            the width of the picture
+	 * @param height
+	 *            the height of the picture
+	 * @throws IllegalArgumentException
+	 *             if either dimension is less than 1
+	 */
+	public FrameBuffer(int width, int height) {
+		this(width, height, false);
+	}
+
+	/**
+	 * Creates an empty FrameBuffer.
+	 *
+	 * @param width
+	 *            the width of the picture
+	 * @param height
+	 *            the height of the picture
+	 * @param offHeap
+	 *            should the pixels be kept outside the Java heap?
+	 * @throws IllegalArgumentException
+	 *             if the picture can't be buffered, see
+	 *             {@link #checkSize(int, int)}
+	 */
+	public FrameBuffer(int width, int height, boolean offHeap) {
+		checkSize(width, height);
+		this.width = width;
+		this.height = height;
+		this.offHeap = offHeap;
+		rowsPerBlock = Math.min(height, BLOCK_FLOATS / (4 * width));
+		blocks = new FloatBuffer[(height + rowsPerBlock - 1) / rowsPerBlock];
+		for (int b = 0; b < blocks.length; b++) {
+			int floats = 4 * width * Math.min(rowsPerBlock, height - b * rowsPerBlock);
+			if (offHeap)
+				blocks[b] = ByteBuffer.allocateDirect(floats * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+			else
+				blocks[b] = FloatBuffer.allocate(floats);
+		}
+	}
+
+	/**
+	 * Checks that a picture can be buffered, so that it can be found out
+	 * before it is rendered rather than after.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if either dimension is less than 1, or a row of the picture
+	 *             doesn't fit in one block
+	 */
+	public static void checkSize(int width, int height) {
+		if (width < 1 || height < 1)
+			throw new IllegalArgumentException("Cannot buffer a " + width + "x" + height + " picture");
+		if (width > BLOCK_FLOATS / 4)
+			throw new IllegalArgumentException("A " + width + "x" + height + " picture is too wide to buffer");
+	}
+
+	/**
+	 * @return <b>true</b> if the pixels are kept outside the Java heap
+	 */
+	public boolean isOffHeap() {
+		return offHeap;
+	}
+
+	/**
+	 * Adds a weighted color to a pixel.
+	 */
+	public void add(int x, int y, float r, float g, float b, float weight) {
+		FloatBuffer pixels = blocks[y / rowsPerBlock];
+		int i = offset(x, y);
+		pixels.put(i, pixels.get(i) + r * weight);
+		pixels.put(i + 1, pixels.get(i + 1) + g * weight);
+		pixels.put(i + 2, pixels.get(i + 2) + b * weight);
+		pixels.put(i + 3, pixels.get(i + 3) + weight);
+	}
+
+	/**
+	 * Replaces a pixel.
+	 *
+	 * @param weight
+	 *            the weight the color is given, such as its number of samples
+	 */
+	public void set(int x, int y, float r, float g, float b, float weight) {
+		FloatBuffer pixels = blocks[y / rowsPerBlock];
+		int i = offset(x, y);
+		pixels.put(i, r * weight);
+		pixels.put(i + 1, g * weight);
+		pixels.put(i + 2, b * weight);
+		pixels.put(i + 3, weight);
+	}
+
+	/**
+	 * Gets the color of a pixel.
+	 *
+	 * @param rgb
+	 *            receives the weighted average of the colors added to the
+	 *            pixel, which is black if it has no weight
+	 */
+	public void getColor(int x, int y, float[] rgb) {
+		FloatBuffer pixels = blocks[y / rowsPerBlock];
+		int i = offset(x, y);
+		float w = pixels.get(i + 3);
+		w = w == 0.0f ? 0.0f : 1.0f / w;
+		rgb[0] = pixels.get(i) * w;
+		rgb[1] = pixels.get(i + 1) * w;
+		rgb[2] = pixels.get(i + 2) * w;
+	}
+
+	/**
+	 * @return the total weight of the colors added to a pixel
+	 */
+	public float getWeight(int x, int y) {
+		return blocks[y / rowsPerBlock].get(offset(x, y) + 3);
+	}
+
+	/**
+	 * Converts the picture into a new image.
+	 *
+	 * @param imageType
+	 *            the type of image, one of the <code>BufferedImage.TYPE_</code>
+	 *            constants
+	 * @return the image
+	 */
+	public BufferedImage toImage(int imageType) {
+		BufferedImage image = new BufferedImage(width, height, imageType);
+		writeTo(image);
+		return image;
+	}
+
+	/**
+	 * Gets the color of a pixel as it appears in images.
+	 *
+	 * @return the color packed into an int with 8 bits per channel, each
+	 *         component clamped to [0, 1]
+	 */
+	public int getRGB(int x, int y) {
+		return pack(blocks[y / rowsPerBlock], offset(x, y));
+	}
+
+	/**
+	 * Converts the picture into an image, with the top left pixel of the buffer
+	 * at the top left of the image. Each component is clamped to [0, 1] and
+	 * rounded to 8 bits, as by {@link #getRGB(int, int)}.
+	 *
+	 * @param image
+	 *            receives the picture. Must be at least as large as the buffer.
+	 * @see ToneMapper
+	 */
+	public void writeTo(BufferedImage image) {
+		int[] row = new int[width];
+		for (int y = 0; y < height; y++) {
+			FloatBuffer pixels = blocks[y / rowsPerBlock];
+			for (int x = 0, i = offset(0, y); x < width; x++, i += 4)
+				row[x] = pack(pixels, i);
+			setRow(image, y, row);
+		}
+	}
+
+	/**
+	 * Tells if {@link #setRow(BufferedImage, int, int[])} writes straight into
+	 * an image's DataBuffer, in which case different threads may write
+	 * different rows at once.
+	 */
+	static boolean isDirect(BufferedImage image) {
+		WritableRaster raster = image.getRaster();
+		// Images made by new BufferedImage have no translation; subimages fall back
+		if (raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0
+				|| raster.getDataBuffer().getNumBanks() != 1)
+			return false;
+		SampleModel sm = raster.getSampleModel();
+		ColorModel cm = image.getColorModel();
+		DataBuffer db = raster.getDataBuffer();
+		if (db instanceof DataBufferInt)
+			return sm instanceof SinglePixelPackedSampleModel && cm instanceof DirectColorModel
+					&& eightBit((DirectColorModel) cm);
+		return db instanceof DataBufferByte && sm instanceof ComponentSampleModel
+				&& cm instanceof ComponentColorModel && cm.getColorSpace().isCS_sRGB() && cm.getNumComponents() >= 3
+				&& eightBit(cm);
+	}
+
+	/**
+	 * Writes a row of colors into an image, straight into its DataBuffer for
+	 * the usual integer and byte image types, and through
+	 * <code>setRGB</code> for the rest. Alpha is opaque, so premultiplied
+	 * images come out the same.
+	 *
+	 * @param rgb
+	 *            the colors, packed into ints with 8 bits per channel. May be
+	 *            changed.
+	 */
+	static void setRow(BufferedImage image, int y, int[] rgb) {
+		if (!isDirect(image)) {
+			for (int x = 0; x < rgb.length; x++)
+				rgb[x] |= 0xff000000;
+			image.setRGB(0, y, rgb.length, 1, rgb, 0, rgb.length);
+			return;
+		}
+		WritableRaster raster = image.getRaster();
+		DataBuffer db = raster.getDataBuffer();
+		if (db instanceof DataBufferInt) {
+			DirectColorModel cm = (DirectColorModel) image.getColorModel();
+			int rs = Integer.numberOfTrailingZeros(cm.getRedMask());
+			int gs = Integer.numberOfTrailingZeros(cm.getGreenMask());
+			int bs = Integer.numberOfTrailingZeros(cm.getBlueMask());
+			int alpha = cm.getAlphaMask();
+			int[] data = ((DataBufferInt) db).getData();
+			int at = db.getOffset() + y * ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+			if (rs == 16 && gs == 8 && bs == 0) {
+				for (int x = 0; x < rgb.length; x++)
+					data[at + x] = alpha | rgb[x];
+			} else {
+				for (int x = 0; x < rgb.length; x++) {
+					int p = rgb[x];
+					data[at + x] = alpha | (p >> 16 & 0xff) << rs | (p >> 8 & 0xff) << gs | (p & 0xff) << bs;
+				}
+			}
+		} else {
+			ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+			int[] bands = sm.getBandOffsets();
+			int stride = sm.getPixelStride();
+			boolean alpha = image.getColorModel().hasAlpha();
+			byte[] data = ((DataBufferByte) db).getData();
+			int at = db.getOffset() + y * sm.getScanlineStride();
+			for (int x = 0; x < rgb.length; x++, at += stride) {
+				int p = rgb[x];
+				data[at + bands[0]] = (byte) (p >> 16);
+				data[at + bands[1]] = (byte) (p >> 8);
+				data[at + bands[2]] = (byte) p;
+				if (alpha)
+					data[at + bands[3]] = (byte) 0xff;
+			}
+		}
+	}
+
+	private static boolean eightBit(DirectColorModel cm) {
+		return Integer.bitCount(cm.getRedMask()) == 8 && Integer.bitCount(cm.getGreenMask()) == 8
+				&& Integer.bitCount(cm.getBlueMask()) == 8
+				&& (cm.getAlphaMask() == 0 || Integer.bitCount(cm.getAlphaMask()) == 8);
+	}
+
+	private static boolean eightBit(ColorModel cm) {
+		for (int size : cm.getComponentSize()) {
+			if (size != 8)
+				return false;
+		}
+		return cm.getColorSpace().getType() == ColorSpace.TYPE_RGB;
+	}
+
+	/**
+	 * @return where a pixel starts in its block
+	 */
+	private int offset(int x, int y) {
+		return 4 * ((y % rowsPerBlock) * width + x);
+	}
+
+	private static int pack(FloatBuffer pixels, int i) {
+		float w = pixels.get(i + 3);
+		w = w == 0.0f ? 0.0f : 1.0f / w;
+		return toByte(pixels.get(i) * w) << 16 | toByte(pixels.get(i + 1) * w) << 8 | toByte(pixels.get(i + 2) * w);
+	}
+
+	/**
+	 * Clamps a color component to [0, 1] and rounds it to 8 bits.
+	 */
+	static int toByte(float c) {
+		return c <= 0.0f ? 0 : c >= 1.0f ? 255 : (int) (c * 255.0f + 0.5f);
+	}
+}
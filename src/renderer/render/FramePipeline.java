@@ -0,0 +1,406 @@
+package renderer.render;
+
+import static renderer.Config.LOG;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import renderer.Config;
+import renderer.infrastructure.math.Transform;
+import renderer.infrastructure.math.Vector3;
+import renderer.scene.Camera;
+import renderer.scene.Scene;
+import renderer.scene.actors.AreaLight;
+import renderer.scene.actors.Light;
+import renderer.scene.actors.ModelInstance;
+import renderer.scene.animation.AnimationManager;
+
+/**
+ * Renders the frames of a shot one after another, overlapping the work around
+ * each picture with the pictures before and after it. Every frame goes
+ * through four stages, each on its own thread:
+ * <ol>
+ * <li>{@link #ANIMATE}: the AnimationManager moves the actors to the frame,
+ * and where everything is gets copied down.</li>
+ * <li>{@link #REFIT}: a spare copy of the Scene is moved to match, and its
+ * BVH refit.</li>
+ * <li>{@link #RENDER}: the Camera takes the picture, on
+ * {@link Config#RENDER_THREADS} threads.</li>
+ * <li>{@link #ENCODE}: the picture is handed to a {@link PngWriter}, which
+ * writes it as <code>frame_00042.png</code> and so on.</li>
+ * </ol>
+ * <p>
+ * So while frame <i>n</i> renders, frame <i>n</i>+1 is being prepared and
+ * frame <i>n</i>-1 written. The stages hand frames on through queues that
+ * hold one frame each, so a fast stage waits for a slow one instead of
+ * running ahead, and only a few frames are ever in memory. Since the actors
+ * move while an earlier frame is still being rendered, the pipeline renders
+ * a few copies of the Scene made by a {@link ShotFactory} in turn, all with
+ * the first copy's Camera. The frames come out the same as rendering them one
+ * by one with a single AnimationManager. Consecutive frames come from
+ * different copies, so {@link renderer.scene.ImageData#temporalReuse} has
+ * nothing to re-use here. Instances and lights can't be added to or removed
+ * from the shot while it runs.
+ * </p>
+ * <p>
+ * How long each stage spent working and waiting is kept, to show which one
+ * holds the others up.
+ * </p>
+ *
+ * <pre>
+ * FramePipeline pipeline = new FramePipeline(() -&gt; createShot(), 0, 240);
+ * pipeline.render(new File(Config.PATH_MOVIES_SAVE + "intro"));
+ * </pre>
+ *
+ * @see MovieRender
+ */
+public class FramePipeline {
+	/** The stage that advances the animations. */
+	public static final int ANIMATE = 0;
+	/** The stage that moves a copy of the Scene and refits its BVH. */
+	public static final int REFIT = 1;
+	/** The stage that renders the pictures. */
+	public static final int RENDER = 2;
+	/** The stage that writes the pictures. */
+	public static final int ENCODE = 3;
+
+	private static final String[] STAGE_NAMES = { "animate", "refit", "render", "encode" };
+	/** Enough copies of the Scene for one being refit, one queued and one rendering. */
+	private static final int COPIES = 3;
+
+	private final ShotFactory shot;
+	private final int firstFrame, endFrame;
+
+	private final long[] busyNanos = new long[4], waitNanos = new long[4];
+	private long wallNanos;
+	private Throwable failure;
+
+	/**
+	 * Creates a new FramePipeline.
+	 *
+	 * @param shot
+	 *            creates copies of the shot. The first one is animated, the
+	 *            others are rendered.
+	 * @param firstFrame
+	 *            the first frame to write, counting from 0 at the start of the
+	 *            shot
+	 * @param endFrame
+	 *            the frame after the last one to write
+	 * @throws IllegalArgumentException
+	 *             if the range of frames is empty or starts before 0
+	 */
+	public FramePipeline(ShotFactory shot, int firstFrame, int endFrame) {
+		if (firstFrame < 0 || endFrame <= firstFrame)
+			throw new IllegalArgumentException("Cannot render frames " + firstFrame + " to " + endFrame);
+		this.shot = shot;
+		this.firstFrame = firstFrame;
+		this.endFrame = endFrame;
+	}
+
+	/**
+	 * Renders the frames and writes them into a directory, blocking until the
+	 * last one is written.
+	 *
+	 * @param directory
+	 *            where to write the frames. Created if it doesn't exist.
+	 * @throws IOException
+	 *             if a frame could not be written
+	 * @throws IllegalArgumentException
+	 *             if the copies of the shot have no Scene or Camera, or don't
+	 *             have the same instances and lights
+	 */
+	public void render(final File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create " + directory);
+		long start = System.nanoTime();
+		final AnimationManager manager = shot.createShot();
+		final Scene master = manager.scene;
+		checkShot(master, master);
+		// The REFIT stage refits the copies, so the manager doesn't have to
+		manager.scene = null;
+		final BlockingQueue<Scene> spares = new ArrayBlockingQueue<Scene>(COPIES);
+		for (int i = 0; i < COPIES; i++) {
+			Scene copy = shot.createShot().scene;
+			checkShot(master, copy);
+			spares.add(copy);
+		}
+		final Camera camera = spares.peek().cameras.get(0);
+		final int instanceCount = master.instances.size(), lightCount = master.lights.size();
+		final BlockingQueue<Frame> animated = new ArrayBlockingQueue<Frame>(1);
+		final BlockingQueue<Frame> refit = new ArrayBlockingQueue<Frame>(1);
+		final BlockingQueue<Frame> rendered = new ArrayBlockingQueue<Frame>(1);
+		final RenderScheduler scheduler = new RenderScheduler(camera.getImageData().tileSize, Config.RENDER_THREADS);
+		Arrays.fill(busyNanos, 0);
+		Arrays.fill(waitNanos, 0);
+		failure = null;
+
+		final Thread[] stages = new Thread[4];
+		stages[ANIMATE] = new Stage(ANIMATE, stages) {
+			@Override
+			void work(long[] clock) throws Exception {
+				for (int f = 0; f < endFrame; f++) {
+					if (f > 0)
+						manager.update();
+					if (f >= firstFrame) {
+						if (master.instances.size() != instanceCount || master.lights.size() != lightCount)
+							throw new IllegalStateException("Instances and lights can't be added to or removed from a shot");
+						put(animated, Frame.capture(f, master), clock);
+					}
+				}
+				put(animated, Frame.END, clock);
+			}
+		};
+		stages[REFIT] = new Stage(REFIT, stages) {
+			@Override
+			void work(long[] clock) throws Exception {
+				Frame frame;
+				while ((frame = take(animated, clock)) != Frame.END) {
+					frame.scene = take(spares, clock);
+					frame.apply();
+					frame.scene.commit();
+					put(refit, frame, clock);
+				}
+				put(refit, Frame.END, clock);
+			}
+		};
+		stages[RENDER] = new Stage(RENDER, stages) {
+			@Override
+			void work(long[] clock) throws Exception {
+				Frame frame;
+				while ((frame = take(refit, clock)) != Frame.END) {
+					camera.setTransform(frame.camera);
+					frame.image = camera.takePicture(frame.scene, scheduler);
+					spares.add(frame.scene);
+					frame.scene = null;
+					put(rendered, frame, clock);
+				}
+				put(rendered, Frame.END, clock);
+			}
+		};
+		stages[ENCODE] = new Stage(ENCODE, stages) {
+			@Override
+			void work(long[] clock) throws Exception {
+				try (PngWriter writer = new PngWriter()) {
+					Frame frame;
+					while ((frame = take(rendered, clock)) != Frame.END)
+						writer.write(frame.image, MovieRender.frameFile(directory, frame.index));
+				}
+			}
+		};
+		for (Thread t : stages)
+			t.start();
+		try {
+			for (Thread t : stages)
+				t.join();
+		} catch (InterruptedException e) {
+			for (Thread t : stages)
+				t.interrupt();
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while rendering frames", e);
+		} finally {
+			scheduler.shutdown();
+		}
+		wallNanos = System.nanoTime() - start;
+		synchronized (this) {
+			if (failure instanceof IOException)
+				throw (IOException) failure;
+			if (failure instanceof RuntimeException)
+				throw (RuntimeException) failure;
+			if (failure instanceof Error)
+				throw (Error) failure;
+			if (failure != null)
+				throw new IOException("A stage failed", failure);
+		}
+		logTimes();
+	}
+
+	/**
+	 * Makes sure a copy of the shot can stand in for the animated one.
+	 */
+	private static void checkShot(Scene master, Scene copy) {
+		if (copy == null || copy.cameras.isEmpty())
+			throw new IllegalArgumentException("A shot needs a Scene with a Camera");
+		if (copy.instances.size() != master.instances.size() || copy.lights.size() != master.lights.size())
+			throw new IllegalArgumentException("Every copy of a shot must have the same instances and lights");
+		for (int i = 0; i < copy.lights.size(); i++) {
+			if (copy.lights.get(i).getClass() != master.lights.get(i).getClass())
+				throw new IllegalArgumentException("Every copy of a shot must have the same instances and lights");
+		}
+	}
+
+	private void logTimes() {
+		int frames = endFrame - firstFrame;
+		LOG.info(String.format("Rendered %d frames in %.1f s", frames, wallNanos / 1e9));
+		for (int s = ANIMATE; s <= ENCODE; s++) {
+			LOG.info(String.format("    %-8s %8.1f ms working (%6.1f ms per frame, %3.0f%%), %8.1f ms waiting",
+					STAGE_NAMES[s], busyNanos[s] / 1e6, busyNanos[s] / 1e6 / frames,
+					100.0 * busyNanos[s] / wallNanos, waitNanos[s] / 1e6));
+		}
+	}
+
+	/**
+	 * Gets how long a stage spent working during the last render.
+	 *
+	 * @param stage
+	 *            {@link #ANIMATE}, {@link #REFIT}, {@link #RENDER} or
+	 *            {@link #ENCODE}
+	 * @return the time, in nanoseconds
+	 */
+	public long getBusyNanos(int stage) {
+		return busyNanos[stage];
+	}
+
+	/**
+	 * Gets how long a stage spent waiting for the stage before it to hand on a
+	 * frame, or for the stage after it to take one, during the last render.
+	 *
+	 * @param stage
+	 *            {@link #ANIMATE}, {@link #REFIT}, {@link #RENDER} or
+	 *            {@link #ENCODE}
+	 * @return the time, in nanoseconds
+	 */
+	public long getWaitNanos(int stage) {
+		return waitNanos[stage];
+	}
+
+	/**
+	 * @return how long the last render took from start to finish, in
+	 *         nanoseconds
+	 */
+	public long getWallNanos() {
+		return wallNanos;
+	}
+
+	/**
+	 * A stage's thread. Times its work and waits, and stops the other stages if
+	 * it fails.
+	 */
+	private abstract class Stage extends Thread {
+		private final int stage;
+		private final Thread[] stages;
+
+		Stage(int stage, Thread[] stages) {
+			super("pipeline-" + STAGE_NAMES[stage]);
+			this.stage = stage;
+			this.stages = stages;
+		}
+
+		/**
+		 * Does the stage's work.
+		 *
+		 * @param clock
+		 *            the time spent waiting so far, in its first element
+		 */
+		abstract void work(long[] clock) throws Exception;
+
+		@Override
+		public void run() {
+			long[] clock = new long[1];
+			long start = System.nanoTime();
+			try {
+				work(clock);
+			} catch (InterruptedException e) {
+				// Another stage failed
+			} catch (Throwable e) {
+				synchronized (FramePipeline.this) {
+					if (failure == null)
+						failure = e;
+				}
+				for (Thread t : stages) {
+					if (t != this)
+						t.interrupt();
+				}
+			}
+			waitNanos[stage] = clock[0];
+			busyNanos[stage] = System.nanoTime() - start - clock[0];
+		}
+
+		<T> T take(BlockingQueue<T> queue, long[] clock) throws InterruptedException {
+			long start = System.nanoTime();
+			T t = queue.take();
+			clock[0] += System.nanoTime() - start;
+			return t;
+		}
+
+		<T> void put(BlockingQueue<T> queue, T t, long[] clock) throws InterruptedException {
+			long start = System.nanoTime();
+			queue.put(t);
+			clock[0] += System.nanoTime() - start;
+		}
+	}
+
+	/**
+	 * Where everything was in one frame, and what became of it.
+	 */
+	private static class Frame {
+		/** Follows the last frame. */
+		static final Frame END = new Frame();
+
+		int index;
+		Transform camera;
+		Transform[] instances;
+		Vector3[] lightPositions, lightColors, lightU, lightV;
+		double[] lightIntensities;
+		/** The copy of the Scene the frame is rendered from. */
+		Scene scene;
+		BufferedImage image;
+
+		/**
+		 * Copies down where everything in a Scene is.
+		 */
+		static Frame capture(int index, Scene scene) {
+			Frame f = new Frame();
+			f.index = index;
+			f.camera = scene.cameras.get(0).getTransform();
+			f.instances = new Transform[scene.instances.size()];
+			for (int i = 0; i < f.instances.length; i++)
+				f.instances[i] = scene.instances.get(i).getTransform();
+			int lights = scene.lights.size();
+			f.lightPositions = new Vector3[lights];
+			f.lightColors = new Vector3[lights];
+			f.lightU = new Vector3[lights];
+			f.lightV = new Vector3[lights];
+			f.lightIntensities = new double[lights];
+			for (int i = 0; i < lights; i++) {
+				Light l = scene.lights.get(i);
+				f.lightPositions[i] = l.position.cpy();
+				f.lightColors[i] = l.color.cpy();
+				f.lightIntensities[i] = l.intensity;
+				if (l instanceof AreaLight) {
+					f.lightU[i] = ((AreaLight) l).u.cpy();
+					f.lightV[i] = ((AreaLight) l).v.cpy();
+				}
+			}
+			return f;
+		}
+
+		/**
+		 * Moves everything in the frame's copy of the Scene to where it was.
+		 * Instances that are already there are left alone, so the BVH is only
+		 * refit around the ones that moved.
+		 */
+		void apply() {
+			ArrayList<Light> lights = scene.lights;
+			for (int i = 0; i < instances.length; i++) {
+				ModelInstance mi = scene.instances.get(i);
+				if (!Arrays.equals(mi.getTransform().toArray(), instances[i].toArray()))
+					mi.setTransform(instances[i]);
+			}
+			for (int i = 0; i < lights.size(); i++) {
+				Light l = lights.get(i);
+				l.position = lightPositions[i].cpy();
+				l.color = lightColors[i].cpy();
+				l.intensity = lightIntensities[i];
+				if (l instanceof AreaLight) {
+					((AreaLight) l).u = lightU[i].cpy();
+					((AreaLight) l).v = lightV[i].cpy();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,200 @@
+package renderer.render;
+
+import java.util.Arrays;
+
+import renderer.kernel.AABB;
+import renderer.scene.actors.Light;
+
+/**
+ * A bounding volume hierarchy over a Scene's Lights, used to pick a few of
+ * them to sample at each shading point instead of tracing a shadow ray to
+ * every one. Each node stores the box around its Lights and their total
+ * power. Picking a Light walks down from the root and chooses between the
+ * two children of a node in proportion to how much light each is expected to
+ * send to the point: its power over the squared distance to its box, or
+ * nothing if its box is entirely behind the surface. Bright and nearby Lights
+ * are picked often, distant and hidden ones rarely or never, and the cost of a
+ * pick grows with the depth of the tree rather than with the number of Lights.
+ * <p>
+ * The tree is described by
+ * <a href="https://doi.org/10.1145/3233305">Conty Estevez and Kulla</a>,
+ * without the orientation cones: a Light's box is assumed to shine in every
+ * direction.
+ * </p>
+ * <p>
+ * The tree is immutable once built, so it can be shared by every render
+ * thread. It must be rebuilt after the Lights move.
+ * </p>
+ */
+public class LightTree {
+	/** Random numbers are kept just below 1 so a pick never runs off a node. */
+	private static final double ONE_MINUS_EPSILON = Math.nextDown(1.0);
+	/** Keeps a point light right at the shading point from taking all the weight. */
+	private static final double MIN_DISTANCE_SQUARED = 1e-12;
+
+	/** The bounds of each node, 6 values per node. */
+	private final double[] bounds;
+	/** The total power of the Lights below each node. */
+	private final double[] power;
+	/** The right child of an inner node. The left one always follows its parent. */
+	private final int[] right;
+	/** The index of the Light in a leaf, or -1 for an inner node. */
+	private final int[] light;
+	private int nodeCount;
+
+	// Only used while building
+	private Integer[] order;
+	private AABB[] boxes;
+
+	/**
+	 * Builds a tree over some Lights. Every leaf holds a single Light.
+	 *
+	 * @param lights
+	 *            the Lights to pick from. Indices returned by
+	 *            {@link #sample(double, double, double, double, double, double, double, double[])}
+	 *            refer to this array.
+	 */
+	public LightTree(Light[] lights) {
+		int n = lights.length;
+		int nodes = Math.max(1, 2 * n - 1);
+		bounds = new double[6 * nodes];
+		power = new double[nodes];
+		right = new int[nodes];
+		light = new int[nodes];
+		if (n == 0)
+			return;
+		order = new Integer[n];
+		boxes = new AABB[n];
+		double[] powers = new double[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+			boxes[i] = lights[i].getBounds();
+			powers[i] = Math.max(0.0, lights[i].getPower());
+		}
+		build(0, n, powers);
+		order = null;
+		boxes = null;
+	}
+
+	/**
+	 * Builds the subtree over <code>order[from, to)</code>, splitting the
+	 * centroids in half along their longest axis.
+	 *
+	 * @return the index of the subtree's root
+	 */
+	private int build(int from, int to, double[] powers) {
+		int node = nodeCount++;
+		AABB box = new AABB(), centroids = new AABB();
+		double p = 0.0;
+		for (int i = from; i < to; i++) {
+			AABB b = boxes[order[i]];
+			box.grow(b);
+			centroids.grow(center(b, 0), center(b, 1), center(b, 2));
+			p += powers[order[i]];
+		}
+		int o = 6 * node;
+		for (int a = 0; a < 3; a++) {
+			bounds[o + a] = box.min(a);
+			bounds[o + a + 3] = box.max(a);
+		}
+		power[node] = p;
+		if (to - from == 1) {
+			light[node] = order[from];
+			return node;
+		}
+		light[node] = -1;
+		int axis = 0;
+		for (int a = 1; a < 3; a++) {
+			if (centroids.max(a) - centroids.min(a) > centroids.max(axis) - centroids.min(axis))
+				axis = a;
+		}
+		final int splitAxis = axis;
+		Arrays.sort(order, from, to,
+				(i, j) -> Double.compare(center(boxes[i], splitAxis), center(boxes[j], splitAxis)));
+		int mid = (from + to) >>> 1;
+		build(from, mid, powers);
+		right[node] = build(mid, to, powers);
+		return node;
+	}
+
+	private static double center(AABB b, int axis) {
+		return 0.5 * (b.min(axis) + b.max(axis));
+	}
+
+	/**
+	 * Picks a Light for a shading point, in proportion to how much it is
+	 * expected to light the point.
+	 *
+	 * @param px
+	 *            the x coordinate of the point
+	 * @param py
+	 *            the y coordinate of the point
+	 * @param pz
+	 *            the z coordinate of the point
+	 * @param nx
+	 *            the x component of the surface normal at the point
+	 * @param ny
+	 *            the y component of the normal
+	 * @param nz
+	 *            the z component of the normal
+	 * @param u
+	 *            a uniform random number in [0, 1)
+	 * @param pdf
+	 *            receives, in its first element, the probability the picked
+	 *            Light had of being picked
+	 * @return the index of the Light, or -1 if no Light can reach the point
+	 */
+	public int sample(double px, double py, double pz, double nx, double ny, double nz, double u, double[] pdf) {
+		if (nodeCount == 0)
+			return -1;
+		double p = 1.0;
+		int node = 0;
+		while (light[node] < 0) {
+			int l = node + 1, r = right[node];
+			double il = importance(l, px, py, pz, nx, ny, nz);
+			double ir = importance(r, px, py, pz, nx, ny, nz);
+			if (il + ir <= 0.0)
+				return -1;
+			double pl = il / (il + ir);
+			if (u < pl) {
+				node = l;
+				u /= pl;
+				p *= pl;
+			} else {
+				node = r;
+				u = (u - pl) / (1.0 - pl);
+				p *= 1.0 - pl;
+			}
+			u = Math.min(u, ONE_MINUS_EPSILON);
+		}
+		pdf[0] = p;
+		return light[node];
+	}
+
+	/**
+	 * Estimates how much light a node sends to a point. Conservative about the
+	 * surface: only nodes whose box is entirely behind it get nothing.
+	 */
+	private double importance(int node, double px, double py, double pz, double nx, double ny, double nz) {
+		int o = 6 * node;
+		double front = Math.max(nx * (bounds[o] - px), nx * (bounds[o + 3] - px))
+				+ Math.max(ny * (bounds[o + 1] - py), ny * (bounds[o + 4] - py))
+				+ Math.max(nz * (bounds[o + 2] - pz), nz * (bounds[o + 5] - pz));
+		if (front <= 0.0)
+			return 0.0;
+		double hx = 0.5 * (bounds[o + 3] - bounds[o]), hy = 0.5 * (bounds[o + 4] - bounds[o + 1]),
+				hz = 0.5 * (bounds[o + 5] - bounds[o + 2]);
+		double dx = bounds[o] + hx - px, dy = bounds[o + 1] + hy - py, dz = bounds[o + 2] + hz - pz;
+		// Inside or close to a box, the distance to its center means little, so
+		// it is clamped to the box's size
+		double d2 = Math.max(dx * dx + dy * dy + dz * dz, hx * hx + hy * hy + hz * hz);
+		return power[node] / Math.max(d2, MIN_DISTANCE_SQUARED);
+	}
+
+	/**
+	 * @return the number of nodes in the tree
+	 */
+	public int nodeCount() {
+		return nodeCount;
+	}
+}
@@ -0,0 +1,300 @@
+package renderer.render;
+
+import static renderer.Config.LOG;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import renderer.Config;
+import renderer.scene.Camera;
+import renderer.scene.ImageData;
+import renderer.scene.Scene;
+import renderer.scene.animation.AnimationManager;
+import renderer.scene.animation.MovieData;
+
+/**
+ * Renders a range of frames of a shot into numbered PNG files, several frames
+ * at once. Single pictures stop getting faster with more threads once there
+ * are too few tiles to go around, or too much time goes into preparing each
+ * frame, but separate frames don't wait on each other at all.
+ * <p>
+ * The frames are split between lanes. Each lane gets its own copy of the shot
+ * from a {@link ShotFactory}, its own share of the threads, and every
+ * <i>n</i>th frame, advancing its AnimationManager to each of them in turn.
+ * Every frame is evaluated by a single copy, from the start of the shot, so
+ * it looks the same however many lanes there are. A lane's consecutive
+ * frames aren't consecutive in the movie, so
+ * {@link renderer.scene.ImageData#temporalReuse} is turned off unless there
+ * is only one lane. As many lanes run as there
+ * are threads, as long as the frames being rendered, plus the finished ones
+ * waiting for an earlier frame to be written, fit in the memory budget.
+ * Frames are handed to a {@link PngWriter} in order, as
+ * <code>frame_00042.png</code> and so on, with the frame's AOVs next to it as
+ * <code>frame_00042.depth.png</code> and so on if the Camera records any.
+ * The background of the albedo image is black, or white if the AOVs are
+ * {@link AOVBuffer#AVERAGED}.
+ * </p>
+ *
+ * <pre>
+ * MovieRender movie = new MovieRender(new MovieData(24.0), () -&gt; createShot(), 0, 240);
+ * movie.render(new File(Config.PATH_MOVIES_SAVE + "intro"));
+ * </pre>
+ */
+public class MovieRender {
+	/** The bytes each pixel of a frame takes while it is rendered and written, roughly. */
+	private static final long BYTES_PER_PIXEL = 56;
+	/** The extra bytes per pixel kept by a Camera that re-uses its last frame. */
+	private static final long REUSE_BYTES_PER_PIXEL = 80;
+
+	private final MovieData data;
+	private final ShotFactory shot;
+	private final int firstFrame, endFrame;
+	private int threads;
+	private long memoryBudget;
+
+	// The state of a render, guarded by the frames map
+	private final Map<Integer, BufferedImage> frames;
+	private final Map<Integer, AOVBuffer> frameAOVs;
+	private int nextToWrite;
+	private int maxFrames;
+	private Throwable failure;
+
+	/**
+	 * Creates a new MovieRender.
+	 *
+	 * @param data
+	 *            the frame rate and such of the movie. Replaces the MovieData of
+	 *            every copy of the shot.
+	 * @param shot
+	 *            creates copies of the shot
+	 * @param firstFrame
+	 *            the first frame to render, counting from 0 at the start of the
+	 *            shot
+	 * @param endFrame
+	 *            the frame after the last one to render
+	 * @throws IllegalArgumentException
+	 *             if the range of frames is empty or starts before 0
+	 */
+	public MovieRender(MovieData data, ShotFactory shot, int firstFrame, int endFrame) {
+		if (firstFrame < 0 || endFrame <= firstFrame)
+			throw new IllegalArgumentException("Cannot render frames " + firstFrame + " to " + endFrame);
+		this.data = data.clone();
+		this.shot = shot;
+		this.firstFrame = firstFrame;
+		this.endFrame = endFrame;
+		this.threads = Config.RENDER_THREADS;
+		this.memoryBudget = Runtime.getRuntime().maxMemory() / 2;
+		this.frames = new HashMap<Integer, BufferedImage>();
+		this.frameAOVs = new HashMap<Integer, AOVBuffer>();
+	}
+
+	/**
+	 * Sets how many threads to render with, over all frames. Defaults to
+	 * {@link Config#RENDER_THREADS}.
+	 *
+	 * @param threads
+	 *            the number of threads
+	 * @throws IllegalArgumentException
+	 *             if <code>threads</code> is less than 1
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("Thread count must be positive, got " + threads);
+		this.threads = threads;
+	}
+
+	/**
+	 * Sets how much memory the frames in flight may take. Defaults to half of
+	 * the heap. At least one frame is always rendered, whatever the budget.
+	 *
+	 * @param bytes
+	 *            the budget, in bytes
+	 * @throws IllegalArgumentException
+	 *             if <code>bytes</code> is less than 1
+	 */
+	public void setMemoryBudget(long bytes) {
+		if (bytes < 1)
+			throw new IllegalArgumentException("Memory budget must be positive, got " + bytes);
+		this.memoryBudget = bytes;
+	}
+
+	/**
+	 * Renders the frames and writes them into a directory, blocking until the
+	 * last one is written.
+	 *
+	 * @param directory
+	 *            where to write the frames. Created if it doesn't exist.
+	 * @throws IOException
+	 *             if a frame could not be written
+	 * @throws IllegalArgumentException
+	 *             if the shot has no Scene or the Scene has no Camera
+	 */
+	public void render(File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create " + directory);
+		long start = System.nanoTime();
+		AnimationManager first = createShot();
+		ImageData image = first.scene.cameras.get(0).getImageData();
+		long pixels = (long) image.width * image.height;
+		long bytesPerFrame = pixels * (BYTES_PER_PIXEL + AOVBuffer.bytesPerPixel(image.aovs));
+		int frameCount = endFrame - firstFrame;
+		maxFrames = (int) Math.max(1, Math.min(frameCount, memoryBudget / bytesPerFrame));
+		int lanes = Math.min(threads, maxFrames);
+		// Only a single lane renders frames in order, which re-using the last one needs
+		final boolean reuse = image.temporalReuse && lanes == 1;
+		if (reuse)
+			maxFrames = (int) Math.max(1,
+					Math.min(frameCount, memoryBudget / (bytesPerFrame + pixels * REUSE_BYTES_PER_PIXEL)));
+		else if (image.temporalReuse)
+			LOG.info("Temporal reuse is off, since consecutive frames are rendered in different lanes");
+		nextToWrite = firstFrame;
+		failure = null;
+		frames.clear();
+		frameAOVs.clear();
+		LOG.info("Rendering frames " + firstFrame + " to " + (endFrame - 1) + " in " + lanes + " lanes, at most "
+				+ maxFrames + " frames in memory");
+
+		try (PngWriter writer = new PngWriter()) {
+			Thread[] workers = new Thread[lanes];
+			for (int k = 0; k < lanes; k++) {
+				final int lane = k;
+				final int laneThreads = threads / lanes + (lane < threads % lanes ? 1 : 0);
+				final AnimationManager manager = lane == 0 ? first : null;
+				workers[k] = new Thread(() -> renderLane(lane, lanes, laneThreads, reuse, manager),
+						"movie-lane-" + lane);
+				workers[k].start();
+			}
+			try {
+				for (int f = firstFrame; f < endFrame; f++) {
+					BufferedImage frame;
+					AOVBuffer aovs;
+					synchronized (frames) {
+						while (!frames.containsKey(f) && failure == null)
+							frames.wait();
+						if (failure != null)
+							rethrow(failure);
+						frame = frames.remove(f);
+						aovs = frameAOVs.remove(f);
+					}
+					File file = frameFile(directory, f);
+					writer.write(frame, file);
+					if (aovs != null)
+						aovs.writeNextTo(writer, file);
+					synchronized (frames) {
+						nextToWrite = f + 1;
+						frames.notifyAll();
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while rendering frames", e);
+			} finally {
+				synchronized (frames) {
+					// Stops the lanes if this ended early
+					if (failure == null && nextToWrite < endFrame)
+						failure = new IllegalStateException("The movie render was abandoned");
+					frames.clear();
+					frameAOVs.clear();
+					frames.notifyAll();
+				}
+				for (Thread t : workers) {
+					try {
+						t.join();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+		}
+		LOG.info(String.format("Rendered %d frames in %.1f s", frameCount, (System.nanoTime() - start) / 1e9));
+	}
+
+	/**
+	 * Throws what made a lane fail, as it is if it can be.
+	 */
+	private static void rethrow(Throwable failure) throws IOException {
+		if (failure instanceof IOException)
+			throw (IOException) failure;
+		if (failure instanceof RuntimeException)
+			throw (RuntimeException) failure;
+		if (failure instanceof Error)
+			throw (Error) failure;
+		throw new IOException("A lane failed", failure);
+	}
+
+	/**
+	 * @return the file a frame is written to: <code>frame_00042.png</code> and
+	 *         so on
+	 */
+	static File frameFile(File directory, int frame) {
+		return new File(directory, String.format("frame_%05d.png", frame));
+	}
+
+	private AnimationManager createShot() {
+		AnimationManager m = shot.createShot();
+		if (m.scene == null || m.scene.cameras.isEmpty())
+			throw new IllegalArgumentException("A shot needs a Scene with a Camera");
+		m.data = data.clone();
+		return m;
+	}
+
+	/**
+	 * Renders every <code>lanes</code>th frame, starting at the lane's own.
+	 */
+	private void renderLane(int lane, int lanes, int laneThreads, boolean reuse, AnimationManager manager) {
+		RenderScheduler scheduler = null;
+		try {
+			if (manager == null)
+				manager = createShot();
+			Scene scene = manager.scene;
+			// Taking the picture commits the Scene, so stepping through the frames
+			// other lanes render doesn't have to refit the BVH each time
+			manager.scene = null;
+			Camera camera = scene.cameras.get(0);
+			ImageData settings = camera.getImageData();
+			if (settings.temporalReuse && !reuse) {
+				settings.temporalReuse = false;
+				camera.setImageData(settings);
+			}
+			scheduler = new RenderScheduler(settings.tileSize, laneThreads);
+			int current = 0;
+			for (int f = firstFrame + lane; f < endFrame; f += lanes) {
+				for (; current < f; current++)
+					manager.update();
+				synchronized (frames) {
+					// Keep at most maxFrames frames in memory. The lowest frame not yet
+					// written can always go ahead, so this never deadlocks.
+					while (f - nextToWrite >= maxFrames && failure == null)
+						frames.wait();
+					if (failure != null)
+						return;
+				}
+				BufferedImage image = camera.takePicture(scene, scheduler);
+				AOVBuffer aovs = camera.getAOVBuffer();
+				synchronized (frames) {
+					if (failure != null)
+						return;
+					frames.put(f, image);
+					if (aovs != null)
+						frameAOVs.put(f, aovs);
+					frames.notifyAll();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (Throwable e) {
+			// Errors too, or the writer would wait for this lane's frames forever
+			synchronized (frames) {
+				if (failure == null)
+					failure = e;
+				frames.notifyAll();
+			}
+		} finally {
+			if (scheduler != null)
+				scheduler.shutdown();
+		}
+	}
+}
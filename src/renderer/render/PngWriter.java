@@ -0,0 +1,466 @@
+package renderer.render;
+
+import static renderer.Config.LOG;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import renderer.Config;
+
+/**
+ * Writes pictures as PNG files in the background, so whoever took them can get
+ * on with the next one. ImageIO compresses a picture on a single thread, which
+ * takes hundreds of milliseconds for a large one.
+ * <p>
+ * Here the rows of a picture are split into chunks that are filtered and
+ * compressed at the same time on a pool of threads. Each chunk is compressed
+ * with the end of the chunk before it as its dictionary, and all but the last
+ * end on a byte boundary, so together they form one ordinary zlib stream, as
+ * if it had been compressed in one go. A single thread then writes the chunks
+ * to the file, in order, through a FileChannel. The file is written under a
+ * temporary name and renamed once it is complete, so nobody reads a half
+ * written picture. Any PNG reader decodes it to the same pixels.
+ * </p>
+ * <p>
+ * At most <code>maxPending</code> pictures wait to be written. Handing over
+ * another one blocks until one of them is, so the writer can't fall ever
+ * further behind and fill up the memory. Pictures must not be changed until
+ * they are written. Whether they were can be checked on the Future each write
+ * returns, or all at once with {@link #flush()} or {@link #close()}.
+ * </p>
+ *
+ * <pre>
+ * try (PngWriter writer = new PngWriter()) {
+ * 	writer.write(camera.takePicture(scene), scene.name);
+ * }
+ * </pre>
+ */
+public class PngWriter implements Closeable {
+	/** How many pictures may wait to be written when no limit is given. */
+	public static final int DEFAULT_MAX_PENDING = 2;
+
+	private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+	/** The filtered bytes in a chunk of rows, at least. */
+	private static final int CHUNK_BYTES = 1 << 18;
+	/**
+	 * How hard to compress. Higher levels take much longer for files only a
+	 * little smaller.
+	 */
+	private static final int LEVEL = 4;
+	/** The most a zlib dictionary can hold. */
+	private static final int DICTIONARY_BYTES = 1 << 15;
+
+	private final ExecutorService compressors;
+	private final ExecutorService io;
+	private final Semaphore pending;
+	private final int maxPending;
+	private volatile IOException failure;
+
+	/**
+	 * Creates a PngWriter that compresses on {@link Config#RENDER_THREADS}
+	 * threads and lets {@link #DEFAULT_MAX_PENDING} pictures wait.
+	 */
+	public PngWriter() {
+		this(Config.RENDER_THREADS, DEFAULT_MAX_PENDING);
+	}
+
+	/**
+	 * Creates a new PngWriter.
+	 *
+	 * @param threads
+	 *            how many threads to compress on
+	 * @param maxPending
+	 *            how many pictures may wait to be written before
+	 *            {@link #write(BufferedImage, File)} blocks
+	 * @throws IllegalArgumentException
+	 *             if <code>threads</code> or <code>maxPending</code> is less
+	 *             than 1
+	 */
+	public PngWriter(int threads, int maxPending) {
+		if (threads < 1)
+			throw new IllegalArgumentException("Thread count must be positive, got " + threads);
+		if (maxPending < 1)
+			throw new IllegalArgumentException("At least one picture must be allowed to wait, got " + maxPending);
+		this.compressors = Executors.newFixedThreadPool(threads, daemons("png-compress"));
+		this.io = Executors.newSingleThreadExecutor(daemons("png-write"));
+		this.pending = new Semaphore(maxPending);
+		this.maxPending = maxPending;
+	}
+
+	private static ThreadFactory daemons(final String name) {
+		final AtomicInteger count = new AtomicInteger();
+		return r -> {
+			Thread t = new Thread(r, name + "-" + count.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+
+	/**
+	 * Writes a picture to {@link Config#PATH_PICTURE_SAVE}.
+	 *
+	 * @param image
+	 *            the picture
+	 * @param name
+	 *            the name of the file, without <code>.png</code>
+	 * @return when the picture is written, the file
+	 * @throws InterruptedIOException
+	 *             if interrupted while waiting for room
+	 */
+	public Future<File> write(BufferedImage image, String name) throws InterruptedIOException {
+		return write(image, new File(Config.PATH_PICTURE_SAVE + name + ".png"));
+	}
+
+	/**
+	 * Writes a picture to a file. Blocks while too many pictures are waiting to
+	 * be written, then returns straight away.
+	 *
+	 * @param image
+	 *            the picture. Must not be changed until it is written.
+	 * @param file
+	 *            the file to write. Replaced if it exists.
+	 * @return when the picture is written, the file. Fails with an IOException
+	 *         if it could not be written.
+	 * @throws InterruptedIOException
+	 *             if interrupted while waiting for room
+	 */
+	public Future<File> write(final BufferedImage image, final File file) throws InterruptedIOException {
+		try {
+			pending.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to write " + file);
+		}
+		try {
+			final int width = image.getWidth(), height = image.getHeight();
+			final boolean alpha = image.getColorModel().hasAlpha();
+			int rowBytes = 1 + width * (alpha ? 4 : 3);
+			final int rowsPerChunk = Math.max(1, CHUNK_BYTES / rowBytes);
+			final List<Future<Chunk>> chunks = new ArrayList<Future<Chunk>>();
+			for (int y = 0; y < height; y += rowsPerChunk) {
+				final int first = y, end = Math.min(height, y + rowsPerChunk);
+				chunks.add(compressors.submit(() -> compress(image, alpha, first, end)));
+			}
+			return io.submit(() -> {
+				try {
+					writeFile(file, width, height, alpha, chunks);
+					return file;
+				} catch (IOException | RuntimeException e) {
+					LOG.log(Level.WARNING, "Could not write " + file, e);
+					if (failure == null)
+						failure = e instanceof IOException ? (IOException) e : new IOException("Could not write " + file, e);
+					throw e;
+				} finally {
+					pending.release();
+				}
+			});
+		} catch (RuntimeException e) {
+			pending.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Waits until every picture handed over so far is written.
+	 *
+	 * @throws IOException
+	 *             the first error any picture could not be written because of,
+	 *             if any
+	 * @throws InterruptedIOException
+	 *             if interrupted while waiting
+	 */
+	public void flush() throws IOException {
+		try {
+			pending.acquire(maxPending);
+			pending.release(maxPending);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for pictures to be written");
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	/**
+	 * Waits until every picture is written, then stops the writer's threads.
+	 *
+	 * @throws IOException
+	 *             the first error any picture could not be written because of,
+	 *             if any
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			compressors.shutdown();
+			io.shutdown();
+		}
+	}
+
+	/**
+	 * Filters and compresses some rows of a picture.
+	 */
+	private static Chunk compress(BufferedImage image, boolean alpha, int first, int end) {
+		int width = image.getWidth();
+		int bpp = alpha ? 4 : 3;
+		int rowBytes = 1 + width * bpp;
+		// Rows before the chunk are filtered again to serve as its dictionary
+		int dictionaryRows = first == 0 ? 0 : Math.min(first, (DICTIONARY_BYTES + rowBytes - 1) / rowBytes);
+		int start = first - dictionaryRows;
+		byte[] filtered = new byte[(end - start) * rowBytes];
+		int[] argb = new int[width];
+		byte[] previous = new byte[width * bpp], current = new byte[width * bpp];
+		if (start > 0)
+			unpack(image, start - 1, alpha, argb, previous);
+		for (int y = start; y < end; y++) {
+			unpack(image, y, alpha, argb, current);
+			filter(current, previous, bpp, filtered, (y - start) * rowBytes);
+			byte[] swap = previous;
+			previous = current;
+			current = swap;
+		}
+
+		int offset = dictionaryRows * rowBytes, length = filtered.length - offset;
+		Deflater deflater = new Deflater(LEVEL, true);
+		try {
+			if (offset > 0) {
+				int dictionary = Math.min(offset, DICTIONARY_BYTES);
+				deflater.setDictionary(filtered, offset - dictionary, dictionary);
+			}
+			deflater.setInput(filtered, offset, length);
+			boolean last = end == image.getHeight();
+			if (last)
+				deflater.finish();
+			byte[] out = new byte[length + length / 1000 + 64];
+			int size = 0;
+			while (true) {
+				size += deflater.deflate(out, size, out.length - size, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+				if (last ? deflater.finished() : size < out.length)
+					break;
+				out = Arrays.copyOf(out, out.length * 2);
+			}
+			Adler32 adler = new Adler32();
+			adler.update(filtered, offset, length);
+			return new Chunk(Arrays.copyOf(out, size), adler.getValue(), length);
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Reads a row of a picture as PNG samples: red, green, blue and, if the
+	 * picture has alpha, alpha. The pixels of the usual image types are copied
+	 * straight from the raster, skipping the ColorModel.
+	 */
+	private static void unpack(BufferedImage image, int y, boolean alpha, int[] argb, byte[] row) {
+		int type = image.getType();
+		if (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB)
+			image.getRaster().getDataElements(0, y, argb.length, 1, argb);
+		else
+			image.getRGB(0, y, argb.length, 1, argb, 0, argb.length);
+		int i = 0;
+		for (int p : argb) {
+			row[i++] = (byte) (p >> 16);
+			row[i++] = (byte) (p >> 8);
+			row[i++] = (byte) p;
+			if (alpha)
+				row[i++] = (byte) (p >>> 24);
+		}
+	}
+
+	/**
+	 * Filters a row with whichever of the five PNG filters leaves the smallest
+	 * sum of absolute differences, the usual guess at what compresses best.
+	 * The sums are worked out in one go, then only the chosen filter is
+	 * applied.
+	 */
+	private static void filter(byte[] row, byte[] previous, int bpp, byte[] out, int at) {
+		int n = row.length;
+		long none = 0, sub = 0, up = 0, average = 0, paeth = 0;
+		for (int i = 0; i < n; i++) {
+			int x = row[i] & 0xff, b = previous[i] & 0xff, a = 0, c = 0;
+			if (i >= bpp) {
+				a = row[i - bpp] & 0xff;
+				c = previous[i - bpp] & 0xff;
+			}
+			none += Math.abs((int) (byte) x);
+			sub += Math.abs((int) (byte) (x - a));
+			up += Math.abs((int) (byte) (x - b));
+			average += Math.abs((int) (byte) (x - ((a + b) >> 1)));
+			paeth += Math.abs((int) (byte) (x - paeth(a, b, c)));
+		}
+		int best = 0;
+		long least = none;
+		long[] sums = { none, sub, up, average, paeth };
+		for (int type = 1; type < 5; type++) {
+			if (sums[type] < least) {
+				least = sums[type];
+				best = type;
+			}
+		}
+		out[at++] = (byte) best;
+		for (int i = 0; i < n; i++) {
+			int x = row[i] & 0xff, b = previous[i] & 0xff, a = 0, c = 0;
+			if (i >= bpp) {
+				a = row[i - bpp] & 0xff;
+				c = previous[i - bpp] & 0xff;
+			}
+			switch (best) {
+			case 1:
+				x -= a;
+				break;
+			case 2:
+				x -= b;
+				break;
+			case 3:
+				x -= (a + b) >> 1;
+				break;
+			case 4:
+				x -= paeth(a, b, c);
+				break;
+			}
+			out[at + i] = (byte) x;
+		}
+	}
+
+	private static int paeth(int a, int b, int c) {
+		int p = a + b - c, pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+		return pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+	}
+
+	/**
+	 * Writes the compressed chunks of a picture as they become ready.
+	 */
+	private static void writeFile(File file, int width, int height, boolean alpha, List<Future<Chunk>> chunks)
+			throws IOException {
+		File part = new File(file.getPath() + ".part");
+		try (FileChannel channel = FileChannel.open(part.toPath(), StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			writeFully(channel, ByteBuffer.wrap(SIGNATURE));
+			ByteBuffer header = ByteBuffer.allocate(13);
+			header.putInt(width).putInt(height).put((byte) 8).put((byte) (alpha ? 6 : 2)).put((byte) 0)
+					.put((byte) 0).put((byte) 0);
+			writeChunk(channel, "IHDR", header.array(), 0, 13);
+			// The zlib header: deflate with a 32K window
+			writeChunk(channel, "IDAT", new byte[] { 0x78, (byte) 0x9c }, 0, 2);
+			long adler = 1;
+			for (Future<Chunk> f : chunks) {
+				Chunk c = get(f);
+				writeChunk(channel, "IDAT", c.data, 0, c.data.length);
+				adler = combine(adler, c.adler, c.length);
+			}
+			writeChunk(channel, "IDAT", ByteBuffer.allocate(4).putInt((int) adler).array(), 0, 4);
+			writeChunk(channel, "IEND", new byte[0], 0, 0);
+		} catch (IOException | RuntimeException e) {
+			for (Future<Chunk> f : chunks)
+				f.cancel(false);
+			Files.deleteIfExists(part.toPath());
+			throw e;
+		}
+		Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		LOG.fine("Wrote " + file);
+	}
+
+	private static Chunk get(Future<Chunk> f) throws IOException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while compressing a picture");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IOException("Could not compress a picture", e.getCause());
+		}
+	}
+
+	private static void writeChunk(FileChannel channel, String type, byte[] data, int offset, int length)
+			throws IOException {
+		byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+		CRC32 crc = new CRC32();
+		crc.update(name);
+		crc.update(data, offset, length);
+		ByteBuffer prefix = ByteBuffer.allocate(8);
+		prefix.putInt(length).put(name).flip();
+		ByteBuffer suffix = ByteBuffer.allocate(4);
+		suffix.putInt((int) crc.getValue()).flip();
+		ByteBuffer[] buffers = { prefix, ByteBuffer.wrap(data, offset, length), suffix };
+		while (suffix.hasRemaining())
+			channel.write(buffers);
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer b) throws IOException {
+		while (b.hasRemaining())
+			channel.write(b);
+	}
+
+	/**
+	 * Works out the Adler-32 checksum of two pieces of data one after the other
+	 * from the checksums of each, as zlib's <code>adler32_combine</code> does.
+	 *
+	 * @param first
+	 *            the checksum of the first piece
+	 * @param second
+	 *            the checksum of the second piece
+	 * @param length
+	 *            the length of the second piece
+	 */
+	static long combine(long first, long second, long length) {
+		final long base = 65521;
+		long rem = length % base;
+		long sum1 = first & 0xffff;
+		long sum2 = rem * sum1 % base;
+		sum1 += (second & 0xffff) + base - 1;
+		sum2 += ((first >> 16) & 0xffff) + ((second >> 16) & 0xffff) + base - rem;
+		if (sum1 >= base)
+			sum1 -= base;
+		if (sum1 >= base)
+			sum1 -= base;
+		if (sum2 >= base << 1)
+			sum2 -= base << 1;
+		if (sum2 >= base)
+			sum2 -= base;
+		return sum1 | sum2 << 16;
+	}
+
+	/**
+	 * Some rows of a picture, compressed.
+	 */
+	private static class Chunk {
+		final byte[] data;
+		/** The Adler-32 checksum of the filtered rows. */
+		final long adler;
+		/** How many filtered bytes were compressed. */
+		final int length;
+
+		Chunk(byte[] data, long adler, int length) {
+			this.data = data;
+			this.adler = adler;
+			this.length = length;
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package renderer.render;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Controls a progressive render, which takes one sample of every pixel per
+ * pass and publishes a snapshot of the picture after each pass, so a rough
+ * preview shows up after the first pass and keeps getting cleaner. The render
+ * stops once it has taken the set number of samples per pixel, once its time
+ * budget runs out, or when {@link #stop()} is called, whichever comes first.
+ * <p>
+ * Running out of time or being stopped interrupts the current pass between
+ * tiles, except for the first pass, which always finishes so that every pixel
+ * has at least one sample. Use a new ProgressiveRender for every picture.
+ * </p>
+ *
+ * <pre>
+ * ProgressiveRender progress = new ProgressiveRender(64, 10000);
+ * progress.addSnapshotListener((snapshot, samples, ms) -&gt; preview.show(snapshot));
+ * BufferedImage image = camera.takeProgressivePicture(scene, progress);
+ * </pre>
+ *
+ * @see renderer.scene.Camera#takeProgressivePicture(renderer.scene.Scene, ProgressiveRender)
+ * @see SnapshotListener
+ */
+public class ProgressiveRender {
+	private final int maxSamples;
+	private final long timeBudgetNanos;
+	private final List<SnapshotListener> listeners;
+	private volatile boolean stopRequested;
+	private volatile long startTime;
+	private volatile int samples;
+
+	/**
+	 * Creates a new ProgressiveRender.
+	 *
+	 * @param maxSamples
+	 *            how many samples to take of each pixel
+	 * @param timeBudgetMillis
+	 *            how long the render may take, or 0 for no limit
+	 * @throws IllegalArgumentException
+	 *             if <code>maxSamples</code> is less than 1 or the time budget is
+	 *             negative
+	 */
+	public ProgressiveRender(int maxSamples, long timeBudgetMillis) {
+		if (maxSamples < 1)
+			throw new IllegalArgumentException("A progressive render needs at least 1 sample, not " + maxSamples);
+		if (timeBudgetMillis < 0)
+			throw new IllegalArgumentException("Time budget must not be negative, got " + timeBudgetMillis);
+		this.maxSamples = maxSamples;
+		this.timeBudgetNanos = timeBudgetMillis * 1000000L;
+		this.listeners = new CopyOnWriteArrayList<SnapshotListener>();
+	}
+
+	/**
+	 * Registers a listener that is notified after every pass.
+	 *
+	 * @param listener
+	 *            the listener to add
+	 */
+	public void addSnapshotListener(SnapshotListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * @param listener
+	 *            the listener to remove
+	 */
+	public void removeSnapshotListener(SnapshotListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Asks the render to stop as soon as possible. Can be called from any thread.
+	 * The picture taken so far is still published and returned.
+	 */
+	public void stop() {
+		stopRequested = true;
+	}
+
+	/**
+	 * @return how many samples each pixel had after the last finished pass
+	 */
+	public int getSamples() {
+		return samples;
+	}
+
+	/**
+	 * @return the number of samples to take of each pixel, at most
+	 */
+	public int getMaxSamples() {
+		return maxSamples;
+	}
+
+	/**
+	 * Marks the start of the render. Called by the Camera.
+	 */
+	public void start() {
+		startTime = System.nanoTime();
+		samples = 0;
+	}
+
+	/**
+	 * Determines if the pass taking a sample may go on. Called by render threads
+	 * before each tile.
+	 *
+	 * @param sample
+	 *            the index of the sample the pass takes, which is also the index
+	 *            of the pass
+	 * @return <b>false</b> if the render was stopped or ran out of time, unless
+	 *         this is the first pass
+	 */
+	public boolean mayContinue(int sample) {
+		if (sample == 0)
+			return true;
+		return !stopRequested && (timeBudgetNanos == 0 || System.nanoTime() - startTime < timeBudgetNanos);
+	}
+
+	/**
+	 * Publishes the snapshot of a finished pass and decides if another one should
+	 * follow. Called by the Camera.
+	 *
+	 * @param snapshot
+	 *            the picture so far
+	 * @param samples
+	 *            how many samples each pixel has
+	 * @return <b>true</b> if another pass should be rendered
+	 */
+	public boolean passFinished(BufferedImage snapshot, int samples) {
+		this.samples = samples;
+		long elapsed = (System.nanoTime() - startTime) / 1000000L;
+		for (SnapshotListener l : listeners)
+			l.snapshotTaken(snapshot, samples, elapsed);
+		return samples < maxSamples && mayContinue(samples);
+	}
+}
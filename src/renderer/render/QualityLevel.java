@@ -0,0 +1,65 @@
+package renderer.render;
+
+import java.util.ArrayList;
+
+/**
+ * A struct-like class describing how carefully a tile is rendered: how many
+ * samples each pixel gets, how many shadow rays each hit traces, and at which
+ * resolution. Used by {@link RenderDeadline} to trade quality for time.
+ */
+public class QualityLevel {
+	/** The number of samples per pixel, or per block of pixels when scaled down. */
+	public final int samples;
+	/** The most shadow rays traced per hit. */
+	public final int lightSamples;
+	/** The width and height of the blocks of pixels that share a sample. 1 for full resolution. */
+	public final int scale;
+
+	public QualityLevel(int samples, int lightSamples, int scale) {
+		this.samples = samples;
+		this.lightSamples = lightSamples;
+		this.scale = scale;
+	}
+
+	/**
+	 * Estimates how much a pixel costs at this level, relative to other levels:
+	 * one primary ray and <code>lightSamples</code> shadow rays per sample, shared
+	 * by a block of <code>scale * scale</code> pixels.
+	 * 
+	 * @return the number of rays traced per pixel, at most
+	 */
+	public double cost() {
+		return samples * (1.0 + lightSamples) / (scale * scale);
+	}
+
+	/**
+	 * Lists the levels a render with a deadline steps down through, best first.
+	 * The samples per pixel are halved first, then the light samples, then the
+	 * resolution, down to a quarter.
+	 * 
+	 * @param samples
+	 *            the samples per pixel at full quality
+	 * @param lightSamples
+	 *            the light samples at full quality. Should be no more than the
+	 *            number of Lights, since more than that are never traced.
+	 * @return the levels
+	 */
+	public static QualityLevel[] ladder(int samples, int lightSamples) {
+		ArrayList<QualityLevel> levels = new ArrayList<QualityLevel>();
+		int s = Math.max(1, samples), l = Math.max(1, lightSamples);
+		levels.add(new QualityLevel(s, l, 1));
+		while (s > 1)
+			levels.add(new QualityLevel(s /= 2, l, 1));
+		while (l > 1)
+			levels.add(new QualityLevel(s, l /= 2, 1));
+		levels.add(new QualityLevel(1, 1, 2));
+		levels.add(new QualityLevel(1, 1, 4));
+		return levels.toArray(new QualityLevel[levels.size()]);
+	}
+
+	@Override
+	public String toString() {
+		String s = samples + " samples, " + lightSamples + " light samples";
+		return scale == 1 ? s : s + ", 1/" + scale + " resolution";
+	}
+}
@@ -0,0 +1,69 @@
+package renderer.render;
+
+/**
+ * Describes the quality a picture rendered with a deadline actually got: how
+ * many tiles were rendered at each {@link QualityLevel}, and how long it took.
+ * 
+ * @see RenderDeadline
+ * @see renderer.scene.Camera#getQualityReport()
+ */
+public class QualityReport {
+	/** The levels the render could choose from, best first. */
+	public final QualityLevel[] levels;
+	/** The number of tiles rendered at each level. */
+	public final int[] tiles;
+	/** The number of pixels rendered at each level. */
+	public final long[] pixels;
+	public final long budgetMillis, elapsedMillis;
+
+	public QualityReport(QualityLevel[] levels, int[] tiles, long[] pixels, long budgetMillis, long elapsedMillis) {
+		this.levels = levels;
+		this.tiles = tiles;
+		this.pixels = pixels;
+		this.budgetMillis = budgetMillis;
+		this.elapsedMillis = elapsedMillis;
+	}
+
+	/**
+	 * @return <b>true</b> if the picture was done within its budget
+	 */
+	public boolean metDeadline() {
+		return elapsedMillis <= budgetMillis;
+	}
+
+	/**
+	 * @return the best level used for any tile, or -1 if no tile was rendered
+	 */
+	public int bestLevel() {
+		for (int l = 0; l < levels.length; l++) {
+			if (tiles[l] > 0)
+				return l;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the worst level used for any tile, or -1 if no tile was rendered
+	 */
+	public int worstLevel() {
+		for (int l = levels.length - 1; l >= 0; l--) {
+			if (tiles[l] > 0)
+				return l;
+		}
+		return -1;
+	}
+
+	@Override
+	public String toString() {
+		long total = 0;
+		for (long p : pixels)
+			total += p;
+		StringBuilder sb = new StringBuilder();
+		sb.append("Rendered in ").append(elapsedMillis).append(" of ").append(budgetMillis).append(" ms");
+		for (int l = 0; l < levels.length; l++) {
+			if (tiles[l] > 0)
+				sb.append(String.format("; %.1f%% at %s (%d tiles)", 100.0 * pixels[l] / total, levels[l], tiles[l]));
+		}
+		return sb.toString();
+	}
+}
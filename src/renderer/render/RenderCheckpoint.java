@@ -0,0 +1,349 @@
+package renderer.render;
+
+import static renderer.Config.LOG;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+import renderer.Config;
+
+/**
+ * Saves the progress of a picture to a file as it is rendered, so that a
+ * render that dies can pick up where it left off instead of starting over.
+ * Resuming gives exactly the picture the render would have given without
+ * dying.
+ * <p>
+ * The file is a log. Whenever a tile finishes a pass, the exact sums and
+ * sample counts of its pixels are appended to it, and when anti-aliasing
+ * starts refining, the pixels it picked are too. Nothing has to stop while
+ * this happens, and each tile is written once per pass. Every
+ * <code>intervalMillis</code>, the log is forced to disk, so a crash loses
+ * at most that much work, plus the tiles that were being rendered. Resuming
+ * replays the log and only renders the tiles it doesn't cover. No random
+ * number state needs saving: samples are placed along a fixed sequence and
+ * shading seeds its random numbers from each hit point.
+ * </p>
+ * <p>
+ * A checkpoint only resumes a picture taken with the same Camera settings of
+ * the same Scene; a file left by anything else is started over. Once the
+ * picture is finished, the file is deleted. If the file can't be written,
+ * the render carries on without checkpoints.
+ * </p>
+ *
+ * <pre>
+ * BufferedImage image = camera.takePicture(scene, RenderCheckpoint.forPicture("poster"));
+ * </pre>
+ *
+ * @see renderer.scene.Camera#takePicture(renderer.scene.Scene, RenderCheckpoint)
+ */
+public class RenderCheckpoint {
+	/** How often the log is forced to disk when no interval is given. */
+	public static final long DEFAULT_INTERVAL_MILLIS = 60000;
+	/** The pass that takes the first samples of every pixel. */
+	public static final int FIRST_PASS = 0;
+	/** The pass in which anti-aliasing refines edges and noisy pixels. */
+	public static final int REFINE_PASS = 1;
+
+	private static final int MAGIC = 0x52434b50;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 24;
+	private static final byte TILE = 1;
+	private static final byte NOISY = 2;
+
+	private final File file;
+	private final long intervalNanos;
+	private FileChannel channel;
+	private long lastForce;
+	private boolean[][] done;
+	private boolean[] noisy;
+	private int resumedTiles;
+
+	/**
+	 * Creates a new RenderCheckpoint.
+	 *
+	 * @param file
+	 *            the file to keep the log in
+	 * @param intervalMillis
+	 *            how often the log is forced to disk
+	 * @throws IllegalArgumentException
+	 *             if <code>intervalMillis</code> is negative
+	 */
+	public RenderCheckpoint(File file, long intervalMillis) {
+		if (intervalMillis < 0)
+			throw new IllegalArgumentException("Checkpoint interval must not be negative, got " + intervalMillis);
+		this.file = file;
+		this.intervalNanos = intervalMillis * 1000000L;
+	}
+
+	/**
+	 * Creates a checkpoint for a picture in {@link Config#PATH_PICTURE_SAVE},
+	 * forced to disk every {@link #DEFAULT_INTERVAL_MILLIS}.
+	 *
+	 * @param name
+	 *            the name of the picture
+	 * @return the checkpoint
+	 */
+	public static RenderCheckpoint forPicture(String name) {
+		return new RenderCheckpoint(new File(Config.PATH_PICTURE_SAVE + name + ".checkpoint"),
+				DEFAULT_INTERVAL_MILLIS);
+	}
+
+	/**
+	 * @return the file the log is kept in
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return how many tile passes the last picture got from the log instead of
+	 *         rendering them
+	 */
+	public int getResumedTiles() {
+		return resumedTiles;
+	}
+
+	/**
+	 * Opens the log and replays it into a buffer, or starts a new one if there
+	 * is none or it belongs to a different picture. Called by the Camera before
+	 * rendering.
+	 *
+	 * @param fingerprint
+	 *            identifies the picture: its Scene and Camera settings
+	 * @param tiles
+	 *            the tiles the picture is split into
+	 * @param buffer
+	 *            the empty buffer for the picture
+	 */
+	public synchronized void resume(long fingerprint, List<Tile> tiles, AccumulationBuffer buffer) {
+		done = new boolean[2][tiles.size()];
+		noisy = null;
+		resumedTiles = 0;
+		try {
+			channel = new RandomAccessFile(file, "rw").getChannel();
+			lastForce = System.nanoTime();
+			long end = channel.size() > 0 ? replay(fingerprint, tiles, buffer) : 0;
+			if (end == 0) {
+				channel.truncate(0);
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				header.putInt(MAGIC).putInt(VERSION).putLong(fingerprint).putInt(buffer.width).putInt(buffer.height);
+				header.flip();
+				channel.write(header, 0);
+				end = HEADER_SIZE;
+			} else {
+				// Drop whatever was being written when the render died
+				channel.truncate(end);
+				LOG.info("Resuming from " + file + ": " + resumedTiles + " tile passes done");
+			}
+			channel.position(end);
+		} catch (IOException e) {
+			disable(e);
+		}
+	}
+
+	/**
+	 * Replays the log into a buffer.
+	 *
+	 * @return where the last complete record ends, or 0 if the log belongs to a
+	 *         different picture
+	 */
+	private long replay(long fingerprint, List<Tile> tiles, AccumulationBuffer buffer) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		if (!read(header, 0) || header.getInt() != MAGIC || header.getInt() != VERSION
+				|| header.getLong() != fingerprint || header.getInt() != buffer.width
+				|| header.getInt() != buffer.height) {
+			LOG.warning(file + " is not a checkpoint of this picture, starting over");
+			return 0;
+		}
+		long position = HEADER_SIZE;
+		ByteBuffer prefix = ByteBuffer.allocate(5), crc = ByteBuffer.allocate(8);
+		while (true) {
+			prefix.clear();
+			if (!read(prefix, position))
+				return position;
+			byte type = prefix.get();
+			int length = prefix.getInt();
+			if (length < 0 || position + 5 + length + 8 > channel.size())
+				return position;
+			ByteBuffer body = ByteBuffer.allocate(length);
+			crc.clear();
+			if (!read(body, position + 5) || !read(crc, position + 5 + length)
+					|| crc.getLong() != checksum(type, body.array()))
+				return position;
+			if (type == TILE) {
+				int pass = body.getInt(), index = body.getInt();
+				Tile t = index < tiles.size() ? tiles.get(index) : null;
+				if (t == null || pass < 0 || pass > 1 || body.remaining() != AccumulationBuffer.savedSize(t))
+					return position;
+				buffer.load(t, body);
+				if (!done[pass][index])
+					resumedTiles++;
+				done[pass][index] = true;
+			} else if (type == NOISY) {
+				boolean[] flags = new boolean[body.getInt()];
+				for (int i = 0; i < flags.length; i++)
+					flags[i] = (body.get(body.position() + (i >>> 3)) & (1 << (i & 7))) != 0;
+				noisy = flags;
+			} else {
+				return position;
+			}
+			position += 5 + length + 8;
+		}
+	}
+
+	/**
+	 * Fills a byte buffer from the log.
+	 *
+	 * @return <b>false</b> if the log ends first
+	 */
+	private boolean read(ByteBuffer b, long position) throws IOException {
+		while (b.hasRemaining()) {
+			int n = channel.read(b, position);
+			if (n < 0)
+				return false;
+			position += n;
+		}
+		b.flip();
+		return true;
+	}
+
+	private static long checksum(byte type, byte[] body) {
+		CRC32 crc = new CRC32();
+		crc.update(type);
+		crc.update(body);
+		return crc.getValue();
+	}
+
+	/**
+	 * Picks out the tiles that still need a pass.
+	 *
+	 * @param pass
+	 *            {@link #FIRST_PASS} or {@link #REFINE_PASS}
+	 * @param tiles
+	 *            the tiles the picture is split into
+	 * @return the tiles the log doesn't have that pass of
+	 */
+	public synchronized List<Tile> remaining(int pass, List<Tile> tiles) {
+		List<Tile> left = new ArrayList<Tile>();
+		for (Tile t : tiles) {
+			if (!done[pass][t.index])
+				left.add(t);
+		}
+		return left;
+	}
+
+	/**
+	 * @return the pixels anti-aliasing picked to refine, as given to
+	 *         {@link #refining(boolean[])}, or null if the log doesn't have
+	 *         them
+	 */
+	public synchronized boolean[] getNoisyPixels() {
+		return noisy;
+	}
+
+	/**
+	 * Records the pixels anti-aliasing picked to refine. Called by the Camera
+	 * once the first pass is over. They have to be saved, since once refining
+	 * starts they can no longer be worked out from the buffer.
+	 *
+	 * @param flags
+	 *            one flag per pixel, row by row
+	 */
+	public synchronized void refining(boolean[] flags) {
+		noisy = flags;
+		ByteBuffer body = ByteBuffer.allocate(4 + (flags.length + 7) / 8);
+		body.putInt(flags.length);
+		for (int i = 0; i < flags.length; i++) {
+			if (flags[i])
+				body.put(4 + (i >>> 3), (byte) (body.get(4 + (i >>> 3)) | 1 << (i & 7)));
+		}
+		append(NOISY, body.array());
+	}
+
+	/**
+	 * Records a tile that finished a pass. Called by render threads.
+	 *
+	 * @param pass
+	 *            {@link #FIRST_PASS} or {@link #REFINE_PASS}
+	 * @param tile
+	 *            the tile
+	 * @param buffer
+	 *            holds the tile's pixels
+	 */
+	public void tileFinished(int pass, Tile tile, AccumulationBuffer buffer) {
+		ByteBuffer body = ByteBuffer.allocate(8 + AccumulationBuffer.savedSize(tile));
+		body.putInt(pass).putInt(tile.index);
+		buffer.save(tile, body);
+		append(TILE, body.array());
+	}
+
+	private synchronized void append(byte type, byte[] body) {
+		if (channel == null)
+			return;
+		try {
+			ByteBuffer record = ByteBuffer.allocate(5 + body.length + 8);
+			record.put(type).putInt(body.length).put(body).putLong(checksum(type, body));
+			record.flip();
+			while (record.hasRemaining())
+				channel.write(record);
+			long now = System.nanoTime();
+			if (now - lastForce >= intervalNanos) {
+				channel.force(false);
+				lastForce = now;
+			}
+		} catch (IOException e) {
+			disable(e);
+		}
+	}
+
+	/**
+	 * Closes the log and deletes it. Called by the Camera once the picture is
+	 * finished.
+	 */
+	public synchronized void finish() {
+		if (channel == null)
+			return;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Could not close " + file, e);
+		}
+		channel = null;
+		if (!file.delete())
+			LOG.warning("Could not delete " + file);
+	}
+
+	/**
+	 * Closes the log but keeps it, so that the picture can be resumed from it.
+	 * Called by the Camera when rendering stops, finished or not; does nothing
+	 * after {@link #finish()}.
+	 */
+	public synchronized void close() {
+		if (channel == null)
+			return;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Could not close " + file, e);
+		}
+		channel = null;
+	}
+
+	private void disable(IOException e) {
+		LOG.log(Level.WARNING, "Could not write checkpoint " + file + ", carrying on without it", e);
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException ignored) {
+			}
+		}
+		channel = null;
+	}
+}
@@ -0,0 +1,131 @@
+package renderer.render;
+
+import static renderer.Config.LOG;
+
+import java.util.logging.Level;
+
+/**
+ * Picks the quality of each tile of a picture that has to be done by a fixed
+ * time. Render threads ask for a level before every tile and report how long
+ * it took afterwards. From those reports the deadline learns how long a ray
+ * takes in this Scene, projects how long the rest of the picture would take at
+ * each {@link QualityLevel}, and hands out the best level that still finishes
+ * in time. Levels go back up if the render gets ahead of schedule, so the
+ * picture only loses as much quality as the budget demands.
+ * <p>
+ * The first tiles, rendered before anything has been measured, always get the
+ * best level. The budget can still be missed if those tiles alone take too
+ * long, or if the worst level is too slow.
+ * </p>
+ * 
+ * @see QualityReport
+ */
+public class RenderDeadline {
+	private final QualityLevel[] levels;
+	private final long start, budgetNanos;
+	private final int threads;
+	private final long totalPixels;
+	private long claimedPixels;
+	/** The rays traced, by the estimate of {@link QualityLevel#cost()}, and the time they took. */
+	private double measuredRays, measuredNanos;
+	private int measuredTiles;
+	private final int[] tiles;
+	private final long[] pixels;
+	private int lastLevel;
+
+	/**
+	 * Creates a new RenderDeadline.
+	 * 
+	 * @param levels
+	 *            the levels to choose from, best first
+	 * @param start
+	 *            when the render started, from <code>System.nanoTime()</code>
+	 * @param budgetMillis
+	 *            how long the render may take from its start
+	 * @param threads
+	 *            how many threads render at once
+	 * @param totalPixels
+	 *            the number of pixels in the picture
+	 * @throws IllegalArgumentException
+	 *             if there are no levels or the budget is not positive
+	 */
+	public RenderDeadline(QualityLevel[] levels, long start, long budgetMillis, int threads, long totalPixels) {
+		if (levels.length == 0)
+			throw new IllegalArgumentException("A RenderDeadline needs at least one QualityLevel");
+		if (budgetMillis <= 0)
+			throw new IllegalArgumentException("Time budget must be positive, got " + budgetMillis);
+		this.levels = levels;
+		this.start = start;
+		this.budgetNanos = budgetMillis * 1000000L;
+		this.threads = Math.max(1, threads);
+		this.totalPixels = totalPixels;
+		this.tiles = new int[levels.length];
+		this.pixels = new long[levels.length];
+	}
+
+	/**
+	 * Picks the level of the next tile. Called by a render thread before it
+	 * starts on the tile.
+	 * 
+	 * @param tilePixels
+	 *            the number of pixels in the tile
+	 * @return the index of the level to render the tile at
+	 */
+	public synchronized int chooseLevel(int tilePixels) {
+		claimedPixels += tilePixels;
+		int level = levels.length - 1;
+		if (measuredRays == 0.0) {
+			level = 0;
+		} else {
+			// Pixels of tiles that are still being rendered are counted as done
+			long remainingPixels = totalPixels - claimedPixels + tilePixels;
+			// Keep the time of an average tile in reserve, since the last tiles
+			// can't be split between threads
+			double remainingNanos = start + budgetNanos - System.nanoTime() - measuredNanos / measuredTiles;
+			double nanosPerRay = measuredNanos / measuredRays;
+			for (int l = 0; l < levels.length; l++) {
+				if (remainingPixels * levels[l].cost() * nanosPerRay / threads <= remainingNanos) {
+					level = l;
+					break;
+				}
+			}
+			if (level != lastLevel && LOG.isLoggable(Level.FINE)) {
+				double projected = (System.nanoTime() - start + remainingPixels * levels[lastLevel].cost() * nanosPerRay
+						/ threads) / 1e6;
+				LOG.fine(String.format("%.0f%% done, projected to take %.0f of %d ms at %s; switching to %s",
+						100.0 * (claimedPixels - tilePixels) / totalPixels, projected, budgetNanos / 1000000L,
+						levels[lastLevel], levels[level]));
+			}
+		}
+		lastLevel = level;
+		tiles[level]++;
+		pixels[level] += tilePixels;
+		return level;
+	}
+
+	/**
+	 * Records how long a tile took. Called by a render thread after it finishes
+	 * the tile.
+	 * 
+	 * @param level
+	 *            the level the tile was rendered at
+	 * @param tilePixels
+	 *            the number of pixels in the tile
+	 * @param nanos
+	 *            how long the tile took
+	 */
+	public synchronized void tileFinished(int level, int tilePixels, long nanos) {
+		measuredRays += tilePixels * levels[level].cost();
+		measuredNanos += nanos;
+		measuredTiles++;
+	}
+
+	/**
+	 * @return the quality the picture got. Meant to be called once every tile is
+	 *         done.
+	 */
+	public synchronized QualityReport getReport() {
+		return new QualityReport(levels, tiles.clone(), pixels.clone(), budgetNanos / 1000000L,
+				(System.nanoTime() - start) / 1000000L);
+	}
+}
@@ -0,0 +1,231 @@
+package renderer.render;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import renderer.Config;
+
+/**
+ * Splits an image into square tiles and renders them in parallel on a
+ * work-stealing <code>ForkJoinPool</code>.
+ * <p>
+ * The list of tiles is recursively split in half until each task holds a
+ * single tile. Idle threads steal the larger, not yet split halves from busy
+ * ones, which keeps every core busy even when some tiles (say, the ones
+ * covering a detailed model) take much longer than others.
+ * </p>
+ * 
+ * <pre>
+ * RenderScheduler scheduler = new RenderScheduler(32, Config.RENDER_THREADS);
+ * scheduler.addTileListener((tile, done, total) -&gt; LOG.fine(done + "/" + total));
+ * scheduler.render(width, height, tile -&gt; { ...render the pixels in tile... });
+ * </pre>
+ * 
+ * @see Tile
+ * @see TileRenderer
+ * @see TileListener
+ */
+public class RenderScheduler {
+	/** The tile size used when none is given. */
+	public static final int DEFAULT_TILE_SIZE = 32;
+
+	private final ForkJoinPool pool;
+	private final int tileSize;
+	private final int threads;
+	private final List<TileListener> listeners;
+
+	/**
+	 * Creates a scheduler with the default tile size and one thread for every
+	 * thread in {@link Config#RENDER_THREADS}.
+	 */
+	public RenderScheduler() {
+		this(DEFAULT_TILE_SIZE, Config.RENDER_THREADS);
+	}
+
+	/**
+	 * Creates a new RenderScheduler.
+	 * 
+	 * @param tileSize
+	 *            the width and height of each tile, in pixels
+	 * @param threads
+	 *            how many threads to render with
+	 * @throws IllegalArgumentException
+	 *             if either argument is less than 1
+	 */
+	public RenderScheduler(int tileSize, int threads) {
+		if (tileSize < 1)
+			throw new IllegalArgumentException("Tile size must be positive, got " + tileSize);
+		if (threads < 1)
+			throw new IllegalArgumentException("Thread count must be positive, got " + threads);
+		this.tileSize = tileSize;
+		this.threads = threads;
+		this.pool = new ForkJoinPool(threads);
+		this.listeners = new CopyOnWriteArrayList<TileListener>();
+	}
+
+	/**
+	 * Splits an image into tiles, going left to right, top to bottom. Tiles on the
+	 * right and bottom edges are cropped to fit inside the image.
+	 * 
+	 * @param width
+	 *            the width of the image
+	 * @param height
+	 *            the height of the image
+	 * @return the tiles that cover the image
+	 */
+	public List<Tile> createTiles(int width, int height) {
+		return createTiles(0, 0, width, height);
+	}
+
+	/**
+	 * Splits a rectangle of an image into tiles, going left to right, top to
+	 * bottom. Tiles on the right and bottom edges are cropped to fit inside the
+	 * rectangle.
+	 * 
+	 * @param x
+	 *            the left edge of the rectangle
+	 * @param y
+	 *            the top edge of the rectangle
+	 * @param width
+	 *            the width of the rectangle
+	 * @param height
+	 *            the height of the rectangle
+	 * @return the tiles that cover the rectangle
+	 */
+	public List<Tile> createTiles(int x, int y, int width, int height) {
+		ArrayList<Tile> tiles = new ArrayList<Tile>();
+		for (int ty = y; ty < y + height; ty += tileSize) {
+			for (int tx = x; tx < x + width; tx += tileSize) {
+				tiles.add(new Tile(tiles.size(), tx, ty, Math.min(tileSize, x + width - tx),
+						Math.min(tileSize, y + height - ty)));
+			}
+		}
+		return tiles;
+	}
+
+	/**
+	 * Renders an image, blocking until every tile is finished.
+	 * 
+	 * @param width
+	 *            the width of the image
+	 * @param height
+	 *            the height of the image
+	 * @param renderer
+	 *            renders the pixels of each tile
+	 */
+	public void render(int width, int height, TileRenderer renderer) {
+		render(createTiles(width, height), renderer);
+	}
+
+	/**
+	 * Renders a list of tiles, blocking until every tile is finished.
+	 * 
+	 * @param tiles
+	 *            the tiles to render
+	 * @param renderer
+	 *            renders the pixels of each tile
+	 */
+	public void render(List<Tile> tiles, TileRenderer renderer) {
+		if (tiles.isEmpty())
+			return;
+		pool.invoke(new TileTask(tiles, 0, tiles.size(), renderer, new AtomicInteger()));
+	}
+
+	/**
+	 * Runs some work over a list of tiles on this scheduler's threads, blocking
+	 * until it is done, without notifying the tile listeners. Meant for passes
+	 * that don't render anything, such as copying out the finished pixels.
+	 * 
+	 * @param tiles
+	 *            the tiles to work on
+	 * @param work
+	 *            the work to do for each tile
+	 */
+	public void forEachTile(List<Tile> tiles, TileRenderer work) {
+		if (tiles.isEmpty())
+			return;
+		pool.invoke(new TileTask(tiles, 0, tiles.size(), work, null));
+	}
+
+	/**
+	 * Registers a listener that is notified every time a tile finishes.
+	 * 
+	 * @param listener
+	 *            the listener to add
+	 */
+	public void addTileListener(TileListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * @param listener
+	 *            the listener to remove
+	 */
+	public void removeTileListener(TileListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * @return the width and height of each tile, in pixels
+	 */
+	public int getTileSize() {
+		return tileSize;
+	}
+
+	/**
+	 * @return how many threads this scheduler renders with
+	 */
+	public int getThreadCount() {
+		return threads;
+	}
+
+	/**
+	 * Stops the threads used by this scheduler. The scheduler cannot be used
+	 * afterwards.
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	/**
+	 * Renders the tiles in <code>[start, end)</code>, splitting the range in half
+	 * until a single tile is left.
+	 */
+	private class TileTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final List<Tile> tiles;
+		private final int start, end;
+		private final TileRenderer renderer;
+		private final AtomicInteger completed;
+
+		TileTask(List<Tile> tiles, int start, int end, TileRenderer renderer, AtomicInteger completed) {
+			this.tiles = tiles;
+			this.start = start;
+			this.end = end;
+			this.renderer = renderer;
+			this.completed = completed;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start == 1) {
+				Tile tile = tiles.get(start);
+				renderer.renderTile(tile);
+				if (completed == null)
+					return;
+				int done = completed.incrementAndGet();
+				for (TileListener l : listeners)
+					l.tileCompleted(tile, done, tiles.size());
+				return;
+			}
+			int mid = (start + end) >>> 1;
+			invokeAll(new TileTask(tiles, start, mid, renderer, completed),
+					new TileTask(tiles, mid, end, renderer, completed));
+		}
+	}
+}
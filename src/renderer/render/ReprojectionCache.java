@@ -0,0 +1,398 @@
+package renderer.render;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import renderer.kernel.AABB;
+import renderer.kernel.Ray;
+import renderer.kernel.RaycastHit;
+import renderer.scene.Scene;
+import renderer.scene.actors.AreaLight;
+import renderer.scene.actors.Light;
+import renderer.scene.actors.ModelInstance;
+
+/**
+ * Keeps the shading of the last frame a Camera rendered so that the next
+ * frame can re-use it. In an animation, most pixels of a frame see the same
+ * static geometry under the same lights as in the frame before, only moved a
+ * little by the Camera's motion, and tracing their shadow rays again gives the
+ * same color.
+ * <p>
+ * For every pixel the cache stores where its center ray hit, which instance it
+ * hit, and the pixel's final color. In the next frame the Camera still traces
+ * the center ray of every pixel, then projects the hit point into the last
+ * frame's view. The old color is re-used if the nearest old pixel hit the same
+ * instance at nearly the same point, and neither that instance nor the
+ * shadows falling on the point can have changed. Everything else is shaded
+ * again: pixels that were hidden before, pixels on instances that moved, and
+ * pixels that a moved instance could shadow, found by testing the segments
+ * toward each Light against the old and new bounds of every moved instance.
+ * If any Light changes, nothing is re-used. Neither is anything in a Scene
+ * without Lights once the Camera moves, since it is then lit from the Camera.
+ * </p>
+ * <p>
+ * Pixels on the outline of an instance or of a shadow blend what lies on
+ * either side, and that blend changes as soon as the Camera moves, so they
+ * are only re-used while it stands still. So are pixels whose lighting was
+ * too noisy for a single sample, which anti-aliasing had to refine. Re-used
+ * colors slowly drift as the Camera moves, so every pixel is shaded again at
+ * least every {@link #MAX_AGE} frames. Pixels expire on different frames, so
+ * the cost is spread out. Changes to Models or Materials are not noticed;
+ * call {@link #clear()} after making them.
+ * </p>
+ *
+ * @see renderer.scene.ImageData#temporalReuse
+ */
+public class ReprojectionCache {
+	/** The most frames in a row a pixel's color is re-used for. */
+	public static final int MAX_AGE = 16;
+	/**
+	 * How far apart, in pixel widths at the hit's distance, two hits may be and
+	 * still count as the same point.
+	 */
+	private static final double TOLERANCE = 2.0;
+
+	private Scene scene;
+	private int width, height;
+	/** The view of the cached frame: origin, right, up, forward, then focal length and aspect ratio. */
+	private double[] view;
+	/** The Lights of the cached frame, as from {@link #describeLights(Scene)}. */
+	private double[] lights;
+	private Map<ModelInstance, Integer> versions;
+	private Map<ModelInstance, AABB> bounds;
+
+	// The cached frame, per pixel
+	private double[] positions;
+	private ModelInstance[] instances;
+	private float[] colors;
+	private byte[] ages;
+	/**
+	 * Is a pixel's color a blend of different things, because it borders a pixel
+	 * that hit something else or anti-aliasing refined it?
+	 */
+	private boolean[] blended;
+
+	// The frame being rendered, moved into the fields above by endFrame()
+	private double[] nextPositions;
+	private ModelInstance[] nextInstances;
+	private byte[] nextAges;
+	private boolean[] nextBlended;
+
+	/** Can anything be re-used in the frame being rendered? */
+	private boolean valid;
+	/** Is the frame being rendered seen from where the cached one was? */
+	private boolean stillCamera;
+	/** The instances that moved since the cached frame. */
+	private Map<ModelInstance, Boolean> moved;
+	/** The boxes moved instances could cast shadows from, widened per Light, 6 values each. */
+	private double[] shadowBoxes;
+	/** The center of each Light, 3 values each. */
+	private double[] lightCenters;
+	private long reused;
+
+	/**
+	 * Forgets the cached frame, so the next one is shaded from scratch.
+	 */
+	public synchronized void clear() {
+		scene = null;
+		positions = null;
+	}
+
+	/**
+	 * Prepares the cache for a new frame. Works out which instances moved since
+	 * the cached frame, and whether anything can be re-used at all.
+	 *
+	 * @param s
+	 *            the Scene being rendered. Must be committed.
+	 * @param view
+	 *            the view of the new frame: origin, right, up and forward
+	 *            vectors, then focal length and aspect ratio
+	 * @param width
+	 *            the width of the new frame
+	 * @param height
+	 *            the height of the new frame
+	 */
+	public synchronized void beginFrame(Scene s, double[] view, int width, int height) {
+		double[] newLights = describeLights(s);
+		Map<ModelInstance, Integer> newVersions = new IdentityHashMap<ModelInstance, Integer>();
+		Map<ModelInstance, AABB> newBounds = new IdentityHashMap<ModelInstance, AABB>();
+		for (ModelInstance mi : s.instances) {
+			newVersions.put(mi, mi.getVersion());
+			newBounds.put(mi, mi.getWorldBounds());
+		}
+		stillCamera = Arrays.equals(this.view, view);
+		valid = positions != null && scene == s && this.width == width && this.height == height
+				&& Arrays.equals(lights, newLights)
+				&& (s.lights.size() > 0 || stillCamera);
+		moved = new IdentityHashMap<ModelInstance, Boolean>();
+		if (valid) {
+			AABB changed = new AABB();
+			int count = 0;
+			for (ModelInstance mi : s.instances) {
+				Integer old = versions.get(mi);
+				if (old == null || old != mi.getVersion()) {
+					moved.put(mi, Boolean.TRUE);
+					count++;
+				}
+			}
+			for (ModelInstance mi : versions.keySet()) {
+				if (!newVersions.containsKey(mi))
+					count++;
+			}
+			shadowBoxes = new double[6 * count * s.lights.size()];
+			lightCenters = new double[3 * s.lights.size()];
+			int b = 0;
+			for (Map.Entry<ModelInstance, AABB> e : bounds.entrySet()) {
+				if (!newVersions.containsKey(e.getKey()) || moved.containsKey(e.getKey())) {
+					changed.set(e.getValue());
+					if (newBounds.containsKey(e.getKey()))
+						changed.grow(newBounds.get(e.getKey()));
+					b = addShadowBoxes(s, changed, b);
+				}
+			}
+			for (ModelInstance mi : moved.keySet()) {
+				if (!bounds.containsKey(mi))
+					b = addShadowBoxes(s, newBounds.get(mi), b);
+			}
+		}
+		this.scene = s;
+		this.view = view.clone();
+		this.lights = newLights;
+		this.versions = newVersions;
+		this.bounds = newBounds;
+		if (!valid || nextAges == null || nextAges.length != width * height) {
+			nextPositions = new double[3 * width * height];
+			nextInstances = new ModelInstance[width * height];
+			nextAges = new byte[width * height];
+			nextBlended = new boolean[width * height];
+		}
+		if (!valid) {
+			positions = null;
+			this.width = width;
+			this.height = height;
+		}
+		reused = 0;
+	}
+
+	/**
+	 * Adds the box around a moved instance, widened by the half size of each
+	 * Light, to the boxes tested for shadows. A segment from a point toward a
+	 * Light's center that misses the widened box can't be blocked by the
+	 * instance on its way to any point of the Light.
+	 */
+	private int addShadowBoxes(Scene s, AABB box, int b) {
+		if (box.isEmpty())
+			return b;
+		for (int l = 0; l < s.lights.size(); l++) {
+			AABB lb = s.lights.get(l).getBounds();
+			for (int a = 0; a < 3; a++) {
+				double half = 0.5 * (lb.max(a) - lb.min(a));
+				lightCenters[3 * l + a] = 0.5 * (lb.min(a) + lb.max(a));
+				shadowBoxes[b + a] = box.min(a) - half;
+				shadowBoxes[b + a + 3] = box.max(a) + half;
+			}
+			b += 6;
+		}
+		return b;
+	}
+
+	/**
+	 * Records the center ray of a pixel of the new frame, and finds out if the
+	 * pixel's color from the cached frame can be re-used. Called by render
+	 * threads for different pixels at once.
+	 *
+	 * @param x
+	 *            the x coordinate of the pixel
+	 * @param y
+	 *            the y coordinate of the pixel
+	 * @param ray
+	 *            the ray through the center of the pixel
+	 * @param hit
+	 *            the closest hit of the ray
+	 * @param rgb
+	 *            receives the old color, if it can be re-used
+	 * @return <b>true</b> if <code>rgb</code> holds the pixel's color,
+	 *         <b>false</b> if the pixel must be shaded
+	 */
+	public boolean reuse(int x, int y, Ray ray, RaycastHit hit, double[] rgb) {
+		int i = y * width + x;
+		nextAges[i] = 0;
+		if (!hit.hasHit()) {
+			nextInstances[i] = null;
+			return false;
+		}
+		double px = ray.origin.x + hit.distance * ray.direction.x;
+		double py = ray.origin.y + hit.distance * ray.direction.y;
+		double pz = ray.origin.z + hit.distance * ray.direction.z;
+		nextPositions[3 * i] = px;
+		nextPositions[3 * i + 1] = py;
+		nextPositions[3 * i + 2] = pz;
+		nextInstances[i] = hit.instance;
+		if (!valid || moved.containsKey(hit.instance))
+			return false;
+
+		// Project the hit into the cached frame's view
+		double[] v = view;
+		double dx = px - v[0], dy = py - v[1], dz = pz - v[2];
+		double depth = dx * v[9] + dy * v[10] + dz * v[11];
+		if (depth <= 0.0)
+			return false;
+		double sx = (dx * v[3] + dy * v[4] + dz * v[5]) * v[12] / depth;
+		double sy = (dx * v[6] + dy * v[7] + dz * v[8]) * v[12] / depth;
+		int ox = (int) Math.floor((sx / v[13] + 1.0) * 0.5 * width);
+		int oy = (int) Math.floor((1.0 - sy) * 0.5 * height);
+		if (ox < 0 || oy < 0 || ox >= width || oy >= height)
+			return false;
+		int j = oy * width + ox;
+		if (instances[j] != hit.instance || ages[j] >= maxAge(i) || blended[j] && !stillCamera)
+			return false;
+		double ex = positions[3 * j] - px, ey = positions[3 * j + 1] - py, ez = positions[3 * j + 2] - pz;
+		double tolerance = TOLERANCE * 2.0 * hit.distance / (v[12] * height);
+		if (ex * ex + ey * ey + ez * ez > tolerance * tolerance)
+			return false;
+		if (mayBeShadowed(px, py, pz))
+			return false;
+		rgb[0] = colors[3 * j];
+		rgb[1] = colors[3 * j + 1];
+		rgb[2] = colors[3 * j + 2];
+		nextAges[i] = (byte) (ages[j] + 1);
+		nextBlended[i] = blended[j];
+		return true;
+	}
+
+	/**
+	 * Spreads out the frames pixels expire on, between half and all of
+	 * {@link #MAX_AGE}.
+	 */
+	private static int maxAge(int pixel) {
+		return MAX_AGE / 2 + ((pixel * 0x9E3779B1) >>> 16) % (MAX_AGE / 2 + 1);
+	}
+
+	/**
+	 * Tests the segments from a point toward each Light against the boxes around
+	 * the moved instances.
+	 */
+	private boolean mayBeShadowed(double px, double py, double pz) {
+		int lightCount = lightCenters.length / 3;
+		double[] t = new double[2];
+		for (int b = 0, l = 0; b < shadowBoxes.length; b += 6, l = (l + 1) % lightCount) {
+			double dx = lightCenters[3 * l] - px, dy = lightCenters[3 * l + 1] - py,
+					dz = lightCenters[3 * l + 2] - pz;
+			t[0] = 0.0;
+			t[1] = 1.0;
+			if (clip(shadowBoxes[b], shadowBoxes[b + 3], px, dx, t)
+					&& clip(shadowBoxes[b + 1], shadowBoxes[b + 4], py, dy, t)
+					&& clip(shadowBoxes[b + 2], shadowBoxes[b + 5], pz, dz, t))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Clips the range <code>t</code> of a segment to the slab between
+	 * <code>min</code> and <code>max</code> along one axis.
+	 *
+	 * @return <b>false</b> if nothing of the segment is left
+	 */
+	private static boolean clip(double min, double max, double o, double d, double[] t) {
+		if (d == 0.0)
+			return o >= min && o <= max;
+		double near = (min - o) / d, far = (max - o) / d;
+		if (near > far) {
+			double tmp = near;
+			near = far;
+			far = tmp;
+		}
+		t[0] = Math.max(t[0], near);
+		t[1] = Math.min(t[1], far);
+		return t[0] <= t[1];
+	}
+
+	/**
+	 * Stores the new frame as the cached one.
+	 *
+	 * @param buffer
+	 *            holds the final samples of every pixel of the new frame
+	 * @param firstSamples
+	 *            how many samples shaded pixels got before anti-aliasing refined
+	 *            any of them
+	 */
+	public synchronized void endFrame(AccumulationBuffer buffer, int firstSamples) {
+		if (colors == null || colors.length != 3 * width * height)
+			colors = new float[3 * width * height];
+		double[] rgb = new double[3];
+		long count = 0;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int i = y * width + x;
+				buffer.getColor(x, y, rgb);
+				colors[3 * i] = (float) rgb[0];
+				colors[3 * i + 1] = (float) rgb[1];
+				colors[3 * i + 2] = (float) rgb[2];
+				if (nextAges[i] > 0)
+					count++;
+			}
+		}
+		reused = count;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int i = y * width + x;
+				ModelInstance mi = nextInstances[i];
+				if (nextAges[i] == 0)
+					nextBlended[i] = buffer.getSamples(x, y) > firstSamples;
+				nextBlended[i] |= x > 0 && nextInstances[i - 1] != mi || x < width - 1 && nextInstances[i + 1] != mi
+						|| y > 0 && nextInstances[i - width] != mi || y < height - 1 && nextInstances[i + width] != mi;
+			}
+		}
+		double[] p = positions;
+		ModelInstance[] in = instances;
+		byte[] a = ages;
+		boolean[] b = blended;
+		positions = nextPositions;
+		instances = nextInstances;
+		ages = nextAges;
+		blended = nextBlended;
+		nextPositions = p != null ? p : new double[3 * width * height];
+		nextInstances = in != null ? in : new ModelInstance[width * height];
+		nextAges = a != null ? a : new byte[width * height];
+		nextBlended = b != null ? b : new boolean[width * height];
+	}
+
+	/**
+	 * @return how many pixels of the last frame re-used their color
+	 */
+	public synchronized long getReusedPixels() {
+		return reused;
+	}
+
+	/**
+	 * Lists everything about a Scene's Lights that affects shading, so that two
+	 * lists can be compared to find out if any Light changed.
+	 */
+	private static double[] describeLights(Scene s) {
+		double[] d = new double[13 * s.lights.size()];
+		int k = 0;
+		for (Light l : s.lights) {
+			d[k++] = l.position.x;
+			d[k++] = l.position.y;
+			d[k++] = l.position.z;
+			d[k++] = l.color.x;
+			d[k++] = l.color.y;
+			d[k++] = l.color.z;
+			d[k++] = l.intensity;
+			if (l instanceof AreaLight) {
+				AreaLight a = (AreaLight) l;
+				d[k++] = a.u.x;
+				d[k++] = a.u.y;
+				d[k++] = a.u.z;
+				d[k++] = a.v.x;
+				d[k++] = a.v.y;
+				d[k++] = a.v.z;
+			} else {
+				k += 6;
+			}
+		}
+		return d;
+	}
+}
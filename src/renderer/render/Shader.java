@@ -0,0 +1,267 @@
+package renderer.render;
+
+import renderer.infrastructure.math.Vector3;
+import renderer.kernel.OccluderCache;
+import renderer.kernel.Ray;
+import renderer.kernel.RaycastHit;
+import renderer.scene.Scene;
+import renderer.scene.actors.Face;
+import renderer.scene.actors.Light;
+import renderer.scene.actors.Material;
+
+/**
+ * Turns a ray into a color. A single Shader is shared by every render thread
+ * working on a picture, so it must not keep per-ray state in its fields.
+ * <p>
+ * Surfaces are lit by the Scene's Lights, with a shadow ray toward each one.
+ * Shadow rays only need to know if anything is in the way, so they use the
+ * Scene's any-hit query, together with an {@link OccluderCache} per render
+ * thread that remembers the last triangle that shadowed each Light. Scenes
+ * without Lights are lit from the camera instead.
+ * </p>
+ * <p>
+ * When a Scene has more Lights than the Shader's light sample budget, each hit
+ * only traces shadow rays toward that many Lights, picked from a
+ * {@link LightTree} in proportion to how much they are expected to contribute,
+ * and weighs them so that the expected result is the same. The cost of
+ * shading then hardly depends on the number of Lights, at the price of some
+ * noise. The random numbers come from hashing the hit point, so a picture
+ * comes out the same however its tiles are spread over threads.
+ * </p>
+ * 
+ * @see renderer.scene.Camera
+ */
+public class Shader {
+	/** Albedo used for faces without a material. */
+	private static final double DEFAULT_ALBEDO = 0.8;
+	/** Light that reaches surfaces facing away from the camera. */
+	private static final double AMBIENT = 0.1;
+	/** How far shadow rays start from the surface, relative to the distance to it. */
+	private static final double SHADOW_BIAS = 1e-4;
+	/** The default light sample budget. */
+	public static final int DEFAULT_LIGHT_SAMPLES = 8;
+
+	private final Scene scene;
+	private final Light[] lights;
+	/** The most shadow rays traced per hit. */
+	private final int lightSamples;
+	/** Picks the Lights to sample. Null if every Light is sampled. */
+	private final LightTree lightTree;
+	private final ThreadLocal<Scratch> scratch;
+
+	/**
+	 * Creates a Shader for a Scene with the default light sample budget.
+	 * 
+	 * @param scene
+	 *            the Scene rays are traced against
+	 */
+	public Shader(Scene scene) {
+		this(scene, DEFAULT_LIGHT_SAMPLES);
+	}
+
+	/**
+	 * Creates a Shader for a Scene. The Scene's Lights are copied, so the Shader
+	 * must be re-created after Lights are added, removed or moved.
+	 * 
+	 * @param scene
+	 *            the Scene rays are traced against
+	 * @param lightSamples
+	 *            the most shadow rays to trace per hit. Scenes with more Lights
+	 *            than this sample them.
+	 * @throws IllegalArgumentException
+	 *             if <code>lightSamples</code> is less than 1
+	 */
+	public Shader(Scene scene, int lightSamples) {
+		if (lightSamples < 1)
+			throw new IllegalArgumentException("A Shader needs at least 1 light sample, not " + lightSamples);
+		this.scene = scene;
+		this.lights = scene.lights.toArray(new Light[scene.lights.size()]);
+		this.lightSamples = lightSamples;
+		this.lightTree = lights.length > lightSamples ? new LightTree(lights) : null;
+		this.scratch = ThreadLocal.withInitial(() -> new Scratch(lights.length));
+	}
+
+	/**
+	 * Traces a ray through the Scene and computes the color it sees.
+	 * 
+	 * @param ray
+	 *            the ray to trace
+	 * @param hit
+	 *            scratch space for the intersection. Overwritten.
+	 * @param rgb
+	 *            receives the color. Components can go above 1 where the
+	 *            Lights are bright.
+	 */
+	public void shade(Ray ray, RaycastHit hit, double[] rgb) {
+		hit.reset();
+		scene.intersect(ray, hit);
+		shadeHit(ray, hit, rgb);
+	}
+
+	/**
+	 * Computes the color seen by a ray that has already been traced, for example
+	 * as part of a {@link renderer.kernel.RayPacket}.
+	 * 
+	 * @param ray
+	 *            the ray that was traced
+	 * @param hit
+	 *            the closest hit of the ray. May be empty.
+	 * @param rgb
+	 *            receives the color. Components can go above 1 where the
+	 *            Lights are bright.
+	 */
+	public void shadeHit(Ray ray, RaycastHit hit, double[] rgb) {
+		if (!hit.hasHit()) {
+			rgb[0] = scene.background.x;
+			rgb[1] = scene.background.y;
+			rgb[2] = scene.background.z;
+			return;
+		}
+		Material m = materialOf(hit);
+		Vector3 kd = m == null ? null : m.kd;
+		double ar = kd == null ? DEFAULT_ALBEDO : kd.x;
+		double ag = kd == null ? DEFAULT_ALBEDO : kd.y;
+		double ab = kd == null ? DEFAULT_ALBEDO : kd.z;
+		if (lights.length == 0) {
+			// Light everything from the camera
+			double cos = -hit.normal.dot(ray.direction);
+			double intensity = AMBIENT + (1.0 - AMBIENT) * Math.max(0.0, cos);
+			rgb[0] = ar * intensity;
+			rgb[1] = ag * intensity;
+			rgb[2] = ab * intensity;
+			return;
+		}
+
+		// The normal faces the ray origin, so the bias moves the point off the surface toward it
+		Vector3 n = hit.normal;
+		double bias = SHADOW_BIAS * Math.max(1.0, hit.distance);
+		double px = ray.origin.x + hit.distance * ray.direction.x + n.x * bias;
+		double py = ray.origin.y + hit.distance * ray.direction.y + n.y * bias;
+		double pz = ray.origin.z + hit.distance * ray.direction.z + n.z * bias;
+		Scratch s = scratch.get();
+		double[] sum = s.sum;
+		sum[0] = sum[1] = sum[2] = AMBIENT;
+		long seed = seed(px, py, pz);
+		if (lightTree == null) {
+			for (int i = 0; i < lights.length; i++)
+				addLight(i, 1.0, px, py, pz, n, random(seed, 2 * i), random(seed, 2 * i + 1), hit, s);
+		} else {
+			double[] pdf = s.pdf;
+			for (int k = 0; k < lightSamples; k++) {
+				int i = lightTree.sample(px, py, pz, n.x, n.y, n.z, random(seed, 3 * k), pdf);
+				if (i < 0)
+					break;
+				addLight(i, 1.0 / (pdf[0] * lightSamples), px, py, pz, n, random(seed, 3 * k + 1),
+						random(seed, 3 * k + 2), hit, s);
+			}
+		}
+		rgb[0] = ar * sum[0];
+		rgb[1] = ag * sum[1];
+		rgb[2] = ab * sum[2];
+	}
+
+	/**
+	 * Traces a shadow ray toward a point of a Light and adds the light that gets
+	 * through to <code>s.sum</code>.
+	 * 
+	 * @param i
+	 *            the index of the Light
+	 * @param weight
+	 *            what the contribution is multiplied by
+	 * @param u
+	 *            picks the point of the Light, with <code>v</code>
+	 */
+	private void addLight(int i, double weight, double px, double py, double pz, Vector3 n, double u, double v,
+			RaycastHit hit, Scratch s) {
+		Light light = lights[i];
+		Vector3 q = s.point;
+		light.samplePoint(u, v, q);
+		double lx = q.x - px, ly = q.y - py, lz = q.z - pz;
+		double d2 = lx * lx + ly * ly + lz * lz;
+		double d = Math.sqrt(d2);
+		double cos = (n.x * lx + n.y * ly + n.z * lz) / d;
+		if (cos <= 0.0)
+			return;
+		double emission = light.emission(-lx / d, -ly / d, -lz / d);
+		if (emission <= 0.0)
+			return;
+		Ray shadow = s.shadow;
+		shadow.set(px, py, pz, lx / d, ly / d, lz / d);
+		shadow.tMax = d;
+		if (scene.occluded(shadow, hit, s.cache, i))
+			return;
+		double e = weight * light.intensity * emission * cos / d2;
+		s.sum[0] += light.color.x * e;
+		s.sum[1] += light.color.y * e;
+		s.sum[2] += light.color.z * e;
+	}
+
+	/**
+	 * Hashes a point into a seed, so that the random numbers used to shade it
+	 * only depend on where it is.
+	 */
+	private static long seed(double x, double y, double z) {
+		long h = mix(Double.doubleToLongBits(x));
+		h = mix(h ^ Double.doubleToLongBits(y));
+		return mix(h ^ Double.doubleToLongBits(z));
+	}
+
+	/**
+	 * @return the n-th random number in [0, 1) of a seed
+	 */
+	private static double random(long seed, int n) {
+		return (mix(seed + n * 0x9E3779B97F4A7C15L) >>> 11) * 0x1.0p-53;
+	}
+
+	/**
+	 * The finalizer of SplitMix64. Spreads every input bit over the whole output.
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Adds the diffuse color of the surface that was hit, which the light
+	 * reaching it is multiplied by, to a sum.
+	 * 
+	 * @param hit
+	 *            a hit. Must not be empty.
+	 * @param rgb
+	 *            holds the sum at <code>offset</code>
+	 */
+	static void addAlbedo(RaycastHit hit, float[] rgb, int offset) {
+		Material m = materialOf(hit);
+		Vector3 kd = m == null ? null : m.kd;
+		rgb[offset] += (float) (kd == null ? DEFAULT_ALBEDO : kd.x);
+		rgb[offset + 1] += (float) (kd == null ? DEFAULT_ALBEDO : kd.y);
+		rgb[offset + 2] += (float) (kd == null ? DEFAULT_ALBEDO : kd.z);
+	}
+
+	/**
+	 * @return the material of the face that was hit, or <code>null</code> if it
+	 *         doesn't have one
+	 */
+	protected static Material materialOf(RaycastHit hit) {
+		Face f = hit.model.faces.get(hit.face);
+		if (f.materialName == null)
+			return null;
+		return hit.model.materialLib.get(f.materialName);
+	}
+
+	/**
+	 * The state each render thread keeps for shadow rays.
+	 */
+	private static class Scratch {
+		final Ray shadow = new Ray();
+		final Vector3 point = new Vector3();
+		final double[] sum = new double[3];
+		final double[] pdf = new double[1];
+		final OccluderCache cache;
+
+		Scratch(int lights) {
+			cache = new OccluderCache(lights);
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package renderer.render;
+
+import renderer.scene.animation.AnimationManager;
+
+/**
+ * Sets up a shot of a movie from scratch. A {@link MovieRender} renders
+ * several frames at once, each from its own copy of the shot, so every call
+ * must return a new AnimationManager with its own Scene, Camera and actors,
+ * all at the start of the shot. Models may be shared between the copies.
+ *
+ * @see MovieRender
+ */
+public interface ShotFactory {
+	/**
+	 * Creates a new copy of the shot.
+	 *
+	 * @return an AnimationManager at frame 0, whose Scene is set. The Scene's
+	 *         first Camera films the shot.
+	 */
+	public AnimationManager createShot();
+}
@@ -0,0 +1,26 @@
+package renderer.render;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Gets notified whenever a pass of a progressive render finishes. Listeners
+ * are called from the thread that started the render, between passes, so the
+ * next pass doesn't start until they return.
+ *
+ * @see ProgressiveRender#addSnapshotListener(SnapshotListener)
+ */
+public interface SnapshotListener {
+	/**
+	 * Called after a pass has been rendered.
+	 *
+	 * @param snapshot
+	 *            the picture so far. A new image is made for every snapshot, so
+	 *            it may be kept.
+	 * @param samples
+	 *            how many samples each pixel has, counting this pass. If the
+	 *            pass was interrupted, the pixels it didn't reach have one less.
+	 * @param elapsedMillis
+	 *            how long the render has taken so far
+	 */
+	public void snapshotTaken(BufferedImage snapshot, int samples, long elapsedMillis);
+}
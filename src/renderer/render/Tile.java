@@ -0,0 +1,35 @@
+package renderer.render;
+
+/**
+ * A struct-like class describing a rectangular region of an image. Tiles are
+ * the unit of work handed to render threads.
+ * 
+ * @see RenderScheduler
+ */
+public class Tile {
+	/** The position of this tile in the list of tiles that make up the image. */
+	public final int index;
+	/** The top-left pixel of the tile. */
+	public final int x, y;
+	public final int width, height;
+
+	public Tile(int index, int x, int y, int width, int height) {
+		this.index = index;
+		this.x = x;
+		this.y = y;
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * @return the number of pixels in this tile
+	 */
+	public int pixelCount() {
+		return width * height;
+	}
+
+	@Override
+	public String toString() {
+		return "Tile " + index + " [" + x + ", " + y + ", " + width + "x" + height + "]";
+	}
+}
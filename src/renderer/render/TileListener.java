@@ -0,0 +1,22 @@
+package renderer.render;
+
+/**
+ * Gets notified whenever a tile finishes rendering. Listeners are called from
+ * the render thread that finished the tile, so they should return quickly.
+ * 
+ * @see RenderScheduler#addTileListener(TileListener)
+ */
+public interface TileListener {
+	/**
+	 * Called after a tile has been rendered.
+	 * 
+	 * @param tile
+	 *            the tile that was just finished
+	 * @param completed
+	 *            how many tiles of the current image are done, including this
+	 *            one
+	 * @param total
+	 *            how many tiles make up the current image
+	 */
+	public void tileCompleted(Tile tile, int completed, int total);
+}
@@ -0,0 +1,17 @@
+package renderer.render;
+
+/**
+ * Renders the pixels inside a single tile. Implementations are called from
+ * several threads at once, each with a different tile.
+ * 
+ * @see RenderScheduler
+ */
+public interface TileRenderer {
+	/**
+	 * Renders every pixel in a tile.
+	 * 
+	 * @param tile
+	 *            the region of the image to render
+	 */
+	public void renderTile(Tile tile);
+}
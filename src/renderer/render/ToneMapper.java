@@ -0,0 +1,238 @@
+package renderer.render;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Turns the high dynamic range pixels of a {@link FrameBuffer} into an image:
+ * the colors are exposed, squeezed into [0, 1] by a tone curve, and encoded
+ * for display. Since this works on the finished picture, a render can be
+ * exported again with different settings without rendering it again, which
+ * takes milliseconds instead of minutes.
+ * <p>
+ * Exposure is in stops: each stop doubles the brightness. The curves are
+ * applied to each channel on its own:
+ * </p>
+ * <ul>
+ * <li>{@link #CLAMP} cuts off everything brighter than 1, like the Camera's
+ * own images.</li>
+ * <li>{@link #REINHARD} maps <i>x</i> to <i>x</i> / (1 + <i>x</i>), which
+ * never quite reaches white and keeps the detail in highlights.</li>
+ * <li>{@link #FILMIC} is a fit of the ACES film curve, with a toe that
+ * deepens shadows and a shoulder that rolls off highlights.</li>
+ * </ul>
+ * <p>
+ * The result is either written as it is, or encoded with the sRGB transfer
+ * curve through a lookup table. The rows of the image are split between the
+ * threads of a <code>ForkJoinPool</code>. A ToneMapper never changes, so one
+ * can be shared between threads.
+ * </p>
+ *
+ * <pre>
+ * camera.takePicture(scene);
+ * BufferedImage brighter = new ToneMapper(1.0, ToneMapper.FILMIC, true).apply(camera.getFrameBuffer(),
+ * 		BufferedImage.TYPE_INT_RGB);
+ * </pre>
+ */
+public class ToneMapper {
+	/** Clamps each channel to [0, 1]. */
+	public static final int CLAMP = 0;
+	/** The Reinhard curve, <i>x</i> / (1 + <i>x</i>). */
+	public static final int REINHARD = 1;
+	/** A fit of the ACES filmic curve. */
+	public static final int FILMIC = 2;
+
+	/** How many rows a thread converts at a time. */
+	private static final int ROWS_PER_TASK = 16;
+	/** The number of entries in the sRGB lookup table. */
+	private static final int LUT_SIZE = 1 << 16;
+	/** The 8-bit sRGB encoding of evenly spaced values in [0, 1]. */
+	private static final byte[] SRGB = new byte[LUT_SIZE];
+
+	static {
+		for (int i = 0; i < LUT_SIZE; i++) {
+			double c = i / (double) (LUT_SIZE - 1);
+			double e = c <= 0.0031308 ? 12.92 * c : 1.055 * Math.pow(c, 1.0 / 2.4) - 0.055;
+			SRGB[i] = (byte) (int) (e * 255.0 + 0.5);
+		}
+	}
+
+	private final double exposure;
+	private final int curve;
+	private final boolean srgb;
+	private final ForkJoinPool pool;
+	private final float scale;
+
+	/**
+	 * Creates a ToneMapper that gives the same image as the Camera: no
+	 * exposure change, clamped and written as it is.
+	 */
+	public ToneMapper() {
+		this(0.0, CLAMP, false);
+	}
+
+	/**
+	 * Creates a ToneMapper that runs on the common <code>ForkJoinPool</code>.
+	 *
+	 * @param exposure
+	 *            the change in exposure, in stops
+	 * @param curve
+	 *            {@link #CLAMP}, {@link #REINHARD} or {@link #FILMIC}
+	 * @param srgb
+	 *            should the result be encoded as sRGB?
+	 * @throws IllegalArgumentException
+	 *             if the curve is unknown or the exposure isn't finite
+	 */
+	public ToneMapper(double exposure, int curve, boolean srgb) {
+		this(exposure, curve, srgb, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Creates a new ToneMapper.
+	 *
+	 * @param exposure
+	 *            the change in exposure, in stops
+	 * @param curve
+	 *            {@link #CLAMP}, {@link #REINHARD} or {@link #FILMIC}
+	 * @param srgb
+	 *            should the result be encoded as sRGB?
+	 * @param pool
+	 *            the pool to convert on. A pool with a single thread converts
+	 *            one row at a time.
+	 * @throws IllegalArgumentException
+	 *             if the curve is unknown or the exposure isn't finite
+	 */
+	public ToneMapper(double exposure, int curve, boolean srgb, ForkJoinPool pool) {
+		if (curve < CLAMP || curve > FILMIC)
+			throw new IllegalArgumentException("Unknown tone curve " + curve);
+		if (Double.isNaN(exposure) || Double.isInfinite(exposure))
+			throw new IllegalArgumentException("Exposure must be finite, got " + exposure);
+		this.exposure = exposure;
+		this.curve = curve;
+		this.srgb = srgb;
+		this.pool = pool;
+		this.scale = (float) Math.pow(2.0, exposure);
+	}
+
+	/**
+	 * @return the change in exposure, in stops
+	 */
+	public double getExposure() {
+		return exposure;
+	}
+
+	/**
+	 * @return {@link #CLAMP}, {@link #REINHARD} or {@link #FILMIC}
+	 */
+	public int getCurve() {
+		return curve;
+	}
+
+	/**
+	 * @return <b>true</b> if the result is encoded as sRGB
+	 */
+	public boolean isSRGB() {
+		return srgb;
+	}
+
+	/**
+	 * Converts a picture into a new image.
+	 *
+	 * @param frame
+	 *            the picture
+	 * @param imageType
+	 *            the type of image, one of the <code>BufferedImage.TYPE_</code>
+	 *            constants
+	 * @return the image
+	 */
+	public BufferedImage apply(FrameBuffer frame, int imageType) {
+		BufferedImage image = new BufferedImage(frame.width, frame.height, imageType);
+		apply(frame, image);
+		return image;
+	}
+
+	/**
+	 * Converts a picture into an image, with the top left pixel of the picture
+	 * at the top left of the image.
+	 *
+	 * @param frame
+	 *            the picture
+	 * @param image
+	 *            receives the picture. Must be at least as large as it.
+	 */
+	public void apply(FrameBuffer frame, BufferedImage image) {
+		if (FrameBuffer.isDirect(image))
+			pool.invoke(new RowTask(frame, image, 0, frame.height));
+		else
+			// setRGB may go through ColorModel caches that aren't thread safe
+			convert(frame, image, 0, frame.height);
+	}
+
+	/**
+	 * Converts the rows in <code>[start, end)</code>.
+	 */
+	private void convert(FrameBuffer frame, BufferedImage image, int start, int end) {
+		int[] row = new int[frame.width];
+		float[] rgb = new float[3];
+		for (int y = start; y < end; y++) {
+			for (int x = 0; x < frame.width; x++) {
+				frame.getColor(x, y, rgb);
+				row[x] = map(rgb[0] * scale) << 16 | map(rgb[1] * scale) << 8 | map(rgb[2] * scale);
+			}
+			FrameBuffer.setRow(image, y, row);
+		}
+	}
+
+	/**
+	 * Maps one exposed channel through the tone curve and the encoding.
+	 *
+	 * @return the channel in 8 bits
+	 */
+	private int map(float c) {
+		switch (curve) {
+		case REINHARD:
+			c = c / (1.0f + c);
+			break;
+		case FILMIC:
+			c = c * (2.51f * c + 0.03f) / (c * (2.43f * c + 0.59f) + 0.14f);
+			break;
+		default:
+			break;
+		}
+		if (!srgb)
+			return FrameBuffer.toByte(c);
+		if (!(c > 0.0f))
+			return 0;
+		return c >= 1.0f ? 255 : SRGB[(int) (c * (LUT_SIZE - 1) + 0.5f)] & 0xff;
+	}
+
+	/**
+	 * Converts the rows in <code>[start, end)</code>, splitting the range in
+	 * half until it is small enough.
+	 */
+	private class RowTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final FrameBuffer frame;
+		private final BufferedImage image;
+		private final int start, end;
+
+		RowTask(FrameBuffer frame, BufferedImage image, int start, int end) {
+			this.frame = frame;
+			this.image = image;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start <= ROWS_PER_TASK) {
+				convert(frame, image, start, end);
+				return;
+			}
+			int mid = (start + end) >>> 1;
+			invokeAll(new RowTask(frame, image, start, mid), new RowTask(frame, image, mid, end));
+		}
+	}
+}
@@ -0,0 +1,9 @@
+/**
+ * Contains classes that turn rays into images: splitting pictures into tiles, scheduling those tiles across
+ * threads and shading the results.
+ */
+/**
+ * @author Don Isaac
+ *
+ */
+package renderer.render;
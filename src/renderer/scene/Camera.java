@@ -3,10 +3,31 @@ package renderer.scene;
 import static renderer.Config.LOG;
 
 import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 
+import renderer.Config;
 import renderer.infrastructure.math.Transform;
 import renderer.infrastructure.math.Vector3;
+import renderer.kernel.Ray;
+import renderer.kernel.RayPacket;
+import renderer.kernel.RaycastHit;
+import renderer.render.AOVBuffer;
+import renderer.render.AccumulationBuffer;
+import renderer.render.FrameBuffer;
+import renderer.render.ProgressiveRender;
+import renderer.render.QualityLevel;
+import renderer.render.QualityReport;
+import renderer.render.RenderCheckpoint;
+import renderer.render.RenderDeadline;
+import renderer.render.RenderScheduler;
+import renderer.render.ReprojectionCache;
+import renderer.render.Shader;
+import renderer.render.Tile;
+import renderer.scene.actors.AreaLight;
+import renderer.scene.actors.Light;
+import renderer.scene.actors.ModelInstance;
 import renderer.scene.animation.Animateable;
 
 /**
@@ -19,35 +40,825 @@ import renderer.scene.animation.Animateable;
  * this program. This class is basically the meat and potatoes of this whole
  * project.
  * </p>
+ * <p>
+ * Cameras sit at the origin of their <code>Transform</code>, looking down the
+ * negative Z-axis with the positive Y-axis pointing up.
+ * </p>
  * 
  * @author Don Isaac
  *
  */
 public class Camera implements Animateable{
+	/**
+	 * The fewest samples a pixel refined by adaptive anti-aliasing ends up with,
+	 * so that the spread of its samples means something.
+	 */
+	public static final int MIN_REFINED_SAMPLES = 4;
+	/**
+	 * How many times the noise threshold neighbouring pixels may differ by before
+	 * adaptive anti-aliasing treats them as an edge.
+	 */
+	public static final double EDGE_CONTRAST = 4.0;
+	/** The width and height of the blocks of pixels traced together when packet tracing is on. */
+	public static final int PACKET_SIZE = 4;
 
 	private boolean canEditData;
 	private ImageData data;
 	private String name;
+	private Transform transform;
+	private RenderScheduler scheduler;
+	private volatile long sampleCount;
+	private volatile FrameBuffer frameBuffer;
+	private volatile AOVBuffer aovBuffer;
+	private volatile QualityReport qualityReport;
+	private ReprojectionCache reprojection;
 
 	public Camera(ImageData data, String name) {
 		this.canEditData = true;
 		this.data = data.clone();
 		
 		this.name = name;
+		this.transform = Transform.getIdentityInstance();
 	}
 	/**
-	 * Takes a picture of a Scene.
+	 * Takes a picture of a Scene. The picture is split into tiles of
+	 * <code>ImageData.tileSize</code> pixels that are rendered on
+	 * {@link Config#RENDER_THREADS} threads.
 	 * 
 	 * @param s the Scene to take a picture of
 	 * 
 	 * @return the image taken by the Camera
 	 */
 	public BufferedImage takePicture(Scene s) {
+		return takePicture(s, getScheduler());
+	}
+	/**
+	 * Takes a picture of a Scene using a specific scheduler. Use this to control
+	 * the number of threads or to listen for finished tiles.
+	 * <p>
+	 * Without anti-aliasing, every pixel gets one sample at its center. With it,
+	 * sampling is adaptive: every pixel first gets
+	 * <code>ImageData.minSamples</code> samples. Pixels whose luminance differs
+	 * from a neighbour's by more than {@link #EDGE_CONTRAST} times
+	 * <code>ImageData.noiseThreshold</code>, or whose samples are too spread out,
+	 * are then refined. Refining doubles a pixel's samples, up to
+	 * <code>ImageData.maxSamples</code>, until the standard error of its
+	 * luminance drops below the noise threshold. Flat regions such as the sky
+	 * are left with the minimum, while edges and noisy lighting get more.
+	 * Refining is a second pass over the tiles, so tile listeners hear about
+	 * each tile twice.
+	 * </p>
+	 * <p>
+	 * If <code>ImageData.timeBudgetMillis</code> is set, each tile is instead
+	 * rendered in one go at a {@link QualityLevel} picked by a
+	 * {@link RenderDeadline}. At best, a tile gets <code>maxSamples</code>
+	 * samples per pixel, or 1 without anti-aliasing. When the picture is
+	 * projected to run late, tiles get fewer samples per pixel, then fewer light
+	 * samples, then a lower resolution. The quality actually used is available
+	 * from {@link #getQualityReport()} afterwards. The budget includes preparing
+	 * the Scene.
+	 * </p>
+	 * <p>
+	 * If <code>ImageData.temporalReuse</code> is set and there is no time
+	 * budget, pixels whose color can be carried over from the last picture, as
+	 * decided by a {@link ReprojectionCache}, keep it and are not refined. Only
+	 * the rest are shaded. Their center samples are still traced to find out.
+	 * </p>
+	 * <p>
+	 * If <code>ImageData.aovs</code> is set, the hits of the center samples, or
+	 * of every sample if the AOVs are averaged, are recorded in an
+	 * {@link AOVBuffer} as they are shaded, available from
+	 * {@link #getAOVBuffer()} afterwards. Reused pixels only record their
+	 * center sample.
+	 * </p>
+	 * 
+	 * @param s the Scene to take a picture of
+	 * @param scheduler schedules the tiles of the picture
+	 * 
+	 * @return the image taken by the Camera
+	 * @throws IllegalArgumentException if the sample counts in the ImageData are out of range, or the picture is too large to buffer
+	 */
+	public BufferedImage takePicture(Scene s, RenderScheduler scheduler) {
+		return takePicture(s, scheduler, null);
+	}
+	/**
+	 * Takes a picture of a Scene, saving its progress to a checkpoint as it goes.
+	 * If the checkpoint holds the progress of an earlier attempt at the same
+	 * picture, that attempt is carried on, and the picture comes out exactly as
+	 * if it had never been interrupted. Sampling works as in
+	 * {@link #takePicture(Scene, RenderScheduler)}, but time budgets and
+	 * temporal reuse are ignored.
+	 * 
+	 * @param s the Scene to take a picture of
+	 * @param checkpoint where to save progress, and resume from
+	 * 
+	 * @return the image taken by the Camera
+	 * @throws IllegalArgumentException if the sample counts in the ImageData are out of range, or the picture is too large to buffer
+	 */
+	public BufferedImage takePicture(Scene s, RenderCheckpoint checkpoint) {
+		return takePicture(s, getScheduler(), checkpoint);
+	}
+
+	private BufferedImage takePicture(Scene s, RenderScheduler scheduler, RenderCheckpoint checkpoint) {
+		checkSamples();
+		// Fail now rather than after hours of tracing
+		FrameBuffer.checkSize(data.width, data.height);
 		//prevent the ImageData from being altered during rendering
 		this.canEditData = false;
-		
-		this.canEditData = true;
-		return new BufferedImage(data.width, data.height, data.imageType);
+		try {
+			long start = System.nanoTime();
+			s.commit();
+			Lens lens = new Lens();
+			AccumulationBuffer buffer = new AccumulationBuffer(data.width, data.height);
+			AOVBuffer aovs = data.aovs != 0 ? new AOVBuffer(data.width, data.height, data.aovs, s) : null;
+			List<Tile> tiles = scheduler.createTiles(data.width, data.height);
+			if (checkpoint == null && data.timeBudgetMillis > 0) {
+				renderToDeadline(s, scheduler, tiles, lens, buffer, aovs, start);
+				return resolve(buffer, aovs, scheduler, tiles);
+			}
+			qualityReport = null;
+			Shader shader = new Shader(s, data.lightSamples);
+			int min = data.antiAliasing ? data.minSamples : 1;
+			ReprojectionCache cache = checkpoint == null ? getReprojectionCache() : null;
+			boolean[] reused = cache != null ? new boolean[data.width * data.height] : null;
+			if (cache != null) {
+				cache.beginFrame(s, lens.view(), data.width, data.height);
+				scheduler.render(tiles, tile -> reuseTile(tile, lens, s, shader, cache, min, reused, buffer, aovs));
+			} else {
+				List<Tile> first = tiles;
+				if (checkpoint != null) {
+					checkpoint.resume(fingerprint(s), tiles, buffer);
+					first = checkpoint.remaining(RenderCheckpoint.FIRST_PASS, tiles);
+				}
+				scheduler.render(first, tile -> {
+					for (int i = 0; i < min; i++)
+						renderPass(tile, lens, s, shader, sample(i, 2), sample(i, 3), buffer, aovs);
+					if (checkpoint != null)
+						checkpoint.tileFinished(RenderCheckpoint.FIRST_PASS, tile, buffer);
+				});
+				if (aovs != null && first.size() < tiles.size()) {
+					// Checkpoints don't keep AOVs, so trace them again for the tiles that were resumed
+					List<Tile> resumed = new ArrayList<Tile>(tiles);
+					resumed.removeAll(first);
+					scheduler.forEachTile(resumed, tile -> traceCenters(tile, lens, s, aovs));
+				}
+			}
+			if (data.antiAliasing && data.maxSamples > min) {
+				boolean[] noisy = checkpoint != null ? checkpoint.getNoisyPixels() : null;
+				List<Tile> refine = tiles;
+				if (noisy == null) {
+					noisy = findNoisyPixels(buffer);
+					if (reused != null) {
+						for (int i = 0; i < noisy.length; i++)
+							noisy[i] &= !reused[i];
+					}
+					if (checkpoint != null)
+						checkpoint.refining(noisy);
+				}
+				if (checkpoint != null)
+					refine = checkpoint.remaining(RenderCheckpoint.REFINE_PASS, tiles);
+				boolean[] picked = noisy;
+				scheduler.render(refine, tile -> {
+					refineTile(tile, lens, shader, buffer, picked, aovs);
+					if (checkpoint != null)
+						checkpoint.tileFinished(RenderCheckpoint.REFINE_PASS, tile, buffer);
+				});
+			}
+			if (cache != null) {
+				cache.endFrame(buffer, min);
+				LOG.fine("Re-used " + cache.getReusedPixels() + " of " + reused.length + " pixels");
+			}
+			BufferedImage image = resolve(buffer, aovs, scheduler, tiles);
+			// Only now that the picture is safe can its log go
+			if (checkpoint != null)
+				checkpoint.finish();
+			return image;
+		} finally {
+			// Lets go of the log if the render failed, keeping it to resume from
+			if (checkpoint != null)
+				checkpoint.close();
+			this.canEditData = true;
+		}
+	}
+
+	/**
+	 * Sums up everything a picture depends on, so that a checkpoint can tell
+	 * if it belongs to it. Changes to Models and Materials are not noticed.
+	 */
+	private long fingerprint(Scene s) {
+		long h = 17;
+		double[] settings = { data.width, data.height, data.focalLength, data.antiAliasing ? 1 : 0, data.minSamples,
+				data.maxSamples, data.noiseThreshold, data.lightSamples, data.tileSize, data.firstSample };
+		for (double d : settings)
+			h = mix(h, d);
+		for (double d : transform.toArray())
+			h = mix(h, d);
+		for (ModelInstance mi : s.instances) {
+			h = mix(h, mi.model.triangleCount());
+			for (double d : mi.getTransform().toArray())
+				h = mix(h, d);
+		}
+		for (Light l : s.lights) {
+			h = mix(h, l.getClass().getName().hashCode());
+			double[] light = { l.position.x, l.position.y, l.position.z, l.color.x, l.color.y, l.color.z, l.intensity };
+			for (double d : light)
+				h = mix(h, d);
+			if (l instanceof AreaLight) {
+				// The edges place and orient the rectangle the shadow rays aim at
+				AreaLight a = (AreaLight) l;
+				double[] edges = { a.u.x, a.u.y, a.u.z, a.v.x, a.v.y, a.v.z };
+				for (double d : edges)
+					h = mix(h, d);
+			}
+		}
+		double[] background = { s.background.x, s.background.y, s.background.z };
+		for (double d : background)
+			h = mix(h, d);
+		return h;
+	}
+
+	/**
+	 * Adds a value to a fingerprint. Round numbers only set the high bits of a
+	 * double, which <code>31 * h + bits</code> would soon shift out, so the
+	 * bits are spread over the whole hash.
+	 */
+	private static long mix(long h, double d) {
+		h = (h ^ Double.doubleToLongBits(d)) * 0x9E3779B97F4A7C15L;
+		return h ^ (h >>> 32);
+	}
+
+	private void checkSamples() {
+		if (data.antiAliasing && (data.minSamples < 1 || data.maxSamples < data.minSamples))
+			throw new IllegalArgumentException(
+					"Cannot take between " + data.minSamples + " and " + data.maxSamples + " samples per pixel");
+		if (data.firstSample < 0)
+			throw new IllegalArgumentException("Samples cannot start at " + data.firstSample);
+	}
+
+	/**
+	 * Renders a rectangle of the picture {@link #takePicture(Scene)} would take,
+	 * so that a picture can be split between several processes. The pixels come
+	 * out exactly as they would in the whole picture: adaptive anti-aliasing
+	 * compares every pixel with its neighbours, so a border of one pixel around
+	 * the rectangle gets its first samples too. Time budgets and temporal reuse
+	 * are ignored.
+	 * 
+	 * @param s the Scene to take a picture of
+	 * @param region the rectangle to render. Its index is ignored.
+	 * 
+	 * @return the pixels of the rectangle, row by row, packed as by {@link FrameBuffer#getRGB(int, int)}
+	 * @throws IllegalArgumentException if the rectangle is not inside the picture, or the sample counts in the ImageData are out of range
+	 */
+	public int[] renderRegion(Scene s, Tile region) {
+		if (region.x < 0 || region.y < 0 || region.width < 1 || region.height < 1
+				|| region.x + region.width > data.width || region.y + region.height > data.height)
+			throw new IllegalArgumentException(region + " is not inside a " + data.width + "x" + data.height + " picture");
+		checkSamples();
+		RenderScheduler scheduler = getScheduler();
+		this.canEditData = false;
+		try {
+			s.commit();
+			Lens lens = new Lens();
+			Shader shader = new Shader(s, data.lightSamples);
+			int border = data.antiAliasing ? 1 : 0;
+			int x0 = Math.max(0, region.x - border), y0 = Math.max(0, region.y - border);
+			int x1 = Math.min(data.width, region.x + region.width + border);
+			int y1 = Math.min(data.height, region.y + region.height + border);
+			AccumulationBuffer buffer = new AccumulationBuffer(x0, y0, x1 - x0, y1 - y0);
+			int min = data.antiAliasing ? data.minSamples : 1;
+			scheduler.render(scheduler.createTiles(x0, y0, x1 - x0, y1 - y0), tile -> {
+				for (int i = 0; i < min; i++)
+					renderPass(tile, lens, s, shader, sample(i, 2), sample(i, 3), buffer, null);
+			});
+			if (data.antiAliasing && data.maxSamples > min) {
+				boolean[] noisy = findNoisyPixels(buffer);
+				scheduler.render(scheduler.createTiles(region.x, region.y, region.width, region.height),
+						tile -> refineTile(tile, lens, shader, buffer, noisy, null));
+			}
+			// Packed the same way as the pixels of a whole picture
+			FrameBuffer frame = new FrameBuffer(buffer.width, buffer.height);
+			buffer.resolve(frame, region);
+			int[] pixels = new int[region.pixelCount()];
+			for (int y = 0, i = 0; y < region.height; y++) {
+				for (int x = 0; x < region.width; x++, i++)
+					pixels[i] = frame.getRGB(region.x - x0 + x, region.y - y0 + y);
+			}
+			return pixels;
+		} finally {
+			this.canEditData = true;
+		}
+	}
+
+	/**
+	 * Turns the samples of a picture into an image, and records how many there
+	 * were. The render threads average the samples of their tiles into a
+	 * FrameBuffer, which is then converted into an image in one go.
+	 */
+	private BufferedImage resolve(AccumulationBuffer buffer, AOVBuffer aovs, RenderScheduler scheduler,
+			List<Tile> tiles) {
+		sampleCount = buffer.getTotalSamples();
+		if (aovs != null)
+			aovs.finish();
+		aovBuffer = aovs;
+		FrameBuffer frame = new FrameBuffer(data.width, data.height, data.offHeapFrameBuffer);
+		scheduler.forEachTile(tiles, tile -> buffer.resolve(frame, tile));
+		frameBuffer = frame;
+		return frame.toImage(data.imageType);
+	}
+
+	/**
+	 * Renders every tile at the best quality that lets the picture finish within
+	 * <code>ImageData.timeBudgetMillis</code> of <code>start</code>.
+	 */
+	private void renderToDeadline(Scene s, RenderScheduler scheduler, List<Tile> tiles, Lens lens,
+			AccumulationBuffer buffer, AOVBuffer aovs, long start) {
+		QualityLevel[] levels = QualityLevel.ladder(data.antiAliasing ? data.maxSamples : 1,
+				Math.min(data.lightSamples, s.lights.size()));
+		Shader[] shaders = new Shader[levels.length];
+		for (int l = 0; l < levels.length; l++) {
+			boolean same = l > 0 && levels[l].lightSamples == levels[l - 1].lightSamples;
+			shaders[l] = same ? shaders[l - 1] : new Shader(s, levels[l].lightSamples);
+		}
+		RenderDeadline deadline = new RenderDeadline(levels, start, data.timeBudgetMillis,
+				scheduler.getThreadCount(), (long) data.width * data.height);
+		scheduler.render(spread(tiles), tile -> {
+			int l = deadline.chooseLevel(tile.pixelCount());
+			long tileStart = System.nanoTime();
+			QualityLevel q = levels[l];
+			if (q.scale == 1) {
+				for (int i = 0; i < q.samples; i++)
+					renderPass(tile, lens, s, shaders[l], sample(i, 2), sample(i, 3), buffer, aovs);
+			} else {
+				renderScaled(tile, lens, shaders[l], q.scale, buffer, aovs);
+			}
+			deadline.tileFinished(l, tile.pixelCount(), System.nanoTime() - tileStart);
+		});
+		qualityReport = deadline.getReport();
+		LOG.info(qualityReport.toString());
+	}
+
+	/**
+	 * Reorders tiles so that any run of them is spread over the whole picture.
+	 * In scanline order, the first tiles are often all sky, which would make a
+	 * deadline think the picture is much cheaper than it is.
+	 */
+	private static List<Tile> spread(List<Tile> tiles) {
+		int n = tiles.size();
+		// Step through the tiles by a stride near n / golden ratio that visits each once
+		int stride = Math.max(1, (int) (n * 0.618));
+		while (gcd(stride, n) != 1)
+			stride++;
+		List<Tile> spread = new ArrayList<Tile>(n);
+		for (int i = 0; i < n; i++)
+			spread.add(tiles.get((int) ((long) i * stride % n)));
+		return spread;
+	}
+
+	private static int gcd(int a, int b) {
+		return b == 0 ? a : gcd(b, a % b);
+	}
+
+	/**
+	 * Renders a tile at a lower resolution: one sample at the center of each
+	 * block of <code>scale</code> by <code>scale</code> pixels, shared by every
+	 * pixel of the block, as is its hit if <code>aovs</code> isn't null.
+	 */
+	private void renderScaled(Tile tile, Lens lens, Shader shader, int scale, AccumulationBuffer buffer,
+			AOVBuffer aovs) {
+		Ray ray = new Ray();
+		RaycastHit hit = new RaycastHit();
+		double[] rgb = new double[3];
+		for (int by = tile.y; by < tile.y + tile.height; by += scale) {
+			int bh = Math.min(scale, tile.y + tile.height - by);
+			for (int bx = tile.x; bx < tile.x + tile.width; bx += scale) {
+				int bw = Math.min(scale, tile.x + tile.width - bx);
+				lens.generateRay(bx + 0.5 * bw, by + 0.5 * bh, ray);
+				shader.shade(ray, hit, rgb);
+				if (aovs != null)
+					aovs.record(bx, by, bw, bh, hit);
+				for (int y = by; y < by + bh; y++) {
+					for (int x = bx; x < bx + bw; x++)
+						buffer.add(x, y, rgb[0], rgb[1], rgb[2]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the cache of the last picture's shading if
+	 * <code>ImageData.temporalReuse</code> is set, and drops it otherwise.
+	 */
+	private synchronized ReprojectionCache getReprojectionCache() {
+		if (!data.temporalReuse)
+			reprojection = null;
+		else if (reprojection == null)
+			reprojection = new ReprojectionCache();
+		return reprojection;
+	}
+
+	/**
+	 * Makes the next picture shade every pixel again, even if
+	 * <code>ImageData.temporalReuse</code> is set. Call this after changing
+	 * Models or Materials, which the Camera can't notice by itself.
+	 */
+	public synchronized void clearReprojectionCache() {
+		if (reprojection != null)
+			reprojection.clear();
+	}
+
+	/**
+	 * Gets how many pixels of the last picture re-used their color from the one
+	 * before.
+	 * 
+	 * @return the number of pixels, or 0 if <code>ImageData.temporalReuse</code>
+	 *         is not set
+	 */
+	public synchronized long getReusedPixelCount() {
+		return reprojection != null ? reprojection.getReusedPixels() : 0;
+	}
+
+	/**
+	 * Gets the quality the last picture taken with a time budget actually got.
+	 * 
+	 * @return the report, or null if the last picture had no time budget
+	 */
+	public QualityReport getQualityReport() {
+		return qualityReport;
+	}
+
+	/**
+	 * Gets the last picture in high dynamic range, before its colors were
+	 * clamped and rounded into an image. The Camera holds on to it until the
+	 * next picture.
+	 * 
+	 * @return the pixels of the last picture, or null if none was taken
+	 */
+	public FrameBuffer getFrameBuffer() {
+		return frameBuffer;
+	}
+
+	/**
+	 * Gets the AOVs of the last picture, if <code>ImageData.aovs</code> was set
+	 * when it was taken. The Camera holds on to them until the next picture.
+	 * Pictures taken with {@link #renderRegion(Scene, Tile)} have none.
+	 * 
+	 * @return the AOVs of the last picture, or null if it had none
+	 */
+	public AOVBuffer getAOVBuffer() {
+		return aovBuffer;
+	}
+
+	/**
+	 * Gets how many samples the last picture took, which is also the number of
+	 * primary rays that were traced for it.
+	 * 
+	 * @return the number of samples, over every pixel
+	 */
+	public long getSampleCount() {
+		return sampleCount;
+	}
+
+	/**
+	 * Picks the pixels adaptive anti-aliasing should refine after the first
+	 * samples: the ones on an edge, and the ones that are already known to be
+	 * noisy. The returned flags cover the buffer, row by row.
+	 */
+	private boolean[] findNoisyPixels(AccumulationBuffer buffer) {
+		int width = buffer.width, height = buffer.height, bx = buffer.x, by = buffer.y;
+		double[] luminance = new double[width * height];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++)
+				luminance[y * width + x] = buffer.getLuminance(bx + x, by + y);
+		}
+		double threshold = data.noiseThreshold, contrast = EDGE_CONTRAST * data.noiseThreshold;
+		boolean[] noisy = new boolean[width * height];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int i = y * width + x;
+				if (buffer.getSamples(bx + x, by + y) > 1 && buffer.getStandardError(bx + x, by + y) > threshold) {
+					noisy[i] = true;
+					continue;
+				}
+				// Compare with the neighbours below and to the right, and mark both
+				// pixels of a pair that differ
+				for (int ny = y; ny <= Math.min(y + 1, height - 1); ny++) {
+					for (int nx = Math.max(x - 1, 0); nx <= Math.min(x + 1, width - 1); nx++) {
+						int j = ny * width + nx;
+						if (j > i && Math.abs(luminance[i] - luminance[j]) > contrast)
+							noisy[i] = noisy[j] = true;
+					}
+				}
+			}
+		}
+		return noisy;
+	}
+
+	/**
+	 * Takes more samples of the pixels of a tile picked by
+	 * <code>findNoisyPixels</code>, doubling their sample count until their
+	 * standard error is below the noise threshold.
+	 */
+	private void refineTile(Tile tile, Lens lens, Shader shader, AccumulationBuffer buffer, boolean[] noisy,
+			AOVBuffer aovs) {
+		Ray ray = new Ray();
+		RaycastHit hit = new RaycastHit();
+		double[] rgb = new double[3];
+		for (int y = tile.y; y < tile.y + tile.height; y++) {
+			for (int x = tile.x; x < tile.x + tile.width; x++) {
+				if (!noisy[(y - buffer.y) * buffer.width + x - buffer.x])
+					continue;
+				int n = buffer.getSamples(x, y);
+				while (n < data.maxSamples) {
+					int end = Math.min(data.maxSamples, Math.max(2 * n, MIN_REFINED_SAMPLES));
+					for (; n < end; n++) {
+						lens.generateRay(x + sample(n, 2), y + sample(n, 3), ray);
+						shader.shade(ray, hit, rgb);
+						buffer.add(x, y, rgb[0], rgb[1], rgb[2]);
+						if (aovs != null)
+							aovs.record(x, y, hit);
+					}
+					if (buffer.getStandardError(x, y) <= data.noiseThreshold)
+						break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Takes a picture of a Scene progressively: one sample of every pixel per
+	 * pass, publishing a snapshot after each pass to the listeners of
+	 * <code>progress</code>, until it says to stop. Samples are spread over each
+	 * pixel along a Halton sequence, so every pass refines the anti-aliasing of
+	 * the ones before. The first pass samples pixel centers.
+	 * <p>
+	 * Nothing is thrown away when the render stops, so the last snapshot is the
+	 * final picture. <code>ImageData.antiAliasing</code> is ignored.
+	 * </p>
+	 * 
+	 * @param s the Scene to take a picture of
+	 * @param progress decides when to stop, and receives the snapshots
+	 * 
+	 * @return the picture, as of the last pass
+	 */
+	public BufferedImage takeProgressivePicture(Scene s, ProgressiveRender progress) {
+		RenderScheduler scheduler = getScheduler();
+		this.canEditData = false;
+		try {
+			progress.start();
+			s.commit();
+			Shader shader = new Shader(s, data.lightSamples);
+			Lens lens = new Lens();
+			AccumulationBuffer buffer = new AccumulationBuffer(data.width, data.height);
+			AOVBuffer aovs = data.aovs != 0 ? new AOVBuffer(data.width, data.height, data.aovs, s) : null;
+			List<Tile> tiles = scheduler.createTiles(data.width, data.height);
+			FrameBuffer frame = new FrameBuffer(data.width, data.height, data.offHeapFrameBuffer);
+			BufferedImage snapshot;
+			int sample = 0;
+			do {
+				final int pass = sample;
+				double dx = sample(pass, 2), dy = sample(pass, 3);
+				scheduler.render(tiles, tile -> {
+					if (progress.mayContinue(pass))
+						renderPass(tile, lens, s, shader, dx, dy, buffer, aovs);
+				});
+				sample++;
+				scheduler.forEachTile(tiles, tile -> buffer.resolve(frame, tile));
+				snapshot = frame.toImage(data.imageType);
+			} while (progress.passFinished(snapshot, sample));
+			sampleCount = buffer.getTotalSamples();
+			frameBuffer = frame;
+			if (aovs != null)
+				aovs.finish();
+			aovBuffer = aovs;
+			return snapshot;
+		} finally {
+			this.canEditData = true;
+		}
+	}
+
+	/**
+	 * Gets a coordinate of where in a pixel its i-th sample is taken: the Halton
+	 * sequence in base 2 for x and 3 for y, from <code>ImageData.firstSample</code> on.
+	 */
+	private double sample(int i, int base) {
+		return halton(data.firstSample + i, base);
+	}
+
+	/**
+	 * Gets a coordinate of a point of the Halton sequence, shifted so that the
+	 * first point is at the center of the pixel.
+	 */
+	private static double halton(int index, int base) {
+		double f = 1.0, r = 0.0;
+		for (int i = index; i > 0; i /= base) {
+			f /= base;
+			r += f * (i % base);
+		}
+		r += 0.5;
+		return r < 1.0 ? r : r - 1.0;
+	}
+
+	/**
+	 * Adds one sample of every pixel in a tile to a buffer, taken at the same
+	 * offset inside each pixel, and records their hits if <code>aovs</code>
+	 * isn't null.
+	 */
+	private void renderPass(Tile tile, Lens lens, Scene s, Shader shader, double dx, double dy,
+			AccumulationBuffer buffer, AOVBuffer aovs) {
+		double[] rgb = new double[3];
+		if (!data.packetTracing) {
+			Ray ray = new Ray();
+			RaycastHit hit = new RaycastHit();
+			for (int y = tile.y; y < tile.y + tile.height; y++) {
+				for (int x = tile.x; x < tile.x + tile.width; x++) {
+					lens.generateRay(x + dx, y + dy, ray);
+					shader.shade(ray, hit, rgb);
+					buffer.add(x, y, rgb[0], rgb[1], rgb[2]);
+					if (aovs != null)
+						aovs.record(x, y, hit);
+				}
+			}
+			return;
+		}
+		RayPacket packet = new RayPacket();
+		for (int by = tile.y; by < tile.y + tile.height; by += PACKET_SIZE) {
+			int bh = Math.min(PACKET_SIZE, tile.y + tile.height - by);
+			for (int bx = tile.x; bx < tile.x + tile.width; bx += PACKET_SIZE) {
+				int bw = Math.min(PACKET_SIZE, tile.x + tile.width - bx);
+				packet.size = bw * bh;
+				for (int y = 0, r = 0; y < bh; y++) {
+					for (int x = 0; x < bw; x++, r++)
+						lens.generateRay(bx + x + dx, by + y + dy, packet.rays[r]);
+				}
+				s.intersect(packet);
+				for (int y = 0, r = 0; y < bh; y++) {
+					for (int x = 0; x < bw; x++, r++) {
+						shader.shadeHit(packet.rays[r], packet.hits[r], rgb);
+						buffer.add(bx + x, by + y, rgb[0], rgb[1], rgb[2]);
+						if (aovs != null)
+							aovs.record(bx + x, by + y, packet.hits[r]);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Traces the center ray of every pixel in a tile, and either gives the pixel
+	 * its color from the last picture or shades it with <code>min</code>
+	 * samples, like <code>renderPass</code> would.
+	 */
+	private void reuseTile(Tile tile, Lens lens, Scene s, Shader shader, ReprojectionCache cache, int min,
+			boolean[] reused, AccumulationBuffer buffer, AOVBuffer aovs) {
+		Ray ray = new Ray();
+		RaycastHit hit = new RaycastHit();
+		double[] rgb = new double[3];
+		if (!data.packetTracing) {
+			for (int y = tile.y; y < tile.y + tile.height; y++) {
+				for (int x = tile.x; x < tile.x + tile.width; x++) {
+					lens.generateRay(x + halton(0, 2), y + halton(0, 3), ray);
+					hit.reset();
+					s.intersect(ray, hit);
+					reuseOrShade(x, y, ray, hit, lens, shader, cache, min, reused, buffer, aovs, rgb);
+				}
+			}
+			return;
+		}
+		RayPacket packet = new RayPacket();
+		for (int by = tile.y; by < tile.y + tile.height; by += PACKET_SIZE) {
+			int bh = Math.min(PACKET_SIZE, tile.y + tile.height - by);
+			for (int bx = tile.x; bx < tile.x + tile.width; bx += PACKET_SIZE) {
+				int bw = Math.min(PACKET_SIZE, tile.x + tile.width - bx);
+				packet.size = bw * bh;
+				for (int y = 0, r = 0; y < bh; y++) {
+					for (int x = 0; x < bw; x++, r++)
+						lens.generateRay(bx + x + halton(0, 2), by + y + halton(0, 3), packet.rays[r]);
+				}
+				s.intersect(packet);
+				for (int y = 0, r = 0; y < bh; y++) {
+					for (int x = 0; x < bw; x++, r++)
+						reuseOrShade(bx + x, by + y, packet.rays[r], packet.hits[r], lens, shader, cache, min,
+								reused, buffer, aovs, rgb);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds a pixel's color from the last picture to a buffer if it can be
+	 * re-used, or shades the pixel's center hit and takes the rest of its first
+	 * samples otherwise.
+	 */
+	private void reuseOrShade(int x, int y, Ray ray, RaycastHit hit, Lens lens, Shader shader,
+			ReprojectionCache cache, int min, boolean[] reused, AccumulationBuffer buffer, AOVBuffer aovs,
+			double[] rgb) {
+		if (aovs != null)
+			aovs.record(x, y, hit);
+		if (cache.reuse(x, y, ray, hit, rgb)) {
+			reused[y * buffer.width + x] = true;
+			buffer.add(x, y, rgb[0], rgb[1], rgb[2]);
+			return;
+		}
+		shader.shadeHit(ray, hit, rgb);
+		buffer.add(x, y, rgb[0], rgb[1], rgb[2]);
+		for (int i = 1; i < min; i++) {
+			lens.generateRay(x + sample(i, 2), y + sample(i, 3), ray);
+			shader.shade(ray, hit, rgb);
+			buffer.add(x, y, rgb[0], rgb[1], rgb[2]);
+			if (aovs != null)
+				aovs.record(x, y, hit);
+		}
+	}
+
+	/**
+	 * Traces the center ray of every pixel in a tile and records its hit,
+	 * without shading anything. Only the center is recorded, so these pixels
+	 * aren't anti-aliased.
+	 */
+	private void traceCenters(Tile tile, Lens lens, Scene s, AOVBuffer aovs) {
+		Ray ray = new Ray();
+		RaycastHit hit = new RaycastHit();
+		for (int y = tile.y; y < tile.y + tile.height; y++) {
+			for (int x = tile.x; x < tile.x + tile.width; x++) {
+				lens.generateRay(x + halton(0, 2), y + halton(0, 3), ray);
+				hit.reset();
+				s.intersect(ray, hit);
+				aovs.record(x, y, hit);
+			}
+		}
+	}
+
+	/**
+	 * Returns the scheduler used by {@link #takePicture(Scene)}, creating a new one
+	 * if the tile size or thread count has changed.
+	 */
+	private synchronized RenderScheduler getScheduler() {
+		if (scheduler == null || scheduler.getTileSize() != data.tileSize
+				|| scheduler.getThreadCount() != Config.RENDER_THREADS) {
+			if (scheduler != null)
+				scheduler.shutdown();
+			scheduler = new RenderScheduler(data.tileSize, Config.RENDER_THREADS);
+		}
+		return scheduler;
+	}
+
+	/**
+	 * A snapshot of the Camera's position and orientation, taken once per picture
+	 * so that primary rays can be generated without allocating.
+	 */
+	private class Lens {
+		final double ox, oy, oz;
+		final Vector3 right, up, forward;
+		final double aspect, focalLength;
+		final int width, height;
+
+		Lens() {
+			Vector3 o = transform.transform(Vector3.ZERO);
+			ox = o.x;
+			oy = o.y;
+			oz = o.z;
+			right = transform.transformDirection(Vector3.I);
+			up = transform.transformDirection(Vector3.J);
+			forward = transform.transformDirection(Vector3.K).scl(-1.0);
+			width = data.width;
+			height = data.height;
+			aspect = (double) width / height;
+			focalLength = data.focalLength;
+		}
+
+		/**
+		 * Describes the view for a {@link ReprojectionCache}: origin, right, up and
+		 * forward vectors, then focal length and aspect ratio.
+		 */
+		double[] view() {
+			return new double[] { ox, oy, oz, right.x, right.y, right.z, up.x, up.y, up.z, forward.x, forward.y,
+					forward.z, focalLength, aspect };
+		}
+
+		void generateRay(double px, double py, Ray ray) {
+			double sx = (2.0 * px / width - 1.0) * aspect;
+			double sy = 1.0 - 2.0 * py / height;
+			double dx = right.x * sx + up.x * sy + forward.x * focalLength;
+			double dy = right.y * sx + up.y * sy + forward.y * focalLength;
+			double dz = right.z * sx + up.z * sy + forward.z * focalLength;
+			double invLen = 1.0 / Math.sqrt(dx * dx + dy * dy + dz * dz);
+			ray.set(ox, oy, oz, dx * invLen, dy * invLen, dz * invLen);
+		}
+	}
+
+	/**
+	 * Gets a copy of this Camera's Transform.
+	 * @return the Camera's Transform
+	 */
+	public Transform getTransform() {
+		return transform.cpy();
+	}
+	/**
+	 * Replaces this Camera's Transform.
+	 * @param transform the new Transform. It is copied.
+	 */
+	public void setTransform(Transform transform) {
+		this.transform = transform.cpy();
 	}
 	/**
 	 * Gets a read-only copy of this Camera's ImageData.
@@ -69,27 +880,27 @@ public class Camera implements Animateable{
 	}
 	@Override
 	public void translate(Vector3 v) {
-		
+		transform.translate(v);
 	}
 	@Override
 	public void translate(double x, double y, double z) {
-		
+		transform.translate(x, y, z);
 	}
 	@Override
 	public void rotX(double theta, boolean aroundOrigin) {
-		
+		transform.rotX(theta, aroundOrigin);
 	}
 	@Override
 	public void rotY(double theta, boolean aroundOrigin) {
-		
+		transform.rotY(theta, aroundOrigin);
 	}
 	@Override
 	public void rotZ(double theta, boolean aroundOrigin) {
-		
+		transform.rotZ(theta, aroundOrigin);
 	}
 	@Override
 	public void applyTransformation(Transform m) {
-		
+		transform = m.cpy().multiply(transform);
 	}
 	@Override
 	public String getName() {
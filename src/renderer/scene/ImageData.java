@@ -2,6 +2,10 @@ package renderer.scene;
 
 import java.awt.image.BufferedImage;
 
+import renderer.render.AOVBuffer;
+import renderer.render.RenderScheduler;
+import renderer.render.Shader;
+
 /**
  * A struct-like class that stores data needed by the Camera to create an image, such as the width/height of the image.
  * @see Camera
@@ -9,9 +13,81 @@ import java.awt.image.BufferedImage;
  *
  */
 public class ImageData {
+	/** The default for {@link #minSamples}. */
+	public static final int DEFAULT_MIN_SAMPLES = 1;
+	/** The default for {@link #maxSamples}. */
+	public static final int DEFAULT_MAX_SAMPLES = 8;
+	/** The default for {@link #noiseThreshold}. */
+	public static final double DEFAULT_NOISE_THRESHOLD = 0.02;
+
 	public int width, height, imageType;
 	public double focalLength;
+	/** Should the Camera spend more samples on edges and noisy pixels? */
 	public boolean antiAliasing;
+	/** The fewest samples anti-aliasing takes of every pixel. */
+	public int minSamples;
+	/** The most samples anti-aliasing takes of any pixel. */
+	public int maxSamples;
+	/**
+	 * The standard error, in luminance, a pixel's samples may have before
+	 * anti-aliasing takes more of them. Lower values give cleaner pictures at the
+	 * cost of more samples.
+	 */
+	public double noiseThreshold;
+	/**
+	 * How long the Camera may take to render a picture, in milliseconds, or 0
+	 * for no limit. With a limit, the Camera lowers the quality of tiles as
+	 * needed to finish in time.
+	 * 
+	 * @see Camera#getQualityReport()
+	 */
+	public long timeBudgetMillis;
+	/** The width and height of the tiles the image is split into while rendering. */
+	public int tileSize;
+	/**
+	 * Should primary rays be traced in packets? Faster for most Scenes, and gives
+	 * the same picture.
+	 */
+	public boolean packetTracing;
+	/**
+	 * The most shadow rays traced per hit. Scenes with more Lights than this
+	 * sample a few of them at each hit.
+	 * 
+	 * @see renderer.render.Shader
+	 */
+	public int lightSamples;
+	/**
+	 * Should the Camera re-use the shading of its last picture where the Scene
+	 * hasn't changed? Off by default. Meant for the frames of an animation taken
+	 * in order, and ignored with a time budget.
+	 * 
+	 * @see renderer.render.ReprojectionCache
+	 */
+	public boolean temporalReuse;
+	/**
+	 * Should the Camera keep the high dynamic range pixels of its pictures
+	 * outside the Java heap? Off by default. Worth it for very large pictures,
+	 * which the garbage collector would otherwise have to copy.
+	 * 
+	 * @see renderer.render.FrameBuffer
+	 */
+	public boolean offHeapFrameBuffer;
+	/**
+	 * Which AOVs the Camera records next to its pictures, as a combination of
+	 * the {@link AOVBuffer} flags, such as <code>AOVBuffer.DEPTH |
+	 * AOVBuffer.NORMAL</code>, taken from the center of each pixel unless
+	 * <code>AOVBuffer.AVERAGED</code> is set too. None by default.
+	 * 
+	 * @see Camera#getAOVBuffer()
+	 */
+	public int aovs;
+	/**
+	 * Where in the Halton sequence the samples of each pixel start, 0 by
+	 * default. Pictures that start far enough apart share no samples, such as a
+	 * reference and the pictures measured against it. The center samples that
+	 * temporal reuse traces don't move.
+	 */
+	public int firstSample;
 
 	/**
 	 * Default constructor. Creates a standard ImageData struct with non-custom settings.
@@ -22,6 +98,12 @@ public class ImageData {
 		this.focalLength = 1.7;
 		this.antiAliasing = true;
 		this.imageType = BufferedImage.TYPE_INT_RGB;
+		this.tileSize = RenderScheduler.DEFAULT_TILE_SIZE;
+		this.packetTracing = true;
+		this.lightSamples = Shader.DEFAULT_LIGHT_SAMPLES;
+		this.minSamples = DEFAULT_MIN_SAMPLES;
+		this.maxSamples = DEFAULT_MAX_SAMPLES;
+		this.noiseThreshold = DEFAULT_NOISE_THRESHOLD;
 	}
 	/**
 	 * Creates a custom ImageData struct.
@@ -38,10 +120,28 @@ public class ImageData {
 		this.focalLength = focalLength;
 		this.antiAliasing = antiAliasing;
 		this.imageType = imageType;
+		this.tileSize = RenderScheduler.DEFAULT_TILE_SIZE;
+		this.packetTracing = true;
+		this.lightSamples = Shader.DEFAULT_LIGHT_SAMPLES;
+		this.minSamples = DEFAULT_MIN_SAMPLES;
+		this.maxSamples = DEFAULT_MAX_SAMPLES;
+		this.noiseThreshold = DEFAULT_NOISE_THRESHOLD;
 	}
 	
 	@Override
 	public ImageData clone() {
-		return new ImageData(width, height, focalLength, imageType, antiAliasing);
+		ImageData d = new ImageData(width, height, focalLength, imageType, antiAliasing);
+		d.tileSize = tileSize;
+		d.packetTracing = packetTracing;
+		d.lightSamples = lightSamples;
+		d.minSamples = minSamples;
+		d.maxSamples = maxSamples;
+		d.noiseThreshold = noiseThreshold;
+		d.timeBudgetMillis = timeBudgetMillis;
+		d.temporalReuse = temporalReuse;
+		d.offHeapFrameBuffer = offHeapFrameBuffer;
+		d.aovs = aovs;
+		d.firstSample = firstSample;
+		return d;
 	}
 }
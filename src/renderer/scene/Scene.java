@@ -1,5 +1,136 @@
 package renderer.scene;
 
+import static renderer.Config.LOG;
+
+import java.util.ArrayList;
+
+import renderer.Config;
+import renderer.infrastructure.math.Vector3;
+import renderer.kernel.InstanceBVH;
+import renderer.kernel.OccluderCache;
+import renderer.kernel.Ray;
+import renderer.kernel.RayPacket;
+import renderer.kernel.RaycastHit;
+import renderer.scene.actors.Light;
+import renderer.scene.actors.ModelInstance;
+
+/**
+ * Stores everything that can be seen by a Camera: the placed Models, the Lights
+ * and the Cameras that can be used to take pictures of it.
+ * <p>
+ * Geometry is added as {@link ModelInstance}s. Each Model builds its own BVH
+ * once, and the Scene keeps a small {@link InstanceBVH} over the instances on
+ * top of them, so moving an instance only rebuilds the top level.
+ * </p>
+ * 
+ * @see Camera
+ */
 public class Scene {
+	public String name;
+	public ArrayList<ModelInstance> instances;
+	public ArrayList<Light> lights;
+	public ArrayList<Camera> cameras;
+	/** The color returned by rays that don't hit anything. Each component is in [0, 1]. */
+	public Vector3 background;
+
+	private InstanceBVH accelerator;
+
+	/**
+	 * Creates a new, empty Scene.
+	 * 
+	 * @param name
+	 *            the name of the Scene
+	 */
+	public Scene(String name) {
+		this.name = name;
+		instances = new ArrayList<ModelInstance>();
+		lights = new ArrayList<Light>();
+		cameras = new ArrayList<Camera>();
+		background = new Vector3(0.0, 0.0, 0.0);
+		accelerator = new InstanceBVH(instances);
+	}
+
+	/**
+	 * Brings the BVH over the instances up to date. If the same instances are in
+	 * the Scene as last time, the BVH is refit around the ones that moved, and
+	 * only rebuilt if refitting made it more than
+	 * {@link Config#BVH_REBUILD_RATIO} times worse than when it was built.
+	 * Otherwise it is rebuilt. Models that don't have a BVH yet get one; the
+	 * rest keep theirs. Must be called after changing <code>instances</code> and
+	 * before rendering; the Camera does this at the start of every picture, and
+	 * the AnimationManager after every frame.
+	 */
+	public synchronized void commit() {
+		if (accelerator.hasSameInstances(instances)) {
+			double ratio = accelerator.refit();
+			if (ratio <= Config.BVH_REBUILD_RATIO)
+				return;
+			LOG.fine("Rebuilding the BVH of Scene " + name + ", refitting made it " + ratio + " times worse");
+		}
+		accelerator = new InstanceBVH(instances);
+	}
+
+	/**
+	 * Finds the closest intersection between a ray and the geometry in this Scene,
+	 * as of the last call to {@link #commit()}.
+	 * 
+	 * @param ray
+	 *            the ray to trace
+	 * @param hit
+	 *            stores the closest hit. Should be reset before calling this
+	 *            method.
+	 * @return <b>true</b> if something was hit, <b>false</b> otherwise
+	 */
+	public boolean intersect(Ray ray, RaycastHit hit) {
+		return accelerator.intersect(ray, hit);
+	}
+
+	/**
+	 * Finds the closest intersection of every ray in a packet, as of the last call
+	 * to {@link #commit()}. Faster than tracing the rays one by one when they
+	 * start close together and point in similar directions, like the primary
+	 * rays of neighbouring pixels.
+	 * 
+	 * @param packet
+	 *            the rays to trace. Its hits are reset, then receive the closest
+	 *            hit of each ray.
+	 */
+	public void intersect(RayPacket packet) {
+		accelerator.intersect(packet);
+	}
+
+	/**
+	 * Determines if anything in this Scene blocks a ray, as of the last call to
+	 * {@link #commit()}.
+	 * 
+	 * @param ray
+	 *            the ray to trace. Only hits between <code>tMin</code> and
+	 *            <code>tMax</code> count.
+	 * @param scratch
+	 *            provides scratch space. Its hit data is left alone.
+	 * @return <b>true</b> if something blocks the ray, <b>false</b> otherwise
+	 */
+	public boolean occluded(Ray ray, RaycastHit scratch) {
+		return accelerator.occluded(ray, scratch);
+	}
 
+	/**
+	 * Determines if anything in this Scene blocks a ray, testing the last
+	 * occluder found for the same slot first. Meant for shadow rays, with one
+	 * cache per render thread and one slot per light.
+	 * 
+	 * @param ray
+	 *            the ray to trace. Only hits between <code>tMin</code> and
+	 *            <code>tMax</code> count.
+	 * @param scratch
+	 *            provides scratch space. Its hit data is left alone.
+	 * @param cache
+	 *            the calling thread's occluder cache
+	 * @param slot
+	 *            the slot of the cache to use
+	 * @return <b>true</b> if something blocks the ray, <b>false</b> otherwise
+	 */
+	public boolean occluded(Ray ray, RaycastHit scratch, OccluderCache cache, int slot) {
+		return accelerator.occluded(ray, scratch, cache, slot);
+	}
 }
@@ -0,0 +1,121 @@
+package renderer.scene.actors;
+
+import renderer.infrastructure.math.Transform;
+import renderer.infrastructure.math.Vector3;
+import renderer.kernel.AABB;
+
+/**
+ * A rectangular light, such as a ceiling panel. It is centered on its
+ * position and spanned by two edges, and only lights the side its normal,
+ * <code>u &times; v</code>, points to. Light leaves it like it leaves a matte
+ * surface, so it is brightest straight ahead and fades to nothing along the
+ * plane of the rectangle.
+ * <p>
+ * The intensity is that of the whole rectangle: seen from far away and
+ * straight ahead, an area light is as bright as a point light of the same
+ * intensity. Each shadow ray aims at a random point of the rectangle, so
+ * shadows get soft edges as more samples are taken.
+ * </p>
+ */
+public class AreaLight extends Light {
+	/** One edge of the rectangle, in world space. */
+	public Vector3 u;
+	/** The other edge of the rectangle, in world space. */
+	public Vector3 v;
+
+	/**
+	 * Creates a white area light.
+	 * 
+	 * @param name
+	 *            the name of the light
+	 * @param position
+	 *            the center of the rectangle. It is copied.
+	 * @param u
+	 *            one edge of the rectangle. It is copied.
+	 * @param v
+	 *            the other edge of the rectangle. It is copied.
+	 * @param intensity
+	 *            how bright the whole light is
+	 */
+	public AreaLight(String name, Vector3 position, Vector3 u, Vector3 v, double intensity) {
+		this(name, position, u, v, new Vector3(1.0, 1.0, 1.0), intensity);
+	}
+
+	/**
+	 * Creates a new AreaLight.
+	 * 
+	 * @param name
+	 *            the name of the light
+	 * @param position
+	 *            the center of the rectangle. It is copied.
+	 * @param u
+	 *            one edge of the rectangle. It is copied.
+	 * @param v
+	 *            the other edge of the rectangle. It is copied.
+	 * @param color
+	 *            the color of the light. It is copied.
+	 * @param intensity
+	 *            how bright the whole light is
+	 */
+	public AreaLight(String name, Vector3 position, Vector3 u, Vector3 v, Vector3 color, double intensity) {
+		super(name, position, color, intensity);
+		this.u = u.cpy();
+		this.v = v.cpy();
+	}
+
+	@Override
+	public void samplePoint(double s, double t, Vector3 point) {
+		point.x = position.x + (s - 0.5) * u.x + (t - 0.5) * v.x;
+		point.y = position.y + (s - 0.5) * u.y + (t - 0.5) * v.y;
+		point.z = position.z + (s - 0.5) * u.z + (t - 0.5) * v.z;
+	}
+
+	@Override
+	public double emission(double dx, double dy, double dz) {
+		double nx = u.y * v.z - u.z * v.y, ny = u.z * v.x - u.x * v.z, nz = u.x * v.y - u.y * v.x;
+		double cos = (nx * dx + ny * dy + nz * dz) / Math.sqrt(nx * nx + ny * ny + nz * nz);
+		return Math.max(0.0, cos);
+	}
+
+	@Override
+	public AABB getBounds() {
+		AABB b = new AABB();
+		Vector3 corner = new Vector3();
+		for (int i = 0; i < 4; i++) {
+			samplePoint(i & 1, i >> 1, corner);
+			b.grow(corner.x, corner.y, corner.z);
+		}
+		return b;
+	}
+
+	// Unlike a point light, a rectangle turns when rotated around its own axes
+
+	@Override
+	public void rotX(double theta, boolean aroundOrigin) {
+		super.rotX(theta, aroundOrigin);
+		turn(Transform.getRotationXInstance(theta));
+	}
+
+	@Override
+	public void rotY(double theta, boolean aroundOrigin) {
+		super.rotY(theta, aroundOrigin);
+		turn(Transform.getRotationYInstance(theta));
+	}
+
+	@Override
+	public void rotZ(double theta, boolean aroundOrigin) {
+		super.rotZ(theta, aroundOrigin);
+		turn(Transform.getRotationZInstance(theta));
+	}
+
+	@Override
+	public void applyTransformation(Transform m) {
+		super.applyTransformation(m);
+		turn(m);
+	}
+
+	private void turn(Transform m) {
+		u = m.transformDirection(u);
+		v = m.transformDirection(v);
+	}
+}
@@ -1,5 +1,67 @@
 package renderer.scene.actors;
 
+/**
+ * A polygonal face of a <code>Model</code>. Faces do not store any vertex data
+ * themselves, instead they store indices into the lists held by the
+ * <code>Model</code> they belong to. All indices are 0-based.
+ * <p>
+ * Faces with more than three vertices are treated as triangle fans around
+ * their first vertex when they are raytraced.
+ * </p>
+ * 
+ * @see Model
+ *
+ */
 public class Face {
+	/** Value used in <code>texCoords</code> and <code>normals</code> when the face does not reference one. */
+	public static final int NO_INDEX = -1;
 
+	/** Indices into {@link Model#vertices} */
+	public int[] vertices;
+	/** Indices into {@link Model#texCoords}, or <code>NO_INDEX</code> */
+	public int[] texCoords;
+	/** Indices into {@link Model#normals}, or <code>NO_INDEX</code> */
+	public int[] normals;
+	/** The name of the material used by this face, or <code>null</code> if none was set. */
+	public String materialName;
+
+	/**
+	 * Creates a new Face.
+	 * 
+	 * @param vertices
+	 *            indices into the Model's vertex list
+	 * @param texCoords
+	 *            indices into the Model's texture coordinate list
+	 * @param normals
+	 *            indices into the Model's normal list
+	 */
+	public Face(int[] vertices, int[] texCoords, int[] normals) {
+		this.vertices = vertices;
+		this.texCoords = texCoords;
+		this.normals = normals;
+	}
+
+	/**
+	 * Creates a new Face that only references geometric vertices.
+	 * 
+	 * @param vertices
+	 *            indices into the Model's vertex list
+	 */
+	public Face(int... vertices) {
+		this(vertices, emptyIndices(vertices.length), emptyIndices(vertices.length));
+	}
+
+	/**
+	 * @return the number of triangles this face is split into when raytraced
+	 */
+	public int triangleCount() {
+		return Math.max(0, vertices.length - 2);
+	}
+
+	private static int[] emptyIndices(int length) {
+		int[] indices = new int[length];
+		for (int i = 0; i < length; i++)
+			indices[i] = NO_INDEX;
+		return indices;
+	}
 }
@@ -1,5 +1,147 @@
 package renderer.scene.actors;
 
-public class Light {
+import renderer.infrastructure.math.Transform;
+import renderer.infrastructure.math.Vector3;
+import renderer.kernel.AABB;
 
+/**
+ * A point light. Light leaves it equally in every direction and falls off with
+ * the square of the distance, so a surface facing the light from distance
+ * <code>d</code> receives <code>color * intensity / d<sup>2</sup></code>.
+ * 
+ * @see AreaLight
+ * @see renderer.scene.Scene#lights
+ */
+public class Light implements Actor {
+	private String name;
+	/** Where the light is, in world space. */
+	public Vector3 position;
+	/** The color of the light. Each component is in [0, 1]. */
+	public Vector3 color;
+	/** How bright the light is. */
+	public double intensity;
+
+	/**
+	 * Creates a white light.
+	 * 
+	 * @param name
+	 *            the name of the light
+	 * @param position
+	 *            where the light is. It is copied.
+	 * @param intensity
+	 *            how bright the light is
+	 */
+	public Light(String name, Vector3 position, double intensity) {
+		this(name, position, new Vector3(1.0, 1.0, 1.0), intensity);
+	}
+
+	/**
+	 * Creates a new Light.
+	 * 
+	 * @param name
+	 *            the name of the light
+	 * @param position
+	 *            where the light is. It is copied.
+	 * @param color
+	 *            the color of the light. It is copied.
+	 * @param intensity
+	 *            how bright the light is
+	 */
+	public Light(String name, Vector3 position, Vector3 color, double intensity) {
+		this.name = name;
+		this.position = position.cpy();
+		this.color = color.cpy();
+		this.intensity = intensity;
+	}
+
+	/**
+	 * Picks a point of the light for a shadow ray to aim at. Points picked from
+	 * uniform random numbers are spread evenly over the light.
+	 * 
+	 * @param s
+	 *            a number in [0, 1)
+	 * @param t
+	 *            another number in [0, 1)
+	 * @param point
+	 *            receives the point. A point light is always at its position.
+	 */
+	public void samplePoint(double s, double t, Vector3 point) {
+		point.x = position.x;
+		point.y = position.y;
+		point.z = position.z;
+	}
+
+	/**
+	 * Gets the fraction of the light's intensity that leaves toward a direction.
+	 * 
+	 * @param dx
+	 *            the x component of a unit direction away from the light
+	 * @param dy
+	 *            the y component
+	 * @param dz
+	 *            the z component
+	 * @return a number in [0, 1]. Always 1 for a point light.
+	 */
+	public double emission(double dx, double dy, double dz) {
+		return 1.0;
+	}
+
+	/**
+	 * @return a box around every point light can leave from
+	 */
+	public AABB getBounds() {
+		return new AABB().grow(position.x, position.y, position.z);
+	}
+
+	/**
+	 * Gets a single number for how bright the light is, used to decide how often
+	 * it is sampled when there are too many lights to sample them all.
+	 * 
+	 * @return the intensity scaled by the average of the color components
+	 */
+	public double getPower() {
+		return intensity * (color.x + color.y + color.z) / 3.0;
+	}
+
+	@Override
+	public void translate(Vector3 v) {
+		position.add(v);
+	}
+
+	@Override
+	public void translate(double x, double y, double z) {
+		position.x += x;
+		position.y += y;
+		position.z += z;
+	}
+
+	// A point looks the same from every direction, so rotating it around its
+	// own axes does nothing; only rotations around the origin move it.
+	@Override
+	public void rotX(double theta, boolean aroundOrigin) {
+		if (aroundOrigin)
+			position = Transform.getRotationXInstance(theta).transform(position);
+	}
+
+	@Override
+	public void rotY(double theta, boolean aroundOrigin) {
+		if (aroundOrigin)
+			position = Transform.getRotationYInstance(theta).transform(position);
+	}
+
+	@Override
+	public void rotZ(double theta, boolean aroundOrigin) {
+		if (aroundOrigin)
+			position = Transform.getRotationZInstance(theta).transform(position);
+	}
+
+	@Override
+	public void applyTransformation(Transform m) {
+		position = m.transform(position);
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
 }
@@ -3,7 +3,10 @@ package renderer.scene.actors;
 import java.util.ArrayList;
 import java.util.HashMap;
 
+import renderer.Config;
 import renderer.infrastructure.math.Vector3;
+import renderer.kernel.BinnedBVHBuilder;
+import renderer.kernel.FlatBVH;
 
 public class Model {
 	public String fileName;
@@ -17,4 +20,51 @@ public class Model {
 	public HashMap<String, Material> materialLib;
 	public HashMap<String, Material> matLib;
 
+	/** Built on demand and shared by every ModelInstance of this Model. */
+	private FlatBVH bvh;
+
+	/**
+	 * Creates an empty Model.
+	 */
+	public Model() {
+		vertices = new ArrayList<Vector3>();
+		normals = new ArrayList<Vector3>();
+		texCoords = new ArrayList<TextureCoordinate>();
+		faces = new ArrayList<Face>();
+		smoothingGroups = new HashMap<Integer, ArrayList<Face>>();
+		materialLib = new HashMap<String, Material>();
+		matLib = new HashMap<String, Material>();
+	}
+
+	/**
+	 * @return the number of triangles in this Model once every face has been
+	 *         triangulated
+	 */
+	public int triangleCount() {
+		int count = 0;
+		for (Face f : faces)
+			count += f.triangleCount();
+		return count;
+	}
+
+	/**
+	 * Gets the bounding volume hierarchy over this Model's triangles, building it
+	 * the first time it is needed. Every {@link ModelInstance} of this Model
+	 * shares it, so placing more copies of a Model costs no extra geometry.
+	 * 
+	 * @return the BVH, in the Model's own space
+	 */
+	public synchronized FlatBVH getBVH() {
+		if (bvh == null)
+			bvh = new FlatBVH(new BinnedBVHBuilder(Config.BVH_LEAF_SIZE).build(this));
+		return bvh;
+	}
+
+	/**
+	 * Throws away the BVH so it is rebuilt the next time it's needed. Call this
+	 * after changing <code>vertices</code> or <code>faces</code>.
+	 */
+	public synchronized void invalidateBVH() {
+		bvh = null;
+	}
 }
@@ -1,6 +1,172 @@
 package renderer.scene.actors;
 
-public class ModelInstance {
-	
-	
+import renderer.infrastructure.math.Transform;
+import renderer.infrastructure.math.Vector3;
+import renderer.kernel.AABB;
+
+/**
+ * A copy of a {@link Model} placed somewhere in a Scene. Instances only store
+ * a <code>Transform</code>; the geometry and its BVH belong to the Model and
+ * are shared by every instance of it, so a Scene's memory use grows with the
+ * number of unique Models rather than with the number of copies.
+ * <p>
+ * Moving an instance never touches the Model's BVH. The Scene only has to
+ * rebuild the small BVH over its instances, which it does in
+ * {@link renderer.scene.Scene#commit()}.
+ * </p>
+ *
+ * @see renderer.kernel.InstanceBVH
+ */
+public class ModelInstance implements Actor {
+	/** The geometry this is a copy of. */
+	public final Model model;
+	private String name;
+	/** Maps the Model's space to world space. */
+	private Transform transform;
+	/** Maps world space back to the Model's space. Kept up to date with transform. */
+	private Transform inverse;
+	/** Incremented every time this instance moves. */
+	private int version;
+
+	/**
+	 * Places a Model at the origin, without rotating or scaling it.
+	 *
+	 * @param name
+	 *            the name of this instance
+	 * @param model
+	 *            the Model to place
+	 */
+	public ModelInstance(String name, Model model) {
+		this(name, model, Transform.getIdentityInstance());
+	}
+
+	/**
+	 * Places a Model in a Scene.
+	 *
+	 * @param name
+	 *            the name of this instance
+	 * @param model
+	 *            the Model to place
+	 * @param transform
+	 *            maps the Model's space to world space. It is copied.
+	 * @throws IllegalArgumentException
+	 *             if the Model is null
+	 */
+	public ModelInstance(String name, Model model, Transform transform) {
+		if (model == null)
+			throw new IllegalArgumentException("A ModelInstance needs a Model");
+		this.name = name;
+		this.model = model;
+		setTransform(transform);
+	}
+
+	/**
+	 * @return a copy of the Transform that maps the Model's space to world space
+	 */
+	public Transform getTransform() {
+		return transform.cpy();
+	}
+
+	/**
+	 * @return a copy of the Transform that maps world space to the Model's space
+	 */
+	public Transform getInverseTransform() {
+		return inverse.cpy();
+	}
+
+	/**
+	 * Replaces this instance's Transform.
+	 *
+	 * @param transform
+	 *            maps the Model's space to world space. It is copied.
+	 * @throws ArithmeticException
+	 *             if the Transform can't be inverted
+	 */
+	public void setTransform(Transform transform) {
+		Transform t = transform.cpy();
+		this.inverse = t.inverse();
+		this.transform = t;
+		version++;
+	}
+
+	/**
+	 * Gets a number that changes every time this instance is transformed. The
+	 * Scene compares it with the version it last saw to find the instances that
+	 * moved, so it only has to refit their part of its BVH.
+	 * 
+	 * @return the version of this instance's Transform
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Must be called after transform is changed in place.
+	 */
+	private void moved() {
+		inverse = transform.inverse();
+		version++;
+	}
+
+	/**
+	 * Computes the world space box around this instance by transforming the
+	 * corners of the Model's bounds. Builds the Model's BVH if needed.
+	 *
+	 * @return the bounds of this instance. Empty if the Model has no triangles.
+	 */
+	public AABB getWorldBounds() {
+		AABB local = model.getBVH().getBounds();
+		AABB world = new AABB();
+		if (local.isEmpty())
+			return world;
+		Vector3 corner = new Vector3();
+		for (int i = 0; i < 8; i++) {
+			corner.x = (i & 1) == 0 ? local.minX : local.maxX;
+			corner.y = (i & 2) == 0 ? local.minY : local.maxY;
+			corner.z = (i & 4) == 0 ? local.minZ : local.maxZ;
+			Vector3 p = transform.transform(corner);
+			world.grow(p.x, p.y, p.z);
+		}
+		return world;
+	}
+
+	@Override
+	public void translate(Vector3 v) {
+		transform.translate(v);
+		moved();
+	}
+
+	@Override
+	public void translate(double x, double y, double z) {
+		transform.translate(x, y, z);
+		moved();
+	}
+
+	@Override
+	public void rotX(double theta, boolean aroundOrigin) {
+		transform.rotX(theta, aroundOrigin);
+		moved();
+	}
+
+	@Override
+	public void rotY(double theta, boolean aroundOrigin) {
+		transform.rotY(theta, aroundOrigin);
+		moved();
+	}
+
+	@Override
+	public void rotZ(double theta, boolean aroundOrigin) {
+		transform.rotZ(theta, aroundOrigin);
+		moved();
+	}
+
+	@Override
+	public void applyTransformation(Transform m) {
+		setTransform(m.cpy().multiply(transform));
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
 }
@@ -1,5 +1,36 @@
 package renderer.scene.animation;
 
-public class Animation {
+/**
+ * Something that happens to an {@link Animateable} entity over time, such as
+ * a rotation or a path it follows. Animations are applied once per frame by an
+ * {@link AnimationManager}.
+ * 
+ * @see AnimationManager
+ */
+public abstract class Animation {
+	/** The name of the entity this Animation is applied to. */
+	public final String target;
 
+	/**
+	 * Creates a new Animation.
+	 * 
+	 * @param target
+	 *            the name of the entity to animate
+	 */
+	protected Animation(String target) {
+		this.target = target;
+	}
+
+	/**
+	 * Moves an entity from where it was at <code>time</code> to where it should
+	 * be one frame later.
+	 * 
+	 * @param entity
+	 *            the entity to move
+	 * @param time
+	 *            the time at the start of the frame, in seconds
+	 * @param delta
+	 *            the length of the frame, in seconds
+	 */
+	public abstract void apply(Animateable entity, double time, double delta);
 }
@@ -3,6 +3,8 @@ package renderer.scene.animation;
 import java.util.ArrayList;
 import java.util.HashMap;
 
+import renderer.scene.Scene;
+
 /**
  * Handler class to animate any entity that is animateable. This class should be
  * paired with a Scene.
@@ -14,6 +16,11 @@ import java.util.HashMap;
  */
 public class AnimationManager {
 	public MovieData data;
+	/**
+	 * The Scene the actors are in. If set, its BVH is refit after every frame so
+	 * it is ready to be rendered. May be null.
+	 */
+	public Scene scene;
 
 	private HashMap<String, Animateable> actors;
 	private ArrayList<Animation> animations;
@@ -43,16 +50,48 @@ public class AnimationManager {
 	public AnimationManager(MovieData data, ArrayList<Animateable> actors, ArrayList<Animation> animations) {
 		this.data = data;
 
+		this.actors = new HashMap<String, Animateable>();
 		for (Animateable a : actors)
 			this.actors.put(a.getName(), a);
 
 		this.animations = animations;
 	}
+	/**
+	 * Creates a new AnimationManager that animates the Actors in a Scene.
+	 * 
+	 * @param data
+	 *            the MovieData to be used
+	 * @param scene
+	 *            the Scene holding the Actors. Its instances are managed.
+	 * @param animations
+	 *            the animations that can be applied to the Actors
+	 */
+	public AnimationManager(MovieData data, Scene scene, ArrayList<Animation> animations) {
+		this(data, new ArrayList<Animateable>(scene.instances), animations);
+		this.scene = scene;
+	}
+
 	/**
 	 * Applies all Animations to their respective entities, assuming the animation happens at this specific time.
+	 * Then advances the time by one frame and, if there is a Scene, refits its BVH
+	 * around the actors that moved.
 	 */
 	public void update() {
-	
-		elapsedTime += data.frameRate;
+		double delta = 1.0 / data.frameRate;
+		for (Animation anim : animations) {
+			Animateable a = actors.get(anim.target);
+			if (a != null)
+				anim.apply(a, elapsedTime, delta);
+		}
+		elapsedTime += delta;
+		if (scene != null)
+			scene.commit();
+	}
+
+	/**
+	 * @return how far into the movie the next frame is, in seconds
+	 */
+	public double getElapsedTime() {
+		return elapsedTime;
 	}
 }